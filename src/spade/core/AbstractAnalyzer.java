@@ -98,6 +98,11 @@ public abstract class AbstractAnalyzer
 
     public static void registerFunction(String func_name, String class_name, String ret_type)
     {
+        // queries can also be used without an analyzer, e.g. by the profilers
+        if(functionToClassMap == null)
+        {
+            functionToClassMap = new HashMap<>();
+        }
         functionToClassMap.put(func_name, Arrays.asList(class_name, ret_type));
     }
 
@@ -184,11 +189,6 @@ public abstract class AbstractAnalyzer
                         {
                             //TODO: update the transformer function to reflect changes
                             graph = transformer.putGraph(graph, null);
-                            if(graph != null)
-                            {
-                                //commit after every transformer to enable reading without error
-                                graph.commitIndex();
-                            }
                         }
                         catch(Exception ex)
                         {
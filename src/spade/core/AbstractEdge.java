@@ -21,9 +21,6 @@ package spade.core;
 
 import java.io.Serializable;
 import java.util.Map;
-import java.util.TreeMap;
-
-import org.apache.commons.codec.digest.DigestUtils;
 
 /**
  * This is the class from which other edge classes (e.g., OPM edges) are
@@ -40,9 +37,13 @@ public abstract class AbstractEdge implements Serializable {
 	/**
      * A map containing the annotations for this edge.
      */
-    protected Map<String, String> annotations = new TreeMap<>();
+    protected Map<String, String> annotations = new AnnotationMap();
     private AbstractVertex childVertex;
     private AbstractVertex parentVertex;
+    /**
+     * Memoized digest of the annotations and end points, computed by bigHashCode().
+     */
+    private transient ContentDigest bigHash;
 
     /**
      * Checks if edge is empty
@@ -75,6 +76,7 @@ public abstract class AbstractEdge implements Serializable {
         if (key == null || value == null) {
             return;
         }
+        bigHash = null;
         annotations.put(key, value);
     }
 
@@ -99,6 +101,7 @@ public abstract class AbstractEdge implements Serializable {
      * existed.
      */
     public final String removeAnnotation(String key) {
+        bigHash = null;
         return annotations.remove(key);
     }
 
@@ -151,6 +154,7 @@ public abstract class AbstractEdge implements Serializable {
      */
     public final void setChildVertex(AbstractVertex childVertex) {
         this.childVertex = childVertex;
+        bigHash = null;
     }
 
     /**
@@ -161,16 +165,19 @@ public abstract class AbstractEdge implements Serializable {
      */
     public final void setParentVertex(AbstractVertex parentVertex) {
         this.parentVertex = parentVertex;
+        bigHash = null;
     }
 
     /**
      * Computes MD5 hash of annotations in the edge and its end point vertices.
+     * The hash is memoized until the annotations or the end points change. Another
+     * algorithm can be selected with the 'hash_algorithm' setting.
      *
      @return A 128-bit hash digest.
      */
     public String bigHashCode()
     {
-        return DigestUtils.md5Hex(this.toString());
+        return getBigHash().getHex();
     }
 
     /**
@@ -180,7 +187,22 @@ public abstract class AbstractEdge implements Serializable {
      */
     public byte[] bigHashCodeBytes()
     {
-        return DigestUtils.md5(this.toString());
+        return getBigHash().getBytes();
+    }
+
+    // The stamp also detects changes made through the maps returned by getAnnotations()
+    private ContentDigest getBigHash()
+    {
+        int stamp = annotations.hashCode();
+        stamp = 31 * stamp + ContentDigest.stamp(childVertex);
+        stamp = 31 * stamp + ContentDigest.stamp(parentVertex);
+        ContentDigest digest = bigHash;
+        if(digest == null || !digest.isValid(stamp))
+        {
+            digest = ContentDigest.of(this, stamp);
+            bigHash = digest;
+        }
+        return digest;
     }
 
     @Override
@@ -25,6 +25,7 @@ import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.LinkedList;
+import java.util.List;
 import java.util.Map;
 import java.util.Queue;
 import java.util.Set;
@@ -173,6 +174,57 @@ public abstract class AbstractStorage
      */
     public abstract boolean putVertex(AbstractVertex incomingVertex);
 
+    /**
+     * This function inserts a batch of vertices and edges into the underlying
+     * storage(s). All vertices are inserted before the edges so that the end points
+     * of every edge are present when the edge is inserted. Storages that support
+     * grouped writes should override this function and update the counts through
+     * incrementVertexCount() and incrementEdgeCount(). The default implementation
+     * inserts the elements one at a time.
+     *
+     * @param vertices vertices to insert into the storage
+     * @param edges edges to insert into the storage
+     * @return returns true if the batch was handled by the storage.
+     */
+    public boolean putBatch(List<AbstractVertex> vertices, List<AbstractEdge> edges)
+    {
+        for(AbstractVertex vertex : vertices)
+        {
+            if(putVertex(vertex))
+            {
+                vertexCount++;
+            }
+        }
+        for(AbstractEdge edge : edges)
+        {
+            if(putEdge(edge))
+            {
+                edgeCount++;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Adds to the number of vertices successfully received by this storage.
+     *
+     * @param count number of vertices inserted
+     */
+    protected final void incrementVertexCount(long count)
+    {
+        vertexCount += count;
+    }
+
+    /**
+     * Adds to the number of edges successfully received by this storage.
+     *
+     * @param count number of edges inserted
+     */
+    protected final void incrementEdgeCount(long count)
+    {
+        edgeCount += count;
+    }
+
     /**
      * This function finds the lineage of the graph starting from a source vertex.
      *
@@ -19,13 +19,8 @@
  */
 package spade.core;
 
-import org.apache.commons.codec.digest.DigestUtils;
-
 import java.io.Serializable;
 import java.util.Map;
-import java.util.TreeMap;
-
-import org.apache.commons.codec.digest.DigestUtils;
 
 /**
  * This is the class from which other vertex classes (e.g., OPM vertices) are
@@ -42,7 +37,12 @@ public abstract class AbstractVertex implements Serializable {
 	/**
      * A map containing the annotations for this vertex.
      */
-    protected Map<String, String> annotations = new TreeMap<>();
+    protected Map<String, String> annotations = new AnnotationMap();
+
+    /**
+     * Memoized digest of the annotations, computed by bigHashCode().
+     */
+    private transient ContentDigest bigHash;
 
     /**
      * An integer indicating the depth of the vertex in the graph
@@ -86,6 +86,7 @@ public abstract class AbstractVertex implements Serializable {
         if (key == null || value == null) {
             return;
         }
+        bigHash = null;
         annotations.put(key, value);
     }
 
@@ -110,6 +111,7 @@ public abstract class AbstractVertex implements Serializable {
      * existed.
      */
     public final String removeAnnotation(String key) {
+        bigHash = null;
         return annotations.remove(key);
     }
 
@@ -133,13 +135,15 @@ public abstract class AbstractVertex implements Serializable {
     }
 
     /**
-     * Computes MD5 hash of annotations in the vertex.
+     * Computes MD5 hash of annotations in the vertex. The hash is memoized until
+     * the annotations change. Another algorithm can be selected with the
+     * 'hash_algorithm' setting.
      *
      @return A 128-bit hash digest.
      */
     public String bigHashCode()
     {
-        return DigestUtils.md5Hex(this.toString());
+        return getBigHash().getHex();
     }
 
 
@@ -149,7 +153,20 @@ public abstract class AbstractVertex implements Serializable {
      */
     public byte[] bigHashCodeBytes()
     {
-        return DigestUtils.md5(this.toString());
+        return getBigHash().getBytes();
+    }
+
+    // The stamp also detects changes made through the map returned by getAnnotations()
+    private ContentDigest getBigHash()
+    {
+        int stamp = ContentDigest.stamp(this);
+        ContentDigest digest = bigHash;
+        if(digest == null || !digest.isValid(stamp))
+        {
+            digest = ContentDigest.of(this, stamp);
+            bigHash = digest;
+        }
+        return digest;
     }
 
     @Override
@@ -0,0 +1,439 @@
+/*
+ --------------------------------------------------------------------------------
+ SPADE - Support for Provenance Auditing in Distributed Environments.
+ Copyright (C) 2015 SRI International
+
+ This program is free software: you can redistribute it and/or
+ modify it under the terms of the GNU General Public License as
+ published by the Free Software Foundation, either version 3 of the
+ License, or (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program. If not, see <http://www.gnu.org/licenses/>.
+ --------------------------------------------------------------------------------
+ */
+package spade.core;
+
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.ConcurrentModificationException;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A compact map for the annotations of vertices and edges.
+ *
+ * Elements with the same set of annotation keys share one sorted key array (a
+ * layout) and only hold an array of values. Layouts are canonicalized globally
+ * and the transitions between them on adding or removing a key are cached, so
+ * building an element does not search the global table. Short values of keys
+ * with few distinct values (e.g. type, operation, subtype) are interned.
+ *
+ * Keys are iterated in their natural order, as in a TreeMap. Null keys are not
+ * permitted. The map is not thread-safe.
+ */
+public final class AnnotationMap extends AbstractMap<String, String> implements Serializable
+{
+    private static final long serialVersionUID = -4313622012658286517L;
+
+    /**
+     * Maximum number of canonical layouts. Layouts created beyond this are not shared.
+     */
+    private static final int MAX_LAYOUTS = 4096;
+    /**
+     * Maximum number of keys for which values are interned.
+     */
+    private static final int MAX_VALUE_POOLS = 1024;
+    /**
+     * Number of distinct values after which the values of a key are no longer interned.
+     */
+    private static final int MAX_VALUES_PER_KEY = 256;
+    /**
+     * Values longer than this are not interned.
+     */
+    private static final int MAX_INTERNED_VALUE_LENGTH = 64;
+
+    private static final String[] NO_VALUES = new String[0];
+    private static final ConcurrentMap<List<String>, Layout> layouts = new ConcurrentHashMap<>();
+    private static final ConcurrentMap<String, ValuePool> valuePools = new ConcurrentHashMap<>();
+    private static final Layout EMPTY_LAYOUT = canonical(new String[0]);
+
+    private transient Layout layout = EMPTY_LAYOUT;
+    private transient String[] values = NO_VALUES;
+    private transient int modCount;
+
+    public AnnotationMap()
+    {
+    }
+
+    public AnnotationMap(Map<String, String> annotations)
+    {
+        putAll(annotations);
+    }
+
+    @Override
+    public int size()
+    {
+        return values.length;
+    }
+
+    @Override
+    public boolean isEmpty()
+    {
+        return values.length == 0;
+    }
+
+    @Override
+    public boolean containsKey(Object key)
+    {
+        return layout.indexOf(key) >= 0;
+    }
+
+    @Override
+    public String get(Object key)
+    {
+        int index = layout.indexOf(key);
+        return index >= 0 ? values[index] : null;
+    }
+
+    @Override
+    public String put(String key, String value)
+    {
+        if(key == null)
+        {
+            throw new NullPointerException("Null annotation key");
+        }
+        value = intern(key, value);
+        int index = layout.indexOf(key);
+        if(index >= 0)
+        {
+            String previous = values[index];
+            values[index] = value;
+            return previous;
+        }
+        int insertion = -(index + 1);
+        String[] grown = new String[values.length + 1];
+        System.arraycopy(values, 0, grown, 0, insertion);
+        grown[insertion] = value;
+        System.arraycopy(values, insertion, grown, insertion + 1, values.length - insertion);
+        layout = layout.with(key, insertion);
+        values = grown;
+        modCount++;
+        return null;
+    }
+
+    @Override
+    public String remove(Object key)
+    {
+        int index = layout.indexOf(key);
+        if(index < 0)
+        {
+            return null;
+        }
+        String previous = values[index];
+        removeAt(index);
+        return previous;
+    }
+
+    private void removeAt(int index)
+    {
+        String[] shrunk = values.length == 1 ? NO_VALUES : new String[values.length - 1];
+        System.arraycopy(values, 0, shrunk, 0, index);
+        System.arraycopy(values, index + 1, shrunk, index, values.length - index - 1);
+        layout = layout.without(index);
+        values = shrunk;
+        modCount++;
+    }
+
+    @Override
+    public void clear()
+    {
+        layout = EMPTY_LAYOUT;
+        values = NO_VALUES;
+        modCount++;
+    }
+
+    @Override
+    public Set<Map.Entry<String, String>> entrySet()
+    {
+        return new AbstractSet<Map.Entry<String, String>>()
+        {
+            @Override
+            public Iterator<Map.Entry<String, String>> iterator()
+            {
+                return new EntryIterator();
+            }
+
+            @Override
+            public int size()
+            {
+                return values.length;
+            }
+        };
+    }
+
+    @Override
+    public boolean equals(Object o)
+    {
+        if(o instanceof AnnotationMap && ((AnnotationMap) o).layout == layout)
+        {
+            return Arrays.equals(values, ((AnnotationMap) o).values);
+        }
+        return super.equals(o);
+    }
+
+    // Same value as AbstractMap.hashCode() without iterating over entries
+    @Override
+    public int hashCode()
+    {
+        String[] keys = layout.keys;
+        int hashCode = 0;
+        for(int i = 0; i < keys.length; i++)
+        {
+            hashCode += keys[i].hashCode() ^ (values[i] == null ? 0 : values[i].hashCode());
+        }
+        return hashCode;
+    }
+
+    private void writeObject(ObjectOutputStream out) throws IOException
+    {
+        out.defaultWriteObject();
+        out.writeInt(values.length);
+        for(int i = 0; i < values.length; i++)
+        {
+            out.writeObject(layout.keys[i]);
+            out.writeObject(values[i]);
+        }
+    }
+
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException
+    {
+        in.defaultReadObject();
+        layout = EMPTY_LAYOUT;
+        values = NO_VALUES;
+        int size = in.readInt();
+        for(int i = 0; i < size; i++)
+        {
+            put((String) in.readObject(), (String) in.readObject());
+        }
+    }
+
+    private final class EntryIterator implements Iterator<Map.Entry<String, String>>
+    {
+        private int next = 0;
+        private int last = -1;
+        private int expectedModCount = modCount;
+
+        @Override
+        public boolean hasNext()
+        {
+            return next < values.length;
+        }
+
+        @Override
+        public Map.Entry<String, String> next()
+        {
+            if(modCount != expectedModCount)
+            {
+                throw new ConcurrentModificationException();
+            }
+            if(next >= values.length)
+            {
+                throw new NoSuchElementException();
+            }
+            last = next++;
+            return new Entry(layout.keys[last], values[last]);
+        }
+
+        @Override
+        public void remove()
+        {
+            if(last < 0)
+            {
+                throw new IllegalStateException();
+            }
+            if(modCount != expectedModCount)
+            {
+                throw new ConcurrentModificationException();
+            }
+            removeAt(last);
+            next = last;
+            last = -1;
+            expectedModCount = modCount;
+        }
+    }
+
+    private final class Entry extends AbstractMap.SimpleEntry<String, String>
+    {
+        private static final long serialVersionUID = 1L;
+
+        private Entry(String key, String value)
+        {
+            super(key, value);
+        }
+
+        @Override
+        public String setValue(String value)
+        {
+            // Writes through without changing the layout, so iteration is not affected
+            put(getKey(), value);
+            return super.setValue(value);
+        }
+    }
+
+    /**
+     * A sorted set of keys shared by all maps with exactly these keys.
+     */
+    private static final class Layout
+    {
+        private final String[] keys;
+        /**
+         * True if this layout is canonical. Only transitions to canonical layouts are cached.
+         */
+        private final boolean shared;
+        private final ConcurrentMap<String, Layout> additions = new ConcurrentHashMap<>();
+        private final ConcurrentMap<String, Layout> removals = new ConcurrentHashMap<>();
+
+        private Layout(String[] keys, boolean shared)
+        {
+            this.keys = keys;
+            this.shared = shared;
+        }
+
+        private int indexOf(Object key)
+        {
+            if(!(key instanceof String))
+            {
+                return -1;
+            }
+            return Arrays.binarySearch(keys, key);
+        }
+
+        private Layout with(String key, int insertion)
+        {
+            Layout next = additions.get(key);
+            if(next == null)
+            {
+                String[] grown = new String[keys.length + 1];
+                System.arraycopy(keys, 0, grown, 0, insertion);
+                grown[insertion] = key;
+                System.arraycopy(keys, insertion, grown, insertion + 1, keys.length - insertion);
+                next = canonical(grown);
+                if(next.shared)
+                {
+                    additions.putIfAbsent(key, next);
+                }
+            }
+            return next;
+        }
+
+        private Layout without(int index)
+        {
+            String key = keys[index];
+            Layout next = removals.get(key);
+            if(next == null)
+            {
+                String[] shrunk = new String[keys.length - 1];
+                System.arraycopy(keys, 0, shrunk, 0, index);
+                System.arraycopy(keys, index + 1, shrunk, index, keys.length - index - 1);
+                next = canonical(shrunk);
+                if(next.shared)
+                {
+                    removals.putIfAbsent(key, next);
+                }
+            }
+            return next;
+        }
+    }
+
+    private static Layout canonical(String[] keys)
+    {
+        List<String> keyList = Arrays.asList(keys);
+        Layout layout = layouts.get(keyList);
+        if(layout == null)
+        {
+            if(layouts.size() >= MAX_LAYOUTS)
+            {
+                return new Layout(keys, false);
+            }
+            layout = new Layout(keys, true);
+            Layout existing = layouts.putIfAbsent(keyList, layout);
+            if(existing != null)
+            {
+                layout = existing;
+            }
+        }
+        return layout;
+    }
+
+    private static String intern(String key, String value)
+    {
+        if(value == null || value.length() > MAX_INTERNED_VALUE_LENGTH)
+        {
+            return value;
+        }
+        ValuePool pool = valuePools.get(key);
+        if(pool == null)
+        {
+            if(valuePools.size() >= MAX_VALUE_POOLS)
+            {
+                return value;
+            }
+            pool = new ValuePool();
+            ValuePool existing = valuePools.putIfAbsent(key, pool);
+            if(existing != null)
+            {
+                pool = existing;
+            }
+        }
+        return pool.intern(value);
+    }
+
+    /**
+     * Interned values of one key. Interning stops once the key turns out to have
+     * many distinct values (e.g. time or pid).
+     */
+    private static final class ValuePool
+    {
+        private final ConcurrentMap<String, String> values = new ConcurrentHashMap<>();
+        private final AtomicInteger size = new AtomicInteger();
+        private volatile boolean saturated;
+
+        private String intern(String value)
+        {
+            if(saturated)
+            {
+                return value;
+            }
+            String interned = values.get(value);
+            if(interned != null)
+            {
+                return interned;
+            }
+            if(size.incrementAndGet() > MAX_VALUES_PER_KEY)
+            {
+                saturated = true;
+                values.clear();
+                return value;
+            }
+            interned = values.putIfAbsent(value, value);
+            return interned == null ? value : interned;
+        }
+    }
+}
@@ -0,0 +1,342 @@
+/*
+ --------------------------------------------------------------------------------
+ SPADE - Support for Provenance Auditing in Distributed Environments.
+ Copyright (C) 2017 SRI International
+
+ This program is free software: you can redistribute it and/or
+ modify it under the terms of the GNU General Public License as
+ published by the Free Software Foundation, either version 3 of the
+ License, or (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program. If not, see <http://www.gnu.org/licenses/>.
+ --------------------------------------------------------------------------------
+ */
+package spade.core;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A buffer which holds at most a fixed number of elements and/or bytes in
+ * memory. What happens when a reporter puts an element into a full buffer is
+ * decided by the overflow policy:
+ *
+ * block - the reporter waits until the buffer is drained.
+ * spill - the element is written to a segment file on local disk and read back
+ *         after the in-memory elements have been drained.
+ * drop  - the element is discarded and counted.
+ *
+ * The order of elements is preserved by all policies.
+ */
+public class BoundedBuffer extends Buffer
+{
+    private static final Logger logger = Logger.getLogger(BoundedBuffer.class.getName());
+
+    public enum OverflowPolicy
+    {
+        BLOCK, SPILL, DROP
+    }
+
+    /**
+     * Maximum number of elements in a spill segment file.
+     */
+    private static final int SPILL_SEGMENT_ELEMENTS = 100000;
+
+    private final ArrayDeque<QueuedElement> memory;
+    private final int maxElements;
+    private final long maxBytes;
+    private final OverflowPolicy policy;
+    private final File spillDirectory;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notFull = lock.newCondition();
+    private long memoryBytes = 0;
+
+    private final Deque<SpillSegment> spillSegments = new ArrayDeque<>();
+    private long spilledPending = 0;
+    private int spillSegmentCounter = 0;
+
+    private final AtomicLong droppedCount = new AtomicLong();
+    private final AtomicLong spilledCount = new AtomicLong();
+    private final AtomicLong blockedNanos = new AtomicLong();
+
+    /**
+     * A file holding spilled elements. It is written by the reporter until it is
+     * full or until the consumer needs to read it, and it is deleted once read.
+     */
+    private static final class SpillSegment
+    {
+        private final File file;
+        private ObjectOutputStream writer;
+        private ObjectInputStream reader;
+        private int written = 0;
+        private int read = 0;
+
+        private SpillSegment(File file) throws IOException
+        {
+            this.file = file;
+            this.writer = new ObjectOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+        }
+
+        private void closeWriter() throws IOException
+        {
+            if(writer != null)
+            {
+                writer.close();
+                writer = null;
+            }
+        }
+
+        private void delete()
+        {
+            try
+            {
+                closeWriter();
+                if(reader != null)
+                {
+                    reader.close();
+                }
+            }
+            catch(IOException exception)
+            {
+                logger.log(Level.WARNING, "Failed to close spill segment " + file, exception);
+            }
+            if(!file.delete())
+            {
+                logger.log(Level.WARNING, "Failed to delete spill segment {0}", file);
+            }
+        }
+    }
+
+    /**
+     * @param maxElements Maximum number of elements in memory. Less than 1 means no limit.
+     * @param maxBytes Maximum approximate number of bytes in memory. Less than 1 means no limit.
+     * @param policy What to do with elements put into a full buffer.
+     * @param spillDirectory Directory for the segment files of the spill policy.
+     */
+    public BoundedBuffer(int maxElements, long maxBytes, OverflowPolicy policy, File spillDirectory)
+    {
+        this(new ArrayDeque<>(), maxElements, maxBytes, policy, spillDirectory);
+    }
+
+    private BoundedBuffer(ArrayDeque<QueuedElement> memory, int maxElements, long maxBytes,
+                          OverflowPolicy policy, File spillDirectory)
+    {
+        super(memory);
+        this.memory = memory;
+        this.maxElements = maxElements;
+        this.maxBytes = maxBytes;
+        this.policy = policy;
+        this.spillDirectory = spillDirectory;
+        if(policy == OverflowPolicy.SPILL)
+        {
+            spillDirectory.mkdirs();
+        }
+    }
+
+    private boolean isFull(long elementBytes)
+    {
+        if(maxElements > 0 && memory.size() >= maxElements)
+        {
+            return true;
+        }
+        // A single element larger than the limit is still accepted into an empty buffer.
+        return maxBytes > 0 && !memory.isEmpty() && memoryBytes + elementBytes > maxBytes;
+    }
+
+    @Override
+    protected boolean offer(Object element, long elementBytes)
+    {
+        lock.lock();
+        try
+        {
+            // Once spilling has started, newer elements must not overtake the spilled ones.
+            if(spilledPending > 0)
+            {
+                return spill(element);
+            }
+            while(isFull(elementBytes))
+            {
+                switch(policy)
+                {
+                    case SPILL:
+                        return spill(element);
+                    case DROP:
+                        droppedCount.incrementAndGet();
+                        return false;
+                    default:
+                        long blockedSince = System.nanoTime();
+                        try
+                        {
+                            notFull.await();
+                        }
+                        catch(InterruptedException exception)
+                        {
+                            Thread.currentThread().interrupt();
+                            droppedCount.incrementAndGet();
+                            return false;
+                        }
+                        finally
+                        {
+                            blockedNanos.addAndGet(System.nanoTime() - blockedSince);
+                        }
+                }
+            }
+            memoryBytes += elementBytes;
+            return super.offer(element, elementBytes);
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    protected Object poll()
+    {
+        lock.lock();
+        try
+        {
+            if(!memory.isEmpty())
+            {
+                QueuedElement queued = memory.pollFirst();
+                memoryBytes -= queued.bytes;
+                removed(queued.bytes);
+                notFull.signal();
+                return queued.element;
+            }
+            while(spilledPending > 0)
+            {
+                Object element = unspill();
+                if(element != null)
+                {
+                    return element;
+                }
+            }
+            return null;
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    private boolean spill(Object element)
+    {
+        try
+        {
+            SpillSegment segment = spillSegments.peekLast();
+            if(segment == null || segment.writer == null || segment.written >= SPILL_SEGMENT_ELEMENTS)
+            {
+                if(segment != null)
+                {
+                    segment.closeWriter();
+                }
+                File file = new File(spillDirectory, "buffer-" + System.identityHashCode(this)
+                        + "-" + (spillSegmentCounter++) + ".spill");
+                segment = new SpillSegment(file);
+                spillSegments.addLast(segment);
+            }
+            segment.writer.writeObject(element);
+            // Do not keep references to written objects.
+            segment.writer.reset();
+            segment.written++;
+            spilledPending++;
+            spilledCount.incrementAndGet();
+            added(0);
+            return true;
+        }
+        catch(IOException exception)
+        {
+            logger.log(Level.SEVERE, "Failed to spill buffer element to disk", exception);
+            droppedCount.incrementAndGet();
+            return false;
+        }
+    }
+
+    private Object unspill()
+    {
+        SpillSegment segment = spillSegments.peekFirst();
+        Object element = null;
+        int consumed;
+        try
+        {
+            if(segment.reader == null)
+            {
+                // The segment becomes read-only once the consumer reaches it.
+                segment.closeWriter();
+                segment.reader = new ObjectInputStream(new BufferedInputStream(new FileInputStream(segment.file)));
+            }
+            element = segment.reader.readObject();
+            consumed = 1;
+        }
+        catch(IOException | ClassNotFoundException exception)
+        {
+            logger.log(Level.SEVERE, "Failed to read spilled buffer elements from " + segment.file
+                    + ". Dropping remaining elements of the segment", exception);
+            consumed = segment.written - segment.read;
+            droppedCount.addAndGet(consumed);
+        }
+        segment.read += consumed;
+        spilledPending -= consumed;
+        for(int i = 0; i < consumed; i++)
+        {
+            removed(0);
+        }
+        if(segment.read >= segment.written)
+        {
+            spillSegments.pollFirst();
+            segment.delete();
+        }
+        return element;
+    }
+
+    public long getDroppedCount()
+    {
+        return droppedCount.get();
+    }
+
+    public long getSpilledCount()
+    {
+        return spilledCount.get();
+    }
+
+    @Override
+    public String getStatistics()
+    {
+        long spilled;
+        lock.lock();
+        try
+        {
+            spilled = spilledPending;
+        }
+        finally
+        {
+            lock.unlock();
+        }
+        return super.getStatistics() + ", policy " + policy.name().toLowerCase()
+                + " (max elements " + maxElements + ", max bytes " + maxBytes + ")"
+                + ", on disk " + spilled + ", spilled total " + spilledCount.get()
+                + ", dropped " + droppedCount.get()
+                + String.format(", blocked %.1f sec", blockedNanos.get() / 1e9);
+    }
+}
@@ -19,25 +19,73 @@
  */
 package spade.core;
 
+import java.util.Map;
 import java.util.Queue;
 import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
 
 /**
  * This is the buffer class which is used by reporters to send provenance
  * elements to.
  *
+ * The number of elements and the approximate number of bytes held are tracked
+ * with counters so that monitoring does not have to traverse the queue.
+ *
  * @author Dawood Tariq
  */
 public class Buffer {
 
-    private final Queue<Object> queue;
+    /**
+     * Approximate heap cost of an element object without its annotations.
+     */
+    private static final int ELEMENT_OVERHEAD_BYTES = 64;
+    /**
+     * Approximate heap cost of a map entry and of the two strings it refers to.
+     */
+    private static final int ANNOTATION_OVERHEAD_BYTES = 32 + 2 * 40;
+
+    /**
+     * An element in the queue together with the size that was counted for it,
+     * so that the same size is subtracted when it is removed.
+     */
+    protected static final class QueuedElement {
+        final Object element;
+        final long bytes;
+
+        QueuedElement(Object element, long bytes) {
+            this.element = element;
+            this.bytes = bytes;
+        }
+    }
+
+    private final Queue<QueuedElement> queue;
+    /**
+     * Thread draining this buffer. It is woken up whenever an element is added.
+     */
+    private volatile Thread consumer;
+
+    private final AtomicInteger size = new AtomicInteger();
+    private final AtomicLong bytes = new AtomicLong();
+    private final AtomicInteger sizeHighWaterMark = new AtomicInteger();
+    private final AtomicLong bytesHighWaterMark = new AtomicLong();
 
     /**
      * Empty constructor for this class.
      *
      */
     public Buffer() {
-        queue = new ConcurrentLinkedQueue<>();
+        this(new ConcurrentLinkedQueue<>());
+    }
+
+    /**
+     * Constructor used by subclasses to provide their own queue.
+     *
+     * @param queue The queue holding the elements in memory.
+     */
+    protected Buffer(Queue<QueuedElement> queue) {
+        this.queue = queue;
     }
 
     /**
@@ -50,7 +98,7 @@ public class Buffer {
         if (incomingVertex == null) {
             return false;
         } else {
-            return queue.add(incomingVertex);
+            return signal(offer(incomingVertex, estimateSize(incomingVertex.getAnnotations())));
         }
     }
 
@@ -66,17 +114,106 @@ public class Buffer {
                 || (incomingEdge.getParentVertex() == null)) {
             return false;
         } else {
-            return queue.add(incomingEdge);
+            return signal(offer(incomingEdge, estimateSize(incomingEdge.getAnnotations())));
+        }
+    }
+
+    private boolean signal(boolean added) {
+        Thread currentConsumer = consumer;
+        if (added && currentConsumer != null) {
+            LockSupport.unpark(currentConsumer);
+        }
+        return added;
+    }
+
+    /**
+     * Sets the thread which is to be woken up when elements are added to this
+     * buffer.
+     *
+     * @param consumer The thread draining this buffer or null.
+     */
+    public void setConsumer(Thread consumer) {
+        this.consumer = consumer;
+    }
+
+    /**
+     * Adds an element to the in-memory queue.
+     *
+     * @param element The vertex or edge.
+     * @param elementBytes The approximate size of the element.
+     * @return True if the element was added.
+     */
+    protected boolean offer(Object element, long elementBytes) {
+        // Counted before adding so that the size is never negative.
+        added(elementBytes);
+        return queue.add(new QueuedElement(element, elementBytes));
+    }
+
+    /**
+     * Removes an element from the in-memory queue.
+     *
+     * @return The element at the head of the queue or null if the queue is empty.
+     */
+    protected Object poll() {
+        QueuedElement queued = queue.poll();
+        if (queued == null) {
+            return null;
+        }
+        removed(queued.bytes);
+        return queued.element;
+    }
+
+    /**
+     * Updates the counters after an element has been accepted.
+     *
+     * @param elementBytes The approximate number of bytes that the element holds
+     * on the heap (zero if the element is not held in memory).
+     */
+    protected final void added(long elementBytes) {
+        int currentSize = size.incrementAndGet();
+        long currentBytes = bytes.addAndGet(elementBytes);
+        if (currentSize > sizeHighWaterMark.get()) {
+            sizeHighWaterMark.accumulateAndGet(currentSize, Math::max);
+        }
+        if (currentBytes > bytesHighWaterMark.get()) {
+            bytesHighWaterMark.accumulateAndGet(currentBytes, Math::max);
         }
     }
 
+    /**
+     * Updates the counters after an element has been extracted.
+     *
+     * @param elementBytes The value that was passed to added() for the element.
+     */
+    protected final void removed(long elementBytes) {
+        size.decrementAndGet();
+        bytes.addAndGet(-elementBytes);
+    }
+
+    /**
+     * Approximates the number of bytes that an element holds on the heap.
+     * Endpoints of edges are not included since they are put as vertices too.
+     *
+     * @param annotations The annotations of the vertex or edge.
+     * @return The approximate size in bytes.
+     */
+    private static long estimateSize(Map<String, String> annotations) {
+        long estimate = ELEMENT_OVERHEAD_BYTES;
+        for (Map.Entry<String, String> annotation : annotations.entrySet()) {
+            // Two bytes per char of the key and the value.
+            estimate += ANNOTATION_OVERHEAD_BYTES
+                    + 2 * (annotation.getKey().length() + annotation.getValue().length());
+        }
+        return estimate;
+    }
+
     /**
      * This method is used to extract provenance elements from the buffer.
      *
      * @return The provenance element from the head of the queue.
      */
     public Object getBufferElement() {
-        return queue.poll();
+        return poll();
     }
 
     /**
@@ -85,7 +222,7 @@ public class Buffer {
      * @return True if the buffer is empty.
      */
     public boolean isEmpty() {
-        return queue.isEmpty();
+        return size.get() <= 0;
     }
 
     /**
@@ -95,6 +232,37 @@ public class Buffer {
      * @return the number of elements in the buffer
      */
     public int size() {
-        return queue.size();
+        return size.get();
+    }
+
+    /**
+     * @return the approximate number of bytes held by the elements in memory
+     */
+    public long getApproximateBytes() {
+        return bytes.get();
+    }
+
+    /**
+     * @return the largest number of elements held at any time
+     */
+    public int getSizeHighWaterMark() {
+        return sizeHighWaterMark.get();
+    }
+
+    /**
+     * @return the largest approximate number of bytes held at any time
+     */
+    public long getBytesHighWaterMark() {
+        return bytesHighWaterMark.get();
+    }
+
+    /**
+     * Used by the Kernel to report the backlog of this buffer.
+     *
+     * @return A one-line summary of the counters of this buffer.
+     */
+    public String getStatistics() {
+        return "elements " + size() + " (high-water mark " + getSizeHighWaterMark() + "), approximate bytes "
+                + getApproximateBytes() + " (high-water mark " + getBytesHighWaterMark() + ")";
     }
 }
@@ -17,34 +17,362 @@
  along with this program. If not, see <http://www.gnu.org/licenses/>.
  --------------------------------------------------------------------------------
  */
-
 package spade.core;
 
+import com.googlecode.concurrentlinkedhashmap.ConcurrentLinkedHashMap;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
 /**
  * This class encapsulates the caching policy and implementation
  * for graph vertices and edges.
  *
+ * A bounded cache of the vertices and edges present in a storage, by their
+ * 128-bit hash. The most recently added or found hashes are kept in a concurrent
+ * LRU map, and every added hash in a Bloom filter. An element is reported present
+ * only if its hash is in the LRU map, so the storage still handles the duplicates
+ * that were evicted. The Bloom filter answers mayBePresent() for storages that
+ * confirm presence in their database, and for queries.
+ *
+ * The LRU map holds 'cache_size' hashes (the cache is disabled if 0), and the
+ * Bloom filter is sized by 'cache_bloomfilter_elements' and
+ * 'cache_bloomfilter_false_positive_probability'. The cache is saved to a file
+ * with save() and loaded with load(), so that it survives restarts along with the
+ * storage.
+ *
  * @author Raza Ahmad
  */
-public class Cache<T> {
+public class Cache
+{
+    private static final Logger logger = Logger.getLogger(Cache.class.getName());
+    private static final int HASH_BYTES = 16;
+
+    private final int size;
+    private final ConcurrentLinkedHashMap<HashKey, Boolean> recentHashes;
+    private BloomFilter<String> bloomFilter;
+    private final AtomicLong hitCount = new AtomicLong();
+    private final AtomicLong missCount = new AtomicLong();
+    private final AtomicLong evictionCount = new AtomicLong();
+
+    /**
+     * Key of the LRU map holding the 128 bits of a hash, which is much smaller than
+     * its hex string.
+     */
+    private static final class HashKey
+    {
+        private final long high;
+        private final long low;
+
+        private HashKey(long high, long low)
+        {
+            this.high = high;
+            this.low = low;
+        }
+
+        private static HashKey of(byte[] hash)
+        {
+            ByteBuffer buffer = ByteBuffer.wrap(hash);
+            return new HashKey(buffer.getLong(), buffer.getLong());
+        }
+
+        /**
+         * @return the key of the hex hash, or null if it is not a 128-bit hex hash
+         */
+        private static HashKey of(String hash)
+        {
+            if(hash == null || hash.length() != 2 * HASH_BYTES)
+            {
+                return null;
+            }
+            long high = 0;
+            long low = 0;
+            for(int i = 0; i < hash.length(); i++)
+            {
+                int digit = Character.digit(hash.charAt(i), 16);
+                if(digit < 0)
+                {
+                    return null;
+                }
+                if(i < HASH_BYTES)
+                {
+                    high = (high << 4) | digit;
+                }
+                else
+                {
+                    low = (low << 4) | digit;
+                }
+            }
+            return new HashKey(high, low);
+        }
+
+        private byte[] toBytes()
+        {
+            return ByteBuffer.allocate(HASH_BYTES).putLong(high).putLong(low).array();
+        }
+
+        @Override
+        public boolean equals(Object other)
+        {
+            if(this == other)
+            {
+                return true;
+            }
+            if(!(other instanceof HashKey))
+            {
+                return false;
+            }
+            HashKey key = (HashKey) other;
+            return high == key.high && low == key.low;
+        }
+
+        @Override
+        public int hashCode()
+        {
+            return (int) (low ^ (low >>> 32));
+        }
+    }
+
+    /**
+     * Creates a cache sized by the settings
+     */
+    public Cache()
+    {
+        this(Integer.parseInt(Settings.getProperty("cache_size")),
+                Integer.parseInt(Settings.getProperty("cache_bloomfilter_elements")),
+                Double.parseDouble(Settings.getProperty("cache_bloomfilter_false_positive_probability")));
+    }
+
+    /**
+     * @param size maximum number of hashes in the LRU map. The cache is disabled if 0.
+     * @param expectedElements expected number of hashes added to the Bloom filter
+     * @param falsePositiveProbability false positive probability of the Bloom filter at the expected number of hashes
+     */
+    public Cache(int size, int expectedElements, double falsePositiveProbability)
+    {
+        this.size = size;
+        recentHashes = new ConcurrentLinkedHashMap.Builder<HashKey, Boolean>()
+                .maximumWeightedCapacity(Math.max(size, 1))
+                .listener((key, value) -> evictionCount.incrementAndGet())
+                .build();
+        bloomFilter = size > 0 ? new BloomFilter<String>(falsePositiveProbability, expectedElements) : null;
+    }
+
+    public boolean isEnabled()
+    {
+        return size > 0;
+    }
 
     /**
      * This function checks for the presence of given object in the underlying cache(s).
-     * @param object object to check the presence of
+     * @param hash hex hash of the vertex or edge, as returned by bigHashCode()
      * @return returns true if the object is found in cache
      */
-    public static<T> boolean isPresent(T object)
+    public boolean isPresent(String hash)
+    {
+        HashKey key = HashKey.of(hash);
+        return isEnabled() && key != null && isPresent(key);
+    }
+
+    public boolean isPresent(AbstractVertex vertex)
+    {
+        return isEnabled() && isPresent(HashKey.of(vertex.bigHashCodeBytes()));
+    }
+
+    public boolean isPresent(AbstractEdge edge)
     {
+        return isEnabled() && isPresent(HashKey.of(edge.bigHashCodeBytes()));
+    }
+
+    private boolean isPresent(HashKey key)
+    {
+        if(recentHashes.get(key) != null)
+        {
+            hitCount.incrementAndGet();
+            return true;
+        }
+        missCount.incrementAndGet();
         return false;
     }
 
+    /**
+     * This function checks whether the object may have been added to the cache,
+     * including the objects evicted since. False positives are possible, but not
+     * false negatives.
+     * @param hash hex hash of the vertex or edge, as returned by bigHashCode()
+     * @return returns false if the object has not been added to the cache, and true if the cache is disabled
+     */
+    public boolean mayBePresent(String hash)
+    {
+        if(!isEnabled())
+        {
+            return true;
+        }
+        HashKey key = HashKey.of(hash);
+        if(key == null)
+        {
+            return false;
+        }
+        byte[] bytes = key.toBytes();
+        synchronized(this)
+        {
+            return bloomFilter.contains(bytes);
+        }
+    }
+
     /**
      * This function adds an item to the underlying cache(s).
-     * @param object object to add to the cache(s).
-     * @return returns true if the object has been successfully added to the cache
+     * @param hash hex hash of the vertex or edge, as returned by bigHashCode()
      */
-    public static<T> boolean addItem(T object)
+    public void addItem(String hash)
     {
-        return false;
+        HashKey key = HashKey.of(hash);
+        if(key == null)
+        {
+            throw new IllegalArgumentException("Not a 128-bit hex hash: " + hash);
+        }
+        if(isEnabled())
+        {
+            addItem(key.toBytes());
+        }
+    }
+
+    public void addItem(AbstractVertex vertex)
+    {
+        if(isEnabled())
+        {
+            addItem(vertex.bigHashCodeBytes());
+        }
+    }
+
+    public void addItem(AbstractEdge edge)
+    {
+        if(isEnabled())
+        {
+            addItem(edge.bigHashCodeBytes());
+        }
+    }
+
+    private void addItem(byte[] hash)
+    {
+        synchronized(this)
+        {
+            bloomFilter.add(hash);
+        }
+        recentHashes.put(HashKey.of(hash), Boolean.TRUE);
+    }
+
+    /**
+     * Removes the hash from the LRU map, e.g. when inserting the element failed.
+     * It stays in the Bloom filter.
+     * @param hash hex hash of the vertex or edge, as returned by bigHashCode()
+     */
+    public void removeItem(String hash)
+    {
+        HashKey key = HashKey.of(hash);
+        if(isEnabled() && key != null)
+        {
+            recentHashes.remove(key);
+        }
+    }
+
+    public long getHitCount()
+    {
+        return hitCount.get();
+    }
+
+    public long getMissCount()
+    {
+        return missCount.get();
+    }
+
+    public long getEvictionCount()
+    {
+        return evictionCount.get();
+    }
+
+    public String getStats()
+    {
+        if(!isEnabled())
+        {
+            return "Cache disabled";
+        }
+        long hits = hitCount.get();
+        long lookups = hits + missCount.get();
+        synchronized(this)
+        {
+            return "Cache: " + recentHashes.size() + " recent hashes, " + hits + " hits, " + (lookups - hits)
+                    + " misses (" + (lookups == 0 ? 0 : 100 * hits / lookups) + "% hit rate), "
+                    + evictionCount.get() + " evictions. Bloom filter: " + bloomFilter.count()
+                    + " hashes, false positive probability " + bloomFilter.getFalsePositiveProbability();
+        }
+    }
+
+    /**
+     * Saves the Bloom filter and the hashes of the LRU map, least recently used
+     * first.
+     * @param file file to save to
+     */
+    public synchronized void save(File file) throws IOException
+    {
+        if(!isEnabled())
+        {
+            return;
+        }
+        try(ObjectOutputStream objectOutputStream = new ObjectOutputStream(
+                new BufferedOutputStream(new FileOutputStream(file))))
+        {
+            objectOutputStream.writeObject(bloomFilter);
+            // Copied first, as the size may change while writing
+            HashKey[] keys = recentHashes.ascendingKeySet().toArray(new HashKey[0]);
+            objectOutputStream.writeInt(keys.length);
+            for(HashKey key : keys)
+            {
+                objectOutputStream.writeLong(key.high);
+                objectOutputStream.writeLong(key.low);
+            }
+        }
+    }
+
+    /**
+     * Loads a cache saved with save(), replacing the Bloom filter and adding the
+     * hashes to the LRU map. Does nothing if the file does not exist.
+     * @param file file to load from
+     * @return returns true if the file existed and was loaded
+     */
+    @SuppressWarnings("unchecked")
+    public synchronized boolean load(File file) throws IOException
+    {
+        if(!isEnabled() || !file.exists())
+        {
+            return false;
+        }
+        try(ObjectInputStream objectInputStream = new ObjectInputStream(
+                new BufferedInputStream(new FileInputStream(file))))
+        {
+            BloomFilter<String> loadedBloomFilter = (BloomFilter<String>) objectInputStream.readObject();
+            int count = objectInputStream.readInt();
+            for(int i = 0; i < count; i++)
+            {
+                recentHashes.put(new HashKey(objectInputStream.readLong(), objectInputStream.readLong()), Boolean.TRUE);
+            }
+            bloomFilter = loadedBloomFilter;
+        }
+        catch(ClassNotFoundException exception)
+        {
+            throw new IOException("Not a saved cache: " + file, exception);
+        }
+        logger.log(Level.INFO, "Loaded cache from " + file + ". " + getStats());
+        return true;
     }
 }
@@ -0,0 +1,391 @@
+/*
+ --------------------------------------------------------------------------------
+ SPADE - Support for Provenance Auditing in Distributed Environments.
+ Copyright (C) 2015 SRI International
+
+ This program is free software: you can redistribute it and/or
+ modify it under the terms of the GNU General Public License as
+ published by the Free Software Foundation, either version 3 of the
+ License, or (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program. If not, see <http://www.gnu.org/licenses/>.
+ --------------------------------------------------------------------------------
+ */
+package spade.core;
+
+import org.apache.commons.codec.binary.Hex;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A memoized 128-bit digest of the annotations of a vertex or an edge.
+ *
+ * The digested bytes are the UTF-8 encoding of the toString() of the element,
+ * written directly into a per-thread buffer without building the string. With
+ * the default MD5 algorithm, the digest is therefore identical to
+ * DigestUtils.md5(element.toString()). The algorithm is selected with the
+ * 'hash_algorithm' setting ('md5' or 'murmur3').
+ *
+ * A digest records a stamp of the content it was computed from so that the
+ * owning element can detect changes made directly to its annotation map.
+ */
+final class ContentDigest
+{
+    enum Algorithm
+    {
+        MD5, MURMUR3
+    }
+
+    static final Algorithm ALGORITHM = resolveAlgorithm();
+
+    private static final ThreadLocal<Encoder> encoders = new ThreadLocal<Encoder>()
+    {
+        @Override
+        protected Encoder initialValue()
+        {
+            return new Encoder();
+        }
+    };
+
+    private final byte[] bytes;
+    private final int stamp;
+    private String hex;
+
+    private ContentDigest(byte[] bytes, int stamp)
+    {
+        this.bytes = bytes;
+        this.stamp = stamp;
+    }
+
+    boolean isValid(int currentStamp)
+    {
+        return stamp == currentStamp;
+    }
+
+    byte[] getBytes()
+    {
+        return bytes.clone();
+    }
+
+    String getHex()
+    {
+        if(hex == null)
+        {
+            hex = Hex.encodeHexString(bytes);
+        }
+        return hex;
+    }
+
+    static ContentDigest of(AbstractVertex vertex, int stamp)
+    {
+        Encoder encoder = encoders.get();
+        encoder.reset();
+        writeVertex(encoder, vertex);
+        return new ContentDigest(encoder.digest(), stamp);
+    }
+
+    static ContentDigest of(AbstractEdge edge, int stamp)
+    {
+        Encoder encoder = encoders.get();
+        encoder.reset();
+        encoder.append("AbstractEdge{annotations=");
+        writeAnnotations(encoder, edge.getAnnotations());
+        encoder.append(", childVertex=");
+        writeVertex(encoder, edge.getChildVertex());
+        encoder.append(", parentVertex=");
+        writeVertex(encoder, edge.getParentVertex());
+        encoder.append('}');
+        return new ContentDigest(encoder.digest(), stamp);
+    }
+
+    /**
+     * Stamp of the annotations of a vertex. A vertex without annotations still has a
+     * non-zero stamp.
+     */
+    static int stamp(AbstractVertex vertex)
+    {
+        return vertex == null ? 0 : 31 + vertex.getAnnotations().hashCode();
+    }
+
+    private static void writeVertex(Encoder encoder, AbstractVertex vertex)
+    {
+        if(vertex == null)
+        {
+            encoder.append("null");
+            return;
+        }
+        encoder.append("AbstractVertex{annotations=");
+        writeAnnotations(encoder, vertex.getAnnotations());
+        encoder.append('}');
+    }
+
+    // Same format as AbstractMap.toString() with the keys in sorted order
+    private static void writeAnnotations(Encoder encoder, Map<String, String> annotations)
+    {
+        encoder.append('{');
+        boolean first = true;
+        if(annotations instanceof AnnotationMap || annotations instanceof SortedMap)
+        {
+            for(Map.Entry<String, String> entry : annotations.entrySet())
+            {
+                if(!first)
+                {
+                    encoder.append(", ");
+                }
+                first = false;
+                encoder.append(entry.getKey());
+                encoder.append('=');
+                encoder.append(entry.getValue());
+            }
+        }
+        else
+        {
+            List<String> keys = new ArrayList<>(annotations.keySet());
+            Collections.sort(keys);
+            for(String key : keys)
+            {
+                if(!first)
+                {
+                    encoder.append(", ");
+                }
+                first = false;
+                encoder.append(key);
+                encoder.append('=');
+                encoder.append(annotations.get(key));
+            }
+        }
+        encoder.append('}');
+    }
+
+    private static Algorithm resolveAlgorithm()
+    {
+        String value = Settings.getProperty("hash_algorithm");
+        if(value != null)
+        {
+            try
+            {
+                return Algorithm.valueOf(value.trim().toUpperCase());
+            }
+            catch(IllegalArgumentException ex)
+            {
+                Logger.getLogger(ContentDigest.class.getName()).log(Level.WARNING,
+                        "Invalid hash algorithm '" + value + "'. Using 'md5'", ex);
+            }
+        }
+        return Algorithm.MD5;
+    }
+
+    /**
+     * Per-thread UTF-8 encoding buffer and message digest.
+     */
+    private static final class Encoder
+    {
+        private byte[] buffer = new byte[512];
+        private int length;
+        private final MessageDigest md5;
+
+        private Encoder()
+        {
+            try
+            {
+                md5 = MessageDigest.getInstance("MD5");
+            }
+            catch(NoSuchAlgorithmException ex)
+            {
+                throw new IllegalStateException(ex);
+            }
+        }
+
+        private void reset()
+        {
+            length = 0;
+        }
+
+        private void ensureCapacity(int additional)
+        {
+            if(length + additional > buffer.length)
+            {
+                byte[] grown = new byte[Math.max(buffer.length * 2, length + additional)];
+                System.arraycopy(buffer, 0, grown, 0, length);
+                buffer = grown;
+            }
+        }
+
+        private void append(char c)
+        {
+            ensureCapacity(1);
+            buffer[length++] = (byte) c;
+        }
+
+        // Encodes in the same way as String.getBytes("UTF-8"), including the
+        // replacement of unpaired surrogates with '?'
+        private void append(String s)
+        {
+            if(s == null)
+            {
+                s = "null";
+            }
+            int n = s.length();
+            ensureCapacity(n * 3);
+            for(int i = 0; i < n; i++)
+            {
+                char c = s.charAt(i);
+                if(c < 0x80)
+                {
+                    buffer[length++] = (byte) c;
+                }
+                else if(c < 0x800)
+                {
+                    buffer[length++] = (byte) (0xC0 | (c >> 6));
+                    buffer[length++] = (byte) (0x80 | (c & 0x3F));
+                }
+                else if(Character.isHighSurrogate(c) && i + 1 < n && Character.isLowSurrogate(s.charAt(i + 1)))
+                {
+                    int codePoint = Character.toCodePoint(c, s.charAt(++i));
+                    buffer[length++] = (byte) (0xF0 | (codePoint >> 18));
+                    buffer[length++] = (byte) (0x80 | ((codePoint >> 12) & 0x3F));
+                    buffer[length++] = (byte) (0x80 | ((codePoint >> 6) & 0x3F));
+                    buffer[length++] = (byte) (0x80 | (codePoint & 0x3F));
+                }
+                else if(Character.isSurrogate(c))
+                {
+                    buffer[length++] = (byte) '?';
+                }
+                else
+                {
+                    buffer[length++] = (byte) (0xE0 | (c >> 12));
+                    buffer[length++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+                    buffer[length++] = (byte) (0x80 | (c & 0x3F));
+                }
+            }
+        }
+
+        private byte[] digest()
+        {
+            if(ALGORITHM == Algorithm.MURMUR3)
+            {
+                return murmur3(buffer, length);
+            }
+            md5.reset();
+            md5.update(buffer, 0, length);
+            return md5.digest();
+        }
+    }
+
+    /**
+     * MurmurHash3 x64 128-bit variant with seed 0.
+     */
+    static byte[] murmur3(byte[] data, int length)
+    {
+        final long c1 = 0x87c37b91114253d5L;
+        final long c2 = 0x4cf5ad432745937fL;
+        long h1 = 0;
+        long h2 = 0;
+        int blocks = length / 16;
+
+        for(int i = 0; i < blocks; i++)
+        {
+            long k1 = getLong(data, i * 16);
+            long k2 = getLong(data, i * 16 + 8);
+
+            k1 *= c1;
+            k1 = Long.rotateLeft(k1, 31);
+            k1 *= c2;
+            h1 ^= k1;
+            h1 = Long.rotateLeft(h1, 27);
+            h1 += h2;
+            h1 = h1 * 5 + 0x52dce729;
+
+            k2 *= c2;
+            k2 = Long.rotateLeft(k2, 33);
+            k2 *= c1;
+            h2 ^= k2;
+            h2 = Long.rotateLeft(h2, 31);
+            h2 += h1;
+            h2 = h2 * 5 + 0x38495ab5;
+        }
+
+        int tail = blocks * 16;
+        int remaining = length & 15;
+        if(remaining > 8)
+        {
+            long k2 = 0;
+            for(int i = remaining - 1; i >= 8; i--)
+            {
+                k2 = (k2 << 8) | (data[tail + i] & 0xff);
+            }
+            k2 *= c2;
+            k2 = Long.rotateLeft(k2, 33);
+            k2 *= c1;
+            h2 ^= k2;
+        }
+        if(remaining > 0)
+        {
+            long k1 = 0;
+            for(int i = Math.min(remaining, 8) - 1; i >= 0; i--)
+            {
+                k1 = (k1 << 8) | (data[tail + i] & 0xff);
+            }
+            k1 *= c1;
+            k1 = Long.rotateLeft(k1, 31);
+            k1 *= c2;
+            h1 ^= k1;
+        }
+
+        h1 ^= length;
+        h2 ^= length;
+        h1 += h2;
+        h2 += h1;
+        h1 = fmix(h1);
+        h2 = fmix(h2);
+        h1 += h2;
+        h2 += h1;
+
+        byte[] result = new byte[16];
+        putLong(result, 0, h1);
+        putLong(result, 8, h2);
+        return result;
+    }
+
+    private static long getLong(byte[] data, int offset)
+    {
+        long value = 0;
+        for(int i = 7; i >= 0; i--)
+        {
+            value = (value << 8) | (data[offset + i] & 0xff);
+        }
+        return value;
+    }
+
+    private static void putLong(byte[] data, int offset, long value)
+    {
+        for(int i = 0; i < 8; i++)
+        {
+            data[offset + i] = (byte) (value >>> (8 * i));
+        }
+    }
+
+    private static long fmix(long k)
+    {
+        k ^= k >>> 33;
+        k *= 0xff51afd7ed558ccdL;
+        k ^= k >>> 33;
+        k *= 0xc4ceb9fe1a85ec53L;
+        k ^= k >>> 33;
+        return k;
+    }
+}
@@ -19,7 +19,6 @@
  */
 package spade.core;
 
-import org.apache.lucene.analysis.Analyzer;
 import org.apache.lucene.analysis.KeywordAnalyzer;
 import org.apache.lucene.document.Document;
 import org.apache.lucene.document.Field;
@@ -50,6 +49,9 @@ import java.io.IOException;
 import java.io.Serializable;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.HashSet;
@@ -76,15 +78,13 @@ public class Graph extends AbstractStorage implements Serializable
 	
     private static final Logger logger = Logger.getLogger(Graph.class.getName());
     private static final int MAX_QUERY_HITS = 1000;
-    private static final String SRC_VERTEX_ID = "SRC_VERTEX_ID";
-    private static final String DST_VERTEX_ID = "DST_VERTEX_ID";
     private static final String ID_STRING = Settings.getProperty("storage_identifier");
+    private static final String DIRECTION_BOTH = Settings.getProperty("direction_both");
 
     private static final Pattern nodePattern = Pattern.compile("\"(.*)\" \\[label=\"(.*)\" shape=\"(\\w*)\" fillcolor=\"(\\w*)\"", Pattern.DOTALL);
     private static final Pattern edgePattern = Pattern.compile("\"(.*)\" -> \"(.*)\" \\[label=\"(.*)\" color=\"(\\w*)\"", Pattern.DOTALL);
 
-    private transient Analyzer analyzer = new KeywordAnalyzer();
-    private transient QueryParser queryParser = new QueryParser(Version.LUCENE_35, null, analyzer);
+    private transient QueryParser queryParser;
     private Set<AbstractVertex> vertexSet = new LinkedHashSet<>();
     private Map<String, AbstractVertex> vertexIdentifiers = new HashMap<>();
     private Map<AbstractVertex, String> reverseVertexIdentifiers = new HashMap<>();
@@ -92,16 +92,28 @@ public class Graph extends AbstractStorage implements Serializable
     private Map<String, AbstractEdge> edgeIdentifiers = new HashMap<>();
     private Map<AbstractEdge, String> reverseEdgeIdentifiers = new HashMap<>();
     private Map<AbstractVertex, Integer> networkMap = new HashMap<>();
+    /**
+     * Adjacency of the edges added with putEdge. Edges are directed from the child
+     * to the parent vertex, so outgoing edges lead to parents and incoming edges
+     * come from children. Both maps are keyed by vertex hash.
+     */
+    private Map<String, List<AbstractEdge>> outgoingEdges = new HashMap<>();
+    private Map<String, List<AbstractEdge>> incomingEdges = new HashMap<>();
     private int serial_number = 1;
     /**
      * For query results spanning multiple hosts, this is used to indicate
      * whether the network boundaries have been properly transformed.
      */
     public boolean transformed = false;
-    private Directory vertexIndex;
-    private Directory edgeIndex;
-    private transient IndexWriter vertexIndexWriter;
-    private transient IndexWriter edgeIndexWriter;
+    /**
+     * Lucene index of the vertices, only built when the graph is queried with
+     * listVertices. The vertices are kept with their serial numbers so that the
+     * index can also be rebuilt after deserialization.
+     */
+    private transient Directory vertexIndex;
+    private transient int indexedVertexCount;
+    private List<AbstractVertex> indexVertices = new ArrayList<>();
+    private int[] indexSerialNumbers = new int[16];
 
     /**
      * Fields for Consistency check
@@ -120,16 +132,7 @@ public class Graph extends AbstractStorage implements Serializable
      * An empty constructor.
      */
     public Graph() {
-        // Lucene initialization
-        try {
-            vertexIndex = new RAMDirectory();
-            edgeIndex = new RAMDirectory();
-            vertexIndexWriter = new IndexWriter(vertexIndex, new IndexWriterConfig(Version.LUCENE_35, analyzer));
-            edgeIndexWriter = new IndexWriter(edgeIndex, new IndexWriterConfig(Version.LUCENE_35, analyzer));
-            queryParser.setAllowLeadingWildcard(true);
-        } catch (Exception exception) {
-            logger.log(Level.SEVERE, null, exception);
-        }
+
     }
 
     public String getHash(AbstractVertex vertex)
@@ -168,19 +171,15 @@ public class Graph extends AbstractStorage implements Serializable
         {
             return false;
         }
-        // Add vertex to Lucene index
+        // Queue vertex for the Lucene index
         try
         {
-            Document doc = new Document();
-            for (Map.Entry<String, String> currentEntry : incomingVertex.getAnnotations().entrySet())
+            if (indexVertices.size() == indexSerialNumbers.length)
             {
-                String key = currentEntry.getKey();
-                String value = currentEntry.getValue();
-                doc.add(new Field(key, value, Field.Store.YES, Field.Index.ANALYZED));
+                indexSerialNumbers = Arrays.copyOf(indexSerialNumbers, 2 * indexSerialNumbers.length);
             }
-            doc.add(new Field(ID_STRING, Integer.toString(serial_number), Field.Store.YES, Field.Index.ANALYZED));
-            vertexIndexWriter.addDocument(doc);
-            // vertexIndexWriter.commit();
+            indexSerialNumbers[indexVertices.size()] = serial_number;
+            indexVertices.add(incomingVertex);
 
             String hashCode = incomingVertex.bigHashCode();
             vertexIdentifiers.put(hashCode, incomingVertex);
@@ -215,26 +214,13 @@ public class Graph extends AbstractStorage implements Serializable
         {
             return false;
         }
-        // Add edge to Lucene index
         try
         {
-            Document doc = new Document();
-            for (Map.Entry<String, String> currentEntry : incomingEdge.getAnnotations().entrySet())
-            {
-                String key = currentEntry.getKey();
-                String value = currentEntry.getValue();
-                if (key.equals(ID_STRING)) {
-                    continue;
-                }
-                doc.add(new Field(key, value, Field.Store.YES, Field.Index.ANALYZED));
-            }
-            doc.add(new Field(ID_STRING, Integer.toString(serial_number), Field.Store.YES, Field.Index.ANALYZED));
-            doc.add(new Field(SRC_VERTEX_ID, reverseVertexIdentifiers.get(incomingEdge.getChildVertex()), Field.Store.YES, Field.Index.ANALYZED));
-            doc.add(new Field(DST_VERTEX_ID, reverseVertexIdentifiers.get(incomingEdge.getParentVertex()), Field.Store.YES, Field.Index.ANALYZED));
-            edgeIndexWriter.addDocument(doc);
-            // edgeIndexWriter.commit();
-
-            String hashCode = incomingEdge.getChildVertex().bigHashCode() + incomingEdge.getParentVertex().bigHashCode();
+            String childVertexHash = incomingEdge.getChildVertex().bigHashCode();
+            String parentVertexHash = incomingEdge.getParentVertex().bigHashCode();
+            String hashCode = childVertexHash + parentVertexHash;
+            addAdjacentEdge(outgoingEdges, childVertexHash, incomingEdge);
+            addAdjacentEdge(incomingEdges, parentVertexHash, incomingEdge);
             edgeIdentifiers.put(hashCode, incomingEdge);
             reverseEdgeIdentifiers.put(incomingEdge, hashCode);
             edgeSet.add(incomingEdge);
@@ -247,10 +233,48 @@ public class Graph extends AbstractStorage implements Serializable
         return true;
     }
 
+    private static void addAdjacentEdge(Map<String, List<AbstractEdge>> adjacency, String vertexHash, AbstractEdge edge) {
+        List<AbstractEdge> edges = adjacency.get(vertexHash);
+        if (edges == null) {
+            edges = new ArrayList<>(2);
+            adjacency.put(vertexHash, edges);
+        }
+        edges.add(edge);
+    }
+
+    private List<AbstractEdge> adjacentEdges(String vertexHash, boolean ancestors) {
+        List<AbstractEdge> edges = (ancestors ? outgoingEdges : incomingEdges).get(vertexHash);
+        return (edges != null) ? edges : new ArrayList<AbstractEdge>(0);
+    }
+
+    /**
+     * Adds the vertices not indexed yet to the Lucene index in one pass. This is done by
+     * listVertices when needed, so calling it is only useful to build the index
+     * ahead of time.
+     */
     public void commitIndex() {
+        if (vertexIndex != null && indexedVertexCount == indexVertices.size()) {
+            return;
+        }
         try {
-            vertexIndexWriter.commit();
-            edgeIndexWriter.commit();
+            if (vertexIndex == null) {
+                vertexIndex = new RAMDirectory();
+                indexedVertexCount = 0;
+            }
+            IndexWriter vertexIndexWriter = new IndexWriter(vertexIndex, new IndexWriterConfig(Version.LUCENE_35, new KeywordAnalyzer()));
+            for (int i = indexedVertexCount; i < indexVertices.size(); i++) {
+                Document doc = new Document();
+                for (Map.Entry<String, String> currentEntry : indexVertices.get(i).getAnnotations().entrySet())
+                {
+                    String key = currentEntry.getKey();
+                    String value = currentEntry.getValue();
+                    doc.add(new Field(key, value, Field.Store.YES, Field.Index.ANALYZED));
+                }
+                doc.add(new Field(ID_STRING, Integer.toString(indexSerialNumbers[i]), Field.Store.YES, Field.Index.ANALYZED));
+                vertexIndexWriter.addDocument(doc);
+            }
+            vertexIndexWriter.close();
+            indexedVertexCount = indexVertices.size();
         } catch (Exception exception) {
             logger.log(Level.SEVERE, null, exception);
         }
@@ -372,7 +396,6 @@ public class Graph extends AbstractStorage implements Serializable
             resultGraph.putEdge(edge);
         }
 
-        resultGraph.commitIndex();
         return resultGraph;
     }
 
@@ -402,7 +425,6 @@ public class Graph extends AbstractStorage implements Serializable
             resultGraph.putEdge(edge);
         }
 
-        resultGraph.commitIndex();
         return resultGraph;
     }
 
@@ -431,7 +453,6 @@ public class Graph extends AbstractStorage implements Serializable
             resultGraph.putEdge(edge);
         }
 
-        resultGraph.commitIndex();
         return resultGraph;
     }
 
@@ -459,7 +480,6 @@ public class Graph extends AbstractStorage implements Serializable
         } catch (Exception exception) {
             exception.printStackTrace();
         }
-        result.commitIndex();
         return result;
     }
 
@@ -701,6 +721,11 @@ public class Graph extends AbstractStorage implements Serializable
     public List<Integer> listVertices(String expression) {
         try {
             List<Integer> results = new ArrayList<>();
+            commitIndex();
+            if (queryParser == null) {
+                queryParser = new QueryParser(Version.LUCENE_35, null, new KeywordAnalyzer());
+                queryParser.setAllowLeadingWildcard(true);
+            }
             IndexReader reader = IndexReader.open(vertexIndex);
             IndexSearcher searcher = new IndexSearcher(reader);
             ScoreDoc[] hits = searcher.search(queryParser.parse(expression), MAX_QUERY_HITS).scoreDocs;
@@ -766,16 +791,11 @@ public class Graph extends AbstractStorage implements Serializable
     public Graph getChildren(String parentVertexHash)
     {
         Graph result = new Graph();
-        for(Map.Entry<String, AbstractEdge> entry: edgeIdentifiers.entrySet())
+        for(AbstractEdge edge: adjacentEdges(parentVertexHash, false))
         {
-            AbstractEdge edge = entry.getValue();
-            AbstractVertex parentVertex = edge.getParentVertex();
-            if(parentVertex.bigHashCode().equals(parentVertexHash))
-            {
-                result.putVertex(parentVertex);
-                result.putVertex(edge.getChildVertex());
-                result.putEdge(edge);
-            }
+            result.putVertex(edge.getParentVertex());
+            result.putVertex(edge.getChildVertex());
+            result.putEdge(edge);
         }
 
         return result;
@@ -793,16 +813,11 @@ public class Graph extends AbstractStorage implements Serializable
     public Graph getParents(String childVertexHash)
     {
         Graph result = new Graph();
-        for(Map.Entry<String, AbstractEdge> entry: edgeIdentifiers.entrySet())
+        for(AbstractEdge edge: adjacentEdges(childVertexHash, true))
         {
-            AbstractEdge edge = entry.getValue();
-            AbstractVertex childVertex = edge.getChildVertex();
-            if(childVertex.bigHashCode().equals(childVertexHash))
-            {
-                result.putVertex(childVertex);
-                result.putVertex(edge.getParentVertex());
-                result.putEdge(edge);
-            }
+            result.putVertex(edge.getChildVertex());
+            result.putVertex(edge.getParentVertex());
+            result.putEdge(edge);
         }
 
         return result;
@@ -812,74 +827,227 @@ public class Graph extends AbstractStorage implements Serializable
     public Graph getLineage(String hash, String direction, int maxDepth)
     {
         Graph result = new Graph();
-        int current_depth = 0;
-        Set<String> remainingVertices = new HashSet<>();
         AbstractVertex startingVertex = getVertex(hash);
-        remainingVertices.add(startingVertex.bigHashCode());
+        if(startingVertex == null)
+        {
+            return result;
+        }
         startingVertex.setDepth(0);
         result.setRootVertex(startingVertex);
         result.setMaxDepth(maxDepth);
-        Set<String> visitedVertices = new HashSet<>();
-        while(!remainingVertices.isEmpty() && current_depth < maxDepth)
+        if(DIRECTION_ANCESTORS.startsWith(direction.toLowerCase()))
+        {
+            addLineage(result, Collections.singleton(startingVertex), true, maxDepth, null);
+        }
+        else if(DIRECTION_DESCENDANTS.startsWith(direction.toLowerCase()))
+        {
+            addLineage(result, Collections.singleton(startingVertex), false, maxDepth, null);
+        }
+        result.setComputeTime(new SimpleDateFormat("yyyy-MM-dd HH:mm:ss z").format(new Date()));
+
+        return result;
+    }
+
+    /**
+     * Returns the lineage of all vertices matching the expression. Vertices matching
+     * the terminating expression are included but not expanded.
+     *
+     * @param vertexExpression Lucene expression selecting the starting vertices
+     * @param depth maximum depth, or null for no limit
+     * @param direction ancestors, descendants or both
+     * @param terminatingExpression Lucene expression of the vertices to stop at, or null
+     * @return the lineage, or null if the direction is invalid
+     */
+    public Graph getLineage(String vertexExpression, Integer depth, String direction, String terminatingExpression)
+    {
+        boolean ancestors = DIRECTION_ANCESTORS.startsWith(direction.toLowerCase());
+        boolean descendants = DIRECTION_DESCENDANTS.startsWith(direction.toLowerCase());
+        boolean both = DIRECTION_BOTH.startsWith(direction.toLowerCase());
+        if(!ancestors && !descendants && !both)
         {
-            visitedVertices.addAll(remainingVertices);
-            Set<String> currentSet = new HashSet<>();
-            for(String vertexHash: remainingVertices)
+            return null;
+        }
+        Set<AbstractVertex> startingVertices = new HashSet<>();
+        for(int id : listVertices(vertexExpression))
+        {
+            AbstractVertex vertex = getVertex(id);
+            if(vertex != null)
             {
-                Graph neighbors = null;
-                if(DIRECTION_ANCESTORS.startsWith(direction.toLowerCase()))
+                startingVertices.add(vertex);
+            }
+        }
+        Set<AbstractVertex> terminatingVertices = new HashSet<>();
+        if(terminatingExpression != null)
+        {
+            for(int id : listVertices(terminatingExpression))
+            {
+                AbstractVertex vertex = getVertex(id);
+                if(vertex != null)
                 {
-                    neighbors = getParents(vertexHash);
+                    terminatingVertices.add(vertex);
                 }
-                else if(DIRECTION_DESCENDANTS.startsWith(direction.toLowerCase()))
+            }
+        }
+        int maxDepth = (depth != null) ? depth : Integer.MAX_VALUE;
+        Graph result = new Graph();
+        if(ancestors || both)
+        {
+            addLineage(result, startingVertices, true, maxDepth, terminatingVertices);
+        }
+        if(descendants || both)
+        {
+            addLineage(result, startingVertices, false, maxDepth, terminatingVertices);
+        }
+        result.setMaxDepth(maxDepth);
+        result.setComputeTime(new SimpleDateFormat("yyyy-MM-dd HH:mm:ss z").format(new Date()));
+
+        return result;
+    }
+
+    public Graph getLineage(int id, String direction)
+    {
+        AbstractVertex vertex = getVertex(id);
+        return (vertex != null) ? getLineage(vertex.bigHashCode(), direction, Integer.MAX_VALUE) : null;
+    }
+
+    /**
+     * Breadth-first traversal of the adjacency from the starting vertices, adding
+     * every vertex and edge reached within maxDepth to the result.
+     */
+    private void addLineage(Graph result, Collection<AbstractVertex> startingVertices, boolean ancestors,
+                            int maxDepth, Set<AbstractVertex> terminatingVertices)
+    {
+        Set<String> visitedVertices = new HashSet<>();
+        List<AbstractVertex> remainingVertices = new ArrayList<>();
+        for(AbstractVertex vertex : startingVertices)
+        {
+            if(visitedVertices.add(vertex.bigHashCode()))
+            {
+                result.putVertex(vertex);
+                remainingVertices.add(vertex);
+            }
+        }
+        int current_depth = 0;
+        while(!remainingVertices.isEmpty() && current_depth < maxDepth)
+        {
+            List<AbstractVertex> currentList = new ArrayList<>();
+            for(AbstractVertex vertex : remainingVertices)
+            {
+                if(terminatingVertices != null && terminatingVertices.contains(vertex))
                 {
-                    neighbors = getChildren(vertexHash);
+                    continue;
                 }
-                if(neighbors != null)
+                for(AbstractEdge edge : adjacentEdges(vertex.bigHashCode(), ancestors))
                 {
-                	for(AbstractVertex V: neighbors.vertexSet())
-                		V.setDepth(current_depth+1);
-                    result.vertexSet().addAll(neighbors.vertexSet());
-                    result.edgeSet().addAll(neighbors.edgeSet());
-                    for(AbstractVertex vertex: neighbors.vertexSet())
+                    AbstractVertex neighbor = ancestors ? edge.getParentVertex() : edge.getChildVertex();
+                    if(visitedVertices.add(neighbor.bigHashCode()))
                     {
-                        String hashCode = vertex.bigHashCode();
-                        if(!visitedVertices.contains(hashCode))
-                        {
-                            currentSet.add(hashCode);
-                        }
+                        neighbor.setDepth(current_depth + 1);
+                        result.putVertex(neighbor);
+                        currentList.add(neighbor);
                     }
+                    result.putEdge(edge);
                 }
             }
-            remainingVertices.clear();
-            remainingVertices.addAll(currentSet);
+            remainingVertices = currentList;
             current_depth++;
         }
+    }
+
+    /**
+     * Returns all paths from the child vertex to its ancestor, i.e. the vertices that
+     * are both ancestors of the child and descendants of the ancestor, and the edges
+     * between them.
+     *
+     * @param childVertexHash hash of the vertex the paths start from
+     * @param ancestorVertexHash hash of the vertex the paths end at
+     * @return graph of the paths, empty if there are none
+     */
+    public Graph getPaths(String childVertexHash, String ancestorVertexHash)
+    {
+        Graph result = new Graph();
+        AbstractVertex childVertex = getVertex(childVertexHash);
+        AbstractVertex ancestorVertex = getVertex(ancestorVertexHash);
+        if(childVertex == null || ancestorVertex == null)
+        {
+            return result;
+        }
+        Set<String> reachable = reachableVertices(childVertexHash, true);
+        Set<String> reaching = reachableVertices(ancestorVertexHash, false);
+        reachable.retainAll(reaching);
+        for(String vertexHash : reachable)
+        {
+            result.putVertex(getVertex(vertexHash));
+        }
+        for(String vertexHash : reachable)
+        {
+            for(AbstractEdge edge : adjacentEdges(vertexHash, true))
+            {
+                if(reachable.contains(edge.getParentVertex().bigHashCode()))
+                {
+                    result.putEdge(edge);
+                }
+            }
+        }
         result.setComputeTime(new SimpleDateFormat("yyyy-MM-dd HH:mm:ss z").format(new Date()));
 
         return result;
     }
 
+    public Graph getPaths(int childId, int ancestorId)
+    {
+        AbstractVertex childVertex = getVertex(childId);
+        AbstractVertex ancestorVertex = getVertex(ancestorId);
+        if(childVertex == null || ancestorVertex == null)
+        {
+            return null;
+        }
+        return getPaths(childVertex.bigHashCode(), ancestorVertex.bigHashCode());
+    }
+
+    // Hashes of the vertex and of all vertices reachable from it in the direction
+    private Set<String> reachableVertices(String vertexHash, boolean ancestors)
+    {
+        Set<String> visitedVertices = new HashSet<>();
+        LinkedList<String> remainingVertices = new LinkedList<>();
+        visitedVertices.add(vertexHash);
+        remainingVertices.add(vertexHash);
+        while(!remainingVertices.isEmpty())
+        {
+            for(AbstractEdge edge : adjacentEdges(remainingVertices.removeFirst(), ancestors))
+            {
+                String neighborHash = ancestors ? edge.getParentVertex().bigHashCode() : edge.getChildVertex().bigHashCode();
+                if(visitedVertices.add(neighborHash))
+                {
+                    remainingVertices.add(neighborHash);
+                }
+            }
+        }
+        return visitedVertices;
+    }
+
+    /**
+     * Returns the vertex with the serial number reported by listVertices.
+     *
+     * @param id serial number of the vertex
+     * @return the vertex, or null if there is none
+     */
+    public AbstractVertex getVertex(int id)
+    {
+        int index = Arrays.binarySearch(indexSerialNumbers, 0, indexVertices.size(), id);
+        return (index >= 0) ? indexVertices.get(index) : null;
+    }
+
     /*
     * Dummy methods created to make things compile.
     * TODO: remove them and fix issues at usage points
     * */
-    public Graph getPaths(int child, int dst) {return null; }
-
-    public Graph getPaths(String child, String dst) {return null; }
-
     public Graph getPaths(Graph child, Graph dst) {return null; }
 
-    public Graph getLineage(int child, String dst) {return null; }
-
     public Graph getLineage(String child, String dst) {return null; }
 
     public Graph getLineage(Graph child, String dst) {return null; }
 
-    public Graph getLineage(String vertexExpression, Integer depth, String direction, String terminatingExpression) {return null; }
-
-    public AbstractVertex getVertex(int id) {return null; }
-
     public String getHostName()
     {
         return hostName;
@@ -0,0 +1,393 @@
+/*
+ --------------------------------------------------------------------------------
+ SPADE - Support for Provenance Auditing in Distributed Environments.
+ Copyright (C) 2017 SRI International
+
+ This program is free software: you can redistribute it and/or
+ modify it under the terms of the GNU General Public License as
+ published by the Free Software Foundation, either version 3 of the
+ License, or (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program. If not, see <http://www.gnu.org/licenses/>.
+ --------------------------------------------------------------------------------
+ */
+package spade.core;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A multi-threaded alternative to the single polling main thread of the Kernel.
+ *
+ * The pipeline has two stages. In the drain stage, every reporter buffer is
+ * owned by exactly one drain worker (either a dedicated worker per reporter or
+ * one worker out of a fixed pool). Workers are woken up by the buffers when new
+ * elements arrive instead of sleeping for a fixed delay. Drained elements are
+ * handed over in batches to the commit stage through a bounded queue, which
+ * blocks the drain workers (and eventually the reporters) when the filters
+ * and storages fall behind.
+ *
+ * In the commit stage, a single thread runs the filter list (including the
+ * FinalCommitFilter) and performs storage maintenance. Filters and storages
+ * are not thread-safe and some storages (e.g. Neo4j) are sensitive to the
+ * thread-context of their transactions, therefore this stage is not parallel.
+ *
+ * Ordering guarantee: elements of the same reporter reach the filter list in
+ * the order in which they were put into its buffer. Elements of different
+ * reporters may be interleaved at batch granularity.
+ */
+public class IngestPipeline
+{
+    private static final Logger logger = Logger.getLogger(IngestPipeline.class.getName());
+
+    /**
+     * Time for which an idle thread parks before re-checking for removals and shutdown.
+     */
+    private static final long IDLE_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+    private static final long COMMIT_POLL_MILLIS = 100;
+
+    /**
+     * Number of drain workers in the pool. A value less than 1 means one worker per reporter.
+     */
+    private final int workerCount;
+    /**
+     * Maximum number of elements handed over to the commit stage at a time.
+     */
+    private final int batchSize;
+    private final BlockingQueue<Batch> commitQueue;
+    private final List<DrainWorker> workers = new CopyOnWriteArrayList<>();
+    private final Map<AbstractReporter, DrainWorker> reporterToWorker = new ConcurrentHashMap<>();
+    private final Map<AbstractReporter, AtomicLong> reporterDrainedCounts = new ConcurrentHashMap<>();
+    private final Thread commitThread;
+    private volatile boolean running = true;
+    private int nextWorker = 0;
+
+    private final AtomicLong drainedCount = new AtomicLong();
+    private final AtomicLong committedCount = new AtomicLong();
+    private final AtomicLong queuedElementCount = new AtomicLong();
+    private final AtomicLong drainBlockedNanos = new AtomicLong();
+    private final long startTime = System.nanoTime();
+    private long lastReportTime = startTime;
+    private long lastReportDrained = 0;
+    private long lastReportCommitted = 0;
+
+    /**
+     * A group of elements drained from the buffer of one reporter.
+     */
+    private static final class Batch
+    {
+        private final AbstractReporter reporter;
+        private final List<Object> elements;
+        /**
+         * Set when the reporter has been marked for removal and this is its last batch.
+         */
+        private final boolean last;
+
+        private Batch(AbstractReporter reporter, List<Object> elements, boolean last)
+        {
+            this.reporter = reporter;
+            this.elements = elements;
+            this.last = last;
+        }
+    }
+
+    private static final Batch POISON = new Batch(null, new ArrayList<Object>(0), false);
+
+    /**
+     * @param workerCount Number of drain workers. Less than 1 means one worker per reporter.
+     * @param batchSize Maximum number of elements handed over at a time.
+     * @param queueCapacity Maximum number of batches waiting for the commit stage.
+     */
+    public IngestPipeline(int workerCount, int batchSize, int queueCapacity)
+    {
+        this.workerCount = workerCount;
+        this.batchSize = Math.max(1, batchSize);
+        this.commitQueue = new ArrayBlockingQueue<>(Math.max(1, queueCapacity));
+        this.commitThread = new Thread(new CommitStage(), "commitSPADE-Thread");
+        if(workerCount > 0)
+        {
+            for(int i = 0; i < workerCount; i++)
+            {
+                startWorker("drainSPADE-Thread-" + i);
+            }
+        }
+    }
+
+    public void start()
+    {
+        commitThread.start();
+    }
+
+    private DrainWorker startWorker(String name)
+    {
+        DrainWorker worker = new DrainWorker();
+        Thread thread = new Thread(worker, name);
+        worker.thread = thread;
+        workers.add(worker);
+        thread.start();
+        return worker;
+    }
+
+    /**
+     * Assigns the buffer of the given reporter to a drain worker.
+     *
+     * @param reporter The reporter that has just been launched.
+     */
+    public synchronized void addReporter(AbstractReporter reporter)
+    {
+        DrainWorker worker;
+        if(workerCount > 0)
+        {
+            worker = workers.get(nextWorker);
+            nextWorker = (nextWorker + 1) % workers.size();
+        }
+        else
+        {
+            worker = startWorker("drainSPADE-Thread-" + reporter.getClass().getSimpleName());
+        }
+        reporterDrainedCounts.put(reporter, new AtomicLong());
+        reporterToWorker.put(reporter, worker);
+        reporter.getBuffer().setConsumer(worker.thread);
+        worker.reporters.add(reporter);
+        LockSupport.unpark(worker.thread);
+    }
+
+    /**
+     * Wakes up the drain worker of the given reporter so that it notices that
+     * the reporter has been marked for removal.
+     *
+     * @param reporter The reporter marked for removal.
+     */
+    public void wakeup(AbstractReporter reporter)
+    {
+        DrainWorker worker = reporterToWorker.get(reporter);
+        if(worker != null)
+        {
+            LockSupport.unpark(worker.thread);
+        }
+    }
+
+    /**
+     * @return True if all drained elements have been passed to the filters.
+     */
+    public boolean isIdle()
+    {
+        return queuedElementCount.get() == 0;
+    }
+
+    /**
+     * Drains all buffers, waits for the commit stage to consume everything and
+     * pass the last batched elements to the storages, and stops all threads.
+     */
+    public void shutdown()
+    {
+        for(DrainWorker worker : workers)
+        {
+            worker.running = false;
+            LockSupport.unpark(worker.thread);
+        }
+        try
+        {
+            for(DrainWorker worker : workers)
+            {
+                worker.thread.join();
+            }
+            running = false;
+            commitQueue.put(POISON);
+            commitThread.join();
+        }
+        catch(InterruptedException exception)
+        {
+            logger.log(Level.WARNING, "Interrupted while shutting down ingest pipeline", exception);
+        }
+    }
+
+    /**
+     * Prints throughput and queue depth of each stage to the given stream.
+     * Rates are computed over the whole lifetime of the pipeline and over the
+     * interval since the previous call.
+     *
+     * @param outputStream The output stream of the control client.
+     */
+    public synchronized void printStatistics(PrintStream outputStream)
+    {
+        long now = System.nanoTime();
+        long drained = drainedCount.get();
+        long committed = committedCount.get();
+        double totalSeconds = Math.max(1e-9, (now - startTime) / 1e9);
+        double intervalSeconds = Math.max(1e-9, (now - lastReportTime) / 1e9);
+
+        outputStream.println("Ingest pipeline (" + (workerCount > 0 ? workerCount + " drain worker(s)"
+                : "one drain worker per reporter") + ", batch size " + batchSize + "):");
+        outputStream.println(String.format("\tdrain stage: %d elements, %.1f elements/sec overall, %.1f elements/sec recent, %.1f sec blocked on commit queue",
+                drained, drained / totalSeconds, (drained - lastReportDrained) / intervalSeconds,
+                drainBlockedNanos.get() / 1e9));
+        outputStream.println(String.format("\tcommit stage: %d elements, %.1f elements/sec overall, %.1f elements/sec recent",
+                committed, committed / totalSeconds, (committed - lastReportCommitted) / intervalSeconds));
+        outputStream.println("\tcommit queue: " + commitQueue.size() + " batch(es), "
+                + queuedElementCount.get() + " element(s), remaining capacity " + commitQueue.remainingCapacity() + " batch(es)");
+        for(Map.Entry<AbstractReporter, AtomicLong> entry : reporterDrainedCounts.entrySet())
+        {
+            AbstractReporter reporter = entry.getKey();
+            outputStream.println("\treporter " + reporter.getClass().getSimpleName()
+                    + ": buffer depth " + reporter.getBuffer().size() + ", drained " + entry.getValue().get());
+        }
+
+        lastReportTime = now;
+        lastReportDrained = drained;
+        lastReportCommitted = committed;
+    }
+
+    private void handOver(Batch batch) throws InterruptedException
+    {
+        queuedElementCount.addAndGet(batch.elements.size());
+        if(!commitQueue.offer(batch))
+        {
+            long blockedSince = System.nanoTime();
+            commitQueue.put(batch);
+            drainBlockedNanos.addAndGet(System.nanoTime() - blockedSince);
+        }
+    }
+
+    /**
+     * Drains the buffers of the reporters assigned to it.
+     */
+    private final class DrainWorker implements Runnable
+    {
+        private final List<AbstractReporter> reporters = new CopyOnWriteArrayList<>();
+        private volatile boolean running = true;
+        private Thread thread;
+
+        @Override
+        public void run()
+        {
+            try
+            {
+                while(true)
+                {
+                    boolean stopping = !running;
+                    boolean drainedAny = false;
+                    for(AbstractReporter reporter : reporters)
+                    {
+                        drainedAny |= drain(reporter);
+                    }
+                    if(stopping && !drainedAny)
+                    {
+                        break;
+                    }
+                    if(!drainedAny)
+                    {
+                        LockSupport.parkNanos(this, IDLE_PARK_NANOS);
+                    }
+                }
+            }
+            catch(InterruptedException exception)
+            {
+                logger.log(Level.WARNING, "Drain worker interrupted", exception);
+            }
+            catch(Exception exception)
+            {
+                logger.log(Level.SEVERE, "Error in drain worker", exception);
+            }
+        }
+
+        /**
+         * @return True if any element was drained.
+         */
+        private boolean drain(AbstractReporter reporter) throws InterruptedException
+        {
+            Buffer buffer = reporter.getBuffer();
+            // Checked before polling so that no element put before the removal is missed.
+            boolean removing = Kernel.isMarkedForRemoval(reporter);
+            List<Object> elements = new ArrayList<>(Math.min(batchSize, 1024));
+            Object bufferElement = null;
+            while(elements.size() < batchSize && (bufferElement = buffer.getBufferElement()) != null)
+            {
+                elements.add(bufferElement);
+            }
+            boolean last = removing && bufferElement == null;
+            if(!elements.isEmpty() || last)
+            {
+                handOver(new Batch(reporter, elements, last));
+                drainedCount.addAndGet(elements.size());
+                reporterDrainedCounts.get(reporter).addAndGet(elements.size());
+            }
+            if(last)
+            {
+                reporters.remove(reporter);
+                reporterToWorker.remove(reporter);
+                reporterDrainedCounts.remove(reporter);
+                buffer.setConsumer(null);
+                if(workerCount <= 0)
+                {
+                    running = false;
+                    workers.remove(this);
+                }
+            }
+            return !elements.isEmpty();
+        }
+    }
+
+    /**
+     * Passes batches to the filter list and performs storage maintenance.
+     */
+    private final class CommitStage implements Runnable
+    {
+        @Override
+        public void run()
+        {
+            try
+            {
+                while(true)
+                {
+                    Kernel.performStorageMaintenance();
+                    Batch batch = commitQueue.poll(COMMIT_POLL_MILLIS, TimeUnit.MILLISECONDS);
+                    if(batch == null)
+                    {
+                        continue;
+                    }
+                    if(batch == POISON)
+                    {
+                        if(!running && commitQueue.isEmpty())
+                        {
+                            Kernel.finishCommitting();
+                            break;
+                        }
+                        continue;
+                    }
+                    for(Object element : batch.elements)
+                    {
+                        Kernel.sendToFilters(element);
+                    }
+                    committedCount.addAndGet(batch.elements.size());
+                    queuedElementCount.addAndGet(-batch.elements.size());
+                    if(batch.last)
+                    {
+                        Kernel.reporterFlushed(batch.reporter);
+                    }
+                }
+            }
+            catch(Exception exception)
+            {
+                logger.log(Level.SEVERE, "Error in commit stage", exception);
+            }
+        }
+    }
+}
@@ -173,6 +173,24 @@ public class Kernel
     private static final int MAIN_THREAD_SLEEP_DELAY = 10;
     private static final int REMOVE_WAIT_DELAY = 100;
     private static final int FIRST_FILTER = 0;
+    /**
+     * The ingest pipeline used instead of the main thread if enabled in the settings.
+     */
+    private static IngestPipeline ingestPipeline;
+    /**
+     * The thread which commits provenance data to the storages if the ingest
+     * pipeline is not enabled.
+     */
+    private static Thread mainThread;
+    /**
+     * Set by shutdown to stop the main thread once it has passed all its
+     * elements to the storages.
+     */
+    private static volatile boolean stopMainThread;
+    /**
+     * The last filter in the filter list which passes elements to the storages.
+     */
+    private static FinalCommitFilter commitFilter;
     private static final Logger logger = Logger.getLogger(Kernel.class.getName());
     private static boolean ANDROID_PLATFORM = false;
 
@@ -184,7 +202,7 @@ public class Kernel
     private static final String ADD_ANALYZER_SKETCH_STRING = "add analyzer|sketch <class name>";
     private static final String REMOVE_REPORTER_STORAGE_SKETCH_ANALYZER_STRING = "remove reporter|analyzer|storage|sketch <class name>";
     private static final String REMOVE_FILTER_TRANSFORMER_STRING = "remove filter|transformer <position number>";
-    private static final String LIST_STRING = "list reporters|storages|analyzers|filters|sketches|transformers|all";
+    private static final String LIST_STRING = "list reporters|storages|analyzers|filters|sketches|transformers|buffers|pipeline|all";
     private static final String CONFIG_STRING = "config load|save <filename>";
     public static final String EXIT_STRING = "exit";
 
@@ -335,9 +353,11 @@ public class Kernel
         // and also maintains a pointer to the list of active storages to which
         // the provenance data is finally passed. It also has a reference to
         // the SketchManager and triggers its putVertex() and putEdge() methods
-        FinalCommitFilter commitFilter = new FinalCommitFilter();
+        commitFilter = new FinalCommitFilter();
         commitFilter.storages = storages;
         commitFilter.sketches = sketches;
+        commitFilter.setBatching(Integer.parseInt(Settings.getProperty("storage_batch_size")),
+                Long.parseLong(Settings.getProperty("storage_batch_latency")));
         filters.add(commitFilter);
 
         // The final transformer is used to send vertex and edge objects to
@@ -359,6 +379,17 @@ public class Kernel
      */
     private static void registerMainThread()
     {
+        if (Boolean.parseBoolean(Settings.getProperty("ingest_pipeline")))
+        {
+            // Drain the buffers with dedicated workers instead of the polling main thread.
+            ingestPipeline = new IngestPipeline(
+                    Integer.parseInt(Settings.getProperty("ingest_pipeline_workers")),
+                    Integer.parseInt(Settings.getProperty("ingest_pipeline_batch_size")),
+                    Integer.parseInt(Settings.getProperty("ingest_pipeline_queue_batches")));
+            ingestPipeline.start();
+            logger.log(Level.INFO, "Ingest pipeline started");
+            return;
+        }
         Runnable mainRunnable = new Runnable()
         {
             @Override
@@ -366,45 +397,9 @@ public class Kernel
             {
                 try
                 {
-                    while (true)
+                    while (!stopMainThread)
                     {
-                        if (flushTransactions)
-                        {
-                            // Flushing of transactions is also handled by this thread to ensure that
-                            // there are no errors/problems when using storages that are sensitive to
-                            // thread-context for their transactions.
-                            // For example, this is true for the embedded neo4j graph database.
-                            for (AbstractStorage currentStorage : storages)
-                            {
-                                currentStorage.flushTransactions();
-                            }
-                            flushTransactions = false;
-                        }
-
-                        if (!removeStorages.isEmpty())
-                        {
-                            // Check if a storage is marked for removal.
-                            // If it is, shut it down and remove it from the list.
-                            Iterator<AbstractStorage> iterator = removeStorages.iterator();
-                            while(iterator.hasNext())
-                            {
-                                AbstractStorage currentStorage = iterator.next();
-                                currentStorage.shutdown();
-                                iterator.remove();
-                            }
-                        }
-                        if (!removeAnalyzers.isEmpty())
-                        {
-                            // Check if an analyzer is marked for removal.
-                            // If it is, shut it down and remove it from the list.
-                            Iterator<AbstractAnalyzer> iterator = removeAnalyzers.iterator();
-                            while(iterator.hasNext())
-                            {
-                                AbstractAnalyzer currentAnalyzer = iterator.next();
-                                currentAnalyzer.shutdown();
-                                iterator.remove();
-                            }
-                        }
+                        performStorageMaintenance();
 
                         for (AbstractReporter reporter : reporters)
                         {
@@ -416,28 +411,17 @@ public class Kernel
                             for (int i = 0; i < BATCH_BUFFER_ELEMENTS; i++)
                             {
                                 Object bufferElement = buffer.getBufferElement();
-                                if (bufferElement instanceof AbstractVertex)
+                                if (bufferElement == null)
                                 {
-                                    AbstractVertex tempVertex = (AbstractVertex) bufferElement;
-                                    filters.get(FIRST_FILTER).putVertex(tempVertex);
-                                }
-                                else if (bufferElement instanceof AbstractEdge)
-                                {
-                                    AbstractEdge tempEdge = (AbstractEdge) bufferElement;
-                                    filters.get(FIRST_FILTER).putEdge(tempEdge);
-                                }
-                                else if (bufferElement == null)
-                                {
-                                    if (removeReporters.contains(reporter))
-                                    {
-                                        removeReporters.remove(reporter);
-                                    }
+                                    reporterFlushed(reporter);
                                     break;
                                 }
+                                sendToFilters(bufferElement);
                             }
                         }
                         Thread.sleep(MAIN_THREAD_SLEEP_DELAY);
                     }
+                    finishCommitting();
                 }
                 catch (Exception exception)
                 {
@@ -445,10 +429,142 @@ public class Kernel
                 }
             }
         };
-        Thread mainThread = new Thread(mainRunnable, "mainSPADE-Thread");
+        stopMainThread = false;
+        mainThread = new Thread(mainRunnable, "mainSPADE-Thread");
         mainThread.start();
     }
 
+    /**
+     * Creates a reporter buffer as configured in the settings. The buffer is
+     * unbounded unless a limit on elements or bytes is set.
+     *
+     * @return The buffer for a new reporter.
+     */
+    private static Buffer createBuffer()
+    {
+        int maxElements = Integer.parseInt(Settings.getProperty("buffer_max_elements"));
+        long maxBytes = Long.parseLong(Settings.getProperty("buffer_max_bytes"));
+        if (maxElements <= 0 && maxBytes <= 0)
+        {
+            return new Buffer();
+        }
+        BoundedBuffer.OverflowPolicy policy;
+        try
+        {
+            policy = BoundedBuffer.OverflowPolicy.valueOf(Settings.getProperty("buffer_overflow_policy").trim().toUpperCase());
+        }
+        catch (IllegalArgumentException exception)
+        {
+            logger.log(Level.WARNING, "Invalid buffer overflow policy. Using 'block'", exception);
+            policy = BoundedBuffer.OverflowPolicy.BLOCK;
+        }
+        File spillDirectory = new File(SPADE_ROOT, Settings.getProperty("buffer_spill_directory"));
+        return new BoundedBuffer(maxElements, maxBytes, policy, spillDirectory);
+    }
+
+    /**
+     * Flushes transactions of the storages if requested and shuts down the
+     * storages and analyzers marked for removal. Called by the thread which
+     * commits provenance data to the storages.
+     */
+    static void performStorageMaintenance()
+    {
+        if (flushTransactions)
+        {
+            // Flushing of transactions is also handled by this thread to ensure that
+            // there are no errors/problems when using storages that are sensitive to
+            // thread-context for their transactions.
+            // For example, this is true for the embedded neo4j graph database.
+            commitFilter.flush();
+            for (AbstractStorage currentStorage : storages)
+            {
+                currentStorage.flushTransactions();
+            }
+            flushTransactions = false;
+        }
+        // Pass batched elements to the storages if they have waited long enough.
+        commitFilter.flushIfDue();
+
+        if (!removeStorages.isEmpty())
+        {
+            commitFilter.flush();
+            // Check if a storage is marked for removal.
+            // If it is, shut it down and remove it from the list.
+            Iterator<AbstractStorage> iterator = removeStorages.iterator();
+            while(iterator.hasNext())
+            {
+                AbstractStorage currentStorage = iterator.next();
+                currentStorage.shutdown();
+                iterator.remove();
+            }
+        }
+        if (!removeAnalyzers.isEmpty())
+        {
+            // Check if an analyzer is marked for removal.
+            // If it is, shut it down and remove it from the list.
+            Iterator<AbstractAnalyzer> iterator = removeAnalyzers.iterator();
+            while(iterator.hasNext())
+            {
+                AbstractAnalyzer currentAnalyzer = iterator.next();
+                currentAnalyzer.shutdown();
+                iterator.remove();
+            }
+        }
+    }
+
+    /**
+     * Shuts down the filters and passes the elements still batched to the
+     * storages. Called on shutdown by the thread which commits provenance data
+     * to the storages, before it stops, so that storages which are sensitive to
+     * the thread-context of their transactions get the last elements on it.
+     */
+    static void finishCommitting()
+    {
+        for (int i = 0; i < filters.size() - 1; i++)
+        {
+            filters.get(i).shutdown();
+        }
+        commitFilter.flush();
+    }
+
+    /**
+     * Passes a buffer element to the first filter in the filter list.
+     *
+     * @param bufferElement The vertex or edge extracted from a buffer.
+     */
+    static void sendToFilters(Object bufferElement)
+    {
+        if (bufferElement instanceof AbstractVertex)
+        {
+            AbstractVertex tempVertex = (AbstractVertex) bufferElement;
+            filters.get(FIRST_FILTER).putVertex(tempVertex);
+        }
+        else if (bufferElement instanceof AbstractEdge)
+        {
+            AbstractEdge tempEdge = (AbstractEdge) bufferElement;
+            filters.get(FIRST_FILTER).putEdge(tempEdge);
+        }
+    }
+
+    static boolean isMarkedForRemoval(AbstractReporter reporter)
+    {
+        return removeReporters.contains(reporter);
+    }
+
+    /**
+     * Called once all elements of the given reporter have been passed to the
+     * filters. Completes the removal of the reporter if it was marked for removal.
+     *
+     * @param reporter The reporter whose buffer has been flushed.
+     */
+    static void reporterFlushed(AbstractReporter reporter)
+    {
+        if (removeReporters.contains(reporter))
+        {
+            removeReporters.remove(reporter);
+        }
+    }
+
     /**
      * Register a SHUTDOWN hook to terminate gracefully
      */
@@ -800,7 +916,7 @@ public class Kernel
                     return;
                 }
                 // Create a new buffer and allocate it to this reporter.
-                Buffer buffer = new Buffer();
+                Buffer buffer = createBuffer();
                 reporter.setBuffer(buffer);
                 if (reporter.launch(arguments))
                 {
@@ -810,6 +926,10 @@ public class Kernel
                     // SPADE thread to extract buffer elements.
                     reporter.arguments = arguments;
                     reporters.add(reporter);
+                    if (ingestPipeline != null)
+                    {
+                        ingestPipeline.addReporter(reporter);
+                    }
                     logger.log(Level.INFO, "Reporter added: {0}", className + " " + arguments);
                     outputStream.println("done");
                 }
@@ -1202,13 +1322,45 @@ public class Kernel
 
                 break;
 
+            case "buffers":
+                if (reporters.isEmpty())
+                {
+                    outputStream.println("No reporters added");
+                    return;
+                }
+                outputStream.println(reporters.size() + " reporter buffer(s):");
+                count = 1;
+                for (AbstractReporter reporter : reporters)
+                {
+                    outputStream.println("\t" + count + ". " + reporter.getClass().getName().split("\\.")[2]
+                            + ": " + reporter.getBuffer().getStatistics());
+                    count++;
+                }
+
+                break;
+
+            case "pipeline":
+                if (ingestPipeline == null)
+                {
+                    outputStream.println("Ingest pipeline not enabled");
+                    return;
+                }
+                ingestPipeline.printStatistics(outputStream);
+
+                break;
+
             case "all":
                 listCommand("list reporters ", outputStream);
+                listCommand("list buffers ", outputStream);
                 listCommand("list analyzers " , outputStream);
                 listCommand("list storages " , outputStream);
                 listCommand("list filters " , outputStream);
                 listCommand("list transformers " , outputStream);
                 listCommand("list sketches " , outputStream);
+                if (ingestPipeline != null)
+                {
+                    listCommand("list pipeline ", outputStream);
+                }
                 break;
 
             default:
@@ -1255,6 +1407,10 @@ public class Kernel
                             // buffer and remove it.
                             reporter.shutdown();
                             removeReporters.add(reporter);
+                            if (ingestPipeline != null)
+                            {
+                                ingestPipeline.wakeup(reporter);
+                            }
                             found = true;
                             logger.log(Level.INFO, "Shutting down reporter: {0}", className);
                             outputStream.print("Shutting down reporter " + className + "... ");
@@ -1481,12 +1637,25 @@ public class Kernel
                 logger.log(Level.WARNING, null, ex);
             }
         }
-
-        // Shut down filters.
-        for (int i = 0; i < filters.size() - 1; i++)
+        // Wait for the committing thread to shut down the filters and pass the
+        // last batched elements to the storages.
+        if (ingestPipeline != null)
         {
-            filters.get(i).shutdown();
+            ingestPipeline.shutdown();
         }
+        else if (mainThread != null)
+        {
+            stopMainThread = true;
+            try
+            {
+                mainThread.join();
+            }
+            catch (InterruptedException ex)
+            {
+                logger.log(Level.WARNING, null, ex);
+            }
+        }
+
         // Shut down storages.
         for (AbstractStorage storage : storages)
         {
@@ -53,6 +53,27 @@ public class Settings
         setProperty("storage_identifier", "storageID");
         setProperty("default_query_storage", "Neo4j");
         setProperty("neo4j_webserver", "true");
+        // ingest pipeline (replaces the polling main thread of the kernel when enabled)
+        setProperty("ingest_pipeline", "false");
+        setProperty("ingest_pipeline_workers", "0");
+        setProperty("ingest_pipeline_batch_size", "1000");
+        setProperty("ingest_pipeline_queue_batches", "64");
+        // reporter buffers (unbounded if both limits are 0)
+        setProperty("buffer_max_elements", "0");
+        setProperty("buffer_max_bytes", "0");
+        setProperty("buffer_overflow_policy", "block");
+        setProperty("buffer_spill_directory", "tmp");
+        // batching of elements for storages (disabled if the batch size is less than 2)
+        setProperty("storage_batch_size", "1");
+        setProperty("storage_batch_latency", "1000");
+        // digest of vertices and edges returned by bigHashCode() ('md5' or 'murmur3')
+        setProperty("hash_algorithm", "md5");
+        // presence cache of the vertices and edges in storages (disabled if the size is 0)
+        setProperty("cache_size", "100000");
+        setProperty("cache_bloomfilter_elements", "1000000");
+        setProperty("cache_bloomfilter_false_positive_probability", "0.0001");
+        // interval between compactions of the scaffold log files (disabled if 0)
+        setProperty("scaffold_compaction_minutes", "60");
 
         // override certain settings if the settings file is present
         try
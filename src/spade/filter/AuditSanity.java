@@ -25,11 +25,14 @@ import spade.core.AbstractEdge;
 import spade.core.AbstractFilter;
 import spade.core.AbstractVertex;
 import spade.core.Settings;
-import spade.utility.BerkeleyDB;
 import spade.utility.ExternalMemoryMap;
 import spade.utility.Hasher;
+import spade.utility.MemoryMappedStore;
 
+import java.io.DataInput;
+import java.io.DataOutput;
 import java.io.File;
+import java.io.IOException;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -54,7 +57,18 @@ public class AuditSanity extends AbstractFilter{
 			
 			vertexMap = 
 					new ExternalMemoryMap<AbstractVertex, Integer>(100000, 
-							new BerkeleyDB<Integer>(dbpath, "vertexhashes_" + System.currentTimeMillis()), 
+							new MemoryMappedStore<Integer>(dbpath, "vertexhashes_" + System.currentTimeMillis(), 
+									new MemoryMappedStore.Codec<Integer>() {
+										@Override
+										public void write(Integer value, DataOutput out) throws IOException {
+											out.writeInt(value);
+										}
+
+										@Override
+										public Integer read(DataInput in) throws IOException {
+											return in.readInt();
+										}
+									}), 
 							0.0001, 10000000);
 			
 			vertexMap.setKeyHashFunction(new Hasher<AbstractVertex>() {
@@ -25,7 +25,9 @@ import spade.core.AbstractSketch;
 import spade.core.AbstractStorage;
 import spade.core.AbstractVertex;
 
+import java.util.ArrayList;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Set;
 
 public class FinalCommitFilter extends AbstractFilter {
@@ -34,14 +36,45 @@ public class FinalCommitFilter extends AbstractFilter {
     public Set<AbstractStorage> storages = new HashSet<>();
     public Set<AbstractSketch> sketches = new HashSet<>();
 
+    // Batching of elements for the storages. Disabled if the batch size is less than 2.
+    private int batchSize = 1;
+    private long batchLatencyMillis = 0;
+    private List<AbstractVertex> vertexBatch = new ArrayList<>();
+    private List<AbstractEdge> edgeBatch = new ArrayList<>();
+    private long batchStartTime;
+
+    /**
+     * Enables batching of elements for the storages. A batch is passed to the
+     * storages with AbstractStorage.putBatch() when it reaches the given size or
+     * when its oldest element has waited for the given latency.
+     *
+     * @param batchSize Maximum number of elements in a batch.
+     * @param batchLatencyMillis Maximum time an element waits in a batch.
+     *                           Only checked when elements arrive or flushIfDue() is called.
+     */
+    public void setBatching(int batchSize, long batchLatencyMillis) {
+        flush();
+        this.batchSize = batchSize;
+        this.batchLatencyMillis = batchLatencyMillis;
+    }
+
+    private boolean isBatching() {
+        return batchSize > 1;
+    }
+
     // This filter is the last filter in the list so any vertices or edges
     // received by it need to be passed to the storages. On receiving any
     // provenance elements, it is passed to all storages.
     @Override
     public void putVertex(AbstractVertex incomingVertex) {
-        for (AbstractStorage storage : storages) {
-            if (storage.putVertex(incomingVertex)) {
-                incrementStorageVertexCount(storage);
+        if (isBatching()) {
+            vertexBatch.add(incomingVertex);
+            batched();
+        } else {
+            for (AbstractStorage storage : storages) {
+                if (storage.putVertex(incomingVertex)) {
+                    incrementStorageVertexCount(storage);
+                }
             }
         }
         for (AbstractSketch sketch : sketches) {
@@ -51,13 +84,57 @@ public class FinalCommitFilter extends AbstractFilter {
 
     @Override
     public void putEdge(AbstractEdge incomingEdge) {
-        for (AbstractStorage storage : storages) {
-            if (storage.putEdge(incomingEdge)) {
-                incrementStorageEdgeCount(storage);
+        if (isBatching()) {
+            edgeBatch.add(incomingEdge);
+            batched();
+        } else {
+            for (AbstractStorage storage : storages) {
+                if (storage.putEdge(incomingEdge)) {
+                    incrementStorageEdgeCount(storage);
+                }
             }
         }
         for (AbstractSketch sketch : sketches) {
             sketch.putEdge(incomingEdge);
         }
     }
+
+    private void batched() {
+        int pending = vertexBatch.size() + edgeBatch.size();
+        if (pending == 1) {
+            batchStartTime = System.currentTimeMillis();
+        }
+        if (pending >= batchSize) {
+            flush();
+        } else {
+            flushIfDue();
+        }
+    }
+
+    /**
+     * Passes the pending batch to the storages if it has waited longer than the
+     * configured latency. Must be called from the thread that puts elements.
+     */
+    public void flushIfDue() {
+        if (vertexBatch.size() + edgeBatch.size() > 0
+                && System.currentTimeMillis() - batchStartTime >= batchLatencyMillis) {
+            flush();
+        }
+    }
+
+    /**
+     * Passes the pending batch to the storages.
+     */
+    public void flush() {
+        if (vertexBatch.isEmpty() && edgeBatch.isEmpty()) {
+            return;
+        }
+        List<AbstractVertex> vertices = vertexBatch;
+        List<AbstractEdge> edges = edgeBatch;
+        vertexBatch = new ArrayList<>(batchSize);
+        edgeBatch = new ArrayList<>(batchSize);
+        for (AbstractStorage storage : storages) {
+            storage.putBatch(vertices, edges);
+        }
+    }
 }
@@ -9,8 +9,10 @@ import spade.query.sql.postgresql.GetChildren;
 import spade.query.sql.postgresql.GetEdge;
 import spade.query.sql.postgresql.GetParents;
 import spade.query.sql.postgresql.GetVertex;
+import spade.storage.SQL;
 
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.Date;
@@ -46,6 +48,20 @@ public class GetLineage extends AbstractQuery<Graph, Map<String, List<String>>>
 
     @Override
     public Graph execute(Map<String, List<String>> parameters, Integer limit)
+    {
+        return execute(parameters, limit, true);
+    }
+
+    /**
+     * Computes the lineage with a breadth-first search driven from here, even if the
+     * storage can compute the whole lineage itself.
+     */
+    public Graph executeBreadthFirst(Map<String, List<String>> parameters, Integer limit)
+    {
+        return execute(parameters, limit, false);
+    }
+
+    private Graph execute(Map<String, List<String>> parameters, Integer limit, boolean useStorageLineage)
     {
         //TODO: support both directions too
         try
@@ -64,6 +80,8 @@ public class GetLineage extends AbstractQuery<Graph, Map<String, List<String>>>
             AbstractQuery getEdge;
             AbstractQuery getChildren;
             AbstractQuery getParents;
+            AbstractQuery getNeighbors;
+            AbstractQuery getLineageRecursive = null;
             try
             {
                 getVertex = (AbstractQuery) Class.forName(class_prefix + ".GetVertex").newInstance();
@@ -76,6 +94,29 @@ public class GetLineage extends AbstractQuery<Graph, Map<String, List<String>>>
                 Logger.getLogger(GetLineage.class.getName()).log(Level.SEVERE, "Unable to create classes for GetLineage!", ex);
                 return null;
             }
+            try
+            {
+                // expands the whole frontier at once instead of querying every vertex and edge
+                getNeighbors = (AbstractQuery) Class.forName(class_prefix + ".GetNeighbors").newInstance();
+            }
+            catch(IllegalAccessException | InstantiationException | ClassNotFoundException ex)
+            {
+                getNeighbors = null;
+            }
+            // only PostgreSQL supports the recursive query: H2 and MySQL fail on it
+            if(useStorageLineage && (!(currentStorage instanceof SQL)
+                    || "org.postgresql.Driver".equals(((SQL) currentStorage).getDatabaseDriver())))
+            {
+                try
+                {
+                    // computes the whole lineage inside the storage
+                    getLineageRecursive = (AbstractQuery) Class.forName(class_prefix + ".GetLineageRecursive").newInstance();
+                }
+                catch(IllegalAccessException | InstantiationException | ClassNotFoundException ex)
+                {
+                    getLineageRecursive = null;
+                }
+            }
 
             Map<String, List<String>> vertexParams = new HashMap<>(parameters);
             vertexParams.remove(DIRECTION);
@@ -95,33 +136,65 @@ public class GetLineage extends AbstractQuery<Graph, Map<String, List<String>>>
             else
                 return null;
 
+            if(getLineageRecursive != null)
+            {
+                Map<String, List<String>> params = new HashMap<>();
+                params.put(PRIMARY_KEY, new ArrayList<>(remainingVertices));
+                params.put(DIRECTION, Collections.singletonList(direction));
+                params.put(MAX_DEPTH, Collections.singletonList(maxDepth.toString()));
+                Graph lineage;
+                try
+                {
+                    lineage = (Graph) getLineageRecursive.execute(params, null);
+                }
+                catch(RuntimeException ex)
+                {
+                    Logger.getLogger(GetLineage.class.getName()).log(Level.WARNING, "Recursive lineage query failed!", ex);
+                    lineage = null;
+                }
+                if(lineage != null)
+                {
+                    result.vertexSet().addAll(lineage.vertexSet());
+                    result.edgeSet().addAll(lineage.edgeSet());
+                    for(AbstractVertex vertex : lineage.vertexSet())
+                    {
+                        if(vertex.isNetworkVertex())
+                        {
+                            setRemoteResolutionRequired();
+                            result.putNetworkVertex(vertex, vertex.getDepth() - 1);
+                        }
+                    }
+                    // the depth limit has been applied by the storage
+                    remainingVertices.clear();
+                }
+                else
+                {
+                    Logger.getLogger(GetLineage.class.getName()).log(Level.WARNING,
+                            "Falling back to a breadth-first search for the lineage");
+                }
+            }
+
             while(!remainingVertices.isEmpty() && current_depth < maxDepth)
             {
                 visitedVertices.addAll(remainingVertices);
                 Set<String> currentSet = new HashSet<>();
-                for(String vertexHash: remainingVertices)
+                if(getNeighbors != null)
                 {
-                    Graph neighbors;
                     Map<String, List<String>> params = new HashMap<>();
-                    if(DIRECTION_ANCESTORS.startsWith(direction.toLowerCase()))
-                    {
-                        params.put(CHILD_VERTEX_KEY, Arrays.asList(OPERATORS.EQUALS, vertexHash, null));
-                        neighbors = (Graph) getParents.execute(params, DEFAULT_MAX_LIMIT);
-                    }
-                    else
-                    {
-                        params.put(PARENT_VERTEX_KEY, Arrays.asList(OPERATORS.EQUALS, vertexHash, null));
-                        neighbors = (Graph) getChildren.execute(params, DEFAULT_MAX_LIMIT);
-                    }
-                    for(AbstractVertex V: neighbors.vertexSet())
-                		V.setDepth(current_depth+1);
-                    result.vertexSet().addAll(neighbors.vertexSet());
-                    // empty right now. TODO: make getParents and getChildren return edges too
-                    result.edgeSet().addAll(neighbors.edgeSet());
-                    for(AbstractVertex vertex : neighbors.vertexSet())
+                    params.put(PRIMARY_KEY, new ArrayList<>(remainingVertices));
+                    params.put(DIRECTION, Collections.singletonList(direction));
+                    Graph neighbors = (Graph) getNeighbors.execute(params, null);
+                    for(AbstractEdge edge : neighbors.edgeSet())
                     {
+                        AbstractVertex vertex;
+                        if(DIRECTION_ANCESTORS.startsWith(direction.toLowerCase()))
+                            vertex = edge.getParentVertex();
+                        else
+                            vertex = edge.getChildVertex();
+                        vertex.setDepth(current_depth + 1);
+                        result.vertexSet().add(vertex);
+                        result.edgeSet().add(edge);
                         String neighborHash = vertex.bigHashCode();
-//                        String neighborHash = vertex.getAnnotation(PRIMARY_KEY);
                         if(!visitedVertices.contains(neighborHash))
                         {
                             currentSet.add(neighborHash);
@@ -131,21 +204,13 @@ public class GetLineage extends AbstractQuery<Graph, Map<String, List<String>>>
                             setRemoteResolutionRequired();
                             result.putNetworkVertex(vertex, current_depth);
                         }
-                        Map<String, List<String>> edgeParams = new LinkedHashMap<>();
-                        if(DIRECTION_ANCESTORS.startsWith(direction.toLowerCase()))
-                        {
-                            edgeParams.put(CHILD_VERTEX_KEY, Arrays.asList(OPERATORS.EQUALS, vertexHash, "AND"));
-                            edgeParams.put(PARENT_VERTEX_KEY, Arrays.asList(OPERATORS.EQUALS, neighborHash, null));
-                        }
-                        else
-                        {
-                            edgeParams.put(PARENT_VERTEX_KEY, Arrays.asList(OPERATORS.EQUALS, vertexHash, "AND"));
-                            edgeParams.put(CHILD_VERTEX_KEY, Arrays.asList(OPERATORS.EQUALS, neighborHash, null));
-                        }
-                        Set<AbstractEdge> edgeSet = (Set<AbstractEdge>) getEdge.execute(edgeParams, DEFAULT_MAX_LIMIT);
-                        result.edgeSet().addAll(edgeSet);
                     }
                 }
+                else
+                {
+                    expandVertexByVertex(remainingVertices, visitedVertices, currentSet, direction, current_depth,
+                            getParents, getChildren, getEdge, result);
+                }
                 remainingVertices.clear();
                 remainingVertices.addAll(currentSet);
                 current_depth++;
@@ -160,4 +225,61 @@ public class GetLineage extends AbstractQuery<Graph, Map<String, List<String>>>
             return null;
         }
     }
+
+    /**
+     * Expands the frontier with one query for the neighbors of every vertex and one
+     * query for every connecting edge. Used if the storage has no GetNeighbors query.
+     */
+    private void expandVertexByVertex(Set<String> remainingVertices, Set<String> visitedVertices, Set<String> currentSet,
+                                      String direction, int current_depth, AbstractQuery getParents,
+                                      AbstractQuery getChildren, AbstractQuery getEdge, Graph result)
+    {
+        for(String vertexHash: remainingVertices)
+        {
+            Graph neighbors;
+            Map<String, List<String>> params = new HashMap<>();
+            if(DIRECTION_ANCESTORS.startsWith(direction.toLowerCase()))
+            {
+                params.put(CHILD_VERTEX_KEY, Arrays.asList(OPERATORS.EQUALS, vertexHash, null));
+                neighbors = (Graph) getParents.execute(params, DEFAULT_MAX_LIMIT);
+            }
+            else
+            {
+                params.put(PARENT_VERTEX_KEY, Arrays.asList(OPERATORS.EQUALS, vertexHash, null));
+                neighbors = (Graph) getChildren.execute(params, DEFAULT_MAX_LIMIT);
+            }
+            for(AbstractVertex V: neighbors.vertexSet())
+        		V.setDepth(current_depth+1);
+            result.vertexSet().addAll(neighbors.vertexSet());
+            // empty right now. TODO: make getParents and getChildren return edges too
+            result.edgeSet().addAll(neighbors.edgeSet());
+            for(AbstractVertex vertex : neighbors.vertexSet())
+            {
+                String neighborHash = vertex.bigHashCode();
+//                        String neighborHash = vertex.getAnnotation(PRIMARY_KEY);
+                if(!visitedVertices.contains(neighborHash))
+                {
+                    currentSet.add(neighborHash);
+                }
+                if(vertex.isNetworkVertex())
+                {
+                    setRemoteResolutionRequired();
+                    result.putNetworkVertex(vertex, current_depth);
+                }
+                Map<String, List<String>> edgeParams = new LinkedHashMap<>();
+                if(DIRECTION_ANCESTORS.startsWith(direction.toLowerCase()))
+                {
+                    edgeParams.put(CHILD_VERTEX_KEY, Arrays.asList(OPERATORS.EQUALS, vertexHash, "AND"));
+                    edgeParams.put(PARENT_VERTEX_KEY, Arrays.asList(OPERATORS.EQUALS, neighborHash, null));
+                }
+                else
+                {
+                    edgeParams.put(PARENT_VERTEX_KEY, Arrays.asList(OPERATORS.EQUALS, vertexHash, "AND"));
+                    edgeParams.put(CHILD_VERTEX_KEY, Arrays.asList(OPERATORS.EQUALS, neighborHash, null));
+                }
+                Set<AbstractEdge> edgeSet = (Set<AbstractEdge>) getEdge.execute(edgeParams, DEFAULT_MAX_LIMIT);
+                result.edgeSet().addAll(edgeSet);
+            }
+        }
+    }
 }
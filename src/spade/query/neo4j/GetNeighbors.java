@@ -0,0 +1,83 @@
+package spade.query.neo4j;
+
+import org.neo4j.graphdb.Relationship;
+import org.neo4j.graphdb.Result;
+import spade.core.AbstractEdge;
+import spade.core.Graph;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import static spade.core.AbstractStorage.DIRECTION;
+import static spade.core.AbstractStorage.PRIMARY_KEY;
+import static spade.storage.Neo4j.HASHCODE_LABEL;
+import static spade.storage.Neo4j.NodeTypes;
+import static spade.storage.Neo4j.RelationshipTypes;
+import static spade.storage.Neo4j.convertRelationshipToEdge;
+
+/**
+ * Expands a whole frontier of vertices with one query. Returns the edges connecting
+ * the frontier to its neighbors in the given direction, together with their end
+ * points. The stored hash codes are removed from the returned elements so that
+ * their bigHashCode() matches the hash codes of the stored vertices.
+ *
+ * Parameters: PRIMARY_KEY maps to the list of hashes of the frontier vertices, and
+ * DIRECTION maps to a single direction.
+ */
+public class GetNeighbors extends Neo4j<Graph, Map<String, List<String>>>
+{
+    @Override
+    public Graph execute(Map<String, List<String>> parameters, Integer limit)
+    {
+        List<String> frontier = parameters.get(PRIMARY_KEY);
+        List<String> direction = parameters.get(DIRECTION);
+        if(frontier == null || direction == null)
+            return null;
+        Graph neighbors = new Graph();
+        if(frontier.isEmpty())
+            return neighbors;
+
+        List<String> quoted = new ArrayList<>(frontier.size());
+        for(String hash : frontier)
+        {
+            quoted.add("'" + hash + "'");
+        }
+        // edges are directed from the child to the parent
+        String pattern = DIRECTION_ANCESTORS.startsWith(direction.get(0).toLowerCase()) ? "-[%s:%s]->" : "<-[%s:%s]-";
+        StringBuilder query = new StringBuilder(100 + 40 * frontier.size());
+        query.append("MATCH (").append(VERTEX_ALIAS).append(":").append(NodeTypes.VERTEX).append(")");
+        query.append(String.format(pattern, EDGE_ALIAS, RelationshipTypes.EDGE));
+        query.append("(:").append(NodeTypes.VERTEX).append(")");
+        query.append(" WHERE ").append(VERTEX_ALIAS).append(".").append(HASHCODE_LABEL);
+        query.append(" IN [").append(String.join(", ", quoted)).append("]");
+        query.append(" RETURN ").append(EDGE_ALIAS);
+        if(limit != null)
+            query.append(" LIMIT ").append(limit);
+
+        try
+        {
+            Result result = (Result) currentStorage.executeQuery(query.toString());
+            Iterator<Relationship> relationships = result.columnAs(EDGE_ALIAS);
+            while(relationships.hasNext())
+            {
+                AbstractEdge edge = convertRelationshipToEdge(relationships.next());
+                edge.removeAnnotation(HASHCODE_LABEL);
+                edge.getChildVertex().removeAnnotation(HASHCODE_LABEL);
+                edge.getParentVertex().removeAnnotation(HASHCODE_LABEL);
+                neighbors.vertexSet().add(edge.getChildVertex());
+                neighbors.vertexSet().add(edge.getParentVertex());
+                neighbors.edgeSet().add(edge);
+            }
+        }
+        catch(Exception ex)
+        {
+            Logger.getLogger(GetNeighbors.class.getName()).log(Level.SEVERE, "Error expanding frontier!", ex);
+        }
+
+        return neighbors;
+    }
+}
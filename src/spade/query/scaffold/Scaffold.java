@@ -1,8 +1,6 @@
 package spade.query.scaffold;
 
-import com.sleepycat.bind.EntryBinding;
-import com.sleepycat.bind.serial.SerialBinding;
-import com.sleepycat.bind.serial.StoredClassCatalog;
+import com.sleepycat.je.CheckpointConfig;
 import com.sleepycat.je.Cursor;
 import com.sleepycat.je.Database;
 import com.sleepycat.je.DatabaseConfig;
@@ -12,23 +10,28 @@ import com.sleepycat.je.Environment;
 import com.sleepycat.je.EnvironmentConfig;
 import com.sleepycat.je.LockMode;
 import com.sleepycat.je.OperationStatus;
+import org.apache.commons.codec.binary.Hex;
 import spade.core.AbstractEdge;
 import spade.core.AbstractQuery;
 import spade.core.AbstractVertex;
 import spade.core.Edge;
 import spade.core.Graph;
+import spade.core.Settings;
 import spade.core.Vertex;
 import spade.query.sql.postgresql.PostgreSQL;
+import spade.storage.berkeleydb.HashDigest;
 
 import java.io.File;
-import java.io.Serializable;
-import java.io.UnsupportedEncodingException;
+import java.util.Arrays;
 import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Set;
 import java.util.Map;
 import java.util.HashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -42,6 +45,15 @@ import static spade.query.sql.postgresql.PostgreSQL.VERTEX_TABLE;
 
 
 /**
+ * Adjacency lists of vertices, kept as an append-only log of edge end points. The
+ * database has sorted duplicates: the key is the digest of a vertex followed by
+ * a direction byte, and each of its records is the digest of one parent or child.
+ * Inserting an edge therefore adds two small records, whatever the degree of its
+ * end points, and the parents or children of a vertex are read with a cursor over
+ * the records of a single key.
+ *
+ * The log files are compacted every 'scaffold_compaction_minutes' (disabled if 0).
+ *
  * @author raza
  */
 public class Scaffold extends AbstractQuery
@@ -50,9 +62,9 @@ public class Scaffold extends AbstractQuery
     public static long start_time;
     private static Environment scaffoldDbEnvironment = null;
     private static Database scaffoldDatabase = null;
-    private static Database neighborDatabase = null;
-    private static final String PARENTS = "parents";
-    private static final String CHILDREN = "children";
+    private static ScheduledExecutorService compactionTimer = null;
+    private static final byte PARENTS = 0;
+    private static final byte CHILDREN = 1;
 
     public void readData(int limit)
     {
@@ -60,12 +72,14 @@ public class Scaffold extends AbstractQuery
         DatabaseEntry key = new DatabaseEntry();
         DatabaseEntry data = new DatabaseEntry();
         int i = 0;
-        while(cursor.getNext(key, data, LockMode.DEFAULT) == OperationStatus.SUCCESS)
+        while(cursor.getNextNoDup(key, data, LockMode.DEFAULT) == OperationStatus.SUCCESS)
         {
             if(i >= limit)
                 break;
-            String keyString = new String(key.getData());
-            System.out.println("hash: " + keyString);
+            byte[] keyBytes = key.getData();
+            String keyString = Hex.encodeHexString(Arrays.copyOf(keyBytes, HashDigest.HASH_BYTES));
+            String direction = keyBytes[HashDigest.HASH_BYTES] == PARENTS ? "parents" : "children";
+            System.out.println("hash: " + keyString + ", " + direction + ": " + cursor.count());
             i++;
         }
         cursor.close();
@@ -91,10 +105,19 @@ public class Scaffold extends AbstractQuery
 
             DatabaseConfig dbConfig = new DatabaseConfig();
             dbConfig.setAllowCreate(true);
-            scaffoldDatabase = scaffoldDbEnvironment.openDatabase(null, "scaffold_berkeleydb", dbConfig);
+            dbConfig.setSortedDuplicates(true);
+            scaffoldDatabase = scaffoldDbEnvironment.openDatabase(null, "scaffold_adjacency", dbConfig);
 
-            // databases to store class information
-            neighborDatabase = scaffoldDbEnvironment.openDatabase(null, "neighbor_berkeleydb", dbConfig);
+            long compactionMinutes = Long.parseLong(Settings.getProperty("scaffold_compaction_minutes"));
+            if(compactionMinutes > 0)
+            {
+                compactionTimer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                    Thread thread = new Thread(runnable, "scaffold-compaction");
+                    thread.setDaemon(true);
+                    return thread;
+                });
+                compactionTimer.scheduleWithFixedDelay(this::compact, compactionMinutes, compactionMinutes, TimeUnit.MINUTES);
+            }
 
             start_time = System.nanoTime();
             return true;
@@ -117,6 +140,12 @@ public class Scaffold extends AbstractQuery
     {
         try
         {
+            if (compactionTimer != null)
+            {
+                compactionTimer.shutdown();
+                compactionTimer.awaitTermination(1, TimeUnit.MINUTES);
+                compactionTimer = null;
+            }
             if (scaffoldDatabase != null)
                 scaffoldDatabase.close();
             if (scaffoldDbEnvironment != null)
@@ -127,33 +156,57 @@ public class Scaffold extends AbstractQuery
         {
             Logger.getLogger(Scaffold.class.getName()).log(Level.SEVERE, "Database closure error!", ex);
         }
+        catch(InterruptedException ex)
+        {
+            Thread.currentThread().interrupt();
+        }
 
         return false;
     }
 
-    public Set<String> getChildren(String parentHash)
+    /**
+     * Compacts the on-disk layout: removes emptied internal nodes, rewrites the live
+     * records of the log files below the cleaner utilization into new files, and
+     * checkpoints so that the cleaned files are deleted.
+     *
+     * @return number of log files cleaned
+     */
+    public synchronized int compact()
     {
+        int cleanedFiles = 0;
         try
         {
-            // Instantiate class catalog
-            StoredClassCatalog neighborCatalog = new StoredClassCatalog(neighborDatabase);
-            // Create the binding
-            EntryBinding<Neighbors> neighborBinding = new SerialBinding<>(neighborCatalog, Neighbors.class);
-            // Create DatabaseEntry for the key
-            DatabaseEntry key = new DatabaseEntry(parentHash.getBytes("UTF-8"));
-            // Create the DatabaseEntry for the data.
-            DatabaseEntry data = new DatabaseEntry();
-            // query database to get the key-value
-            OperationStatus operationStatus = scaffoldDatabase.get(null, key, data, LockMode.DEFAULT);
-            if(operationStatus != OperationStatus.NOTFOUND)
+            scaffoldDbEnvironment.compress();
+            int cleaned;
+            while((cleaned = scaffoldDbEnvironment.cleanLog()) > 0)
+            {
+                cleanedFiles += cleaned;
+            }
+            if(cleanedFiles > 0)
             {
-                Neighbors neighbors = neighborBinding.entryToObject(data);
-                return neighbors.children;
+                CheckpointConfig checkpointConfig = new CheckpointConfig();
+                checkpointConfig.setForce(true);
+                scaffoldDbEnvironment.checkpoint(checkpointConfig);
             }
+            Logger.getLogger(Scaffold.class.getName()).log(Level.INFO, "Log files compacted: " + cleanedFiles);
         }
-        catch (UnsupportedEncodingException ex)
+        catch(DatabaseException | IllegalStateException ex)
         {
-            Logger.getLogger(Scaffold.class.getName()).log(Level.SEVERE, "Scaffold entry insertion error!", ex);
+            Logger.getLogger(Scaffold.class.getName()).log(Level.SEVERE, "Scaffold compaction error!", ex);
+        }
+
+        return cleanedFiles;
+    }
+
+    public Set<String> getChildren(String parentHash)
+    {
+        try
+        {
+            return readNeighbors(HashDigest.fromHex(parentHash), CHILDREN);
+        }
+        catch (IllegalArgumentException ex)
+        {
+            Logger.getLogger(Scaffold.class.getName()).log(Level.SEVERE, "Scaffold children retrieval error!", ex);
         }
         return null;
     }
@@ -162,27 +215,58 @@ public class Scaffold extends AbstractQuery
     {
         try
         {
-            // Instantiate class catalog
-            StoredClassCatalog neighborCatalog = new StoredClassCatalog(neighborDatabase);
-            // Create the binding
-            EntryBinding<Neighbors> neighborBinding = new SerialBinding<>(neighborCatalog, Neighbors.class);
-            // Create DatabaseEntry for the key
-            DatabaseEntry key = new DatabaseEntry(childHash.getBytes("UTF-8"));
-            // Create the DatabaseEntry for the data.
-            DatabaseEntry data = new DatabaseEntry();
-            // query database to get the key-value
-            OperationStatus operationStatus = scaffoldDatabase.get(null, key, data, LockMode.DEFAULT);
-            if(operationStatus != OperationStatus.NOTFOUND)
+            return readNeighbors(HashDigest.fromHex(childHash), PARENTS);
+        }
+        catch (IllegalArgumentException ex)
+        {
+            Logger.getLogger(Scaffold.class.getName()).log(Level.SEVERE, "Scaffold parents retrieval error!", ex);
+        }
+        return null;
+    }
+
+    /**
+     * Reads the records of a vertex in one direction with a cursor.
+     *
+     * @param hash digest of the vertex
+     * @param direction either PARENTS or CHILDREN
+     * @return hashes of the neighbors, empty if the vertex only has neighbors in the
+     * other direction, OR NULL if the vertex is not in the storage.
+     */
+    private Set<String> readNeighbors(byte[] hash, byte direction)
+    {
+        Set<String> neighbors = new HashSet<>();
+        DatabaseEntry key = new DatabaseEntry(adjacencyKey(hash, direction));
+        DatabaseEntry data = new DatabaseEntry();
+        try(Cursor cursor = scaffoldDatabase.openCursor(null, null))
+        {
+            OperationStatus operationStatus = cursor.getSearchKey(key, data, LockMode.DEFAULT);
+            while(operationStatus == OperationStatus.SUCCESS)
             {
-                Neighbors neighbors = neighborBinding.entryToObject(data);
-                return neighbors.parents;
+                neighbors.add(Hex.encodeHexString(data.getData()));
+                operationStatus = cursor.getNextDup(key, data, LockMode.DEFAULT);
             }
         }
-        catch (UnsupportedEncodingException ex)
+        if(neighbors.isEmpty() && !containsVertex(hash, direction == PARENTS ? CHILDREN : PARENTS))
         {
-            Logger.getLogger(Scaffold.class.getName()).log(Level.SEVERE, "Scaffold entry insertion error!", ex);
+            return null;
         }
-        return null;
+        return neighbors;
+    }
+
+    private boolean containsVertex(byte[] hash, byte direction)
+    {
+        DatabaseEntry key = new DatabaseEntry(adjacencyKey(hash, direction));
+        DatabaseEntry data = new DatabaseEntry();
+        data.setPartial(0, 0, true);
+        return scaffoldDatabase.get(null, key, data, LockMode.DEFAULT) == OperationStatus.SUCCESS;
+    }
+
+    // Digest of the vertex followed by the direction of its neighbors
+    private static byte[] adjacencyKey(byte[] hash, byte direction)
+    {
+        byte[] key = Arrays.copyOf(hash, hash.length + 1);
+        key[hash.length] = direction;
+        return key;
     }
 
     public Set<String> getNeighbors(String hash)
@@ -196,17 +280,8 @@ public class Scaffold extends AbstractQuery
     {
         try
         {
-            // Instantiate class catalog
-            StoredClassCatalog neighborCatalog = new StoredClassCatalog(neighborDatabase);
-            // Create the binding
-            EntryBinding<Neighbors> neighborBinding = new SerialBinding<>(neighborCatalog, Neighbors.class);
-            // Create DatabaseEntry for the key
-            DatabaseEntry key = new DatabaseEntry(hash.getBytes("UTF-8"));
-            // Create the DatabaseEntry for the data.
-            DatabaseEntry data = new DatabaseEntry();
-            // query database to get the key-value
-            OperationStatus operationStatus = scaffoldDatabase.get(null, key, data, LockMode.DEFAULT);
-            if(operationStatus != OperationStatus.NOTFOUND)
+            byte[] hashBytes = HashDigest.fromHex(hash);
+            if(containsVertex(hashBytes, PARENTS) || containsVertex(hashBytes, CHILDREN))
             {
                 Set<String> remainingVertices = new HashSet<>();
                 Set<String> visitedVertices = new HashSet<>();
@@ -232,7 +307,7 @@ public class Scaffold extends AbstractQuery
                             {
                                 if(!visitedVertices.contains(vertexHash))
                                 {
-                                    currentSet.addAll(neighbors);
+                                    currentSet.add(vertexHash);
                                 }
                             }
                         }
@@ -245,7 +320,7 @@ public class Scaffold extends AbstractQuery
                 return lineageMap;
             }
         }
-        catch(UnsupportedEncodingException ex)
+        catch(IllegalArgumentException ex)
         {
             Logger.getLogger(Scaffold.class.getName()).log(Level.SEVERE, "Scaffold Get Lineage error!", ex);
         }
@@ -295,23 +370,14 @@ public class Scaffold extends AbstractQuery
                 incomingEdge.getAnnotation(PARENT_VERTEX_KEY) : parentVertex.bigHashCode();
         try
         {
-            // Instantiate class catalog
-            StoredClassCatalog neighborCatalog = new StoredClassCatalog(neighborDatabase);
-            // Create the binding
-            EntryBinding<Neighbors> neighborBinding = new SerialBinding<>(neighborCatalog, Neighbors.class);
-            // Create DatabaseEntry for the key
-            DatabaseEntry key = new DatabaseEntry(childHash.getBytes("UTF-8"));
-            // Create the DatabaseEntry for the data.
-            DatabaseEntry data = new DatabaseEntry();
-            // query database to get the key-value
-            OperationStatus operationStatus = scaffoldDatabase.get(null, key, data, LockMode.DEFAULT);
-            addItem(operationStatus, PARENTS , key, data, neighborBinding, parentHash);
-
-            // now do the reverse too
-            key = new DatabaseEntry(parentHash.getBytes("UTF-8"));
-            data = new DatabaseEntry();
-            operationStatus = scaffoldDatabase.get(null, key, data, LockMode.DEFAULT);
-            addItem(operationStatus, CHILDREN, key, data, neighborBinding, childHash);
+            byte[] childBytes = HashDigest.fromHex(childHash);
+            byte[] parentBytes = HashDigest.fromHex(parentHash);
+            // Append the parent to the records of the child, and the reverse. Records
+            // that are already present are left as they are.
+            scaffoldDatabase.putNoDupData(null, new DatabaseEntry(adjacencyKey(childBytes, PARENTS)),
+                    new DatabaseEntry(parentBytes));
+            scaffoldDatabase.putNoDupData(null, new DatabaseEntry(adjacencyKey(parentBytes, CHILDREN)),
+                    new DatabaseEntry(childBytes));
 
             // stats calculation
             serial_number++;
@@ -325,7 +391,7 @@ public class Scaffold extends AbstractQuery
 
             return true;
         }
-        catch (UnsupportedEncodingException ex)
+        catch (IllegalArgumentException ex)
         {
             Logger.getLogger(Scaffold.class.getName()).log(Level.SEVERE, "Scaffold entry insertion error!", ex);
         }
@@ -333,37 +399,6 @@ public class Scaffold extends AbstractQuery
         return false;
     }
 
-    /**
-     * Helper method to add an item to the storage
-     * @param status status of last get operation at the caller
-     * @param direction wither parent or children
-     * @param key key of the element to insert data into
-     * @param neighborBinding binding object to bind the data object to
-     * @param hash hash of the parent or child to add to the data list
-     */
-    private void addItem(OperationStatus status, String direction, DatabaseEntry key, DatabaseEntry data,
-                         EntryBinding<Neighbors> neighborBinding, String hash)
-    {
-        Neighbors neighbors;
-        if(status == OperationStatus.NOTFOUND)
-        {
-            // if key is not present, add a new object
-            neighbors = new Neighbors();
-        }
-        else
-        {
-            // if key is present, retrieve corresponding data object
-            neighbors = neighborBinding.entryToObject(data);
-        }
-        if(direction.equalsIgnoreCase(PARENTS))
-            neighbors.parents.add(hash);
-        else if(direction.equalsIgnoreCase(CHILDREN))
-            neighbors.children.add(hash);
-        data = new DatabaseEntry();
-        neighborBinding.objectToEntry(neighbors, data);
-        scaffoldDatabase.put(null, key, data);
-    }
-
     public Graph queryManager(Map<String, List<String>> params)
     {
         Graph result = new Graph();
@@ -518,48 +553,6 @@ public class Scaffold extends AbstractQuery
         return null;
     }
 
-    private static class Neighbors implements Serializable
-    {
-        public Set<String> parents = new HashSet<>();
-        public Set<String> children = new HashSet<>();
-
-        @Override
-        public boolean equals(Object otherObject)
-        {
-            if (this == otherObject)
-            {
-                return true;
-            }
-            if (!(otherObject instanceof Neighbors))
-            {
-                return false;
-            }
-            Neighbors otherNeighbor = (Neighbors) otherObject;
-            return this.parents.equals(otherNeighbor.parents) &&
-                    this.children.equals(otherNeighbor.children);
-        }
-
-        @Override
-        public int hashCode()
-        {
-            final int seed1 = 5;
-            final int seed2 = 97;
-            int hashCode = seed1;
-            hashCode = seed2 * hashCode + parents.hashCode();
-            hashCode = seed2 * hashCode + children.hashCode();
-            return hashCode;
-        }
-
-        @Override
-        public String toString()
-        {
-            return "Neighbors{" +
-                    "parents=" + parents +
-                    ", children=" + children +
-                    '}';
-        }
-    }
-
 }
 
 
@@ -0,0 +1,140 @@
+package spade.query.sql.postgresql;
+
+import spade.core.AbstractVertex;
+import spade.core.Graph;
+import spade.storage.SQL;
+
+import java.sql.SQLException;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import static spade.core.AbstractStorage.CHILD_VERTEX_KEY;
+import static spade.core.AbstractStorage.DIRECTION;
+import static spade.core.AbstractStorage.MAX_DEPTH;
+import static spade.core.AbstractStorage.PARENT_VERTEX_KEY;
+import static spade.core.AbstractStorage.PRIMARY_KEY;
+
+/**
+ * Computes the whole lineage of a vertex inside the database with a recursive
+ * common table expression over the edge table. Every level of the recursion is
+ * deduplicated by (hash, depth), so a vertex is expanded at most once per depth
+ * and cycles end at the depth limit. Each vertex gets the smallest depth at
+ * which it was reached. The vertices and edges of the lineage are streamed back
+ * through a cursor, under the lock of the storage so that no commit closes it.
+ *
+ * Parameters: PRIMARY_KEY maps to the hash of the starting vertex, DIRECTION to
+ * a single direction and MAX_DEPTH to the maximum depth.
+ *
+ * Returns null if the query failed, since the lineage always holds the starting
+ * vertex. Only PostgreSQL supports the query.
+ */
+public class GetLineageRecursive extends PostgreSQL<Graph, Map<String, List<String>>>
+{
+    // column holding the depth of a vertex in the lineage
+    private static final String LINEAGE_DEPTH = "lineage_depth";
+    // smallest depth of every hash in the lineage
+    private static final String REACHED = "(SELECT hash, MIN(depth) AS depth FROM lineage GROUP BY hash) AS reached";
+    // number of rows fetched at a time
+    private static final int FETCH_SIZE = 10000;
+
+    public GetLineageRecursive()
+    {
+        register();
+    }
+
+    @Override
+    public Graph execute(Map<String, List<String>> parameters, Integer limit)
+    {
+        List<String> root = parameters.get(PRIMARY_KEY);
+        List<String> direction = parameters.get(DIRECTION);
+        List<String> maxDepth = parameters.get(MAX_DEPTH);
+        if(root == null || direction == null || maxDepth == null)
+            return null;
+        String fromKey;
+        String toKey;
+        if(DIRECTION_ANCESTORS.startsWith(direction.get(0).toLowerCase()))
+        {
+            fromKey = CHILD_VERTEX_KEY;
+            toKey = PARENT_VERTEX_KEY;
+        }
+        else
+        {
+            fromKey = PARENT_VERTEX_KEY;
+            toKey = CHILD_VERTEX_KEY;
+        }
+        int depth = Integer.parseInt(maxDepth.get(0));
+        String lineage = prepareLineageExpression(root.get(0), depth, fromKey, toKey);
+
+        StringBuilder vertexQuery = new StringBuilder(lineage);
+        vertexQuery.append(" SELECT ").append(VERTEX_TABLE).append(".*, reached.depth AS ").append(LINEAGE_DEPTH);
+        vertexQuery.append(" FROM ").append(VERTEX_TABLE);
+        vertexQuery.append(" JOIN ").append(REACHED).append(" ON ").append(VERTEX_TABLE).append(".").append(PRIMARY_KEY);
+        vertexQuery.append(" = reached.hash");
+        if(limit != null)
+            vertexQuery.append(" LIMIT ").append(limit);
+        vertexQuery.append(";");
+
+        // edges leaving every vertex that was expanded
+        StringBuilder edgeQuery = new StringBuilder(lineage);
+        edgeQuery.append(" SELECT ").append(EDGE_TABLE).append(".*");
+        edgeQuery.append(" FROM ").append(EDGE_TABLE);
+        edgeQuery.append(" JOIN ").append(REACHED).append(" ON ").append(EDGE_TABLE).append(".").append(fromKey);
+        edgeQuery.append(" = reached.hash");
+        edgeQuery.append(" WHERE reached.depth < ").append(depth);
+        edgeQuery.append(";");
+
+        Logger logger = Logger.getLogger(GetLineageRecursive.class.getName());
+        if(!(currentStorage instanceof SQL))
+        {
+            logger.log(Level.SEVERE, "The recursive lineage query needs the SQL storage");
+            return null;
+        }
+        SQL storage = (SQL) currentStorage;
+        try
+        {
+            logger.log(Level.INFO, "Following query: " + vertexQuery.toString());
+            Map<String, AbstractVertex> vertices = storage.readQuery(vertexQuery.toString(), FETCH_SIZE,
+                    PostgreSQL::readVertexMap);
+            if(vertices.isEmpty())
+                return null;
+            Graph result = new Graph();
+            for(AbstractVertex vertex : vertices.values())
+            {
+                String vertexDepth = vertex.removeAnnotation(LINEAGE_DEPTH);
+                if(vertexDepth != null)
+                    vertex.setDepth(Integer.parseInt(vertexDepth));
+                result.vertexSet().add(vertex);
+            }
+            result.edgeSet().addAll(storage.readQuery(edgeQuery.toString(), FETCH_SIZE,
+                    edges -> readEdgeSet(edges, vertices)));
+
+            return result;
+        }
+        catch(SQLException ex)
+        {
+            logger.log(Level.SEVERE, "Recursive lineage query unsuccessful!", ex);
+            return null;
+        }
+    }
+
+    /**
+     * Builds the common table expression 'lineage' with every (hash, depth) reached
+     * from the root.
+     */
+    private static String prepareLineageExpression(String rootHash, int maxDepth, String fromKey, String toKey)
+    {
+        StringBuilder expression = new StringBuilder(400);
+        expression.append("WITH RECURSIVE lineage(hash, depth) AS (");
+        expression.append("SELECT CAST('").append(rootHash).append("' AS UUID), 0");
+        expression.append(" UNION ");
+        expression.append("SELECT ").append(EDGE_TABLE).append(".").append(toKey).append(", lineage.depth + 1");
+        expression.append(" FROM lineage JOIN ").append(EDGE_TABLE);
+        expression.append(" ON ").append(EDGE_TABLE).append(".").append(fromKey).append(" = lineage.hash");
+        expression.append(" WHERE lineage.depth < ").append(maxDepth);
+        expression.append(")");
+
+        return expression.toString();
+    }
+}
@@ -0,0 +1,116 @@
+package spade.query.sql.postgresql;
+
+import spade.core.AbstractEdge;
+import spade.core.AbstractVertex;
+import spade.core.Graph;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import static spade.core.AbstractStorage.CHILD_VERTEX_KEY;
+import static spade.core.AbstractStorage.DIRECTION;
+import static spade.core.AbstractStorage.PARENT_VERTEX_KEY;
+import static spade.core.AbstractStorage.PRIMARY_KEY;
+
+/**
+ * Expands a whole frontier of vertices in one step. Returns the edges connecting
+ * the frontier to its neighbors in the given direction, together with their end
+ * points. The frontier is queried in chunks using IN-lists, with one query for the
+ * edges and one for the end points per chunk.
+ *
+ * Parameters: PRIMARY_KEY maps to the list of hashes of the frontier vertices, and
+ * DIRECTION maps to a single direction.
+ */
+public class GetNeighbors extends PostgreSQL<Graph, Map<String, List<String>>>
+{
+    // maximum number of hashes in one IN-list
+    private static final int MAX_FRONTIER_CHUNK = 1000;
+
+    public GetNeighbors()
+    {
+        register();
+    }
+
+    @Override
+    public Graph execute(Map<String, List<String>> parameters, Integer limit)
+    {
+        List<String> frontier = parameters.get(PRIMARY_KEY);
+        List<String> direction = parameters.get(DIRECTION);
+        if(frontier == null || direction == null)
+            return null;
+        String fromKey;
+        String toKey;
+        if(DIRECTION_ANCESTORS.startsWith(direction.get(0).toLowerCase()))
+        {
+            fromKey = CHILD_VERTEX_KEY;
+            toKey = PARENT_VERTEX_KEY;
+        }
+        else
+        {
+            fromKey = PARENT_VERTEX_KEY;
+            toKey = CHILD_VERTEX_KEY;
+        }
+
+        Graph neighbors = new Graph();
+        for(int start = 0; start < frontier.size(); start += MAX_FRONTIER_CHUNK)
+        {
+            List<String> chunk = frontier.subList(start, Math.min(frontier.size(), start + MAX_FRONTIER_CHUNK));
+            String inList = prepareInList(chunk);
+
+            StringBuilder edgeQuery = new StringBuilder(100 + inList.length());
+            edgeQuery.append("SELECT * FROM ");
+            edgeQuery.append(EDGE_TABLE);
+            edgeQuery.append(" WHERE ");
+            edgeQuery.append(fromKey);
+            edgeQuery.append(" IN");
+            edgeQuery.append(inList);
+            if(limit != null)
+                edgeQuery.append(" LIMIT ").append(limit);
+            edgeQuery.append(";");
+
+            // the frontier vertices are needed as end points of the edges
+            StringBuilder vertexQuery = new StringBuilder(200 + 2 * inList.length());
+            vertexQuery.append("SELECT * FROM ");
+            vertexQuery.append(VERTEX_TABLE);
+            vertexQuery.append(" WHERE ");
+            vertexQuery.append(PRIMARY_KEY);
+            vertexQuery.append(" IN");
+            vertexQuery.append(inList);
+            vertexQuery.append(" OR ");
+            vertexQuery.append(PRIMARY_KEY);
+            vertexQuery.append(" IN(SELECT ");
+            vertexQuery.append(toKey);
+            vertexQuery.append(" FROM ");
+            vertexQuery.append(EDGE_TABLE);
+            vertexQuery.append(" WHERE ");
+            vertexQuery.append(fromKey);
+            vertexQuery.append(" IN");
+            vertexQuery.append(inList);
+            vertexQuery.append(");");
+
+            Logger.getLogger(GetNeighbors.class.getName()).log(Level.INFO, "Following query: " + edgeQuery.toString());
+            Map<String, AbstractVertex> vertices = prepareVertexMapFromSQLResult(vertexQuery.toString());
+            for(AbstractEdge edge : prepareEdgeSetFromSQLResult(edgeQuery.toString(), vertices))
+            {
+                neighbors.vertexSet().add(edge.getChildVertex());
+                neighbors.vertexSet().add(edge.getParentVertex());
+                neighbors.edgeSet().add(edge);
+            }
+        }
+
+        return neighbors;
+    }
+
+    private static String prepareInList(List<String> hashes)
+    {
+        List<String> quoted = new ArrayList<>(hashes.size());
+        for(String hash : hashes)
+        {
+            quoted.add("'" + hash + "'");
+        }
+        return "(" + String.join(", ", quoted) + ")";
+    }
+}
@@ -39,43 +39,66 @@ public abstract class PostgreSQL<R, P> extends SQL<R, P>
 
     public static Set<AbstractVertex> prepareVertexSetFromSQLResult(String query)
     {
-        Set<AbstractVertex> vertexSet = new HashSet<>();
+        return new HashSet<>(prepareVertexMapFromSQLResult(query).values());
+    }
+
+    /**
+     * Returns the vertices in the result of the query, keyed by their primary key
+     * as returned by the database.
+     */
+    public static Map<String, AbstractVertex> prepareVertexMapFromSQLResult(String query)
+    {
         try
         {
-            ResultSet result = (ResultSet) currentStorage.executeQuery(query);
-            ResultSetMetaData metadata = result.getMetaData();
-            int columnCount = metadata.getColumnCount();
+            return readVertexMap((ResultSet) currentStorage.executeQuery(query));
+        }
+        catch (SQLException ex)
+        {
+            Logger.getLogger(PostgreSQL.class.getName()).log(Level.SEVERE, "Vertex set querying unsuccessful!", ex);
+            return new HashMap<>();
+        }
+    }
 
-            Map<Integer, String> columnLabels = new HashMap<>();
-            for (int i = 1; i <= columnCount; i++)
-            {
-                columnLabels.put(i, metadata.getColumnName(i));
-            }
+    /**
+     * Returns the vertices in the result, keyed by their primary key as returned
+     * by the database.
+     */
+    public static Map<String, AbstractVertex> readVertexMap(ResultSet result) throws SQLException
+    {
+        Map<String, AbstractVertex> vertexMap = new HashMap<>();
+        ResultSetMetaData metadata = result.getMetaData();
+        int columnCount = metadata.getColumnCount();
 
-            while (result.next())
+        Map<Integer, String> columnLabels = new HashMap<>();
+        for (int i = 1; i <= columnCount; i++)
+        {
+            columnLabels.put(i, metadata.getColumnName(i));
+        }
+
+        while (result.next())
+        {
+            AbstractVertex vertex = new Vertex();
+            String hash = null;
+            for (int i = 1; i <= columnCount; i++)
             {
-                AbstractVertex vertex = new Vertex();
-                for (int i = 1; i <= columnCount; i++)
+                String colName = columnLabels.get(i);
+                String value = result.getString(i);
+                if (!StringUtils.isNullOrEmpty(value))
                 {
-                    String colName = columnLabels.get(i);
-                    String value = result.getString(i);
-                    if (!StringUtils.isNullOrEmpty(value))
+                    if(colName != null && !colName.equals(PRIMARY_KEY))
                     {
-                        if(colName != null && !colName.equals(PRIMARY_KEY))
-                        {
-                            vertex.addAnnotation(colName, value);
-                        }
+                        vertex.addAnnotation(colName, value);
+                    }
+                    else if(colName != null)
+                    {
+                        hash = value;
                     }
                 }
-                vertexSet.add(vertex);
             }
-        }
-        catch (SQLException ex)
-        {
-            Logger.getLogger(PostgreSQL.class.getName()).log(Level.SEVERE, "Vertex set querying unsuccessful!", ex);
+            vertexMap.put(hash, vertex);
         }
 
-        return vertexSet;
+        return vertexMap;
     }
 
     public static Set<AbstractEdge> prepareEdgeSetFromSQLResult(String query)
@@ -142,4 +165,76 @@ public abstract class PostgreSQL<R, P> extends SQL<R, P>
 
         return edgeSet;
     }
+
+    /**
+     * Returns the edges in the result of the query. The end points are looked up
+     * in the given vertices, keyed by primary key, instead of being queried for
+     * each edge. Edges with an end point missing from the vertices are skipped.
+     */
+    public static Set<AbstractEdge> prepareEdgeSetFromSQLResult(String query, Map<String, AbstractVertex> vertices)
+    {
+        try
+        {
+            return readEdgeSet((ResultSet) currentStorage.executeQuery(query), vertices);
+        }
+        catch (SQLException ex)
+        {
+            Logger.getLogger(PostgreSQL.class.getName()).log(Level.SEVERE, "Edge set querying unsuccessful!", ex);
+            return new HashSet<>();
+        }
+    }
+
+    /**
+     * Returns the edges in the result, with the end points looked up in the given
+     * vertices. Edges with an end point missing from the vertices are skipped.
+     */
+    public static Set<AbstractEdge> readEdgeSet(ResultSet result, Map<String, AbstractVertex> vertices)
+            throws SQLException
+    {
+        Set<AbstractEdge> edgeSet = new HashSet<>();
+        ResultSetMetaData metadata = result.getMetaData();
+        int columnCount = metadata.getColumnCount();
+
+        Map<Integer, String> columnLabels = new HashMap<>();
+        // end point columns are matched ignoring case since it depends on the database
+        int childColumn = 0;
+        int parentColumn = 0;
+        for (int i = 1; i <= columnCount; i++)
+        {
+            columnLabels.put(i, metadata.getColumnName(i));
+            if(CHILD_VERTEX_KEY.equalsIgnoreCase(metadata.getColumnName(i)))
+                childColumn = i;
+            else if(PARENT_VERTEX_KEY.equalsIgnoreCase(metadata.getColumnName(i)))
+                parentColumn = i;
+        }
+        if(childColumn == 0 || parentColumn == 0)
+            return edgeSet;
+
+        while (result.next())
+        {
+            Map<String, String> annotations = new HashMap<>();
+            for (int i = 1; i <= columnCount; i++)
+            {
+                String value = result.getString(i);
+                if (!StringUtils.isNullOrEmpty(value))
+                {
+                    String colName = columnLabels.get(i);
+                    if (colName != null && !colName.equals(PRIMARY_KEY))
+                    {
+                        annotations.put(colName, value);
+                    }
+                }
+            }
+            AbstractVertex childVertex = vertices.get(result.getString(childColumn));
+            AbstractVertex parentVertex = vertices.get(result.getString(parentColumn));
+            if(childVertex == null || parentVertex == null)
+                continue;
+
+            AbstractEdge edge = new Edge(childVertex, parentVertex);
+            edge.addAnnotations(annotations);
+            edgeSet.add(edge);
+        }
+
+        return edgeSet;
+    }
 }
@@ -20,10 +20,14 @@
 package spade.reporter;
 
 import java.io.BufferedReader;
+import java.io.BufferedWriter;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
 import java.math.BigDecimal;
 import java.math.BigInteger;
 import java.text.SimpleDateFormat;
@@ -52,6 +56,7 @@ import spade.edge.opm.WasGeneratedBy;
 import spade.reporter.audit.ArtifactIdentifier;
 import spade.reporter.audit.ArtifactProperties;
 import spade.reporter.audit.AuditEventReader;
+import spade.reporter.audit.AuditLogMerger;
 import spade.reporter.audit.BlockDeviceIdentifier;
 import spade.reporter.audit.CharacterDeviceIdentifier;
 import spade.reporter.audit.DirectoryIdentifier;
@@ -73,8 +78,10 @@ import spade.utility.BerkeleyDB;
 import spade.utility.CommonFunctions;
 import spade.utility.Execute;
 import spade.utility.ExternalMemoryMap;
+import spade.utility.ExternalStore;
 import spade.utility.FileUtility;
 import spade.utility.Hasher;
+import spade.utility.MemoryMappedStore;
 import spade.vertex.opm.Artifact;
 import spade.vertex.opm.Process;
 
@@ -753,6 +760,7 @@ public class Audit extends AbstractReporter {
 		String spadeAuditBridgeBinaryPath = null;
 		String outputLogFilePath = null;
 		long recordsToRotateOutputLogAfter = 0;
+		AuditLogMerger auditLogMerger = null;
 		String spadeAuditBridgeCommand = null;
 		String rulesType = null;
 		String logListFile = null;
@@ -843,26 +851,54 @@ public class Audit extends AbstractReporter {
 					return false;
 				}
 	
+				// Whether to merge the rotated logs by time and event id or to read them one after the other
+				boolean merge = false;
+				String mergeArgument = argsMap.get("merge");
+				if(isValidBoolean(mergeArgument)){
+					merge = parseBoolean(mergeArgument, false);
+				}else{
+					logger.log(Level.SEVERE, "Invalid value for 'merge' flag: "+ mergeArgument);
+					return false;
+				}
+	
 				List<String> inputAuditLogFiles = getListOfInputAuditLogs(inputAuditLogFileArgument, rotate);
 	
 				logger.log(Level.INFO, "Total logs to process: " + inputAuditLogFiles.size() + " and list = " + inputAuditLogFiles);
 	
-				// Only needed in case of audit log files and not in case of live audit
-				String tempDirPath = configMap.get("tempDir");
-				if(!setupTempDirectory(tempDirPath)){
-					return false;
-				}
-				// Create the input file for spadeAuditBridge to read the audit logs from 
-				logListFile = createLogListFileForSpadeAuditBridge(spadeAuditBridgeBinaryName, inputAuditLogFiles, tempDirPath);
-				if(logListFile == null){
-					return false;
+				if(merge){
+					Integer mergeWindowSize = CommonFunctions.parseInt(configMap.get("mergeWindowSize"), null);
+					if(mergeWindowSize == null || mergeWindowSize < 1){
+						logger.log(Level.SEVERE, "Invalid value for 'mergeWindowSize' in config: " + configMap.get("mergeWindowSize"));
+						return false;
+					}
+					try{
+						auditLogMerger = new AuditLogMerger(inputAuditLogFiles, mergeWindowSize);
+					}catch(Exception e){
+						logger.log(Level.SEVERE, "Failed to open audit logs to merge", e);
+						return false;
+					}
+					
+					// spadeAuditBridge reads the merged records from its STDIN
+					spadeAuditBridgeCommand = spadeAuditBridgeBinaryPath + 
+									((CREATE_BEEP_UNITS) ? " -u" : "");
+				}else{
+					// Only needed in case of audit log files and not in case of live audit
+					String tempDirPath = configMap.get("tempDir");
+					if(!setupTempDirectory(tempDirPath)){
+						return false;
+					}
+					// Create the input file for spadeAuditBridge to read the audit logs from 
+					logListFile = createLogListFileForSpadeAuditBridge(spadeAuditBridgeBinaryName, inputAuditLogFiles, tempDirPath);
+					if(logListFile == null){
+						return false;
+					}
+					
+					// Build the command to use
+					spadeAuditBridgeCommand = spadeAuditBridgeBinaryPath + 
+									((CREATE_BEEP_UNITS) ? " -u" : "") + 
+									((WAIT_FOR_LOG_END) ? " -w" : "") + 
+									" -f " + logListFile;
 				}
-				
-				// Build the command to use
-				spadeAuditBridgeCommand = spadeAuditBridgeBinaryPath + 
-								((CREATE_BEEP_UNITS) ? " -u" : "") + 
-								((WAIT_FOR_LOG_END) ? " -w" : "") + 
-								" -f " + logListFile;
 			}else{
 				// Input log directory section
 				
@@ -964,6 +1000,12 @@ public class Audit extends AbstractReporter {
 						spadeAuditBridgeProcess.getErrorStream());
 				errorReaderThread.start();
 				
+				if(auditLogMerger != null){
+					Thread auditLogMergerThread = getAuditLogMergerThread(auditLogMerger, 
+							spadeAuditBridgeProcess.getOutputStream());
+					auditLogMergerThread.start();
+				}
+				
 				AuditEventReader auditEventReader = getAuditEventReader(spadeAuditBridgeCommand,
 						spadeAuditBridgeProcess.getInputStream(), outputLogFilePath,
 						recordsToRotateOutputLogAfter);
@@ -1141,6 +1183,34 @@ public class Audit extends AbstractReporter {
 		}
 	}
 	
+	/**
+	 * Returns a thread that writes the merged records of the audit logs to the given stream
+	 * and then closes the stream
+	 * 
+	 * @param auditLogMerger merger of the audit logs
+	 * @param outputStream STDIN of spadeAuditBridge
+	 * @return the thread (not started)
+	 */
+	private Thread getAuditLogMergerThread(final AuditLogMerger auditLogMerger, final OutputStream outputStream){
+		return new Thread(new Runnable(){
+			public void run(){
+				PrintWriter writer = new PrintWriter(new BufferedWriter(new OutputStreamWriter(outputStream)));
+				try{
+					String record = null;
+					while((record = auditLogMerger.readRecord()) != null){
+						writer.println(record);
+					}
+					logger.log(Level.INFO, "Finished merging audit logs");
+				}catch(Exception e){
+					logger.log(Level.SEVERE, "Failed to merge audit logs", e);
+				}finally{
+					writer.close();
+					auditLogMerger.close();
+				}
+			}
+		}, "audit-log-merger");
+	}
+	
 	private Thread getAuditEventReaderThread(final String processName, final AuditEventReader auditEventReader, 
 			final boolean isLiveAudit, final String rulesType, final String logListFile){
 		Runnable runnable = new Runnable() {
@@ -1592,12 +1662,13 @@ public class Audit extends AbstractReporter {
 			try{
 				Integer artifactsCacheSize = CommonFunctions.parseInt(configMap.get("artifactsCacheSize"), null);
 				String artifactsDatabaseName = configMap.get("artifactsDatabaseName");
+				String artifactsCacheStore = configMap.get("artifactsCacheStore");
 				Double artifactsFalsePositiveProbability = CommonFunctions.parseDouble(configMap.get("artifactsBloomfilterFalsePositiveProbability"), null);
 				Integer artifactsExpectedNumberOfElements = CommonFunctions.parseInt(configMap.get("artifactsBloomFilterExpectedNumberOfElements"), null);
 
 				logger.log(Level.INFO, "Audit cache properties: artifactsCacheSize={0}, artifactsDatabaseName={1}, artifactsBloomfilterFalsePositiveProbability={2}, "
-						+ "artifactsBloomFilterExpectedNumberOfElements={3}", new Object[]{artifactsCacheSize, 
-								artifactsDatabaseName, artifactsFalsePositiveProbability, artifactsExpectedNumberOfElements});
+						+ "artifactsBloomFilterExpectedNumberOfElements={3}, artifactsCacheStore={4}", new Object[]{artifactsCacheSize, 
+								artifactsDatabaseName, artifactsFalsePositiveProbability, artifactsExpectedNumberOfElements, artifactsCacheStore});
 
 				if(artifactsCacheSize == null || artifactsDatabaseName == null || 
 						artifactsFalsePositiveProbability == null || artifactsExpectedNumberOfElements == null){
@@ -1605,10 +1676,19 @@ public class Audit extends AbstractReporter {
 					return false;
 				}
 
+				ExternalStore<ArtifactProperties> artifactsStore;
+				if(artifactsCacheStore == null || artifactsCacheStore.equalsIgnoreCase("BerkeleyDB")){
+					artifactsStore = new BerkeleyDB<ArtifactProperties>(artifactsCacheDatabasePath, artifactsDatabaseName);
+				}else if(artifactsCacheStore.equalsIgnoreCase("MemoryMapped")){
+					artifactsStore = new MemoryMappedStore<ArtifactProperties>(artifactsCacheDatabasePath, artifactsDatabaseName, 
+							ArtifactProperties.CODEC);
+				}else{
+					logger.log(Level.SEVERE, "Invalid value for 'artifactsCacheStore': " + artifactsCacheStore);
+					return false;
+				}
 				artifactIdentifierToArtifactProperties = 
 						new ExternalMemoryMap<ArtifactIdentifier, ArtifactProperties>(artifactsCacheSize, 
-								new BerkeleyDB<ArtifactProperties>(artifactsCacheDatabasePath, artifactsDatabaseName), 
-								artifactsFalsePositiveProbability, artifactsExpectedNumberOfElements);
+								artifactsStore, artifactsFalsePositiveProbability, artifactsExpectedNumberOfElements);
 								
 				artifactIdentifierToArtifactProperties.setKeyHashFunction(new Hasher<ArtifactIdentifier>() {
 				
@@ -1731,6 +1811,13 @@ public class Audit extends AbstractReporter {
 		}
 	}
 
+	/**
+	 * @return true if the events are still being read and handled
+	 */
+	public boolean isEventReaderThreadRunning(){
+		return eventReaderThreadRunning;
+	}
+	
 	@Override
 	public boolean shutdown() {
 		
@@ -20,10 +20,15 @@
 
 package spade.reporter.audit;
 
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
 import java.io.Serializable;
 import java.util.HashSet;
 import java.util.Set;
 
+import spade.utility.MemoryMappedStore;
+
 public class ArtifactProperties implements Serializable{
 	
 	private static final long serialVersionUID = -1299250614232336780L;
@@ -46,6 +51,48 @@ public class ArtifactProperties implements Serializable{
 	 */
 	private String currentPermissions = null;
 	
+	/**
+	 * Compact encoding for MemoryMappedStore. Much smaller and faster than Java serialization
+	 */
+	public static final MemoryMappedStore.Codec<ArtifactProperties> CODEC = new MemoryMappedStore.Codec<ArtifactProperties>(){
+		@Override
+		public void write(ArtifactProperties value, DataOutput out) throws IOException{
+			out.writeLong(value.version);
+			out.writeLong(value.epoch);
+			out.writeBoolean(value.epochPending);
+			writeNullableString(value.currentPermissions, out);
+			out.writeInt(value.seenPermissions.size());
+			for(String permissions : value.seenPermissions){
+				writeNullableString(permissions, out);
+			}
+		}
+
+		@Override
+		public ArtifactProperties read(DataInput in) throws IOException{
+			ArtifactProperties value = new ArtifactProperties();
+			value.version = in.readLong();
+			value.epoch = in.readLong();
+			value.epochPending = in.readBoolean();
+			value.currentPermissions = readNullableString(in);
+			int seenPermissionsCount = in.readInt();
+			for(int i = 0; i < seenPermissionsCount; i++){
+				value.seenPermissions.add(readNullableString(in));
+			}
+			return value;
+		}
+
+		private void writeNullableString(String string, DataOutput out) throws IOException{
+			out.writeBoolean(string != null);
+			if(string != null){
+				out.writeUTF(string);
+			}
+		}
+
+		private String readNullableString(DataInput in) throws IOException{
+			return in.readBoolean() ? in.readUTF() : null;
+		}
+	};
+	
 	/**
 	 * Used to figure out if the artifact has been seen before or not IF
 	 * the decision comes down to permissions
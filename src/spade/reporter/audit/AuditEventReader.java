@@ -24,16 +24,10 @@ import java.io.File;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.PrintWriter;
-import java.util.ArrayList;
 import java.util.HashMap;
-import java.util.HashSet;
-import java.util.List;
 import java.util.Map;
-import java.util.Set;
 import java.util.logging.Level;
 import java.util.logging.Logger;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 
 import spade.core.Settings;
 import spade.utility.CommonFunctions;
@@ -45,6 +39,8 @@ import spade.utility.FileUtility;
  * Assumes that the all of the records for an event are received 
  * contiguously and are not spread out.
  * 
+ * Records are parsed by {@link AuditRecordParser} into a single map per event.
+ * 
  */
 public class AuditEventReader {
 
@@ -134,44 +130,20 @@ public class AuditEventReader {
 	private long startTime, lastReportedTime;
 	private long lastReportedRecordCount, recordCount;
 
-	// Group 1: pid
-	// Group 2: unitid
-	// Group 3: iteration
-	// Group 4: time
-	// Group 5: count
-	private final Pattern pattern_unit = 
-			Pattern.compile("\\(pid=(\\d+) thread_time=(\\d+\\.\\d+) unitid=(\\d+) iteration=(\\d+) time=(\\d+\\.\\d+) count=(\\d+)\\)");
-	
-	// Group 1: key
-	// Group 2: value
-	private final Pattern pattern_key_value = Pattern.compile("(\\w+)=\"*((?<=\")[^\"]+(?=\")|([^\\s]+))\"*");
-
-	// Group 1: node
-	// Group 2: type
-	// Group 3: time
-	// Group 4: recordid
-	private final Pattern pattern_message_start = Pattern.compile("(?:node=(\\S+) )?type=(.+) msg=audit\\(([0-9\\.]+)\\:([0-9]+)\\):\\s*");
-	
-	// Group 1: cwd
-	//cwd is either a quoted string or an unquoted string in which case it is in hex format
-	private final Pattern pattern_cwd = Pattern.compile("cwd=(\".+\"|[a-zA-Z0-9]+)");
-
-	// Group 1: item number
-	// Group 2: name
-	// Group 3: mode
-	// Group 4: nametype
-	//name is either a quoted string or an unquoted string in which case it is in hex format
-//	private static final Pattern pattern_path = Pattern.compile("item=([0-9]*) name=(\".+\"|[a-zA-Z0-9]+|\\(null\\)) .*(?:mode=([0-9]+) ).*nametype=([a-zA-Z]*)");
+	/**
+	 * Parses the records into the map of the current event
+	 */
+	private final AuditRecordParser recordParser = new AuditRecordParser();
 
 	/**
-	 * Buffers all the records for the current event being read
+	 * Key values of the records read so far for the current event. NULL if none.
 	 */
-	private final Set<String> currentEventRecords = new HashSet<String>();
+	private Map<String, String> currentEventData = null;
 	
 	/**
 	 * Keeps track of the current event id being buffered
 	 */
-	private Long currentEventId = -1L;
+	private long currentEventId = -1L;
 
 	/**
 	 * Id of the stream that is read by this class
@@ -299,46 +271,6 @@ public class AuditEventReader {
 		}
 	}
 	
-	/**
-	 * Returns the event id from the audit record.
-	 * 
-	 * Expected format of line -> "type='TYPE' msg=audit('time':'eventid'):"
-	 * 
-	 * @param line audit record
-	 * @return event id. NULL if not found
-	 */
-	private Long getEventId(String line){
-		try{
-			int firstIndexOfColon = line.indexOf(':');
-			int firstIndexOfClosingBracket = line.indexOf(')');
-			return Long.parseLong(line.substring(firstIndexOfColon+1, firstIndexOfClosingBracket));
-		}catch(Exception e){
-			logger.log(Level.WARNING, "Failed to get event id from line: " + line, e);
-			return null;
-		}
-	}
-	
-	/**
-	 * Returns the time from the audit record.
-	 * 
-	 * Expected format of line -> "type='TYPE' msg=audit('time':'eventid'):"
-	 * 
-	 * @param line audit record
-	 * @return time. NULL if not found
-	 */
-	private String getEventTime(String line){
-		try{
-			int firstIndexOfOpeningBracket = line.indexOf('(');
-			int firstIndexOfColon = line.indexOf(':');
-			String timeStr = line.substring(firstIndexOfOpeningBracket+1, firstIndexOfColon);
-			Double.parseDouble(timeStr); // if valid double then continues
-			return timeStr;
-		}catch(Exception e){
-			logger.log(Level.WARNING, "Failed to get time from line: " + line, e);
-			return null;
-		}
-	}
-	
 	/**
 	 * Returns a map of key values for the event that is read from the stream
 	 * 
@@ -370,7 +302,8 @@ public class AuditEventReader {
 		 * event. If there is then don't read from the stream yet and return the 
 		 * pending event. If no pending UBSI event then read from the stream. If non-
 		 * UBSI records being read then read until the event id changes and then return
-		 * the event that is read so far. If UBSI event encountered while there is a
+		 * the event that is read so far. Each record is parsed into the map of its
+		 * event as soon as it is read. If UBSI event encountered while there is a
 		 * non-UBSI event buffered then first return that event (after setting pending-
 		 * UBSIEvent to true and buffering that for the next readEventData call.
 		 * 
@@ -384,20 +317,18 @@ public class AuditEventReader {
 			Map<String, String> eventData = null;
 			
 			if(pendingUBSIEvent){
-				eventData = getEventMap(currentEventRecords);
+				eventData = currentEventData;
+				currentEventData = null;
 				currentEventId = -1L;
 				pendingUBSIEvent = false;
-				currentEventRecords.clear();
 			}else{
 				String line = null;
 				
 				while((line = stream.readLine()) != null){
-					Long eventId = getEventId(line);
-					String eventTime = getEventTime(line);
-					
-					if(eventId == null || eventTime == null){
+					if(!recordParser.parseHeader(line)){
+						logger.log(Level.WARNING, "Failed to get time and event id from line: " + line);
 						if(failfast){
-							throw new Exception("Invalid time '"+eventTime+"' or event-id '"+eventId+"' in record: " + line);
+							throw new Exception("Invalid time or event-id in record: " + line);
 						}else{
 							continue;
 						}
@@ -407,91 +338,54 @@ public class AuditEventReader {
 					if(reportingEnabled){
 						recordCount++;
 					}
-					if(line.contains(RECORD_TYPE_KEY+"="+RECORD_TYPE_PROCTITLE) || 
-							line.contains(RECORD_TYPE_KEY+"="+RECORD_TYPE_UNKNOWN_PREFIX) || 
-							line.contains(RECORD_TYPE_KEY+"="+RECORD_TYPE_EOE)){
+					AuditRecordParser.RecordType recordType = recordParser.getRecordType();
+					if(recordType.isIgnored()){
 						continue; // ignore these records
-					}else{
-						String UBSIRecord = null;
-						if(line.contains(RECORD_TYPE_KEY+"=" + RECORD_TYPE_UBSI_EXIT) ||
-								line.contains(RECORD_TYPE_KEY+"=" + RECORD_TYPE_UBSI_DEP) || 
-								line.contains(RECORD_TYPE_KEY+"=" + RECORD_TYPE_UBSI_ENTRY)){
-							UBSIRecord = line;
-						}
-						
-						if(UBSIRecord == null){
-							
-							if(currentEventId.equals(-1L)){
-								currentEventId = eventId;
-								currentEventRecords.add(line); //add the next event record
-								continue;
-							}else{
-								if(!currentEventId.equals(eventId)){// event id changed hence publish the things in buffer
-									currentEventId = eventId;
-									Set<String> records = new HashSet<String>(currentEventRecords);
-									currentEventRecords.clear();
-									currentEventRecords.add(line); //add the next event record
-									eventData = getEventMap(records);
-									break;
-								}else{ //if they are equal
-									currentEventRecords.add(line);
-									continue;
-								}
-							}
-							
-						}else if(UBSIRecord != null && currentEventRecords.isEmpty()){
-							// No pending event and only UBSI event then return that
-							Set<String> records = new HashSet<String>();
-							records.add(UBSIRecord);
-							currentEventId = -1L;
-							pendingUBSIEvent = false;
-							eventData = getEventMap(records);
-							break;
-						}else if(UBSIRecord != null && !currentEventRecords.isEmpty()){
-							// Has a pending event. add the UBSI record to pending and return the existing event
-							Set<String> records = new HashSet<String>(currentEventRecords);
-							currentEventRecords.clear();
-							currentEventRecords.add(UBSIRecord);
-							currentEventId = -1L;
-							pendingUBSIEvent = true;
-							eventData = getEventMap(records);
+					}else if(!recordType.isUBSI()){
+						long eventId = recordParser.getEventId();
+						if(currentEventData == null){
+							currentEventId = eventId;
+							currentEventData = new HashMap<String, String>();
+							recordParser.parseRecord(currentEventData); //add the next event record
+							continue;
+						}else if(currentEventId != eventId){// event id changed hence publish the event read so far
+							eventData = currentEventData;
+							currentEventId = eventId;
+							currentEventData = new HashMap<String, String>();
+							recordParser.parseRecord(currentEventData); //add the next event record
 							break;
+						}else{ //if they are equal
+							recordParser.parseRecord(currentEventData);
+							continue;
 						}
+					}else if(currentEventData == null){
+						// No pending event and only UBSI event then return that
+						eventData = new HashMap<String, String>();
+						recordParser.parseRecord(eventData);
+						break;
+					}else{
+						// Has a pending event. Buffer the UBSI event and return the existing event
+						eventData = currentEventData;
+						currentEventData = new HashMap<String, String>();
+						recordParser.parseRecord(currentEventData);
+						currentEventId = -1L;
+						pendingUBSIEvent = true;
+						break;
 					}
 				}
 				// EOF
 				if(line == null){
 					EOF = true;
-					if(currentEventRecords.isEmpty()){
-						return null;
-					}else{
-						Set<String> records = new HashSet<String>(currentEventRecords);
-						currentEventRecords.clear();
-						currentEventId = -1L;
-						pendingUBSIEvent = false;
-						return getEventMap(records);
-					}
+					eventData = currentEventData;
+					currentEventData = null;
+					currentEventId = -1L;
+					pendingUBSIEvent = false;
 				}
 			}
 			return eventData;
 		}
 	}
 	
-	/**
-	 * Passes all the records through the function {@link #parseEventLine(String) parseEventLine}
-	 * and returns a map which contains keys and values for all the records
-	 * 
-	 * @param records records of a single event
-	 * @return map of key values
-	 */
-	private Map<String, String> getEventMap(Set<String> records){
-		Map<String, String> eventMap = new HashMap<String, String>();
-		for(String record : records){
-			eventMap.putAll(parseEventLine(record));
-		}
-		return eventMap;
-	}
-
 	public void close(){
 		if(reportingEnabled){
 			printStats();
@@ -511,231 +405,4 @@ public class AuditEventReader {
 			}
 		}
 	}
-
-	/**
-	 * Parses the line to get unit information out of it.
-	 * 
-	 * Expected format for unit information ...'(pid=1 unitid=2 iteration=3 time=4 count=5)'...
-	 * 
-	 * Returns a map which contains the keys in the above-given format but the keys are
-	 * defined as constants in this class.
-	 * 
-	 * @param line audit record with unit information
-	 * @return map of key values for a unit
-	 */
-	private List<Map<String, String>> parseUnitsKeyValues(String line){
-		List<Map<String, String>> unitsKeyValues = new ArrayList<Map<String, String>>();
-		Matcher matcher2 = pattern_unit.matcher(line);
-		while(matcher2.find()){
-			String pid = matcher2.group(1);
-			String thread_start_time = matcher2.group(2);
-			String unitid = matcher2.group(3);
-			String iteration = matcher2.group(4);
-			String time = matcher2.group(5);
-			String count = matcher2.group(6);
-			
-			Map<String, String> unitKeyValues = new HashMap<String, String>();
-			unitKeyValues.put(UNIT_PID, pid);
-			unitKeyValues.put(UNIT_THREAD_START_TIME, thread_start_time);
-			unitKeyValues.put(UNIT_UNITID, unitid);
-			unitKeyValues.put(UNIT_ITERATION, iteration);
-			unitKeyValues.put(UNIT_TIME, time);
-			unitKeyValues.put(UNIT_COUNT, count);
-			unitsKeyValues.add(unitKeyValues);
-		}
-		return unitsKeyValues;
-	}
-	
-	/**
-	 * Creates a map with key values as needed by the Audit reporter from audit records of an event
-	 * 
-	 * @param line event record to parse
-	 * @return map of key values for the argument record
-	 */
-	private Map<String, String> parseEventLine(String line) {
-
-		Map<String, String> auditRecordKeyValues = new HashMap<String, String>();
-		
-		if(line.contains(RECORD_TYPE_KEY+"="+RECORD_TYPE_DAEMON_START)){
-			auditRecordKeyValues.put(RECORD_TYPE_KEY, RECORD_TYPE_DAEMON_START);
-			return auditRecordKeyValues;
-		}
-
-		boolean isUBSIEvent = false;
-		
-		// There will be time and eventid in this one
-		if(line.contains(RECORD_TYPE_KEY+"="+RECORD_TYPE_UBSI_ENTRY)){
-			
-			List<Map<String, String>> unitsKeyValues = parseUnitsKeyValues(line);
-			if(unitsKeyValues.size() != 1){ // there should be only one unit's information
-				logger.log(Level.WARNING, "Malformed record '"+line+"'");
-			}else{
-				// Add all the units key values
-				auditRecordKeyValues.putAll(unitsKeyValues.get(0));
-			}
-						
-			auditRecordKeyValues.put(AuditEventReader.RECORD_TYPE_KEY, RECORD_TYPE_UBSI_ENTRY);
-						
-			isUBSIEvent = true;
-			
-		}else if(line.contains(RECORD_TYPE_KEY+"="+RECORD_TYPE_UBSI_EXIT)){
-			// no time and event id
-			auditRecordKeyValues.put(AuditEventReader.RECORD_TYPE_KEY, RECORD_TYPE_UBSI_EXIT);
-						
-			isUBSIEvent = true;
-			
-		}else if(line.contains(RECORD_TYPE_KEY+"="+RECORD_TYPE_UBSI_DEP)){
-			// no time and event id
-			List<Map<String, String>> unitsKeyValues = parseUnitsKeyValues(line);
-			if(unitsKeyValues.size() == 0){ // there should be only one or more unit's information
-				logger.log(Level.WARNING, "Malformed record '"+line+"'");
-			}else{
-				// Add all the units key values
-				
-				// Last one is the acting unit
-				Map<String, String> actingUnitKeyValues = unitsKeyValues.remove(unitsKeyValues.size() - 1);
-				auditRecordKeyValues.putAll(actingUnitKeyValues);
-				
-				for(int a = 0; a<unitsKeyValues.size(); a++){
-					Map<String, String> unitKeyValues = unitsKeyValues.get(a);
-					for(Map.Entry<String, String> entry : unitKeyValues.entrySet()){
-						auditRecordKeyValues.put(entry.getKey() + a, entry.getValue());
-					}
-				}
-				
-				auditRecordKeyValues.put(UNIT_DEPS_COUNT, String.valueOf(unitsKeyValues.size()));
-								
-			}
-			
-			auditRecordKeyValues.put(AuditEventReader.RECORD_TYPE_KEY, RECORD_TYPE_UBSI_DEP);
-			isUBSIEvent = true;
-			
-		}
-		
-		if(isUBSIEvent){
-			
-			Long UBSIEntryEventId = getEventId(line);
-			String UBSIEntryTime = getEventTime(line);
-			
-			auditRecordKeyValues.put(TIME, UBSIEntryTime);
-			auditRecordKeyValues.put(EVENT_ID, String.valueOf(UBSIEntryEventId));
-			
-			String msgData = line.substring(line.indexOf(" ppid="));
-			auditRecordKeyValues.putAll(CommonFunctions.parseKeyValPairs(msgData));
-			
-		}else{
-		
-			Matcher event_start_matcher = pattern_message_start.matcher(line);
-			if (event_start_matcher.find()) {
-				String type = event_start_matcher.group(2);
-				String time = event_start_matcher.group(3);
-				String eventId = event_start_matcher.group(4);
-				String messageData = line.substring(event_start_matcher.end());
-	
-				auditRecordKeyValues.put(EVENT_ID, eventId);
-				auditRecordKeyValues.put(RECORD_TYPE_KEY, type);
-	
-				if(type.equals(RECORD_TYPE_USER)){
-					int indexOfData = messageData.indexOf(KMODULE_DATA_KEY);
-					if(indexOfData != -1){
-						String data = messageData.substring(indexOfData + KMODULE_DATA_KEY.length() + 1);
-						data = data.substring(1, data.length() - 1);// remove quotes
-						Map<String, String> eventData = CommonFunctions.parseKeyValPairs(data);
-						eventData.put(RECORD_TYPE_KEY, KMODULE_RECORD_TYPE);
-						eventData.put(COMM, CommonFunctions.decodeHex(eventData.get(COMM)));
-						eventData.put(TIME, time);
-						auditRecordKeyValues.putAll(eventData);
-					}
-				}else if (type.equals(RECORD_TYPE_SYSCALL)) {
-					Map<String, String> eventData = CommonFunctions.parseKeyValPairs(messageData);
-					if(messageData.contains(COMM + "=") && !messageData.contains(COMM + "=\"")
-							&& !"(null)".equals(eventData.get(COMM))){ // comm has a hex encoded value
-						// decode and replace value
-						eventData.put(COMM, CommonFunctions.decodeHex(eventData.get(COMM)));
-					}
-					eventData.put(TIME, time);
-					auditRecordKeyValues.putAll(eventData);
-				} else if (type.equals(RECORD_TYPE_CWD)) {
-					Matcher cwd_matcher = pattern_cwd.matcher(messageData);
-					if (cwd_matcher.find()) {
-						String cwd = cwd_matcher.group(1);
-						cwd = cwd.trim();
-						if(cwd.startsWith("\"") && cwd.endsWith("\"")){ //is a string path
-							cwd = cwd.substring(1, cwd.length()-1);
-						}else{ //is in hex format
-							try{
-								cwd = CommonFunctions.decodeHex(cwd);
-							}catch(Exception e){
-								//failed to parse
-							}
-						}                    
-						auditRecordKeyValues.put(CWD, cwd);
-					}
-				} else if (type.equals(RECORD_TYPE_PATH)) {
-					Map<String, String> pathKeyValues = CommonFunctions.parseKeyValPairs(messageData);
-					String itemNumber = pathKeyValues.get("item");
-					String name = pathKeyValues.get("name");
-					String mode = pathKeyValues.get("mode");
-					mode = mode == null ? "0" : mode;
-					String nametype = pathKeyValues.get("nametype");
-					
-					name = name.trim();
-					if(messageData.contains(" name=") && 
-							!messageData.contains(" name=\"") &&
-							!messageData.contains(" name=(null)")){ 
-						//is a hex path if the value of the key name doesn't start with double quotes
-						try{
-							name = CommonFunctions.decodeHex(name);
-						}catch(Exception e){
-							//failed to parse
-						}
-					}
-					
-					auditRecordKeyValues.put(PATH_PREFIX + itemNumber, name);
-					auditRecordKeyValues.put(NAMETYPE_PREFIX + itemNumber, nametype);
-					auditRecordKeyValues.put(MODE_PREFIX + itemNumber, mode);
-				} else if (type.equals(RECORD_TYPE_EXECVE)) {
-					Matcher key_value_matcher = pattern_key_value.matcher(messageData);
-					while (key_value_matcher.find()) {
-						auditRecordKeyValues.put(EXECVE_PREFIX + key_value_matcher.group(1), key_value_matcher.group(2));
-					}
-				} else if (type.equals(RECORD_TYPE_FD_PAIR)) {
-					Matcher key_value_matcher = pattern_key_value.matcher(messageData);
-					while (key_value_matcher.find()) {
-						auditRecordKeyValues.put(key_value_matcher.group(1), key_value_matcher.group(2));
-					}
-				} else if (type.equals(RECORD_TYPE_SOCKETCALL)) {
-					Matcher key_value_matcher = pattern_key_value.matcher(messageData);
-					while (key_value_matcher.find()) {
-						auditRecordKeyValues.put("socketcall_" + key_value_matcher.group(1), key_value_matcher.group(2));
-					}
-				} else if (type.equals(RECORD_TYPE_SOCKADDR)) {
-					Matcher key_value_matcher = pattern_key_value.matcher(messageData);
-					while (key_value_matcher.find()) {
-						auditRecordKeyValues.put(key_value_matcher.group(1), key_value_matcher.group(2));
-					}
-				} else if(type.equals(RECORD_TYPE_NETFILTER_PKT)){
-					auditRecordKeyValues.put(TIME, time); // add time
-					auditRecordKeyValues.put(RECORD_TYPE_KEY, RECORD_TYPE_NETFILTER_PKT); // type
-					// rest of the keys as is below
-					Matcher key_value_matcher = pattern_key_value.matcher(messageData);
-					while (key_value_matcher.find()) {
-						auditRecordKeyValues.put(key_value_matcher.group(1), key_value_matcher.group(2));
-					}
-				} else if (type.equals(RECORD_TYPE_MMAP)){
-					Matcher key_value_matcher = pattern_key_value.matcher(messageData);
-					while (key_value_matcher.find()) {
-						auditRecordKeyValues.put(key_value_matcher.group(1), key_value_matcher.group(2));
-					}
-				} else{
-					             
-				}
-	
-			} else {
-	
-			}
-		}
-
-		return auditRecordKeyValues;
-	}
 }
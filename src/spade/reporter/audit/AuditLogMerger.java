@@ -0,0 +1,191 @@
+/*
+ --------------------------------------------------------------------------------
+ SPADE - Support for Provenance Auditing in Distributed Environments.
+ Copyright (C) 2016 SRI International
+
+ This program is free software: you can redistribute it and/or
+ modify it under the terms of the GNU General Public License as
+ published by the Free Software Foundation, either version 3 of the
+ License, or (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program. If not, see <http://www.gnu.org/licenses/>.
+ --------------------------------------------------------------------------------
+ */
+package spade.reporter.audit;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * This class merges multiple audit logs (e.g. rotated logs) into one stream of
+ * records ordered by time and event id, without sorting the logs beforehand.
+ *
+ * Each log is expected to be mostly sorted. Records of a log are reordered within
+ * a window of the given number of records, and the logs are then merged k-way.
+ * Records of the same event keep their order. Records without a valid header stay
+ * after the record preceding them in their log.
+ *
+ * Memory used is bounded by the window size times the number of logs.
+ */
+public class AuditLogMerger{
+
+	private Logger logger = Logger.getLogger(this.getClass().getName());
+
+	/**
+	 * A record with the key it is ordered by
+	 */
+	private static class Record{
+		private final String line;
+		private final long time, eventId;
+		// Order of the record in its log
+		private final long sequence;
+
+		private Record(String line, long time, long eventId, long sequence){
+			this.line = line;
+			this.time = time;
+			this.eventId = eventId;
+			this.sequence = sequence;
+		}
+	}
+
+	private static final Comparator<Record> RECORD_ORDER = new Comparator<Record>(){
+		@Override
+		public int compare(Record record1, Record record2){
+			int result = Long.compare(record1.time, record2.time);
+			if(result == 0){
+				result = Long.compare(record1.eventId, record2.eventId);
+			}
+			if(result == 0){
+				result = Long.compare(record1.sequence, record2.sequence);
+			}
+			return result;
+		}
+	};
+
+	/**
+	 * A log and the window of records read from it but not returned yet
+	 */
+	private class Log{
+		private final String path;
+		// Position of the log in the list given. Breaks ties between logs.
+		private final int index;
+		private final BufferedReader reader;
+		private final PriorityQueue<Record> window = new PriorityQueue<Record>(windowSize, RECORD_ORDER);
+		private long sequence = 0;
+		private long lastTime = 0, lastEventId = 0;
+		private boolean endOfLog = false;
+
+		private Log(String path, int index) throws IOException{
+			this.path = path;
+			this.index = index;
+			this.reader = new BufferedReader(new FileReader(path));
+		}
+
+		/**
+		 * Reads records until the window is full or the log ends
+		 */
+		private void fillWindow() throws IOException{
+			while(!endOfLog && window.size() < windowSize){
+				String line = reader.readLine();
+				if(line == null){
+					endOfLog = true;
+					reader.close();
+				}else{
+					if(headerParser.parseHeader(line)){
+						lastTime = headerParser.getTimeMillis();
+						lastEventId = headerParser.getEventId();
+					}
+					window.add(new Record(line, lastTime, lastEventId, sequence++));
+				}
+			}
+		}
+	}
+
+	private final int windowSize;
+	private final AuditRecordParser headerParser = new AuditRecordParser();
+	private final List<Log> allLogs = new ArrayList<Log>();
+
+	/**
+	 * Logs that have records left, by their next record
+	 */
+	private final PriorityQueue<Log> logs;
+
+	/**
+	 * Opens all the logs and fills their windows
+	 *
+	 * @param logPaths paths of the logs to merge
+	 * @param windowSize number of records kept per log to reorder them
+	 * @throws IOException if a log cannot be read
+	 */
+	public AuditLogMerger(List<String> logPaths, int windowSize) throws IOException{
+		if(windowSize < 1){
+			throw new IllegalArgumentException("Window size must be at least 1: " + windowSize);
+		}
+		this.windowSize = windowSize;
+		this.logs = new PriorityQueue<Log>(Math.max(1, logPaths.size()), new Comparator<Log>(){
+			@Override
+			public int compare(Log log1, Log log2){
+				int result = RECORD_ORDER.compare(log1.window.peek(), log2.window.peek());
+				return result != 0 ? result : Integer.compare(log1.index, log2.index);
+			}
+		});
+		try{
+			for(String logPath : logPaths){
+				Log log = new Log(logPath, allLogs.size());
+				allLogs.add(log);
+				log.fillWindow();
+				if(!log.window.isEmpty()){
+					logs.add(log);
+				}
+			}
+		}catch(IOException e){
+			close();
+			throw e;
+		}
+	}
+
+	/**
+	 * Returns the next record in the order of time and event id
+	 *
+	 * @return the record. NULL if all logs have been read.
+	 * @throws IOException if a log cannot be read
+	 */
+	public String readRecord() throws IOException{
+		Log log = logs.poll();
+		if(log == null){
+			return null;
+		}
+		Record record = log.window.poll();
+		log.fillWindow();
+		if(!log.window.isEmpty()){
+			logs.add(log);
+		}else{
+			logger.log(Level.INFO, "Finished merging log: " + log.path);
+		}
+		return record.line;
+	}
+
+	public void close(){
+		for(Log log : allLogs){
+			try{
+				log.reader.close();
+			}catch(Exception e){
+				logger.log(Level.WARNING, "Failed to close log: " + log.path, e);
+			}
+		}
+		logs.clear();
+	}
+}
@@ -0,0 +1,506 @@
+/*
+ --------------------------------------------------------------------------------
+ SPADE - Support for Provenance Auditing in Distributed Environments.
+ Copyright (C) 2016 SRI International
+
+ This program is free software: you can redistribute it and/or
+ modify it under the terms of the GNU General Public License as
+ published by the Free Software Foundation, either version 3 of the
+ License, or (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program. If not, see <http://www.gnu.org/licenses/>.
+ --------------------------------------------------------------------------------
+ */
+package spade.reporter.audit;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import spade.utility.CommonFunctions;
+
+/**
+ * Parses audit records into the key values of their event.
+ *
+ * The header of a record is scanned once for its type, time and event id, and
+ * the key value pairs are tokenized in place by their offsets in the record.
+ * Only the values are copied out of the record. Keys are shared between records
+ * through a small cache. Records are added directly to the map of their event.
+ *
+ * Expected format of record -> "[node='NODE' ]type='TYPE' msg=audit('time':'eventid'): 'key=value ...'"
+ *
+ * Not thread-safe. The parser keeps the offsets of the last record passed to
+ * {@link #parseHeader(String) parseHeader}.
+ */
+class AuditRecordParser{
+
+	private Logger logger = Logger.getLogger(this.getClass().getName());
+
+	/**
+	 * Record types, matched against the type in the header of a record
+	 */
+	enum RecordType{
+		CWD(AuditEventReader.RECORD_TYPE_CWD),
+		DAEMON_START(AuditEventReader.RECORD_TYPE_DAEMON_START),
+		EOE(AuditEventReader.RECORD_TYPE_EOE),
+		EXECVE(AuditEventReader.RECORD_TYPE_EXECVE),
+		FD_PAIR(AuditEventReader.RECORD_TYPE_FD_PAIR),
+		MMAP(AuditEventReader.RECORD_TYPE_MMAP),
+		NETFILTER_PKT(AuditEventReader.RECORD_TYPE_NETFILTER_PKT),
+		PATH(AuditEventReader.RECORD_TYPE_PATH),
+		PROCTITLE(AuditEventReader.RECORD_TYPE_PROCTITLE),
+		SOCKADDR(AuditEventReader.RECORD_TYPE_SOCKADDR),
+		SOCKETCALL(AuditEventReader.RECORD_TYPE_SOCKETCALL),
+		SYSCALL(AuditEventReader.RECORD_TYPE_SYSCALL),
+		UBSI_ENTRY(AuditEventReader.RECORD_TYPE_UBSI_ENTRY),
+		UBSI_EXIT(AuditEventReader.RECORD_TYPE_UBSI_EXIT),
+		UBSI_DEP(AuditEventReader.RECORD_TYPE_UBSI_DEP),
+		UNKNOWN(AuditEventReader.RECORD_TYPE_UNKNOWN_PREFIX),
+		USER(AuditEventReader.RECORD_TYPE_USER),
+		OTHER(null);
+
+		private final String token;
+
+		private RecordType(String token){
+			this.token = token;
+		}
+
+		/**
+		 * @return true if the records of this type are not part of any event
+		 */
+		boolean isIgnored(){
+			return this == PROCTITLE || this == UNKNOWN || this == EOE;
+		}
+
+		/**
+		 * @return true if the records of this type are events by themselves
+		 */
+		boolean isUBSI(){
+			return this == UBSI_ENTRY || this == UBSI_EXIT || this == UBSI_DEP;
+		}
+	}
+
+	private static final RecordType[] RECORD_TYPES = RecordType.values();
+
+	private static final String NODE_PREFIX = "node=",
+			TYPE_PREFIX = "type=",
+			MSG_PREFIX = " msg=audit(",
+			HEADER_END = "):",
+			NULL_VALUE = "(null)",
+			SOCKETCALL_PREFIX = "socketcall_",
+			UBSI_DATA_START = " ppid=";
+
+	// Must be a power of two
+	private static final int KEY_CACHE_SIZE = 256;
+
+	// Group 1: pid
+	// Group 2: thread start time
+	// Group 3: unitid
+	// Group 4: iteration
+	// Group 5: time
+	// Group 6: count
+	private final Pattern pattern_unit =
+			Pattern.compile("\\(pid=(\\d+) thread_time=(\\d+\\.\\d+) unitid=(\\d+) iteration=(\\d+) time=(\\d+\\.\\d+) count=(\\d+)\\)");
+
+	private final String[] keyCache = new String[KEY_CACHE_SIZE];
+
+	// Offsets in the record of the last header parsed
+	private String record;
+	private RecordType recordType;
+	private int typeStart, typeEnd, timeStart, timeEnd, eventIdStart, eventIdEnd, dataStart;
+	private long eventId;
+
+	// Offsets in the record of the last key value pair found
+	private int position, limit;
+	private int keyStart, keyEnd, valueStart, valueEnd;
+	private boolean valueQuoted;
+
+	/**
+	 * Finds the type, time and event id of the record
+	 *
+	 * @param record audit record
+	 * @return false if the header of the record is malformed
+	 */
+	boolean parseHeader(String record){
+		this.record = record;
+		int length = record.length();
+		int index = 0;
+		if(record.startsWith(NODE_PREFIX)){
+			index = record.indexOf(' ') + 1;
+		}
+		if(!record.startsWith(TYPE_PREFIX, index)){
+			return false;
+		}
+		typeStart = index + TYPE_PREFIX.length();
+		typeEnd = record.indexOf(MSG_PREFIX, typeStart);
+		if(typeEnd <= typeStart){
+			return false;
+		}
+
+		timeStart = index = typeEnd + MSG_PREFIX.length();
+		while(index < length && (isDigit(record.charAt(index)) || record.charAt(index) == '.')){
+			index++;
+		}
+		timeEnd = index;
+		if(timeEnd == timeStart || index >= length || record.charAt(index) != ':'){
+			return false;
+		}
+
+		eventIdStart = index = index + 1;
+		eventId = 0;
+		while(index < length && isDigit(record.charAt(index))){
+			eventId = eventId * 10 + (record.charAt(index) - '0');
+			index++;
+		}
+		eventIdEnd = index;
+		if(eventIdEnd == eventIdStart || !record.startsWith(HEADER_END, index)){
+			return false;
+		}
+
+		index += HEADER_END.length();
+		while(index < length && Character.isWhitespace(record.charAt(index))){
+			index++;
+		}
+		dataStart = index;
+		recordType = matchRecordType();
+		return true;
+	}
+
+	RecordType getRecordType(){
+		return recordType;
+	}
+
+	long getEventId(){
+		return eventId;
+	}
+
+	/**
+	 * @return time of the record in milliseconds
+	 */
+	long getTimeMillis(){
+		long seconds = 0, millis = 0;
+		int index = timeStart;
+		while(index < timeEnd && record.charAt(index) != '.'){
+			seconds = seconds * 10 + (record.charAt(index++) - '0');
+		}
+		index++; // skip '.'
+		for(int digits = 0; digits < 3; digits++){
+			char c = index < timeEnd ? record.charAt(index++) : '0';
+			millis = millis * 10 + (isDigit(c) ? c - '0' : 0);
+		}
+		return seconds * 1000 + millis;
+	}
+
+	private RecordType matchRecordType(){
+		int typeLength = typeEnd - typeStart;
+		for(RecordType type : RECORD_TYPES){
+			if(type.token != null && record.startsWith(type.token, typeStart)
+					&& (type.token.length() == typeLength || type == RecordType.UNKNOWN)){
+				return type;
+			}
+		}
+		return RecordType.OTHER;
+	}
+
+	/**
+	 * Adds the key values of the record last passed to {@link #parseHeader(String) parseHeader}
+	 * to the map of its event, in the format needed by the Audit reporter
+	 *
+	 * @param eventData map of key values of the event of the record
+	 */
+	void parseRecord(Map<String, String> eventData){
+		switch(recordType){
+			case DAEMON_START:
+				eventData.put(AuditEventReader.RECORD_TYPE_KEY, AuditEventReader.RECORD_TYPE_DAEMON_START);
+				return;
+			case UBSI_ENTRY:
+			case UBSI_EXIT:
+			case UBSI_DEP:
+				parseUnitRecord(eventData);
+				return;
+			default:
+				break;
+		}
+
+		// All records of an event have the same event id
+		if(!eventData.containsKey(AuditEventReader.EVENT_ID)){
+			eventData.put(AuditEventReader.EVENT_ID, record.substring(eventIdStart, eventIdEnd));
+		}
+		eventData.put(AuditEventReader.RECORD_TYPE_KEY,
+				recordType.token != null && recordType != RecordType.UNKNOWN ? recordType.token : record.substring(typeStart, typeEnd));
+
+		switch(recordType){
+			case USER:
+				int indexOfData = record.indexOf(AuditEventReader.KMODULE_DATA_KEY, dataStart);
+				if(indexOfData != -1){
+					// Skip the key, '=' and the opening quote and leave out the closing quote
+					int dataStart = indexOfData + AuditEventReader.KMODULE_DATA_KEY.length() + 2;
+					int dataEnd = record.length() - 1;
+					String comm = null;
+					startPairs(Math.min(dataStart, dataEnd), dataEnd);
+					while(nextPair()){
+						String key = key();
+						String value = value(true);
+						if(AuditEventReader.COMM.equals(key)){
+							comm = value;
+						}
+						eventData.put(key, value);
+					}
+					eventData.put(AuditEventReader.RECORD_TYPE_KEY, AuditEventReader.KMODULE_RECORD_TYPE);
+					eventData.put(AuditEventReader.COMM, CommonFunctions.decodeHex(comm));
+					eventData.put(AuditEventReader.TIME, time());
+				}
+				break;
+			case SYSCALL:
+				startPairs(dataStart, record.length());
+				while(nextPair()){
+					String key = key();
+					String value = value(true);
+					if(!valueQuoted && AuditEventReader.COMM.equals(key) && !NULL_VALUE.equals(value)){
+						// comm has a hex encoded value
+						value = CommonFunctions.decodeHex(value);
+					}
+					eventData.put(key, value);
+				}
+				eventData.put(AuditEventReader.TIME, time());
+				break;
+			case CWD:
+				startPairs(dataStart, record.length());
+				while(nextPair()){
+					if(AuditEventReader.CWD.equals(key())){
+						// cwd is either a quoted string or an unquoted string in which case it is in hex format
+						String cwd = value(false);
+						eventData.put(AuditEventReader.CWD, valueQuoted ? cwd : CommonFunctions.decodeHex(cwd));
+						break;
+					}
+				}
+				break;
+			case PATH:
+				String itemNumber = null, name = null, mode = null, nametype = null;
+				boolean nameQuoted = false;
+				startPairs(dataStart, record.length());
+				while(nextPair()){
+					String key = key();
+					if("item".equals(key)){
+						itemNumber = value(true);
+					}else if("name".equals(key)){
+						name = value(true);
+						nameQuoted = valueQuoted;
+					}else if(AuditEventReader.MODE_PREFIX.equals(key)){
+						mode = value(true);
+					}else if(AuditEventReader.NAMETYPE_PREFIX.equals(key)){
+						nametype = value(true);
+					}
+				}
+				if(name != null && !nameQuoted && !NULL_VALUE.equals(name)){
+					// is a hex path if the value of the key name doesn't start with double quotes
+					name = CommonFunctions.decodeHex(name);
+				}
+				eventData.put(AuditEventReader.PATH_PREFIX + itemNumber, name);
+				eventData.put(AuditEventReader.NAMETYPE_PREFIX + itemNumber, nametype);
+				eventData.put(AuditEventReader.MODE_PREFIX + itemNumber, mode == null ? "0" : mode);
+				break;
+			case EXECVE:
+				putPairs(eventData, AuditEventReader.EXECVE_PREFIX);
+				break;
+			case SOCKETCALL:
+				putPairs(eventData, SOCKETCALL_PREFIX);
+				break;
+			case NETFILTER_PKT:
+				eventData.put(AuditEventReader.TIME, time());
+				putPairs(eventData, null);
+				break;
+			case FD_PAIR:
+			case SOCKADDR:
+			case MMAP:
+				putPairs(eventData, null);
+				break;
+			default:
+				break;
+		}
+	}
+
+	/**
+	 * Adds all the key value pairs of the record as is, with the key prefixed if given
+	 */
+	private void putPairs(Map<String, String> eventData, String keyPrefix){
+		startPairs(dataStart, record.length());
+		while(nextPair()){
+			String key = keyPrefix == null ? key() : keyPrefix + key();
+			eventData.put(key, value(false));
+		}
+	}
+
+	/**
+	 * Adds the key values of UBSI_ENTRY, UBSI_EXIT and UBSI_DEP records which are events
+	 * by themselves
+	 */
+	private void parseUnitRecord(Map<String, String> eventData){
+		if(recordType == RecordType.UBSI_ENTRY){
+			List<Map<String, String>> unitsKeyValues = parseUnitsKeyValues();
+			if(unitsKeyValues.size() != 1){ // there should be only one unit's information
+				logger.log(Level.WARNING, "Malformed record '"+record+"'");
+			}else{
+				// Add all the units key values
+				eventData.putAll(unitsKeyValues.get(0));
+			}
+		}else if(recordType == RecordType.UBSI_DEP){
+			List<Map<String, String>> unitsKeyValues = parseUnitsKeyValues();
+			if(unitsKeyValues.size() == 0){ // there should be only one or more unit's information
+				logger.log(Level.WARNING, "Malformed record '"+record+"'");
+			}else{
+				// Last one is the acting unit
+				Map<String, String> actingUnitKeyValues = unitsKeyValues.remove(unitsKeyValues.size() - 1);
+				eventData.putAll(actingUnitKeyValues);
+
+				for(int a = 0; a<unitsKeyValues.size(); a++){
+					Map<String, String> unitKeyValues = unitsKeyValues.get(a);
+					for(Map.Entry<String, String> entry : unitKeyValues.entrySet()){
+						eventData.put(entry.getKey() + a, entry.getValue());
+					}
+				}
+
+				eventData.put(AuditEventReader.UNIT_DEPS_COUNT, String.valueOf(unitsKeyValues.size()));
+			}
+		}
+
+		eventData.put(AuditEventReader.RECORD_TYPE_KEY, recordType.token);
+		eventData.put(AuditEventReader.TIME, time());
+		eventData.put(AuditEventReader.EVENT_ID, String.valueOf(eventId));
+
+		int indexOfData = record.indexOf(UBSI_DATA_START, eventIdEnd);
+		if(indexOfData == -1){
+			logger.log(Level.WARNING, "Malformed record '"+record+"'");
+		}else{
+			startPairs(indexOfData, record.length());
+			while(nextPair()){
+				eventData.put(key(), value(true));
+			}
+		}
+	}
+
+	/**
+	 * Parses the record to get unit information out of it.
+	 *
+	 * Expected format for unit information ...'(pid=1 thread_time=1.0 unitid=2 iteration=3 time=4.0 count=5)'...
+	 *
+	 * @return list of maps of key values for the units in the record
+	 */
+	private List<Map<String, String>> parseUnitsKeyValues(){
+		List<Map<String, String>> unitsKeyValues = new ArrayList<Map<String, String>>();
+		Matcher matcher = pattern_unit.matcher(record);
+		while(matcher.find()){
+			Map<String, String> unitKeyValues = new HashMap<String, String>();
+			unitKeyValues.put(AuditEventReader.UNIT_PID, matcher.group(1));
+			unitKeyValues.put(AuditEventReader.UNIT_THREAD_START_TIME, matcher.group(2));
+			unitKeyValues.put(AuditEventReader.UNIT_UNITID, matcher.group(3));
+			unitKeyValues.put(AuditEventReader.UNIT_ITERATION, matcher.group(4));
+			unitKeyValues.put(AuditEventReader.UNIT_TIME, matcher.group(5));
+			unitKeyValues.put(AuditEventReader.UNIT_COUNT, matcher.group(6));
+			unitsKeyValues.add(unitKeyValues);
+		}
+		return unitsKeyValues;
+	}
+
+	private String time(){
+		return record.substring(timeStart, timeEnd);
+	}
+
+	private void startPairs(int start, int end){
+		position = start;
+		limit = end;
+	}
+
+	/**
+	 * Finds the next pair 'key=value' or 'key="value"' where key is made of word characters.
+	 * A quoted value extends to the closing quote and an unquoted value to the next whitespace.
+	 *
+	 * @return false if there are no more pairs
+	 */
+	private boolean nextPair(){
+		while(position < limit){
+			if(!isWordCharacter(record.charAt(position))){
+				position++;
+				continue;
+			}
+			int start = position;
+			while(position < limit && isWordCharacter(record.charAt(position))){
+				position++;
+			}
+			if(position + 1 >= limit || record.charAt(position) != '='){
+				continue;
+			}
+			int equals = position;
+			if(record.charAt(equals + 1) == '"'){
+				int closingQuote = record.indexOf('"', equals + 2);
+				if(closingQuote != -1 && closingQuote < limit){
+					setPair(start, equals, equals + 2, closingQuote, true);
+					position = closingQuote + 1;
+					return true;
+				}
+			}
+			int end = equals + 1;
+			while(end < limit && !Character.isWhitespace(record.charAt(end))){
+				end++;
+			}
+			if(end == equals + 1){
+				position = end;
+				continue;
+			}
+			setPair(start, equals, equals + 1, end, false);
+			position = end;
+			return true;
+		}
+		return false;
+	}
+
+	private void setPair(int keyStart, int keyEnd, int valueStart, int valueEnd, boolean valueQuoted){
+		this.keyStart = keyStart;
+		this.keyEnd = keyEnd;
+		this.valueStart = valueStart;
+		this.valueEnd = valueEnd;
+		this.valueQuoted = valueQuoted;
+	}
+
+	/**
+	 * Returns the key of the last pair found, from the cache if the same key was seen before
+	 */
+	private String key(){
+		int length = keyEnd - keyStart;
+		int hash = 0;
+		for(int i = keyStart; i < keyEnd; i++){
+			hash = 31 * hash + record.charAt(i);
+		}
+		int slot = (hash ^ (hash >>> 16)) & (KEY_CACHE_SIZE - 1);
+		String key = keyCache[slot];
+		if(key == null || key.length() != length || !record.regionMatches(keyStart, key, 0, length)){
+			key = record.substring(keyStart, keyEnd);
+			keyCache[slot] = key;
+		}
+		return key;
+	}
+
+	private String value(boolean trim){
+		String value = record.substring(valueStart, valueEnd);
+		return trim ? value.trim() : value;
+	}
+
+	private static boolean isDigit(char c){
+		return c >= '0' && c <= '9';
+	}
+
+	private static boolean isWordCharacter(char c){
+		return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || isDigit(c) || c == '_';
+	}
+}
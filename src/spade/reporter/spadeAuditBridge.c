@@ -528,7 +528,10 @@ int main(int argc, char *argv[]) {
 		if(socketRead) socket_read(programName);
 		else if(fileRead) read_file_path();
 		else if(dirRead) dir_read();
-		else read_log(stdin, "stdin");
+		else {
+				read_log(stdin, "stdin");
+				UBSI_buffer_flush();
+		}
 
 		return 0;
 }
@@ -1,8 +1,5 @@
 package spade.storage;
 
-import com.sleepycat.bind.EntryBinding;
-import com.sleepycat.bind.serial.SerialBinding;
-import com.sleepycat.bind.serial.StoredClassCatalog;
 import com.sleepycat.je.Database;
 import com.sleepycat.je.DatabaseConfig;
 import com.sleepycat.je.DatabaseEntry;
@@ -10,25 +7,33 @@ import com.sleepycat.je.DatabaseException;
 import com.sleepycat.je.Environment;
 import com.sleepycat.je.EnvironmentConfig;
 import com.sleepycat.je.LockMode;
+import com.sleepycat.je.OperationStatus;
 import spade.core.AbstractEdge;
 import spade.core.AbstractStorage;
 import spade.core.AbstractVertex;
+import spade.core.Edge;
 import spade.core.Graph;
+import spade.core.Vertex;
+import spade.storage.berkeleydb.AnnotationsBinding;
+import spade.storage.berkeleydb.HashDigest;
 
 import java.io.File;
-import java.io.UnsupportedEncodingException;
 import java.sql.ResultSet;
+import java.util.List;
 import java.util.logging.Level;
 import java.util.logging.Logger;
-
-
+/**
+ * Stores vertices keyed by the raw 16-byte digest of their hash, and edges keyed by
+ * the digests of their child and parent vertices. Only the annotations are stored,
+ * with a tuple binding, since the end points of an edge are given by its key.
+ */
 public class BerkeleyDB extends AbstractStorage
 {
     private static Environment myDbEnvironment = null;
-    private static Database myDatabase = null;
     private static Database vertexDatabase = null;
     private static Database edgeDatabase = null;
     private static String directoryPath = null;
+    private final AnnotationsBinding annotationsBinding = new AnnotationsBinding();
 
     /**
      * This method is invoked by the kernel to initialize the storage.
@@ -42,7 +47,8 @@ public class BerkeleyDB extends AbstractStorage
     {
         directoryPath = arguments;
         myDbEnvironment = null;
-        myDatabase = null;
+        vertexDatabase = null;
+        edgeDatabase = null;
         try
         {
             EnvironmentConfig envConfig = new EnvironmentConfig();
@@ -52,11 +58,8 @@ public class BerkeleyDB extends AbstractStorage
 
             DatabaseConfig dbConfig = new DatabaseConfig();
             dbConfig.setAllowCreate(true);
-            myDatabase = myDbEnvironment.openDatabase(null, "spade_berkeleyDb", dbConfig);
-
-            // databases to store class information
-            vertexDatabase = myDbEnvironment.openDatabase(null, "spade_vertexDb", dbConfig);
-            edgeDatabase = myDbEnvironment.openDatabase(null, "spade_edgeDb", dbConfig);
+            vertexDatabase = myDbEnvironment.openDatabase(null, "spade_vertices", dbConfig);
+            edgeDatabase = myDbEnvironment.openDatabase(null, "spade_edges", dbConfig);
 
             return true;
 
@@ -79,8 +82,6 @@ public class BerkeleyDB extends AbstractStorage
     {
         try
         {
-            if (myDatabase != null)
-                myDatabase.close();
             if (vertexDatabase != null)
                 vertexDatabase.close();
             if(edgeDatabase != null)
@@ -108,24 +109,24 @@ public class BerkeleyDB extends AbstractStorage
     @Override
     public AbstractEdge getEdge(String childVertexHash, String parentVertexHash)
     {
-        String hash = childVertexHash + parentVertexHash;
         AbstractEdge edge = null;
         try
         {
-            // Instantiate class catalog
-            StoredClassCatalog vertexCatalog = new StoredClassCatalog(vertexDatabase);
-            // Create the binding
-            EntryBinding vertexBinding = new SerialBinding<>(vertexCatalog, AbstractEdge.class);
-            // Create DatabaseEntry for the key
-            DatabaseEntry key = new DatabaseEntry(hash.getBytes("UTF-8"));
-            // Create the DatabaseEntry for the data.
+            DatabaseEntry key = new DatabaseEntry(edgeKey(HashDigest.fromHex(childVertexHash),
+                    HashDigest.fromHex(parentVertexHash)));
             DatabaseEntry data = new DatabaseEntry();
-            myDatabase.get(null, key, data, LockMode.DEFAULT);
-            // Recreate the MyData object from the retrieved DatabaseEntry using
-            // the EntryBinding created above
-            edge = (AbstractEdge) vertexBinding.entryToObject(data);
+            if(edgeDatabase.get(null, key, data, LockMode.DEFAULT) == OperationStatus.SUCCESS)
+            {
+                AbstractVertex childVertex = getVertex(childVertexHash);
+                AbstractVertex parentVertex = getVertex(parentVertexHash);
+                if(childVertex != null && parentVertex != null)
+                {
+                    edge = new Edge(childVertex, parentVertex);
+                    edge.addAnnotations(annotationsBinding.entryToObject(data));
+                }
+            }
         }
-        catch (UnsupportedEncodingException ex)
+        catch (IllegalArgumentException ex)
         {
             Logger.getLogger(BerkeleyDB.class.getName()).log(Level.WARNING, null, ex);
         }
@@ -146,20 +147,15 @@ public class BerkeleyDB extends AbstractStorage
         AbstractVertex vertex = null;
         try
         {
-            // Instantiate class catalog
-            StoredClassCatalog vertexCatalog = new StoredClassCatalog(vertexDatabase);
-            // Create the binding
-            EntryBinding vertexBinding = new SerialBinding<>(vertexCatalog, AbstractVertex.class);
-            // Create DatabaseEntry for the key
-            DatabaseEntry key = new DatabaseEntry(vertexHash.getBytes("UTF-8"));
-            // Create the DatabaseEntry for the data.
+            DatabaseEntry key = new DatabaseEntry(HashDigest.fromHex(vertexHash));
             DatabaseEntry data = new DatabaseEntry();
-            myDatabase.get(null, key, data, LockMode.DEFAULT);
-            // Recreate the MyData object from the retrieved DatabaseEntry using
-            // the EntryBinding created above
-            vertex = (AbstractVertex) vertexBinding.entryToObject(data);
+            if(vertexDatabase.get(null, key, data, LockMode.DEFAULT) == OperationStatus.SUCCESS)
+            {
+                vertex = new Vertex();
+                vertex.addAnnotations(annotationsBinding.entryToObject(data));
+            }
         }
-        catch (UnsupportedEncodingException ex)
+        catch (IllegalArgumentException ex)
         {
             Logger.getLogger(BerkeleyDB.class.getName()).log(Level.WARNING, null, ex);
         }
@@ -204,29 +200,8 @@ public class BerkeleyDB extends AbstractStorage
     @Override
     public boolean putEdge(AbstractEdge incomingEdge)
     {
-        String hash = incomingEdge.getChildVertex().bigHashCode() + incomingEdge.getParentVertex().bigHashCode();
-        try
-        {
-            // Instantiate class catalog
-            StoredClassCatalog edgeCatalog = new StoredClassCatalog(edgeDatabase);
-            // Create the binding
-            EntryBinding<AbstractEdge> edgeBinding = new SerialBinding<>(edgeCatalog, AbstractEdge.class);
-            // Create DatabaseEntry for the key
-            DatabaseEntry key = new DatabaseEntry(hash.getBytes("UTF-8"));
-            // Create the DatabaseEntry for the data.
-            DatabaseEntry data = new DatabaseEntry();
-            edgeBinding.objectToEntry(incomingEdge, data);
-            // Insert it in database
-            myDatabase.put(null, key, data);
-
-            return true;
-        }
-        catch (UnsupportedEncodingException ex)
-        {
-            Logger.getLogger(BerkeleyDB.class.getName()).log(Level.WARNING, null, ex);
-        }
-
-        return false;
+        putEdge(incomingEdge, new DatabaseEntry());
+        return true;
     }
 
     /**
@@ -240,28 +215,56 @@ public class BerkeleyDB extends AbstractStorage
     @Override
     public boolean putVertex(AbstractVertex incomingVertex)
     {
-        try
-        {
-            // Instantiate class catalog
-            StoredClassCatalog vertexCatalog = new StoredClassCatalog(vertexDatabase);
-            // Create the binding
-            EntryBinding<AbstractVertex> vertexBinding = new SerialBinding<>(vertexCatalog, AbstractVertex.class);
-            // Create DatabaseEntry for the key
-            DatabaseEntry key = new DatabaseEntry(incomingVertex.bigHashCode().getBytes("UTF-8"));
-            // Create the DatabaseEntry for the data.
-            DatabaseEntry data = new DatabaseEntry();
-            vertexBinding.objectToEntry(incomingVertex, data);
-            // Insert it in database
-            myDatabase.put(null, key, data);
+        putVertex(incomingVertex, new DatabaseEntry());
+        return true;
+    }
 
-            return true;
+    /**
+     * This function inserts a batch of vertices and edges, reusing a single
+     * data entry for the whole batch.
+     *
+     * @param vertices vertices to insert into the storage
+     * @param edges edges to insert into the storage
+     * @return returns true if the batch was handled by the storage.
+     */
+    @Override
+    public boolean putBatch(List<AbstractVertex> vertices, List<AbstractEdge> edges)
+    {
+        DatabaseEntry data = new DatabaseEntry();
+        for(AbstractVertex vertex : vertices)
+        {
+            putVertex(vertex, data);
         }
-        catch (UnsupportedEncodingException ex)
+        incrementVertexCount(vertices.size());
+        for(AbstractEdge edge : edges)
         {
-            Logger.getLogger(BerkeleyDB.class.getName()).log(Level.WARNING, null, ex);
+            putEdge(edge, data);
         }
+        incrementEdgeCount(edges.size());
 
-        return false;
+        return true;
+    }
+
+    private void putVertex(AbstractVertex vertex, DatabaseEntry data)
+    {
+        annotationsBinding.objectToEntry(vertex.getAnnotations(), data);
+        vertexDatabase.put(null, new DatabaseEntry(vertex.bigHashCodeBytes()), data);
+    }
+
+    private void putEdge(AbstractEdge edge, DatabaseEntry data)
+    {
+        byte[] key = edgeKey(edge.getChildVertex().bigHashCodeBytes(), edge.getParentVertex().bigHashCodeBytes());
+        annotationsBinding.objectToEntry(edge.getAnnotations(), data);
+        edgeDatabase.put(null, new DatabaseEntry(key), data);
+    }
+
+    // Digest of the child vertex followed by the digest of the parent vertex
+    private static byte[] edgeKey(byte[] childHash, byte[] parentHash)
+    {
+        byte[] key = new byte[childHash.length + parentHash.length];
+        System.arraycopy(childHash, 0, key, 0, childHash.length);
+        System.arraycopy(parentHash, 0, key, childHash.length, parentHash.length);
+        return key;
     }
 
     @Override
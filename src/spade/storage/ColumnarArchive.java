@@ -0,0 +1,431 @@
+/*
+ --------------------------------------------------------------------------------
+ SPADE - Support for Provenance Auditing in Distributed Environments.
+ Copyright (C) 2016 SRI International
+
+ This program is free software: you can redistribute it and/or
+ modify it under the terms of the GNU General Public License as
+ published by the Free Software Foundation, either version 3 of the
+ License, or (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program. If not, see <http://www.gnu.org/licenses/>.
+ --------------------------------------------------------------------------------
+ */
+package spade.storage;
+
+import org.apache.commons.codec.binary.Hex;
+import spade.core.AbstractEdge;
+import spade.core.AbstractStorage;
+import spade.core.AbstractVertex;
+import spade.core.Edge;
+import spade.core.Graph;
+import spade.core.Vertex;
+import spade.storage.archive.Segment;
+import spade.storage.archive.SegmentWriter;
+import spade.utility.CommonFunctions;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Long-term archive of provenance in compressed columnar segments. Elements are
+ * buffered in memory and written out as a new segment when the buffer holds the
+ * configured number of elements, or when an edge is later than the configured
+ * number of seconds after the first time in the buffer. Written segments are never
+ * changed and are memory-mapped for queries. Elements are only visible to queries
+ * once their segment has been written. The dictionaries and column blocks are
+ * only kept decompressed for the given number of most recently read segments.
+ *
+ * Usage: add storage ColumnarArchive directory=path/to/archive [segmentSeconds=3600] [segmentElements=1000000]
+ * [cachedSegments=16]
+ */
+public class ColumnarArchive extends AbstractStorage
+{
+    private static final Logger logger = Logger.getLogger(ColumnarArchive.class.getName());
+    private static final String SEGMENT_PREFIX = "segment-";
+    private static final String SEGMENT_SUFFIX = ".seg";
+    private static final String TIME_ANNOTATION = "time";
+    private static final long DEFAULT_SEGMENT_SECONDS = 3600;
+    private static final int DEFAULT_SEGMENT_ELEMENTS = 1000000;
+    private static final int DEFAULT_CACHED_SEGMENTS = 16;
+
+    private File directory;
+    private long segmentSeconds = DEFAULT_SEGMENT_SECONDS;
+    private int segmentElements = DEFAULT_SEGMENT_ELEMENTS;
+    private int maxCachedSegments = DEFAULT_CACHED_SEGMENTS;
+    private SegmentWriter currentSegment = new SegmentWriter();
+    private int nextSegmentNumber = 0;
+    // oldest first
+    private final List<Segment> segments = new ArrayList<>();
+    // segments with decompressed caches, least recently read first
+    private final Set<Segment> cachedSegments = new LinkedHashSet<>();
+
+    @Override
+    public boolean initialize(String arguments)
+    {
+        Map<String, String> argumentsMap = CommonFunctions.parseKeyValPairs(arguments);
+        String directoryPath = argumentsMap.get("directory");
+        if(directoryPath == null)
+        {
+            logger.log(Level.SEVERE, "Must specify 'directory' of the archive");
+            return false;
+        }
+        String segmentSecondsArgument = argumentsMap.get("segmentSeconds");
+        if(segmentSecondsArgument != null)
+        {
+            Long parsedSegmentSeconds = CommonFunctions.parseLong(segmentSecondsArgument, null);
+            if(parsedSegmentSeconds == null || parsedSegmentSeconds < 1)
+            {
+                logger.log(Level.SEVERE, "Invalid value for 'segmentSeconds': " + segmentSecondsArgument);
+                return false;
+            }
+            segmentSeconds = parsedSegmentSeconds;
+        }
+        String segmentElementsArgument = argumentsMap.get("segmentElements");
+        if(segmentElementsArgument != null)
+        {
+            Integer parsedSegmentElements = CommonFunctions.parseInt(segmentElementsArgument, null);
+            if(parsedSegmentElements == null || parsedSegmentElements < 1)
+            {
+                logger.log(Level.SEVERE, "Invalid value for 'segmentElements': " + segmentElementsArgument);
+                return false;
+            }
+            segmentElements = parsedSegmentElements;
+        }
+        String cachedSegmentsArgument = argumentsMap.get("cachedSegments");
+        if(cachedSegmentsArgument != null)
+        {
+            Integer parsedCachedSegments = CommonFunctions.parseInt(cachedSegmentsArgument, null);
+            if(parsedCachedSegments == null || parsedCachedSegments < 1)
+            {
+                logger.log(Level.SEVERE, "Invalid value for 'cachedSegments': " + cachedSegmentsArgument);
+                return false;
+            }
+            maxCachedSegments = parsedCachedSegments;
+        }
+
+        directory = new File(directoryPath);
+        if(!directory.isDirectory() && !directory.mkdirs())
+        {
+            logger.log(Level.SEVERE, "Unable to create directory: " + directoryPath);
+            return false;
+        }
+        File[] files = directory.listFiles();
+        Arrays.sort(files);
+        for(File file : files)
+        {
+            String name = file.getName();
+            if(name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX))
+            {
+                try
+                {
+                    segments.add(new Segment(file));
+                    int number = Integer.parseInt(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+                    nextSegmentNumber = Math.max(nextSegmentNumber, number + 1);
+                }
+                catch(Exception exception)
+                {
+                    logger.log(Level.WARNING, "Skipping unreadable segment: " + file, exception);
+                }
+            }
+        }
+        logger.log(Level.INFO, "Opened archive with " + segments.size() + " segments in " + directoryPath);
+        return true;
+    }
+
+    @Override
+    public boolean shutdown()
+    {
+        boolean success = writeSegment();
+        for(Segment segment : segments)
+        {
+            segment.close();
+        }
+        segments.clear();
+        cachedSegments.clear();
+        return success;
+    }
+
+    /**
+     * Marks the segment as most recently read, releasing the caches of the least
+     * recently read segment if too many segments have caches.
+     *
+     * @return the segment
+     */
+    private Segment use(Segment segment)
+    {
+        if(!cachedSegments.remove(segment) && cachedSegments.size() >= maxCachedSegments)
+        {
+            Iterator<Segment> iterator = cachedSegments.iterator();
+            Segment leastRecentlyRead = iterator.next();
+            iterator.remove();
+            leastRecentlyRead.releaseCaches();
+        }
+        cachedSegments.add(segment);
+        return segment;
+    }
+
+    @Override
+    public synchronized boolean putVertex(AbstractVertex incomingVertex)
+    {
+        currentSegment.addVertex(incomingVertex);
+        if(currentSegment.size() >= segmentElements)
+        {
+            return writeSegment();
+        }
+        return true;
+    }
+
+    @Override
+    public synchronized boolean putEdge(AbstractEdge incomingEdge)
+    {
+        String time = incomingEdge.getAnnotation(TIME_ANNOTATION);
+        if(time != null && currentSegment.size() > 0)
+        {
+            try
+            {
+                if(Double.parseDouble(time) >= currentSegment.getMinTime() + segmentSeconds)
+                {
+                    writeSegment();
+                }
+            }
+            catch(NumberFormatException exception)
+            {
+                // kept in the current segment
+            }
+        }
+        currentSegment.addEdge(incomingEdge);
+        if(currentSegment.size() >= segmentElements)
+        {
+            return writeSegment();
+        }
+        return true;
+    }
+
+    /**
+     * Writes out the buffered elements as a new segment and opens it for queries
+     */
+    private synchronized boolean writeSegment()
+    {
+        if(currentSegment.size() == 0)
+        {
+            return true;
+        }
+        File file = new File(directory, String.format("%s%08d%s", SEGMENT_PREFIX, nextSegmentNumber, SEGMENT_SUFFIX));
+        try
+        {
+            currentSegment.write(file);
+            nextSegmentNumber++;
+            segments.add(new Segment(file));
+            return true;
+        }
+        catch(Exception exception)
+        {
+            logger.log(Level.SEVERE, "Unable to write segment: " + file, exception);
+            return false;
+        }
+        finally
+        {
+            currentSegment = new SegmentWriter();
+        }
+    }
+
+    @Override
+    public synchronized AbstractVertex getVertex(String vertexHash)
+    {
+        try
+        {
+            byte[] hash = Hex.decodeHex(vertexHash.toCharArray());
+            for(int i = segments.size() - 1; i >= 0; i--)
+            {
+                Segment segment = segments.get(i);
+                int row = segment.findVertex(hash);
+                if(row >= 0)
+                {
+                    AbstractVertex vertex = new Vertex();
+                    vertex.addAnnotations(use(segment).getVertexAnnotations(row));
+                    return vertex;
+                }
+            }
+        }
+        catch(Exception exception)
+        {
+            logger.log(Level.SEVERE, "Unable to get vertex: " + vertexHash, exception);
+        }
+        return null;
+    }
+
+    @Override
+    public synchronized AbstractEdge getEdge(String childVertexHash, String parentVertexHash)
+    {
+        try
+        {
+            byte[] childHash = Hex.decodeHex(childVertexHash.toCharArray());
+            byte[] parentHash = Hex.decodeHex(parentVertexHash.toCharArray());
+            for(int i = segments.size() - 1; i >= 0; i--)
+            {
+                Segment segment = segments.get(i);
+                for(int row : segment.findEdgesWithChild(childHash))
+                {
+                    if(Arrays.equals(segment.getEdgeParentHash(row), parentHash))
+                    {
+                        return createEdge(segment, row);
+                    }
+                }
+            }
+        }
+        catch(Exception exception)
+        {
+            logger.log(Level.SEVERE, "Unable to get edge: " + childVertexHash + " -> " + parentVertexHash, exception);
+        }
+        return null;
+    }
+
+    @Override
+    public synchronized Graph getChildren(String parentHash)
+    {
+        try
+        {
+            byte[] hash = Hex.decodeHex(parentHash.toCharArray());
+            Graph children = new Graph();
+            for(Segment segment : segments)
+            {
+                for(int row : segment.findEdgesWithParent(hash))
+                {
+                    AbstractEdge edge = createEdge(segment, row);
+                    if(edge != null)
+                    {
+                        children.putVertex(edge.getChildVertex());
+                        children.putEdge(edge);
+                    }
+                }
+            }
+            return children;
+        }
+        catch(Exception exception)
+        {
+            logger.log(Level.SEVERE, "Unable to get children of: " + parentHash, exception);
+            return null;
+        }
+    }
+
+    @Override
+    public synchronized Graph getParents(String childVertexHash)
+    {
+        try
+        {
+            byte[] hash = Hex.decodeHex(childVertexHash.toCharArray());
+            Graph parents = new Graph();
+            for(Segment segment : segments)
+            {
+                for(int row : segment.findEdgesWithChild(hash))
+                {
+                    AbstractEdge edge = createEdge(segment, row);
+                    if(edge != null)
+                    {
+                        parents.putVertex(edge.getParentVertex());
+                        parents.putEdge(edge);
+                    }
+                }
+            }
+            return parents;
+        }
+        catch(Exception exception)
+        {
+            logger.log(Level.SEVERE, "Unable to get parents of: " + childVertexHash, exception);
+            return null;
+        }
+    }
+
+    /**
+     * Returns the edges with a time in the given range and their end points. Segments
+     * whose time range does not overlap are skipped without being read.
+     *
+     * @param startTime start of the range, inclusive
+     * @param endTime end of the range, inclusive
+     * @return graph of the edges OR NULL
+     */
+    public synchronized Graph getEdgesInTimeRange(double startTime, double endTime)
+    {
+        try
+        {
+            Graph result = new Graph();
+            for(Segment segment : segments)
+            {
+                if(!segment.overlaps(startTime, endTime))
+                {
+                    continue;
+                }
+                use(segment);
+                for(int row = 0; row < segment.getEdgeCount(); row++)
+                {
+                    String time = segment.getEdgeAnnotation(row, TIME_ANNOTATION);
+                    if(time == null)
+                    {
+                        continue;
+                    }
+                    double value;
+                    try
+                    {
+                        value = Double.parseDouble(time);
+                    }
+                    catch(NumberFormatException exception)
+                    {
+                        continue;
+                    }
+                    if(value >= startTime && value <= endTime)
+                    {
+                        AbstractEdge edge = createEdge(segment, row);
+                        if(edge != null)
+                        {
+                            result.putVertex(edge.getChildVertex());
+                            result.putVertex(edge.getParentVertex());
+                            result.putEdge(edge);
+                        }
+                    }
+                }
+            }
+            return result;
+        }
+        catch(Exception exception)
+        {
+            logger.log(Level.SEVERE, "Unable to get edges between " + startTime + " and " + endTime, exception);
+            return null;
+        }
+    }
+
+    // Returns null if an end point of the edge is not in the archive
+    private AbstractEdge createEdge(Segment segment, int row) throws Exception
+    {
+        AbstractVertex childVertex = getVertex(Hex.encodeHexString(segment.getEdgeChildHash(row)));
+        AbstractVertex parentVertex = getVertex(Hex.encodeHexString(segment.getEdgeParentHash(row)));
+        if(childVertex == null || parentVertex == null)
+        {
+            return null;
+        }
+        AbstractEdge edge = new Edge(childVertex, parentVertex);
+        edge.addAnnotations(use(segment).getEdgeAnnotations(row));
+        return edge;
+    }
+
+    @Override
+    public Object executeQuery(String query)
+    {
+        logger.log(Level.WARNING, "Queries are not supported by the archive");
+        return null;
+    }
+}
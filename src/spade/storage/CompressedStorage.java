@@ -15,21 +15,30 @@ import spade.core.AbstractEdge;
 import spade.core.AbstractStorage;
 import spade.core.AbstractVertex;
 import spade.core.Graph;
+import spade.utility.SortedIntSet;
 
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.PrintWriter;
 import java.io.UnsupportedEncodingException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
 import java.util.HashMap;
-import java.util.HashSet;
 import java.util.LinkedList;
+import java.util.List;
 import java.util.Map;
 import java.util.Scanner;
 import java.util.Set;
-import java.util.SortedSet;
 import java.util.StringTokenizer;
+import java.util.TreeMap;
 import java.util.TreeSet;
 import java.util.Vector;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.zip.DataFormatException;
@@ -47,18 +56,54 @@ public class CompressedStorage extends AbstractStorage {
 	static Integer nextVertexID;
 	public static Integer W;
 	public static Integer L;
-	static Deflater compresser;
+	/**
+	 * Preset dictionary for the annotations, made of the OPM keys and values most
+	 * common in provenance reported by SPADE. Annotations of a single element are
+	 * short, so most of their compression comes from matching this dictionary.
+	 * The most frequent strings are at the end, where deflate finds them cheapest.
+	 */
+	private static final byte[] ANNOTATION_DICTIONARY = (
+			"host name:,host type:desktop,host operating system:,interface name:,interface mac address:," +
+			"interface ip addresses:,subtype:unix socket,subtype:named pipe,subtype:unnamed pipe," +
+			"subtype:character device,subtype:block device,subtype:link,subtype:directory,subtype:memory," +
+			"memory address:,protection:,subtype:network socket,remote address:,remote port:,local address:," +
+			"local port:,protocol:,read fd:,write fd:,fd:,tgid:,unit:,iteration:,count:,seen time:,flags:,mode:," +
+			"offset:,operation:unlink,operation:rename,operation:link,operation:chmod,operation:truncate," +
+			"operation:mmap,operation:mprotect,operation:connect,operation:accept,operation:send," +
+			"operation:recv,operation:setuid,operation:update,operation:load,operation:exit," +
+			"operation:execve,operation:clone,operation:fork,operation:create,operation:open," +
+			"operation:write,operation:read,type:WasDerivedFrom,type:WasControlledBy,type:Agent," +
+			"type:WasTriggeredBy,type:WasGeneratedBy,type:Used,name:,cwd:,command line:,start time:," +
+			"ppid:,pid:,uid:0,euid:0,gid:0,egid:0,suid:0,sgid:0,fsuid:0,fsgid:0,type:Process," +
+			"permissions:,epoch:0,version:0,path:/,subtype:file,type:Artifact,size:,event id:," +
+			"source:syscall,time:").getBytes(StandardCharsets.UTF_8);
+	/**
+	 * Codecs and their output buffer are confined to the thread using them, so that
+	 * annotations can be encoded and decoded from multiple threads, and native zlib
+	 * state is not allocated on every call.
+	 */
+	private static final ThreadLocal<Deflater> deflaters = ThreadLocal.withInitial(() -> new Deflater(Deflater.BEST_COMPRESSION));
+	private static final ThreadLocal<Inflater> inflaters = ThreadLocal.withInitial(Inflater::new);
+	private static final ThreadLocal<byte[]> codecBuffers = ThreadLocal.withInitial(() -> new byte[1024]);
 	static Vector<String> alreadyRenamed;
 	static Map<String, Integer> hashToID;
-	static Map<Integer, String> idToHash;
+	// hash of each vertex by id, as ids are given in order
+	static List<String> idToHash;
 	static int edgesInMemory;
 	static int maxEdgesInMemory = 10000;
-	Map<Integer, Pair<SortedSet<Integer>, SortedSet<Integer>>> scaffoldInMemory;
+	Map<Integer, Pair<SortedIntSet, SortedIntSet>> scaffoldInMemory;
 	private static final Logger logger = Logger.getLogger(CompressedStorage.class.getName());
 	public long clockScaffold;
 	public long clockAnnotations;
 	public static PrintWriter benchmarks;
 	public static long scaffoldTime;
+	public static long scaffoldUpdateTime;
+	/**
+	 * Updates the scaffold with the edges in memory in the background, one
+	 * update at a time, while ingest continues into a new buffer.
+	 */
+	private ExecutorService scaffoldUpdater;
+	private Future<?> pendingScaffoldUpdate;
 	public static long annotationsTime;
 	public static int countUpdates;
 
@@ -74,14 +119,15 @@ public class CompressedStorage extends AbstractStorage {
 		countUpdates = 0;
 		annotationsTime = 0;
 		scaffoldTime = 0;
+		scaffoldUpdateTime = 0;
 		clockScaffold = 0;
+		scaffoldUpdater = Executors.newSingleThreadExecutor();
 		clockAnnotations = 0;
-		scaffoldInMemory = new HashMap<Integer, Pair<SortedSet<Integer>, SortedSet<Integer>>>();
+		scaffoldInMemory = new HashMap<Integer, Pair<SortedIntSet, SortedIntSet>>();
 		edgesInMemory = 0;
 		hashToID = new HashMap<String, Integer>();
-		idToHash = new HashMap<Integer, String>();
+		idToHash = new ArrayList<String>();
 		alreadyRenamed = new Vector<String>();
-		compresser = new Deflater(Deflater.BEST_COMPRESSION);
 		W=10;
 		L=5;
 		nextVertexID = 0;
@@ -118,7 +164,12 @@ public class CompressedStorage extends AbstractStorage {
 	public boolean shutdown()
 	{
 		System.out.println("Average time to put 10000 edges in the annotations storage : " + annotationsTime);
+		if (scaffoldUpdater != null) {
+			waitForScaffoldUpdate();
+			scaffoldUpdater.shutdown();
+		}
 		System.out.println("Average time to put 10000 edges in the scaffold strage: " + scaffoldTime);
+		System.out.println("Average time to update the scaffold storage with 10000 edges in the background: " + scaffoldUpdateTime);
 		try
 		{
 			if (scaffoldDatabase != null)
@@ -129,7 +180,10 @@ public class CompressedStorage extends AbstractStorage {
 				DatabaseEnvironment1.close();
 			if (DatabaseEnvironment2 != null)
 				DatabaseEnvironment2.close();
-			compresser.end();
+			deflaters.get().end();
+			deflaters.remove();
+			inflaters.get().end();
+			inflaters.remove();
 			benchmarks.close();
 			return true;
 		}
@@ -145,14 +199,14 @@ public class CompressedStorage extends AbstractStorage {
 	/**
 	 * Create a hash map linking each node to its full list of ancestors and its full list of successors from the text file listing edges and vertexes issued by SPADE.
 	 * @param textfile The name of the text file issued by SPADE without the extension
-	 * @return HashMap<Integer, Pair<SortedSet<Integer>, SortedSet<Integer>>> maps each node to its list of ancestors and its list of successors. The first set of the pair is the ancestors list, the second one is the successors list.
+	 * @return HashMap<Integer, Pair<SortedIntSet, SortedIntSet>> maps each node to its list of ancestors and its list of successors. The first set of the pair is the ancestors list, the second one is the successors list.
 	 * @throws FileNotFoundException
 	 * @throws UnsupportedEncodingException
 	 */
-	public static HashMap<Integer, Pair<SortedSet<Integer>, SortedSet<Integer>>> createAncestorSuccessorList( String textfile) throws FileNotFoundException, UnsupportedEncodingException {
+	public static HashMap<Integer, Pair<SortedIntSet, SortedIntSet>> createAncestorSuccessorList( String textfile) throws FileNotFoundException, UnsupportedEncodingException {
 		File file = new File(textfile + ".txt");	
 		Scanner sc = new Scanner(file);
-		HashMap<Integer, Pair<SortedSet<Integer>, SortedSet<Integer>>> ancestorsSuccessors = new  HashMap<Integer, Pair<SortedSet<Integer>, SortedSet<Integer>>>();
+		HashMap<Integer, Pair<SortedIntSet, SortedIntSet>> ancestorsSuccessors = new  HashMap<Integer, Pair<SortedIntSet, SortedIntSet>>();
 		while(sc.hasNextLine()){
 			String aux = sc.nextLine();
 			if(aux.substring(0,4).equals("EDGE")){
@@ -161,25 +215,25 @@ public class CompressedStorage extends AbstractStorage {
 				String successor_s = aux.substring(aux.indexOf(" -> ")+4, aux.indexOf("): {"));
 				Integer successor = Integer.parseInt(successor_s);
 				if(ancestorsSuccessors.containsKey(node)) {
-					Pair<SortedSet<Integer>, SortedSet<Integer>> partialLists = ancestorsSuccessors.get(node);
+					Pair<SortedIntSet, SortedIntSet> partialLists = ancestorsSuccessors.get(node);
 					partialLists.second().add(successor);
 					ancestorsSuccessors.replace(node, partialLists);
 				} else {
-					SortedSet<Integer> partialSuccessorList = new TreeSet<Integer>();
-					SortedSet<Integer> partialAncestorList = new TreeSet<Integer>();
+					SortedIntSet partialSuccessorList = new SortedIntSet();
+					SortedIntSet partialAncestorList = new SortedIntSet();
 					partialSuccessorList.add(successor);
-					Pair<SortedSet<Integer>, SortedSet<Integer>> partialLists = new Pair<SortedSet<Integer>, SortedSet<Integer>>(partialAncestorList, partialSuccessorList);
+					Pair<SortedIntSet, SortedIntSet> partialLists = new Pair<SortedIntSet, SortedIntSet>(partialAncestorList, partialSuccessorList);
 					ancestorsSuccessors.put(node, partialLists);
 				}
 				if(ancestorsSuccessors.containsKey(successor)) {
-					Pair<SortedSet<Integer>, SortedSet<Integer>> partialLists = ancestorsSuccessors.get(successor);
+					Pair<SortedIntSet, SortedIntSet> partialLists = ancestorsSuccessors.get(successor);
 					partialLists.first().add(node);
 					ancestorsSuccessors.replace(successor, partialLists);
 				} else {
-					SortedSet<Integer> partialSuccessorList = new TreeSet<Integer>();
-					SortedSet<Integer> partialAncestorList = new TreeSet<Integer>();
+					SortedIntSet partialSuccessorList = new SortedIntSet();
+					SortedIntSet partialAncestorList = new SortedIntSet();
 					partialAncestorList.add(node);
-					Pair<SortedSet<Integer>, SortedSet<Integer>> partialLists = new Pair<SortedSet<Integer>, SortedSet<Integer>>(partialAncestorList, partialSuccessorList);
+					Pair<SortedIntSet, SortedIntSet> partialLists = new Pair<SortedIntSet, SortedIntSet>(partialAncestorList, partialSuccessorList);
 					ancestorsSuccessors.put(successor, partialLists);
 				}
 			}
@@ -187,8 +241,8 @@ public class CompressedStorage extends AbstractStorage {
 		sc.close();
 		//write it in a file
 		PrintWriter writer = new PrintWriter(textfile + "_ancestor_successor.txt", "UTF-8");
-		Set<HashMap.Entry<Integer, Pair<SortedSet<Integer>, SortedSet<Integer>>>> entries = ancestorsSuccessors.entrySet();
-		for (HashMap.Entry<Integer, Pair<SortedSet<Integer>, SortedSet<Integer>>> node : entries){
+		Set<HashMap.Entry<Integer, Pair<SortedIntSet, SortedIntSet>>> entries = ancestorsSuccessors.entrySet();
+		for (HashMap.Entry<Integer, Pair<SortedIntSet, SortedIntSet>> node : entries){
 			writer.println(node.getKey().toString() + " " + node.getValue().first().toString() + " " + node.getValue().second().toString());
 		}
 		writer.close();
@@ -204,21 +258,21 @@ public class CompressedStorage extends AbstractStorage {
 	 * @throws FileNotFoundException
 	 * @throws UnsupportedEncodingException
 	 */
-	public static void encodeAncestorsSuccessors(HashMap<Integer, Pair<SortedSet<Integer>, SortedSet<Integer>>> ancestorSuccessorList) throws FileNotFoundException, UnsupportedEncodingException {
-		Set<HashMap.Entry<Integer, Pair<SortedSet<Integer>, SortedSet<Integer>>>> entries = ancestorSuccessorList.entrySet();
+	public static void encodeAncestorsSuccessors(HashMap<Integer, Pair<SortedIntSet, SortedIntSet>> ancestorSuccessorList) throws FileNotFoundException, UnsupportedEncodingException {
+		Set<HashMap.Entry<Integer, Pair<SortedIntSet, SortedIntSet>>> entries = ancestorSuccessorList.entrySet();
 		// compress each node
-		for (HashMap.Entry<Integer, Pair<SortedSet<Integer>, SortedSet<Integer>>> nodeToCompress : entries){
+		for (HashMap.Entry<Integer, Pair<SortedIntSet, SortedIntSet>> nodeToCompress : entries){
 			encodeAncestorsSuccessors(nodeToCompress);
 			//System.out.println("Node " + nodeToCompress.getKey() + " encoded.");
 		}
 	}
 
-	public static boolean encodeAncestorsSuccessors(HashMap.Entry<Integer, Pair<SortedSet<Integer>, SortedSet<Integer>>> nodeToCompress) {
+	public static boolean encodeAncestorsSuccessors(HashMap.Entry<Integer, Pair<SortedIntSet, SortedIntSet>> nodeToCompress) {
 		//find reference node
 		Integer id = nodeToCompress.getKey();
 		//System.out.println(id);
-		SortedSet<Integer> ancestors = nodeToCompress.getValue().first();
-		SortedSet<Integer> successors = nodeToCompress.getValue().second();
+		SortedIntSet ancestors = nodeToCompress.getValue().first();
+		SortedIntSet successors = nodeToCompress.getValue().second();
 		//NodeLayerAncestorSuccessor currentNode = new NodeLayerAncestorSuccessor(id, ancestors, successors);
 		Pair<Integer, Integer> maxNodesInCommonAncestor = new Pair<Integer, Integer>(0,0);
 		Pair<Integer, Integer> maxNodesInCommonSuccessor = new Pair<Integer, Integer>(0,0); //first integer is the max of nodes in common, the second one is the number of 0 in the corresponding bit list
@@ -226,18 +280,18 @@ public class CompressedStorage extends AbstractStorage {
 		String bitlistAncestor = "";
 		int layerAncestor = 1;
 		Integer referenceAncestor = -1;
-		SortedSet<Integer> referenceAncestorList = new TreeSet<Integer>();
+		SortedIntSet referenceAncestorList = new SortedIntSet();
 		//NodeLayerAncestorSuccessor referenceSuccessor = currentNode;
 		String bitlistSuccessor = "";
 		int layerSuccessor = 1;
 		Integer referenceSuccessor = -1;
-		SortedSet<Integer> referenceSuccessorList = new TreeSet<Integer>();
+		SortedIntSet referenceSuccessorList = new SortedIntSet();
 		//Iterator<NodeLayerAncestorSuccessor> iteratorPossibleReference = lastNodesSeen.iterator(); 
 		//while (iteratorPossibleReference.hasNext()){
 		//System.out.println("step 1");
 		for (Integer possibleReferenceID = Math.max(0, id - W); possibleReferenceID<id; possibleReferenceID ++){
 			//for each node in the W last nodes seen, compute the proximity, i.e. the number of successors of the current node that also are successors of the possibleReference node.
-			Pair<Pair<Integer, SortedSet<Integer>>, Pair<Integer, SortedSet<Integer>>> asl = uncompressAncestorsSuccessorsWithLayer(possibleReferenceID, true, true); 
+			Pair<Pair<Integer, SortedIntSet>, Pair<Integer, SortedIntSet>> asl = uncompressAncestorsSuccessorsWithLayer(possibleReferenceID, true, true); 
 			if(asl.first().first() < L) {
 				//System.out.println("step 1.1");
 				Pair<Pair<Integer, Integer>, String> nodesInCommonAncestor = commonNodes(asl.first().second(), ancestors);
@@ -276,8 +330,7 @@ public class CompressedStorage extends AbstractStorage {
 		//System.out.println("step 6");
 
 		//encode ancestor list
-		SortedSet<Integer> remainingNodesAncestor = new TreeSet<Integer>();
-		remainingNodesAncestor.addAll(ancestors);
+		SortedIntSet remainingNodesAncestor = new SortedIntSet(ancestors);
 		//encode reference
 		//String encoding = id.toString() + " ";
 		String encoding = layerAncestor + " ";
@@ -290,10 +343,11 @@ public class CompressedStorage extends AbstractStorage {
 		}
 
 		//encode consecutive nodes and delta encoding
-		Integer previousNode = id;
+		int previousNode = id;
 		int countConsecutives = 0;
-		for (Integer nodeID : remainingNodesAncestor) {
-			Integer delta = nodeID - previousNode; 
+		for (int i = 0; i < remainingNodesAncestor.size(); i++) {
+			int nodeID = remainingNodesAncestor.get(i);
+			int delta = nodeID - previousNode; 
 			if (delta == 1) {
 				countConsecutives++;
 			} else {
@@ -309,8 +363,7 @@ public class CompressedStorage extends AbstractStorage {
 
 		}		
 		// encode successor list
-		SortedSet<Integer> remainingNodesSuccessor = new TreeSet<Integer>();
-		remainingNodesSuccessor.addAll(successors);
+		SortedIntSet remainingNodesSuccessor = new SortedIntSet(successors);
 		//encode reference
 		encoding = encoding + " / " + layerSuccessor + " ";
 		if (maxNodesInCommonSuccessor.first() > 0) {
@@ -324,8 +377,9 @@ public class CompressedStorage extends AbstractStorage {
 		//encode consecutive nodes and delta encoding
 		previousNode = id;
 		countConsecutives = 0;
-		for (Integer nodeID : remainingNodesSuccessor) {
-			Integer delta = nodeID - previousNode; 
+		for (int i = 0; i < remainingNodesSuccessor.size(); i++) {
+			int nodeID = remainingNodesSuccessor.get(i);
+			int delta = nodeID - previousNode; 
 			if (delta == 1) {
 				countConsecutives++;
 			} else {
@@ -347,11 +401,11 @@ public class CompressedStorage extends AbstractStorage {
 		return true;
 	}
 
-	public static Pair<Pair<Integer, SortedSet<Integer>>, Pair<Integer, SortedSet<Integer>>> uncompressAncestorsSuccessorsWithLayer(
+	public static Pair<Pair<Integer, SortedIntSet>, Pair<Integer, SortedIntSet>> uncompressAncestorsSuccessorsWithLayer(
 			Integer id, boolean uncompressAncestors, boolean uncompressSuccessors) {
 		//System.out.println("step a");
-		SortedSet<Integer> ancestors = new TreeSet<Integer>();
-		SortedSet<Integer> successors = new TreeSet<Integer>();
+		SortedIntSet ancestors = new SortedIntSet();
+		SortedIntSet successors = new SortedIntSet();
 		Integer ancestorLayer = 1;
 		Integer successorLayer = 1;
 		String aux = get(scaffoldDatabase, id);
@@ -412,30 +466,30 @@ public class CompressedStorage extends AbstractStorage {
 			}
 		}
 		//System.out.println("step k");
-		Pair<Integer, SortedSet<Integer>> ancestorsAndLayer = new Pair<Integer, SortedSet<Integer>>(ancestorLayer, ancestors);
-		Pair<Integer, SortedSet<Integer>> successorsAndLayer = new Pair<Integer, SortedSet<Integer>>(successorLayer, successors);
-		Pair<Pair<Integer, SortedSet<Integer>>, Pair<Integer, SortedSet<Integer>>> ancestorsAndSuccessors = new Pair<Pair<Integer, SortedSet<Integer>>, Pair<Integer, SortedSet<Integer>>>(ancestorsAndLayer, successorsAndLayer);
+		Pair<Integer, SortedIntSet> ancestorsAndLayer = new Pair<Integer, SortedIntSet>(ancestorLayer, ancestors);
+		Pair<Integer, SortedIntSet> successorsAndLayer = new Pair<Integer, SortedIntSet>(successorLayer, successors);
+		Pair<Pair<Integer, SortedIntSet>, Pair<Integer, SortedIntSet>> ancestorsAndSuccessors = new Pair<Pair<Integer, SortedIntSet>, Pair<Integer, SortedIntSet>>(ancestorsAndLayer, successorsAndLayer);
 		return ancestorsAndSuccessors;
 	}
 
-	public static Pair<Pair<Integer, Integer>, String> commonNodes(SortedSet<Integer> reference,
-			SortedSet<Integer> node) {
+	public static Pair<Pair<Integer, Integer>, String> commonNodes(SortedIntSet reference,
+			SortedIntSet node) {
 		int nodesInCommon = 0;
 		int numberOfZero = 0;
-		String bitlist = "";
-		for (Integer successor : reference) {
-			if (node.contains(successor)) {
+		StringBuilder bitlist = new StringBuilder(reference.size());
+		for (int i = 0; i < reference.size(); i++) {
+			if (node.contains(reference.get(i))) {
 				nodesInCommon++;
-				bitlist = bitlist + "1";
+				bitlist.append('1');
 			} else {
 				numberOfZero++;
-				bitlist = bitlist + "0";
+				bitlist.append('0');
 			}
 		}
 		Pair<Integer, Integer> count = new Pair<Integer, Integer>(nodesInCommon, numberOfZero);
 
 		//System.out.println("Common nodes - reference size:" + reference.size() + " node size - " + node.size() + "bitlist size:" + bitlist.length()); 
-		return new Pair<Pair<Integer, Integer>, String>(count, bitlist);
+		return new Pair<Pair<Integer, Integer>, String>(count, bitlist.toString());
 	}
 
 
@@ -508,13 +562,8 @@ public class CompressedStorage extends AbstractStorage {
 	}
 
 	public static boolean putNext(Database db, String key_s, byte[] newValue, String sep) {
-		byte[] separatorInput;
 		try {
-			separatorInput = sep.getBytes("UTF-8");
-			byte [] separator = new byte[separatorInput.length];
-			compresser.setInput(separatorInput);
-			compresser.finish();
-			compresser.deflate(separator);
+			byte[] separator = sep.getBytes("UTF-8");
 			DatabaseEntry key = new DatabaseEntry(key_s.getBytes("UTF-8"));
 			DatabaseEntry data = new DatabaseEntry();
 			db.get(null, key, data, LockMode.DEFAULT);
@@ -538,9 +587,9 @@ public class CompressedStorage extends AbstractStorage {
 	}
 
 
-	/*public static Pair<SortedSet<Integer>, SortedSet<Integer>> uncompressAncestorsSuccessors (Integer id, boolean uncompressAncestors, boolean uncompressSuccessors) throws FileNotFoundException, UnsupportedEncodingException {
-	SortedSet<Integer> ancestors = new TreeSet<Integer>();
-	SortedSet<Integer> successors = new TreeSet<Integer>();
+	/*public static Pair<SortedIntSet, SortedIntSet> uncompressAncestorsSuccessors (Integer id, boolean uncompressAncestors, boolean uncompressSuccessors) throws FileNotFoundException, UnsupportedEncodingException {
+	SortedIntSet ancestors = new SortedIntSet();
+	SortedIntSet successors = new SortedIntSet();
 	//LimitedQueue<String> previousLines = new LimitedQueue<String>(W*L); 
 	//File file = new File(textfile + "_ancestor_successor_compressed.txt");
 	//Scanner sc = new Scanner(file);
@@ -583,14 +632,14 @@ public class CompressedStorage extends AbstractStorage {
 		}
 	}
 	//sc.close();
-	Pair<SortedSet<Integer>, SortedSet<Integer>> ancestorsAndSuccessors = new Pair<SortedSet<Integer>, SortedSet<Integer>>(ancestors, successors);
+	Pair<SortedIntSet, SortedIntSet> ancestorsAndSuccessors = new Pair<SortedIntSet, SortedIntSet>(ancestors, successors);
 	return ancestorsAndSuccessors;
 }*/
 
-	public static SortedSet<Integer> uncompressRemainingNodes(Integer nodeID, String remainingNodes){
+	public static SortedIntSet uncompressRemainingNodes(Integer nodeID, String remainingNodes){
 		//System.out.println("remainingNodes :" + remainingNodes);
-		SortedSet<Integer> successors = new TreeSet<Integer>();
-		Integer currentID = nodeID;
+		SortedIntSet successors = new SortedIntSet();
+		int currentID = nodeID;
 		String uncompressing;
 		int length;
 		StringTokenizer st = new StringTokenizer(remainingNodes);
@@ -615,11 +664,11 @@ public class CompressedStorage extends AbstractStorage {
 		return successors;
 	}
 
-	private static SortedSet<Integer> uncompressReference(Integer id, String ancestorOrSuccessorList,
+	private static SortedIntSet uncompressReference(Integer id, String ancestorOrSuccessorList,
 			boolean ancestorOrSuccessor) throws UnsupportedEncodingException {
 		//System.out.println("step m");
 
-		SortedSet<Integer> list = new TreeSet<Integer>();
+		SortedIntSet list = new SortedIntSet();
 
 		StringTokenizer st = new StringTokenizer(ancestorOrSuccessorList);
 		//System.out.println("ancestorOrSuccessorList :" + ancestorOrSuccessorList + " /id :" + id);
@@ -698,23 +747,16 @@ public class CompressedStorage extends AbstractStorage {
 				}
 				//benchmarks.println("ref:" + layer + " ////remaining:" + remainingNodesLayer + "////bitListLayer:" + bitListLayer );
 				//System.out.println("bitListLayer :" + bitListLayer + "/");
-				int count = 0;
-				SortedSet<Integer> list2 = new TreeSet<Integer>();
-				list2.addAll(list);
+				SortedIntSet list2 = new SortedIntSet(list.size());
 				//	System.out.println("step x");
 				//System.out.println(bitListLayer);
-				//System.out.println("BUG:" + list2.toString() + "/bit:" +  bitListLayer);
-				for (Integer successor : list2) {
-					try {	
-						if(bitListLayer.charAt(count) == '0') {
-							list.remove(successor);
-							//System.out.println("step y");
-						}
-					} catch (Exception ex) {
-						//System.out.println("update unsuccessful in uncompress reference :" + ex.getMessage() + "/count:" + count + "/successor.length:" + list.size() + "/list2.length:" + list2.size() + "bitListLayer.length:" + bitListLayer.length()+ "nodeID:" + layerID + "/bitListLayer:" + bitListLayer);
+				for (int count = 0; count < list.size(); count++) {
+					// nodes past the end of the bit list are kept
+					if (count >= bitListLayer.length() || bitListLayer.charAt(count) != '0') {
+						list2.add(list.get(count));
 					}
-					count++;
 				}
+				list = list2;
 			}
 			// uncompress remaining nodes
 			list.addAll(uncompressRemainingNodes(layerID, remainingNodesLayer)); 
@@ -733,23 +775,8 @@ public class CompressedStorage extends AbstractStorage {
 	  * @throws FileNotFoundException
 	  * @throws UnsupportedEncodingException
 	  */
-	public static SortedSet<Integer> findAllTheSuccessors(Integer nodeID) throws FileNotFoundException, UnsupportedEncodingException {
-		SortedSet<Integer> successors = new TreeSet<Integer>();
-		SortedSet<Integer> toUncompress = new TreeSet<Integer>();
-		toUncompress.add(nodeID);
-		while (!toUncompress.isEmpty()){
-			Integer node = toUncompress.first();
-			toUncompress.remove(node);
-			SortedSet<Integer> uncompressed = uncompressAncestorsSuccessorsWithLayer(node, false, true).second().second();
-			for (Integer successor : uncompressed) {
-				if(!successors.contains(successor)) {
-					successors.add(successor);
-					toUncompress.add(successor);
-				}
-			}
-		}
-		uncompressAncestorsSuccessorsWithLayer(nodeID, true, false);
-		return successors;
+	public static SortedIntSet findAllTheSuccessors(Integer nodeID) throws FileNotFoundException, UnsupportedEncodingException {
+		return findAllReachable(nodeID, false);
 	}
 
 	 /** 
@@ -759,23 +786,42 @@ public class CompressedStorage extends AbstractStorage {
 	  * @throws FileNotFoundException
 	  * @throws UnsupportedEncodingException
 	  */
-	public static SortedSet<Integer> findAllTheAncestry(Integer nodeID) throws FileNotFoundException, UnsupportedEncodingException {
-		SortedSet<Integer> ancestry = new TreeSet<Integer>();
-		SortedSet<Integer> toUncompress = new TreeSet<Integer>();
-		toUncompress.add(nodeID);
-		while (!toUncompress.isEmpty()){
-			Integer node = toUncompress.first();
-			toUncompress.remove(node);
-			SortedSet<Integer> uncompressed = uncompressAncestorsSuccessorsWithLayer(node, true, false).first().second();
-			for (Integer ancestor : uncompressed) {
-				if(!ancestry.contains(ancestor)) {
-					ancestry.add(ancestor);
-					toUncompress.add(ancestor);
+	public static SortedIntSet findAllTheAncestry(Integer nodeID) throws FileNotFoundException, UnsupportedEncodingException {
+		return findAllReachable(nodeID, true);
+	}
+
+	/**
+	 * Returns the Ids of the nodes reachable from the node through its ancestors or through its successors.
+	 * Nodes found are marked in a bit set, as Ids are dense.
+	 * @param nodeID
+	 * @param ancestry true to follow ancestors, false to follow successors
+	 * @return
+	 */
+	private static SortedIntSet findAllReachable(int nodeID, boolean ancestry) {
+		BitSet found = new BitSet();
+		int[] toUncompress = new int[16];
+		int remaining = 0;
+		toUncompress[remaining++] = nodeID;
+		while (remaining > 0) {
+			int node = toUncompress[--remaining];
+			Pair<Pair<Integer, SortedIntSet>, Pair<Integer, SortedIntSet>> lists = uncompressAncestorsSuccessorsWithLayer(node, ancestry, !ancestry);
+			SortedIntSet uncompressed = ancestry ? lists.first().second() : lists.second().second();
+			for (int i = 0; i < uncompressed.size(); i++) {
+				int next = uncompressed.get(i);
+				if (next >= 0 && !found.get(next)) {
+					found.set(next);
+					if (remaining == toUncompress.length) {
+						toUncompress = Arrays.copyOf(toUncompress, 2 * remaining);
+					}
+					toUncompress[remaining++] = next;
 				}
 			}
 		}
-		uncompressAncestorsSuccessorsWithLayer(nodeID, true, false);
-		return ancestry;
+		SortedIntSet reachable = new SortedIntSet(found.cardinality());
+		for (int next = found.nextSetBit(0); next >= 0; next = found.nextSetBit(next + 1)) {
+			reachable.add(next);
+		}
+		return reachable;
 	}
 
 	/**
@@ -789,21 +835,11 @@ public class CompressedStorage extends AbstractStorage {
 		//Deflater compresser = new Deflater(Deflater.BEST_COMPRESSION);
 		File file = new File(textfile + ".txt");
 		Scanner sc = new Scanner(file);
-		String sep = "}{";
-		byte[] separatorInput = sep.getBytes("UTF-8");
-		byte [] separator = new byte[separatorInput.length];
-		compresser.setInput(separatorInput);
-		compresser.finish();
-		compresser.deflate(separator);
 		while (sc.hasNextLine()) {
 			String toCompress = sc.nextLine();
 			if (toCompress.substring(0, 4).equals("EDGE")) {
 				String infoToCompress = toCompress.substring(toCompress.indexOf('{') + 1, toCompress.indexOf('}'));
-				byte[] input = infoToCompress.getBytes("UTF-8");
-				byte [] output = new byte[input.length + 100];
-				compresser.setInput(input);
-				compresser.finish();
-				int compressedDataLength = compresser.deflate(output);
+				byte[] output = compress(infoToCompress);
 				//System.out.println(compressedDataLength);
 				/*	DatabaseEntry key = new DatabaseEntry(toCompress.substring(toCompress.indexOf('(')+1, toCompress.indexOf(')')).getBytes("UTF-8"));
 			DatabaseEntry data = new DatabaseEntry();
@@ -824,22 +860,15 @@ public class CompressedStorage extends AbstractStorage {
 				//	} else {
 				//edges.put(key, output);
 				//}
-				compresser.reset();
 			}
 			if (toCompress.substring(0, 4).equals("VERT")) {
 				String infoToCompress = toCompress.substring(toCompress.indexOf('{') + 1, toCompress.indexOf('}'));
-				byte [] input = infoToCompress.getBytes("UTF-8");
-				byte [] output = new byte[input.length + 100];
-				compresser.setInput(input);
-				compresser.finish();
-				int compressedDataLength = compresser.deflate(output);			    
+				byte[] output = compress(infoToCompress);
 				Integer node = Integer.parseInt(toCompress.substring(toCompress.indexOf('(')+1, toCompress.indexOf(")")));
 				/*	DatabaseEntry key = new DatabaseEntry(node.toString().getBytes("UTF-8"));
 			DatabaseEntry value = new DatabaseEntry(output);
 			annotationsDatabase.put(null, key, value);*/
 				put(annotationsDatabase, node, output);				
-				//System.out.println(compressedDataLength);
-				compresser.reset();
 			}
 		}
 		//compresser.end();
@@ -849,6 +878,63 @@ public class CompressedStorage extends AbstractStorage {
 	}
 
 
+	/**
+	 * Compresses the annotations of an element with the preset dictionary
+	 * @param annotations annotations of the element as a String
+	 * @return the compressed annotations, of their exact length
+	 * @throws UnsupportedEncodingException
+	 */
+	public static byte[] compress(String annotations) throws UnsupportedEncodingException {
+		Deflater deflater = deflaters.get();
+		deflater.reset();
+		deflater.setDictionary(ANNOTATION_DICTIONARY);
+		deflater.setInput(annotations.getBytes("UTF-8"));
+		deflater.finish();
+		byte[] buffer = codecBuffers.get();
+		int length = 0;
+		while (!deflater.finished()) {
+			if (length == buffer.length) {
+				buffer = Arrays.copyOf(buffer, 2 * buffer.length);
+				codecBuffers.set(buffer);
+			}
+			length += deflater.deflate(buffer, length, buffer.length - length);
+		}
+		return Arrays.copyOf(buffer, length);
+	}
+
+	/**
+	 * Decompresses annotations compressed by compress. Annotations compressed
+	 * without the preset dictionary are decompressed too.
+	 * @param input the compressed annotations
+	 * @return the annotations as a String
+	 * @throws DataFormatException
+	 * @throws UnsupportedEncodingException
+	 */
+	public static String decompress(byte[] input) throws DataFormatException, UnsupportedEncodingException {
+		Inflater inflater = inflaters.get();
+		inflater.reset();
+		inflater.setInput(input);
+		byte[] buffer = codecBuffers.get();
+		int length = 0;
+		while (!inflater.finished()) {
+			if (length == buffer.length) {
+				buffer = Arrays.copyOf(buffer, 2 * buffer.length);
+				codecBuffers.set(buffer);
+			}
+			int inflated = inflater.inflate(buffer, length, buffer.length - length);
+			if (inflated == 0) {
+				if (inflater.needsDictionary()) {
+					inflater.setDictionary(ANNOTATION_DICTIONARY);
+				} else if (inflater.needsInput()) {
+					throw new DataFormatException("Truncated annotations");
+				}
+			}
+			length += inflated;
+		}
+		return new String(buffer, 0, length, "UTF-8");
+	}
+
+
 	/**
 	 * get the set of annotations of a vertex
 	 * @param toDecode node ID
@@ -857,7 +943,6 @@ public class CompressedStorage extends AbstractStorage {
 	 * @throws UnsupportedEncodingException
 	 */
 	public static String decodingVertex(Integer toDecode) throws DataFormatException, UnsupportedEncodingException {
-		Inflater decompresser = new Inflater();
 		/*DatabaseEntry key = new DatabaseEntry(toDecode.toString().getBytes("UTF-8"));
 	DatabaseEntry data = new DatabaseEntry();
 	annotationsDatabase.get(null, key, data, LockMode.DEFAULT);*/
@@ -869,13 +954,7 @@ public class CompressedStorage extends AbstractStorage {
 		if (input.length == 0) {
 			outputString = "Vertex " + toDecode + " does not exist.";
 		} else {
-			decompresser.setInput(input);
-			byte[] result = new byte[1000];
-			int resultLength = decompresser.inflate(result);
-			decompresser.end();
-
-			// Decode the bytes into a String
-			outputString = new String(result, 0, resultLength, "UTF-8");
+			outputString = decompress(input);
 		}
 		//System.out.println(outputString);
 		return outputString;
@@ -891,7 +970,6 @@ public class CompressedStorage extends AbstractStorage {
 	 * @throws UnsupportedEncodingException
 	 */
 	public static String decodingEdge(Integer node1, Integer node2) throws DataFormatException, UnsupportedEncodingException {
-		Inflater decompresser = new Inflater();
 		String key_s = node1.toString() + "->" + node2.toString();
 		/*DatabaseEntry key = new DatabaseEntry(key_s.getBytes("UTF-8"));
 	DatabaseEntry data = new DatabaseEntry();
@@ -903,14 +981,7 @@ public class CompressedStorage extends AbstractStorage {
 			outputString = "Edge " + node1 + "->" + node2 + " does not exist.";
 		} else {
 			//byte[]input = data.getData();
-			decompresser.setInput(input);
-			byte[] result = new byte[1000];
-			int resultLength = 
-					decompresser.inflate(result);
-			decompresser.end();
-
-			// Decode the bytes into a String
-			outputString = new String(result, 0, resultLength, "UTF-8");
+			outputString = decompress(input);
 		}
 		//System.out.println(outputString);			
 		return outputString;
@@ -984,7 +1055,7 @@ public class CompressedStorage extends AbstractStorage {
 	public static boolean update(String textfile) {
 		try {
 			//renameNodes(textfile);
-			HashMap<Integer, Pair<SortedSet<Integer>, SortedSet<Integer>>> asl = createAncestorSuccessorList(textfile);
+			HashMap<Integer, Pair<SortedIntSet, SortedIntSet>> asl = createAncestorSuccessorList(textfile);
 			updateAncestorsSuccessors(asl);
 			dictionaryEncoding(textfile);
 			return true;
@@ -998,19 +1069,19 @@ public class CompressedStorage extends AbstractStorage {
  * Update the scaffold database 
  * @param asl map issued by encodeAncestorsSuccessorsWithLayer
  */
-	private static void updateAncestorsSuccessors(Map<Integer, Pair<SortedSet<Integer>, SortedSet<Integer>>> asl) {
+	private static void updateAncestorsSuccessors(Map<Integer, Pair<SortedIntSet, SortedIntSet>> asl) {
 		try{
 			//for each line to update 
-			Set<Map.Entry<Integer, Pair<SortedSet<Integer>, SortedSet<Integer>>>> entries = asl.entrySet();
-			SortedSet<Integer> ancestors;
-			SortedSet<Integer> successors;
+			Set<Map.Entry<Integer, Pair<SortedIntSet, SortedIntSet>>> entries = asl.entrySet();
+			SortedIntSet ancestors;
+			SortedIntSet successors;
 			boolean updateAncestors;
 			boolean updateSuccessors;
-			HashMap<Integer, Pair<SortedSet<Integer>, SortedSet<Integer>>> toUpdate = new HashMap<Integer, Pair<SortedSet<Integer>, SortedSet<Integer>>>();
-			//HashMap<Integer, Pair<SortedSet<Integer>, SortedSet<Integer>>> unchangedToUpdate = new HashMap<Integer, Pair<SortedSet<Integer>, SortedSet<Integer>>>();
-			for (HashMap.Entry<Integer, Pair<SortedSet<Integer>, SortedSet<Integer>>> nodeToUpdate : entries){
+			TreeMap<Integer, Pair<SortedIntSet, SortedIntSet>> toUpdate = new TreeMap<Integer, Pair<SortedIntSet, SortedIntSet>>();
+			//HashMap<Integer, Pair<SortedIntSet, SortedIntSet>> unchangedToUpdate = new HashMap<Integer, Pair<SortedIntSet, SortedIntSet>>();
+			for (HashMap.Entry<Integer, Pair<SortedIntSet, SortedIntSet>> nodeToUpdate : entries){
 				Integer id = nodeToUpdate.getKey();
-				Pair<Pair<Integer, SortedSet<Integer>>, Pair<Integer, SortedSet<Integer>>> lists = uncompressAncestorsSuccessorsWithLayer(id, true, true);
+				Pair<Pair<Integer, SortedIntSet>, Pair<Integer, SortedIntSet>> lists = uncompressAncestorsSuccessorsWithLayer(id, true, true);
 				ancestors = lists.first().second();
 				ancestors.addAll(nodeToUpdate.getValue().first());
 				successors = lists.second().second();
@@ -1042,18 +1113,35 @@ public class CompressedStorage extends AbstractStorage {
 						}
 						if ( isReferenceAncestor|| isReferenceSuccessor ){
 							//update the encoding of the line
-							Pair<Pair<Integer, SortedSet<Integer>>, Pair<Integer, SortedSet<Integer>>> aux = uncompressAncestorsSuccessorsWithLayer(nodeID, true, true);
+							Pair<Pair<Integer, SortedIntSet>, Pair<Integer, SortedIntSet>> aux = uncompressAncestorsSuccessorsWithLayer(nodeID, true, true);
 							if (!toUpdate.containsKey(nodeID))
 								toUpdate.put(nodeID, new Pair(aux.first().second(), aux.second().second()));
 						}
 					}
 				}
 			}
-			Set<HashMap.Entry<Integer, Pair<SortedSet<Integer>, SortedSet<Integer>>>> entriesToUpdate = toUpdate.entrySet();
-			for(HashMap.Entry<Integer, Pair<SortedSet<Integer>, SortedSet<Integer>>> nodeToUpdate : entriesToUpdate) {
-				//benchmarks.println("nodeToUpdate:" + nodeToUpdate);
-				encodeAncestorsSuccessors(nodeToUpdate);
-			}} catch (Exception ex) {
+			// A node is encoded against the W nodes before it, so nodes are encoded in order of id.
+			// Decoding those follows references up to L layers deep, so a node reads nodes up to
+			// W*L ids before it. Runs of nodes more than W*L apart do not read each other and are
+			// encoded in parallel.
+			List<List<Map.Entry<Integer, Pair<SortedIntSet, SortedIntSet>>>> runs = new ArrayList<List<Map.Entry<Integer, Pair<SortedIntSet, SortedIntSet>>>>();
+			List<Map.Entry<Integer, Pair<SortedIntSet, SortedIntSet>>> run = null;
+			Integer previousID = null;
+			for(Map.Entry<Integer, Pair<SortedIntSet, SortedIntSet>> nodeToUpdate : toUpdate.entrySet()) {
+				if (run == null || nodeToUpdate.getKey() - previousID > W * L) {
+					run = new ArrayList<Map.Entry<Integer, Pair<SortedIntSet, SortedIntSet>>>();
+					runs.add(run);
+				}
+				run.add(nodeToUpdate);
+				previousID = nodeToUpdate.getKey();
+			}
+			runs.parallelStream().forEach(nodesToUpdate -> {
+				for(Map.Entry<Integer, Pair<SortedIntSet, SortedIntSet>> nodeToUpdate : nodesToUpdate) {
+					//benchmarks.println("nodeToUpdate:" + nodeToUpdate);
+					encodeAncestorsSuccessors(nodeToUpdate);
+				}
+			});
+			} catch (Exception ex) {
 				System.out.println("update unsuccessful:" + ex.getMessage());
 			}
 	}
@@ -1158,27 +1246,21 @@ public class CompressedStorage extends AbstractStorage {
 			//annotationString.append("}\n");
 			String edgeString = annotationString.toString();
 			//outputFile.write(edgeString);
-			byte [] input = edgeString.getBytes("UTF-8");
-			byte [] output = new byte[input.length + 100];
-			compresser.setInput(input);
-			compresser.finish();
-			int compressedDataLength = compresser.deflate(output);	
 			String key = srcID + "->" + dstID;
-			put(annotationsDatabase, key, output);	
-			compresser.reset();
+			put(annotationsDatabase, key, compress(edgeString));
 			long auxClock2 = System.nanoTime();
 			clockAnnotations = clockAnnotations + auxClock2-auxClock;
 			// scaffold storage
 			//update scaffoldInMemory
-			Pair<SortedSet<Integer>, SortedSet<Integer>> srcLists = scaffoldInMemory.get(srcID);
+			Pair<SortedIntSet, SortedIntSet> srcLists = scaffoldInMemory.get(srcID);
 			if (srcLists == null) {
-				srcLists = new Pair<SortedSet<Integer>, SortedSet<Integer>>(new TreeSet<Integer>(), new TreeSet<Integer>());
+				srcLists = new Pair<SortedIntSet, SortedIntSet>(new SortedIntSet(), new SortedIntSet());
 			}
 			srcLists.second().add(dstID);
 			scaffoldInMemory.put(srcID, srcLists);
-			Pair<SortedSet<Integer>, SortedSet<Integer>> dstLists = scaffoldInMemory.get(dstID);
+			Pair<SortedIntSet, SortedIntSet> dstLists = scaffoldInMemory.get(dstID);
 			if (dstLists == null) {
-				dstLists = new Pair<SortedSet<Integer>, SortedSet<Integer>>(new TreeSet<Integer>(), new TreeSet<Integer>());
+				dstLists = new Pair<SortedIntSet, SortedIntSet>(new SortedIntSet(), new SortedIntSet());
 			}
 			dstLists.first().add(dstID);
 			scaffoldInMemory.put(dstID, dstLists);
@@ -1191,8 +1273,17 @@ public class CompressedStorage extends AbstractStorage {
 				annotationsTime += clockAnnotations;
 				clockAnnotations = 0;
 				long auxClock4 = System.nanoTime();
-				updateAncestorsSuccessors(scaffoldInMemory);  		
-				scaffoldInMemory.clear();
+				// ingest gets at most one buffer ahead of the scaffold updates
+				waitForScaffoldUpdate();
+				final Map<Integer, Pair<SortedIntSet, SortedIntSet>> edgesToUpdate = scaffoldInMemory;
+				scaffoldInMemory = new HashMap<Integer, Pair<SortedIntSet, SortedIntSet>>();
+				pendingScaffoldUpdate = scaffoldUpdater.submit(() -> {
+					long updateStart = System.nanoTime();
+					updateAncestorsSuccessors(edgesToUpdate);
+					long updateTime = System.nanoTime() - updateStart;
+					benchmarks.println("Time to update scaffoldStorage with 10000 edges in the background (ns): " + updateTime);
+					scaffoldUpdateTime += updateTime;
+				});
 				long auxClock5 = System.nanoTime();
 				clockScaffold = clockScaffold + auxClock5 - auxClock4;
 				benchmarks.println("Time to put 10000 edges in scaffoldStorage (ns): " + clockScaffold);
@@ -1208,6 +1299,23 @@ public class CompressedStorage extends AbstractStorage {
 	}
 
 
+	/**
+	 * Waits for the scaffold update running in the background, if any, to finish
+	 */
+	private void waitForScaffoldUpdate() {
+		if (pendingScaffoldUpdate != null) {
+			try {
+				pendingScaffoldUpdate.get();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			} catch (ExecutionException e) {
+				logger.log(Level.SEVERE, "Scaffold update unsuccessful", e.getCause());
+			}
+			pendingScaffoldUpdate = null;
+		}
+	}
+
+
 	@Override
 	public boolean putVertex(AbstractVertex incomingVertex) {
 		try {
@@ -1215,7 +1323,7 @@ public class CompressedStorage extends AbstractStorage {
 			Integer vertexID = nextVertexID;
 			nextVertexID ++;
 			hashToID.put(vertexHash, vertexID);
-			idToHash.put(vertexID, vertexHash);
+			idToHash.add(vertexHash);
 			StringBuilder annotationString = new StringBuilder();
 			//annotationString.append("VERTEX (" + vertexId + "): {");
 			for (Map.Entry<String, String> currentEntry : incomingVertex.getAnnotations().entrySet()) {
@@ -1232,13 +1340,7 @@ public class CompressedStorage extends AbstractStorage {
 			//annotationString.append("}\n");
 			String vertexString = annotationString.toString();
 			//outputFile.write(vertexString);
-			byte [] input = vertexString.getBytes("UTF-8");
-			byte [] output = new byte[input.length + 100];
-			compresser.setInput(input);
-			compresser.finish();
-			int compressedDataLength = compresser.deflate(output);	
-			put(annotationsDatabase, vertexID, output);	
-			compresser.reset();
+			put(annotationsDatabase, vertexID, compress(vertexString));
 			return true;
 		} catch (Exception exception) {
 			Logger.getLogger(CompressedStorage.class.getName()).log(Level.SEVERE, null, exception);
@@ -1265,20 +1367,24 @@ public class CompressedStorage extends AbstractStorage {
 		System.out.println("ID = " + id);
 		if(id != null)
 		{
-			Set<Integer> remainingVertices = new HashSet<>();
-			Set<Integer> visitedVertices = new HashSet<>();
+			SortedIntSet remainingVertices = new SortedIntSet();
+			BitSet visitedVertices = new BitSet();
 			Map<String, Set<String>> lineageMap = new HashMap<>();
 			remainingVertices.add(id);
 			int current_depth = 0;
 			while(!remainingVertices.isEmpty() && current_depth < maxDepth)
 			{
-				visitedVertices.addAll(remainingVertices);
-				Set<Integer> currentSet = new HashSet<>();
-				for(Integer current_id: remainingVertices)
+				SortedIntSet currentSet = new SortedIntSet();
+				for(int i = 0; i < remainingVertices.size(); i++)
+				{
+					visitedVertices.set(remainingVertices.get(i));
+				}
+				for(int i = 0; i < remainingVertices.size(); i++)
 				{
-					Set<Integer> neighbors = null;
+					int current_id = remainingVertices.get(i);
+					SortedIntSet neighbors = null;
 					if(DIRECTION_ANCESTORS.startsWith(direction.toLowerCase())) {
-						Pair<Pair<Integer, SortedSet<Integer>>, Pair<Integer, SortedSet<Integer>>> lists = uncompressAncestorsSuccessorsWithLayer(current_id, true, true);
+						Pair<Pair<Integer, SortedIntSet>, Pair<Integer, SortedIntSet>> lists = uncompressAncestorsSuccessorsWithLayer(current_id, true, true);
 						if (lists == null) {
 							neighbors = null;
 						} else {
@@ -1288,7 +1394,7 @@ public class CompressedStorage extends AbstractStorage {
 					}
 					else if(DIRECTION_DESCENDANTS.startsWith(direction.toLowerCase())) {
 						//System.out.println("ok");
-						Pair<Pair<Integer, SortedSet<Integer>>, Pair<Integer, SortedSet<Integer>>> lists = uncompressAncestorsSuccessorsWithLayer(current_id, true, true);
+						Pair<Pair<Integer, SortedIntSet>, Pair<Integer, SortedIntSet>> lists = uncompressAncestorsSuccessorsWithLayer(current_id, true, true);
 						if (lists == null) {
 							neighbors = null;
 						} else {
@@ -1301,21 +1407,21 @@ public class CompressedStorage extends AbstractStorage {
 						//System.out.println(neighbors.size());
 						String current_hash = idToHash.get(current_id);
 						Set<String> neighbors_hash = new TreeSet<String>();
-						for(Integer vertexId: neighbors)
+						for(int j = 0; j < neighbors.size(); j++)
 						{
+							int vertexId = neighbors.get(j);
 							neighbors_hash.add(idToHash.get(vertexId));
-							if(!visitedVertices.contains(vertexId))
+							if(!visitedVertices.get(vertexId))
 							{
 								//System.out.println("true");
-								currentSet.addAll(neighbors);
+								currentSet.add(vertexId);
 							}
 						}
 						lineageMap.put(current_hash, neighbors_hash);
 						//System.out.println(current_hash + " - " + neighbors_hash.toString());
 					}
 				}
-				remainingVertices.clear();
-				remainingVertices.addAll(currentSet);
+				remainingVertices = currentSet;
 				current_depth++;
 			}
 
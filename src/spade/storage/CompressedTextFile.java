@@ -27,6 +27,7 @@ import spade.core.AbstractEdge;
 import spade.core.AbstractStorage;
 import spade.core.AbstractVertex;
 import spade.core.Graph;
+import spade.utility.SortedIntSet;
 
 import java.io.File;
 import java.io.FileWriter;
@@ -38,9 +39,7 @@ import java.util.LinkedList;
 import java.util.Map;
 import java.util.Scanner;
 import java.util.Set;
-import java.util.SortedSet;
 import java.util.StringTokenizer;
-import java.util.TreeSet;
 import java.util.Vector;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -63,7 +62,7 @@ public class CompressedTextFile extends AbstractStorage {
 	static Map<String, Integer> hashToID;
 	static Integer edgesInMemory;
 	static final Integer maxEdgesInMemory = 10;
-	Map<Integer, Pair<SortedSet<Integer>, SortedSet<Integer>>> scaffoldInMemory;
+	Map<Integer, Pair<SortedIntSet, SortedIntSet>> scaffoldInMemory;
 	private static final Logger logger = Logger.getLogger(CompressedStorage.class.getName());
 	long clock;
 	PrintWriter benchmarks;
@@ -75,7 +74,7 @@ public class CompressedTextFile extends AbstractStorage {
     @Override
     public boolean initialize(String arguments) {
 		clock = System.currentTimeMillis();
-    	scaffoldInMemory = new HashMap<Integer, Pair<SortedSet<Integer>, SortedSet<Integer>>>();
+    	scaffoldInMemory = new HashMap<Integer, Pair<SortedIntSet, SortedIntSet>>();
 		edgesInMemory = 0;
 		hashToID = new HashMap<String, Integer>();
 		alreadyRenamed = new Vector<String>();
@@ -209,15 +208,15 @@ public class CompressedTextFile extends AbstractStorage {
         	compresser.reset();
         	// scaffold storage
         	//update scaffoldInMemory
-        	Pair<SortedSet<Integer>, SortedSet<Integer>> srcLists = scaffoldInMemory.get(srcID);
+        	Pair<SortedIntSet, SortedIntSet> srcLists = scaffoldInMemory.get(srcID);
         	if (srcLists == null) {
-        		srcLists = new Pair<SortedSet<Integer>, SortedSet<Integer>>(new TreeSet<Integer>(), new TreeSet<Integer>());
+        		srcLists = new Pair<SortedIntSet, SortedIntSet>(new SortedIntSet(), new SortedIntSet());
         	}
         	srcLists.second().add(dstID);
         	scaffoldInMemory.put(srcID, srcLists);
-        	Pair<SortedSet<Integer>, SortedSet<Integer>> dstLists = scaffoldInMemory.get(dstID);
+        	Pair<SortedIntSet, SortedIntSet> dstLists = scaffoldInMemory.get(dstID);
         	if (dstLists == null) {
-        		dstLists = new Pair<SortedSet<Integer>, SortedSet<Integer>>(new TreeSet<Integer>(), new TreeSet<Integer>());
+        		dstLists = new Pair<SortedIntSet, SortedIntSet>(new SortedIntSet(), new SortedIntSet());
         	}
         	dstLists.first().add(dstID);
         	scaffoldInMemory.put(dstID, dstLists);
@@ -310,18 +309,18 @@ public class CompressedTextFile extends AbstractStorage {
         return null;
     }
     
-    private static void updateAncestorsSuccessors(Map<Integer, Pair<SortedSet<Integer>, SortedSet<Integer>>> asl) {
+    private static void updateAncestorsSuccessors(Map<Integer, Pair<SortedIntSet, SortedIntSet>> asl) {
     	//for each line to update 
-    	Set<Map.Entry<Integer, Pair<SortedSet<Integer>, SortedSet<Integer>>>> entries = asl.entrySet();
-    	SortedSet<Integer> ancestors;
-    	SortedSet<Integer> successors;
+    	Set<Map.Entry<Integer, Pair<SortedIntSet, SortedIntSet>>> entries = asl.entrySet();
+    	SortedIntSet ancestors;
+    	SortedIntSet successors;
     	boolean updateAncestors;
     	boolean updateSuccessors;
-    	HashMap<Integer, Pair<SortedSet<Integer>, SortedSet<Integer>>> toUpdate = new HashMap<Integer, Pair<SortedSet<Integer>, SortedSet<Integer>>>();
-    	//HashMap<Integer, Pair<SortedSet<Integer>, SortedSet<Integer>>> unchangedToUpdate = new HashMap<Integer, Pair<SortedSet<Integer>, SortedSet<Integer>>>();
-    	for (HashMap.Entry<Integer, Pair<SortedSet<Integer>, SortedSet<Integer>>> nodeToUpdate : entries){
+    	HashMap<Integer, Pair<SortedIntSet, SortedIntSet>> toUpdate = new HashMap<Integer, Pair<SortedIntSet, SortedIntSet>>();
+    	//HashMap<Integer, Pair<SortedIntSet, SortedIntSet>> unchangedToUpdate = new HashMap<Integer, Pair<SortedIntSet, SortedIntSet>>();
+    	for (HashMap.Entry<Integer, Pair<SortedIntSet, SortedIntSet>> nodeToUpdate : entries){
     		Integer id = nodeToUpdate.getKey();
-    		Pair<Pair<Integer, SortedSet<Integer>>, Pair<Integer, SortedSet<Integer>>> lists = uncompressAncestorsSuccessorsWithLayer(id, true, true);
+    		Pair<Pair<Integer, SortedIntSet>, Pair<Integer, SortedIntSet>> lists = uncompressAncestorsSuccessorsWithLayer(id, true, true);
     		ancestors = lists.first().second();
     		ancestors.addAll(nodeToUpdate.getValue().first());
     		successors = lists.second().second();
@@ -353,15 +352,15 @@ public class CompressedTextFile extends AbstractStorage {
     				}
     				if ( isReferenceAncestor|| isReferenceSuccessor ){
     					//update the encoding of the line
-    					Pair<Pair<Integer, SortedSet<Integer>>, Pair<Integer, SortedSet<Integer>>> aux = uncompressAncestorsSuccessorsWithLayer(nodeID, true, true);
+    					Pair<Pair<Integer, SortedIntSet>, Pair<Integer, SortedIntSet>> aux = uncompressAncestorsSuccessorsWithLayer(nodeID, true, true);
     					if (!toUpdate.containsKey(nodeID))
     						toUpdate.put(nodeID, new Pair(aux.first().second(), aux.second().second()));
     				}
     			}
     		}
     	}
-    	Set<HashMap.Entry<Integer, Pair<SortedSet<Integer>, SortedSet<Integer>>>> entriesToUpdate = toUpdate.entrySet();
-    	for(HashMap.Entry<Integer, Pair<SortedSet<Integer>, SortedSet<Integer>>> nodeToUpdate : entriesToUpdate) {
+    	Set<HashMap.Entry<Integer, Pair<SortedIntSet, SortedIntSet>>> entriesToUpdate = toUpdate.entrySet();
+    	for(HashMap.Entry<Integer, Pair<SortedIntSet, SortedIntSet>> nodeToUpdate : entriesToUpdate) {
     		encodeAncestorsSuccessors(nodeToUpdate);
     	}
     }
@@ -372,11 +371,11 @@ public class CompressedTextFile extends AbstractStorage {
 		return null;
 	}
 
-	public static Pair<Pair<Integer, SortedSet<Integer>>, Pair<Integer, SortedSet<Integer>>> uncompressAncestorsSuccessorsWithLayer(
+	public static Pair<Pair<Integer, SortedIntSet>, Pair<Integer, SortedIntSet>> uncompressAncestorsSuccessorsWithLayer(
 			Integer id, boolean uncompressAncestors, boolean uncompressSuccessors) {
 		//System.out.println("step a");
-		SortedSet<Integer> ancestors = new TreeSet<Integer>();
-		SortedSet<Integer> successors = new TreeSet<Integer>();
+		SortedIntSet ancestors = new SortedIntSet();
+		SortedIntSet successors = new SortedIntSet();
 		Integer ancestorLayer = 1;
 		Integer successorLayer = 1;
 		String aux = get(scaffoldWriter, id);
@@ -437,17 +436,17 @@ public class CompressedTextFile extends AbstractStorage {
 			}
 		}
 		//System.out.println("step k");
-		Pair<Integer, SortedSet<Integer>> ancestorsAndLayer = new Pair<Integer, SortedSet<Integer>>(ancestorLayer, ancestors);
-		Pair<Integer, SortedSet<Integer>> successorsAndLayer = new Pair<Integer, SortedSet<Integer>>(successorLayer, successors);
-		Pair<Pair<Integer, SortedSet<Integer>>, Pair<Integer, SortedSet<Integer>>> ancestorsAndSuccessors = new Pair<Pair<Integer, SortedSet<Integer>>, Pair<Integer, SortedSet<Integer>>>(ancestorsAndLayer, successorsAndLayer);
+		Pair<Integer, SortedIntSet> ancestorsAndLayer = new Pair<Integer, SortedIntSet>(ancestorLayer, ancestors);
+		Pair<Integer, SortedIntSet> successorsAndLayer = new Pair<Integer, SortedIntSet>(successorLayer, successors);
+		Pair<Pair<Integer, SortedIntSet>, Pair<Integer, SortedIntSet>> ancestorsAndSuccessors = new Pair<Pair<Integer, SortedIntSet>, Pair<Integer, SortedIntSet>>(ancestorsAndLayer, successorsAndLayer);
 		return ancestorsAndSuccessors;
 	}
 	
 	
-	public static SortedSet<Integer> uncompressRemainingNodes(Integer nodeID, String remainingNodes){
+	public static SortedIntSet uncompressRemainingNodes(Integer nodeID, String remainingNodes){
 		//System.out.println("remainingNodes :" + remainingNodes);
-		SortedSet<Integer> successors = new TreeSet<Integer>();
-		Integer currentID = nodeID;
+		SortedIntSet successors = new SortedIntSet();
+		int currentID = nodeID;
 		String uncompressing;
 		int length;
 		StringTokenizer st = new StringTokenizer(remainingNodes);
@@ -473,10 +472,10 @@ public class CompressedTextFile extends AbstractStorage {
 	}
 
 	
-	private static SortedSet<Integer> uncompressReference(Integer id, String ancestorOrSuccessorList,
+	private static SortedIntSet uncompressReference(Integer id, String ancestorOrSuccessorList,
 			boolean ancestorOrSuccessor) throws UnsupportedEncodingException {
 		//System.out.println("step m");
-		SortedSet<Integer> list = new TreeSet<Integer>();
+		SortedIntSet list = new SortedIntSet();
 		StringTokenizer st = new StringTokenizer(ancestorOrSuccessorList);
 		//System.out.println("ancestorOrSuccessorList :" + ancestorOrSuccessorList + " /id :" + id);
 		//st.nextToken();
@@ -552,19 +551,15 @@ public class CompressedTextFile extends AbstractStorage {
 					remainingNodesLayer = "";
 				}
 				//System.out.println("bitListLayer :" + bitListLayer + "/");
-				int count = 0;
-				SortedSet<Integer> list2 = new TreeSet<Integer>();
-				list2.addAll(list);
+				SortedIntSet list2 = new SortedIntSet(list.size());
 			//	System.out.println("step x");
 				//System.out.println(bitListLayer);
-				for (Integer successor : list2) {
-					//System.out.println(successor + " " + count);
-					if(bitListLayer.charAt(count) == '0') {
-						list.remove(successor);
-						//System.out.println("step y");
+				for (int count = 0; count < list.size(); count++) {
+					if(bitListLayer.charAt(count) != '0') {
+						list2.add(list.get(count));
 					}
-					count++;
 				}
+				list = list2;
 			}
 			// uncompress remaining nodes
 			list.addAll(uncompressRemainingNodes(layerID, remainingNodesLayer)); 
@@ -575,12 +570,12 @@ public class CompressedTextFile extends AbstractStorage {
 	}
 
 	
-	public static boolean encodeAncestorsSuccessors(HashMap.Entry<Integer, Pair<SortedSet<Integer>, SortedSet<Integer>>> nodeToCompress) {
+	public static boolean encodeAncestorsSuccessors(HashMap.Entry<Integer, Pair<SortedIntSet, SortedIntSet>> nodeToCompress) {
 		//find reference node
 		Integer id = nodeToCompress.getKey();
 		//System.out.println(id);
-		SortedSet<Integer> ancestors = nodeToCompress.getValue().first();
-		SortedSet<Integer> successors = nodeToCompress.getValue().second();
+		SortedIntSet ancestors = nodeToCompress.getValue().first();
+		SortedIntSet successors = nodeToCompress.getValue().second();
 		//NodeLayerAncestorSuccessor currentNode = new NodeLayerAncestorSuccessor(id, ancestors, successors);
 		Pair<Integer, Integer> maxNodesInCommonAncestor = new Pair<Integer, Integer>(0,0);
 		Pair<Integer, Integer> maxNodesInCommonSuccessor = new Pair<Integer, Integer>(0,0); //first integer is the max of nodes in common, the second one is the number of 0 in the corresponding bit list
@@ -588,18 +583,18 @@ public class CompressedTextFile extends AbstractStorage {
 		String bitlistAncestor = "";
 		int layerAncestor = 1;
 		Integer referenceAncestor = -1;
-		SortedSet<Integer> referenceAncestorList = new TreeSet<Integer>();
+		SortedIntSet referenceAncestorList = new SortedIntSet();
 		//NodeLayerAncestorSuccessor referenceSuccessor = currentNode;
 		String bitlistSuccessor = "";
 		int layerSuccessor = 1;
 		Integer referenceSuccessor = -1;
-		SortedSet<Integer> referenceSuccessorList = new TreeSet<Integer>();
+		SortedIntSet referenceSuccessorList = new SortedIntSet();
 		//Iterator<NodeLayerAncestorSuccessor> iteratorPossibleReference = lastNodesSeen.iterator(); 
 		//while (iteratorPossibleReference.hasNext()){
 		//System.out.println("step 1");
 		for (Integer possibleReferenceID = 1; possibleReferenceID<id; possibleReferenceID ++){
 			//for each node in the W last nodes seen, compute the proximity, i.e. the number of successors of the current node that also are successors of the possibleReference node.
-			Pair<Pair<Integer, SortedSet<Integer>>, Pair<Integer, SortedSet<Integer>>> asl = uncompressAncestorsSuccessorsWithLayer(possibleReferenceID, true, true); 
+			Pair<Pair<Integer, SortedIntSet>, Pair<Integer, SortedIntSet>> asl = uncompressAncestorsSuccessorsWithLayer(possibleReferenceID, true, true); 
 			if(asl.first().first() < L) {
 				//System.out.println("step 1.1");
 				Pair<Pair<Integer, Integer>, String> nodesInCommonAncestor = commonNodes(asl.first().second(), ancestors);
@@ -638,7 +633,7 @@ public class CompressedTextFile extends AbstractStorage {
 		//System.out.println("step 6");
 
 		//encode ancestor list
-		SortedSet<Integer> remainingNodesAncestor = new TreeSet<Integer>();
+		SortedIntSet remainingNodesAncestor = new SortedIntSet();
 		remainingNodesAncestor.addAll(ancestors);
 		//encode reference
 		//String encoding = id.toString() + " ";
@@ -652,10 +647,11 @@ public class CompressedTextFile extends AbstractStorage {
 		}
 
 		//encode consecutive nodes and delta encoding
-		Integer previousNode = id;
+		int previousNode = id;
 		int countConsecutives = 0;
-		for (Integer nodeID : remainingNodesAncestor) {
-			Integer delta = nodeID - previousNode; 
+		for (int i = 0; i < remainingNodesAncestor.size(); i++) {
+			int nodeID = remainingNodesAncestor.get(i);
+			int delta = nodeID - previousNode; 
 			if (delta == 1) {
 				countConsecutives++;
 			} else {
@@ -671,7 +667,7 @@ public class CompressedTextFile extends AbstractStorage {
 
 		}		
 		// encode successor list
-		SortedSet<Integer> remainingNodesSuccessor = new TreeSet<Integer>();
+		SortedIntSet remainingNodesSuccessor = new SortedIntSet();
 		remainingNodesSuccessor.addAll(successors);
 		//encode reference
 		encoding = encoding + " / " + layerSuccessor + " ";
@@ -686,8 +682,9 @@ public class CompressedTextFile extends AbstractStorage {
 		//encode consecutive nodes and delta encoding
 		previousNode = id;
 		countConsecutives = 0;
-		for (Integer nodeID : remainingNodesSuccessor) {
-			Integer delta = nodeID - previousNode; 
+		for (int i = 0; i < remainingNodesSuccessor.size(); i++) {
+			int nodeID = remainingNodesSuccessor.get(i);
+			int delta = nodeID - previousNode; 
 			if (delta == 1) {
 				countConsecutives++;
 			} else {
@@ -708,22 +705,22 @@ public class CompressedTextFile extends AbstractStorage {
 		return true;
 	}
 
-	public static Pair<Pair<Integer, Integer>, String> commonNodes(SortedSet<Integer> reference,
-			SortedSet<Integer> node) {
+	public static Pair<Pair<Integer, Integer>, String> commonNodes(SortedIntSet reference,
+			SortedIntSet node) {
 		int nodesInCommon = 0;
 		int numberOfZero = 0;
-		String bitlist = "";
-		for (Integer successor : reference) {
-			if (node.contains(successor)) {
+		StringBuilder bitlist = new StringBuilder(reference.size());
+		for (int i = 0; i < reference.size(); i++) {
+			if (node.contains(reference.get(i))) {
 				nodesInCommon++;
-				bitlist = bitlist + "1";
+				bitlist.append('1');
 			} else {
 				numberOfZero++;
-				bitlist = bitlist + "0";
+				bitlist.append('0');
 			}
 		}
 		Pair<Integer, Integer> count = new Pair<Integer, Integer>(nodesInCommon, numberOfZero);
-		return new Pair<Pair<Integer, Integer>, String>(count, bitlist);
+		return new Pair<Pair<Integer, Integer>, String>(count, bitlist.toString());
 	}
 
 
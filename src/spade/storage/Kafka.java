@@ -32,6 +32,7 @@ import spade.storage.kafka.Edge;
 import spade.storage.kafka.FileWriter;
 import spade.storage.kafka.GraphElement;
 import spade.storage.kafka.JsonFileWriter;
+import spade.storage.kafka.PipelinedWriter;
 import spade.storage.kafka.ServerWriter;
 import spade.storage.kafka.Vertex;
 import spade.utility.CommonFunctions;
@@ -53,7 +54,12 @@ public class Kafka extends AbstractStorage{
 			SCHEMA_FILE_KEY = "schema",
 			SERVER_KEY = "kafkaserver",
 			TOPIC_KEY = "kafkatopic",
-			PRODUCER_ID_KEY = "kafkaproducerid";
+			PRODUCER_ID_KEY = "kafkaproducerid",
+			PIPELINE_KEY = "pipeline",
+			SERIALIZER_THREADS_KEY = "serializerthreads",
+			BATCH_RECORDS_KEY = "batchrecords",
+			LINGER_MILLIS_KEY = "lingermillis",
+			IN_FLIGHT_BATCHES_KEY = "inflightbatches";
 	
 	private static final Logger logger = Logger.getLogger(Kafka.class.getName());
 
@@ -61,6 +67,11 @@ public class Kafka extends AbstractStorage{
     
     private List<DataWriter> dataWriters = new ArrayList<DataWriter>();
     
+    //pipelined publishing. Off by default.
+    private boolean pipeline = false;
+    private int serializerThreads = 2, batchRecords = 1000, inFlightBatches = 16;
+    private long lingerMillis = 100;
+    
     private String defaultConfigFilePath = Settings.getDefaultConfigFilePath(this.getClass()); //depending on the instance get the correct config file
   	
     public boolean writeDataToServer(Map<String, String> args){
@@ -84,6 +95,10 @@ public class Kafka extends AbstractStorage{
            
             Map<String, String> passedArguments = CommonFunctions.makeKeysLowerCase(CommonFunctions.parseKeyValPairs(arguments));
             
+            if(!initializePipeline(passedArguments)){
+            	return false;
+            }
+            
             //if output file key exists then handle as file 
             if(passedArguments.get(OUTPUT_FILE_KEY) != null){  
             	
@@ -108,7 +123,7 @@ public class Kafka extends AbstractStorage{
             		logger.log(Level.SEVERE, "Failed to create file writer");
             		return false;
             	}else{
-            		dataWriters.add(dataWriter);
+            		dataWriters.add(pipelined(dataWriter));
             	}
             	
             } 
@@ -181,7 +196,7 @@ public class Kafka extends AbstractStorage{
 	            	return false;
 	            }
 	            
-	            dataWriters.add(dataWriter);
+	            dataWriters.add(pipelined(dataWriter));
             }      
             
             return true;
@@ -191,6 +206,42 @@ public class Kafka extends AbstractStorage{
         }
 	}
 	
+	/**
+	 * Reads the arguments of pipelined publishing:
+	 * pipeline=true [serializerThreads=2] [batchRecords=1000] [lingerMillis=100] [inFlightBatches=16]
+	 * 
+	 * @param passedArguments arguments with keys in lower case
+	 * @return false if an argument is invalid
+	 */
+	private boolean initializePipeline(Map<String, String> passedArguments){
+		pipeline = "true".equalsIgnoreCase(passedArguments.get(PIPELINE_KEY));
+		if(pipeline){
+			Integer serializerThreadsArg = CommonFunctions.parseInt(passedArguments.get(SERIALIZER_THREADS_KEY), serializerThreads);
+			Integer batchRecordsArg = CommonFunctions.parseInt(passedArguments.get(BATCH_RECORDS_KEY), batchRecords);
+			Long lingerMillisArg = CommonFunctions.parseLong(passedArguments.get(LINGER_MILLIS_KEY), lingerMillis);
+			Integer inFlightBatchesArg = CommonFunctions.parseInt(passedArguments.get(IN_FLIGHT_BATCHES_KEY), inFlightBatches);
+			if(serializerThreadsArg < 1 || batchRecordsArg < 1 || lingerMillisArg < 1 || inFlightBatchesArg < 1){
+				logger.log(Level.WARNING, "Failed to initialize storage. Pipeline arguments must be positive integers.");
+				return false;
+			}
+			serializerThreads = serializerThreadsArg;
+			batchRecords = batchRecordsArg;
+			lingerMillis = lingerMillisArg;
+			inFlightBatches = inFlightBatchesArg;
+			logger.log(Level.INFO,
+					"Pipelined publishing: SerializerThreads={0} BatchRecords={1} LingerMillis={2} InFlightBatches={3}",
+					new Object[]{serializerThreads, batchRecords, lingerMillis, inFlightBatches});
+		}
+		return true;
+	}
+	
+	private DataWriter pipelined(DataWriter dataWriter){
+		if(pipeline){
+			return new PipelinedWriter(dataWriter, serializerThreads, batchRecords, lingerMillis, inFlightBatches);
+		}
+		return dataWriter;
+	}
+	
 	public static DataWriter getDataWriter(Properties properties) throws Exception{
 		if(properties.get(Kafka.OUTPUT_FILE_KEY) != null){
 			if(String.valueOf(properties.get(Kafka.OUTPUT_FILE_KEY)).endsWith(".json")){
@@ -29,16 +29,19 @@ import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.nio.ByteBuffer;
 import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
 import java.util.logging.Level;
 import java.util.logging.Logger;
-import java.util.LinkedList;
 import java.util.Calendar;
 import java.util.Date;
 
+import com.googlecode.concurrentlinkedhashmap.ConcurrentLinkedHashMap;
 import org.apache.commons.codec.digest.DigestUtils;
 import org.neo4j.graphalgo.GraphAlgoFactory;
 import org.neo4j.graphalgo.PathFinder;
@@ -78,38 +81,45 @@ import spade.core.BloomFilter;
 public class Neo4j extends AbstractStorage {
 
     // Identifying annotation to add to each edge/vertex
-    private static final String ID_STRING = Settings.getProperty("storage_identifier");
+    static final String ID_STRING = Settings.getProperty("storage_identifier");
     private static final String DIRECTION_ANCESTORS = Settings.getProperty("direction_ancestors");
     private static final String DIRECTION_DESCENDANTS = Settings.getProperty("direction_descendants");
     private static final String DIRECTION_BOTH = Settings.getProperty("direction_both");
-    private static final String VERTEX_INDEX = "vertexIndex";
-    private static final String EDGE_INDEX = "edgeIndex";
+    static final String VERTEX_INDEX = "vertexIndex";
+    static final String EDGE_INDEX = "edgeIndex";
     private GraphDatabaseService graphDb;
     private IndexManager index;
     private Index<Node> vertexIndex;
     private RelationshipIndex edgeIndex;
     static final Logger logger = Logger.getLogger(Neo4j.class.getName());
-    private final String NEO_CONFIG_FILE = "cfg/neo4j.properties";
+    static final String NEO_CONFIG_FILE = "cfg/neo4j.properties";
 
     public enum RelationshipTypes implements RelationshipType { EDGE }
     public enum NodeTypes implements Label { VERTEX }
     private String neo4jDatabaseDirectoryPath = null;
 
-  	public final String HASHCODE_LABEL = "hashCode";
-  	private double falsePositiveProbability = 0.0001;
+  	public static final String HASHCODE_LABEL = "hashCode";
+  	static final double falsePositiveProbability = 0.0001;
 
     // Performance tuning note: Set this to higher value (up to Integer.MAX_VALUE) to reduce db hit rate.
     // Downside: This would eat more heap at start time.
-  	private int expectedNumberOfElements = 1000000;
+  	static final int expectedNumberOfElements = 1000000;
     private BloomFilter<String> nodeBloomFilter;
     private BloomFilter<String> edgeBloomFilter;
-    private LinkedList<String> localNodeHashQueue = new LinkedList<String>();
-    private HashMap<String, Node> localNodeCache = new HashMap<String, Node>();
 
-    // Performance tuning note: Depending on data locality, you can increase this FIFO cache size.
+    // Performance tuning note: Depending on data locality, you can increase this LRU cache size.
     // Performance tuning note: Set this to higher value (e.g. 1000000) to reduce db hit rate.
     // Downside: This would eat more heap.
   	private final int NODE_VERTEX_LOCAL_CACHE_SIZE = 1000000;
+    private final AtomicLong nodeCacheHitCount = new AtomicLong();
+    private final AtomicLong nodeCacheMissCount = new AtomicLong();
+    private final AtomicLong nodeCacheEvictionCount = new AtomicLong();
+    // Least recently used nodes are evicted first, so frequently used process vertices stay cached
+    private final ConcurrentLinkedHashMap<NodeCacheKey, Node> localNodeCache =
+            new ConcurrentLinkedHashMap.Builder<NodeCacheKey, Node>()
+                    .maximumWeightedCapacity(NODE_VERTEX_LOCAL_CACHE_SIZE)
+                    .listener((key, node) -> nodeCacheEvictionCount.incrementAndGet())
+                    .build();
     // Performance tuning note: Set this to higher value (e.g. 100000) to commit less often to db - This increases ingestion rate.
     // Downside: Any external (non atomic) quering to database won't report non-commited data.
     private final int GLOBAL_TX_SIZE = 100000;
@@ -117,8 +127,8 @@ public class Neo4j extends AbstractStorage {
     // Downside: Any external (non atomic) quering to database won't report non-commited data.
     private final int MAX_WAIT_TIME_BEFORE_FLUSH = 15000; // ms
     private final boolean LOG_PERFORMANCE_STATS = true;
-    private final String NODE_BLOOMFILTER = "spade-neo4j-node-bloomfilter";
-    private final String EDGE_BLOOMFILTER = "spade-neo4j-edge-bloomfilter";
+    static final String NODE_BLOOMFILTER = "spade-neo4j-node-bloomfilter";
+    static final String EDGE_BLOOMFILTER = "spade-neo4j-edge-bloomfilter";
 
     private Transaction globalTx;
   	private int globalTxCount=0;
@@ -134,20 +144,45 @@ public class Neo4j extends AbstractStorage {
   	private int edgeCount = 0;
     private int dbHitCountForVertex = 0;
     private int dbHitCountForEdge = 0;
-    private int nodeFoundInLocalCacheCount = 0;
     private int foundInDbCount = 0;
     private int falsePositiveCount = 0;
     private Date reportProgressDate;
-
-  	private int vertexCountTmp = 0;
-  	private int edgeCountTmp = 0;
-    private int dbHitCountForVertexTmp = 0;
-    private int dbHitCountForEdgeTmp = 0;
-    private int nodeFoundInLocalCacheCountTmp = 0;
-    private int foundInDbCountTmp = 0;
-    private int falsePositiveCountTmp = 0;
+    // totals at the time of the last progress report, by name
+    private final Map<String, Long> reportedCounts = new HashMap<>();
     //
 
+    /**
+     * Key of the local node cache holding the 128 bits of the vertex digest, which
+     * is much smaller than its hex string.
+     */
+    private static final class NodeCacheKey {
+        private final long high;
+        private final long low;
+
+        private NodeCacheKey(byte[] digest) {
+            ByteBuffer buffer = ByteBuffer.wrap(digest);
+            high = buffer.getLong();
+            low = buffer.getLong();
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            if (this == other) {
+                return true;
+            }
+            if (!(other instanceof NodeCacheKey)) {
+                return false;
+            }
+            NodeCacheKey key = (NodeCacheKey) other;
+            return high == key.high && low == key.low;
+        }
+
+        @Override
+        public int hashCode() {
+            return (int) (low ^ (low >>> 32));
+        }
+    }
+
     @Override
     public boolean initialize(String arguments) {
         try {
@@ -211,7 +246,7 @@ public class Neo4j extends AbstractStorage {
       	return new BloomFilter<Integer>(falsePositiveProbability, expectedNumberOfElements);
     }
 
-    private void saveBloomFilter(String fileName, BloomFilter bloomFilter) {
+    static void saveBloomFilter(String neo4jDatabaseDirectoryPath, String fileName, BloomFilter bloomFilter) {
 
     	try {
     		FileOutputStream fileOutputStream = new FileOutputStream(
@@ -303,8 +338,8 @@ public class Neo4j extends AbstractStorage {
         if (LOG_PERFORMANCE_STATS==true) {
           logger.log(Level.INFO, "Database shutdown completed");
         }
-        saveBloomFilter(NODE_BLOOMFILTER, nodeBloomFilter);
-        saveBloomFilter(EDGE_BLOOMFILTER, edgeBloomFilter);
+        saveBloomFilter(neo4jDatabaseDirectoryPath, NODE_BLOOMFILTER, nodeBloomFilter);
+        saveBloomFilter(neo4jDatabaseDirectoryPath, EDGE_BLOOMFILTER, edgeBloomFilter);
         
         if (LOG_PERFORMANCE_STATS==true) {
           logger.log(Level.INFO, "All chores completed!");
@@ -320,36 +355,43 @@ public class Neo4j extends AbstractStorage {
 
         long diff = Calendar.getInstance().getTime().getTime() - reportProgressDate.getTime();
         if (diff > reportProgressAverageTime) {
-            logger.log(Level.INFO, "Node L1: Rate: " + (int) (falsePositiveCount - falsePositiveCountTmp)/(diff/reportProgressAverageTime) + " confirmed false +tive/min. Bloom filter false +tive probability: " + nodeBloomFilter.getFalsePositiveProbability() + " Bloom filter elements count: " + nodeBloomFilter.count());
-            logger.log(Level.INFO, "Node L2: Rate: " + (int) (nodeFoundInLocalCacheCount - nodeFoundInLocalCacheCountTmp)/(diff/reportProgressAverageTime) + " node detection from local cache/min. Total: " + nodeFoundInLocalCacheCount);
-            logger.log(Level.INFO, "Node L2: Rate: " + (int) (100.0*localNodeHashQueue.size()/NODE_VERTEX_LOCAL_CACHE_SIZE) + " % local node cache filled. Total: " + NODE_VERTEX_LOCAL_CACHE_SIZE);
-            logger.log(Level.INFO, "Node L3: Rate: " + (int) (dbHitCountForVertex - dbHitCountForVertexTmp)/(diff/reportProgressAverageTime) + " db hit for vertexes from putVertices /min. Total: " + dbHitCountForVertex);
-            logger.log(Level.INFO, "Node L3: Rate: " + (int) (foundInDbCount - foundInDbCountTmp)/(diff/reportProgressAverageTime) + " detection from db/min. Total: " + foundInDbCount);
-
-            logger.log(Level.INFO, "Edges Rate: " + (int) (dbHitCountForEdge - dbHitCountForEdgeTmp)/(diff/reportProgressAverageTime) + " db hit for vertices from putEdges /min. Total: " + dbHitCountForEdge);
-            logger.log(Level.INFO, "Count Vertices: " + (int) (vertexCount - vertexCountTmp)/(diff/reportProgressAverageTime) + " nodes/min. Total: " + vertexCount);
-            logger.log(Level.INFO, "Count Edges: " + (int) (edgeCount - edgeCountTmp)/(diff/reportProgressAverageTime) + " edges/min. Total: " + edgeCount);
+            long intervals = diff / reportProgressAverageTime;
+            logger.log(Level.INFO, "Node L1: Rate: " + rate("falsePositive", falsePositiveCount, intervals) + " confirmed false +tive/min. Bloom filter false +tive probability: " + nodeBloomFilter.getFalsePositiveProbability() + " Bloom filter elements count: " + nodeBloomFilter.count());
+            logger.log(Level.INFO, "Node L2: Rate: " + rate("nodeCacheHit", nodeCacheHitCount.get(), intervals) + " hits/min, " + rate("nodeCacheMiss", nodeCacheMissCount.get(), intervals) + " misses/min, " + rate("nodeCacheEviction", nodeCacheEvictionCount.get(), intervals) + " evictions/min in local node cache. Total hits: " + nodeCacheHitCount.get() + " misses: " + nodeCacheMissCount.get() + " evictions: " + nodeCacheEvictionCount.get());
+            logger.log(Level.INFO, "Node L2: Rate: " + (int) (100.0*localNodeCache.size()/NODE_VERTEX_LOCAL_CACHE_SIZE) + " % local node cache filled. Total: " + NODE_VERTEX_LOCAL_CACHE_SIZE);
+            logger.log(Level.INFO, "Node L3: Rate: " + rate("dbHitForVertex", dbHitCountForVertex, intervals) + " db hit for vertexes from putVertices /min. Total: " + dbHitCountForVertex);
+            logger.log(Level.INFO, "Node L3: Rate: " + rate("foundInDb", foundInDbCount, intervals) + " detection from db/min. Total: " + foundInDbCount);
+
+            logger.log(Level.INFO, "Edges Rate: " + rate("dbHitForEdge", dbHitCountForEdge, intervals) + " db hit for vertices from putEdges /min. Total: " + dbHitCountForEdge);
+            logger.log(Level.INFO, "Count Vertices: " + rate("vertex", vertexCount, intervals) + " nodes/min. Total: " + vertexCount);
+            logger.log(Level.INFO, "Count Edges: " + rate("edge", edgeCount, intervals) + " edges/min. Total: " + edgeCount);
             logger.log(Level.INFO, "Heap Size: " + Runtime.getRuntime().totalMemory() + " bytes");
 
             reportProgressDate = Calendar.getInstance().getTime();
-
-            vertexCountTmp = vertexCount;
-            edgeCountTmp = edgeCount;
-            dbHitCountForVertexTmp = dbHitCountForVertex;
-            nodeFoundInLocalCacheCountTmp = nodeFoundInLocalCacheCount;
-            foundInDbCountTmp = foundInDbCount;
-            dbHitCountForEdgeTmp = dbHitCountForEdge;
-            falsePositiveCountTmp = falsePositiveCount;
         }
     }
 
-    public void putInLocalCache(Node vertex, String bigHashCode) {
-  		if (localNodeHashQueue.size() > NODE_VERTEX_LOCAL_CACHE_SIZE) {
-  		    localNodeCache.remove(localNodeHashQueue.removeFirst());
-  		}
+    /**
+     * Returns the increase of the named total per reporting interval since the
+     * last report, and remembers the total for the next one.
+     */
+    private long rate(String name, long total, long intervals) {
+        Long reported = reportedCounts.put(name, total);
+        return (total - (reported == null ? 0 : reported)) / intervals;
+    }
 
-      localNodeHashQueue.add(bigHashCode);
-      localNodeCache.put(bigHashCode, vertex);
+    private void putInLocalCache(Node vertex, NodeCacheKey key) {
+      localNodeCache.put(key, vertex);
+    }
+
+    private Node getFromLocalCache(NodeCacheKey key) {
+      Node node = localNodeCache.get(key);
+      if (node != null) {
+        nodeCacheHitCount.incrementAndGet();
+      } else {
+        nodeCacheMissCount.incrementAndGet();
+      }
+      return node;
     }
 
     void globalTxCheckin() {
@@ -377,22 +419,31 @@ public class Neo4j extends AbstractStorage {
 
     @Override
     public boolean putVertex(AbstractVertex incomingVertex) {
-      String bigHashCode = incomingVertex.bigHashCode();
     	globalTxCheckin();
+    	return insertVertex(incomingVertex);
+    }
+
+    /**
+     * Inserts the vertex in the current global transaction.
+     *
+     * @return false if the vertex was already present
+     */
+    private boolean insertVertex(AbstractVertex incomingVertex) {
+      String bigHashCode = incomingVertex.bigHashCode();
+      NodeCacheKey cacheKey = new NodeCacheKey(incomingVertex.bigHashCodeBytes());
 
     	try {
         if (nodeBloomFilter.contains(bigHashCode)) { // L1, confirming if its false +tive
-          if (localNodeCache.containsKey(bigHashCode)) { // L2
-            	nodeFoundInLocalCacheCount++;
+          if (getFromLocalCache(cacheKey) != null) { // L2
               return false;
           }
           dbHitCountForVertex++;
 
-          // L3: confirming from db if we have bloom filter false postive after FIFO cache miss
+          // L3: confirming from db if we have bloom filter false postive after LRU cache miss
           Node newVertex;
           newVertex = vertexIndex.get(HASHCODE_LABEL, bigHashCode).getSingle();
         	if (newVertex != null) {
-             putInLocalCache(newVertex, bigHashCode);
+             putInLocalCache(newVertex, cacheKey);
              foundInDbCount++;
              return false;
           } else {
@@ -418,7 +469,7 @@ public class Neo4j extends AbstractStorage {
         newVertex.setProperty(ID_STRING, newVertex.getId());
         vertexIndex.add(newVertex, ID_STRING, Long.toString(newVertex.getId()));
         nodeBloomFilter.add(bigHashCode);
-        putInLocalCache(newVertex, bigHashCode);
+        putInLocalCache(newVertex, cacheKey);
 
       } finally {
 
@@ -429,6 +480,16 @@ public class Neo4j extends AbstractStorage {
 
     @Override
     public boolean putEdge(AbstractEdge incomingEdge) {
+        globalTxCheckin();
+        return insertEdge(incomingEdge);
+    }
+
+    /**
+     * Inserts the edge, and its end points if missing, in the current global transaction.
+     *
+     * @return true if the edge was inserted or already present
+     */
+    private boolean insertEdge(AbstractEdge incomingEdge) {
         String bigHashCode = incomingEdge.bigHashCode();
         if (edgeBloomFilter.contains(bigHashCode)) {
             Relationship edge;
@@ -444,23 +505,24 @@ public class Neo4j extends AbstractStorage {
         
         AbstractVertex srcVertex = incomingEdge.getChildVertex();
         AbstractVertex dstVertex = incomingEdge.getParentVertex();
-        globalTxCheckin();
 
         try {
             String srcVertexBigHashCode = srcVertex.bigHashCode();
+            NodeCacheKey srcCacheKey = new NodeCacheKey(srcVertex.bigHashCodeBytes());
             String dstVertexBigHashCode = dstVertex.bigHashCode();
-            Node srcNode = localNodeCache.get(srcVertexBigHashCode);
-            Node dstNode = localNodeCache.get(dstVertexBigHashCode);
+            NodeCacheKey dstCacheKey = new NodeCacheKey(dstVertex.bigHashCodeBytes());
+            Node srcNode = getFromLocalCache(srcCacheKey);
+            Node dstNode = getFromLocalCache(dstCacheKey);
 
             if (srcNode == null) {
                 dbHitCountForEdge++;
                 srcNode = vertexIndex.get(HASHCODE_LABEL, srcVertexBigHashCode).getSingle();
                 if (srcNode == null) {
                     // insert vertex if not in db
-                    putVertex(srcVertex);
-                    srcNode = localNodeCache.get(srcVertexBigHashCode);
+                    insertVertex(srcVertex);
+                    srcNode = localNodeCache.get(srcCacheKey);
                 }
-                putInLocalCache(srcNode, srcVertexBigHashCode);
+                putInLocalCache(srcNode, srcCacheKey);
             }
 
             if (dstNode == null) {
@@ -468,10 +530,10 @@ public class Neo4j extends AbstractStorage {
                 dstNode = vertexIndex.get(HASHCODE_LABEL, dstVertexBigHashCode).getSingle();
                 if (dstNode == null) {
                     // insert vertex if not in db
-                    putVertex(dstVertex);
-                    dstNode = localNodeCache.get(dstVertexBigHashCode);
+                    insertVertex(dstVertex);
+                    dstNode = localNodeCache.get(dstCacheKey);
                 }
-                putInLocalCache(dstNode, dstVertexBigHashCode);
+                putInLocalCache(dstNode, dstCacheKey);
             }
 
             edgeCount++;
@@ -499,6 +561,38 @@ public class Neo4j extends AbstractStorage {
         return true;
     }
 
+    /**
+     * Inserts the whole batch in one transaction. The current global transaction
+     * is committed first if the batch would make it exceed GLOBAL_TX_SIZE.
+     */
+    @Override
+    public boolean putBatch(List<AbstractVertex> vertices, List<AbstractEdge> edges) {
+        int batchSize = vertices.size() + edges.size();
+        if (globalTxCount > 0 && globalTxCount + batchSize > GLOBAL_TX_SIZE) {
+            globalTxFinalize();
+        }
+        if (globalTxCount == 0) {
+            globalTx = graphDb.beginTx();
+        }
+        globalTxCount += batchSize;
+
+        long insertedVertices = 0;
+        long insertedEdges = 0;
+        for (AbstractVertex vertex : vertices) {
+            if (insertVertex(vertex)) {
+                insertedVertices++;
+            }
+        }
+        for (AbstractEdge edge : edges) {
+            if (insertEdge(edge)) {
+                insertedEdges++;
+            }
+        }
+        incrementVertexCount(insertedVertices);
+        incrementEdgeCount(insertedEdges);
+        return true;
+    }
+
     public static AbstractVertex convertNodeToVertex(Node node) {
         AbstractVertex resultVertex = new Vertex();
         for (String key : node.getPropertyKeys()) {
@@ -538,7 +632,6 @@ public class Neo4j extends AbstractStorage {
             }
             queryHits.close();
             tx.success();
-            resultGraph.commitIndex();
             return resultGraph;
         }
     }
@@ -594,7 +687,6 @@ public class Neo4j extends AbstractStorage {
             queryHits.close();
             tx.success();
         }
-        resultGraph.commitIndex();
         return resultGraph;
     }
 
@@ -610,7 +702,6 @@ public class Neo4j extends AbstractStorage {
             queryHits.close();
             tx.success();
         }
-        resultGraph.commitIndex();
         return resultGraph;
     }
 
@@ -664,7 +755,6 @@ public class Neo4j extends AbstractStorage {
             }
         }
 
-        resultGraph.commitIndex();
         return resultGraph;
     }
 
@@ -760,7 +850,6 @@ public class Neo4j extends AbstractStorage {
             currentDepth++;
         }
 
-        resultGraph.commitIndex();
         return resultGraph;
     }
 
@@ -0,0 +1,294 @@
+/*
+ --------------------------------------------------------------------------------
+ SPADE - Support for Provenance Auditing in Distributed Environments.
+ Copyright (C) 2016 SRI International
+
+ This program is free software: you can redistribute it and/or
+ modify it under the terms of the GNU General Public License as
+ published by the Free Software Foundation, either version 3 of the
+ License, or (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program. If not, see <http://www.gnu.org/licenses/>.
+ --------------------------------------------------------------------------------
+ */
+package spade.storage;
+
+import org.neo4j.graphdb.factory.GraphDatabaseSettings;
+import org.neo4j.helpers.collection.MapUtil;
+import org.neo4j.index.impl.lucene.LuceneIndexImplementation;
+import org.neo4j.index.lucene.unsafe.batchinsert.LuceneBatchInserterIndexProvider;
+import org.neo4j.unsafe.batchinsert.BatchInserter;
+import org.neo4j.unsafe.batchinsert.BatchInserterIndex;
+import org.neo4j.unsafe.batchinsert.BatchInserterIndexProvider;
+import org.neo4j.unsafe.batchinsert.BatchInserters;
+import spade.core.AbstractEdge;
+import spade.core.AbstractStorage;
+import spade.core.AbstractVertex;
+import spade.core.BloomFilter;
+import spade.core.Graph;
+import spade.utility.CommonFunctions;
+import spade.utility.OffHeapDigestMap;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import static spade.storage.Neo4j.EDGE_BLOOMFILTER;
+import static spade.storage.Neo4j.EDGE_INDEX;
+import static spade.storage.Neo4j.HASHCODE_LABEL;
+import static spade.storage.Neo4j.ID_STRING;
+import static spade.storage.Neo4j.NEO_CONFIG_FILE;
+import static spade.storage.Neo4j.NODE_BLOOMFILTER;
+import static spade.storage.Neo4j.NodeTypes;
+import static spade.storage.Neo4j.RelationshipTypes;
+import static spade.storage.Neo4j.VERTEX_INDEX;
+import static spade.storage.Neo4j.expectedNumberOfElements;
+import static spade.storage.Neo4j.falsePositiveProbability;
+import static spade.storage.Neo4j.saveBloomFilter;
+
+/**
+ * Offline bulk loader for a new Neo4j database, e.g. when replaying audit logs.
+ * Vertices and edges are written with the Neo4j batch inserter, without
+ * transactions. Duplicates are detected by hash in off-heap maps, and the
+ * Lucene indexes are written once at shutdown. The resulting database, including
+ * its Bloom filters, has the same layout as one written by the Neo4j storage, which
+ * can open it afterwards. The database cannot be queried while it is being loaded.
+ *
+ * The expected numbers of vertices and edges size the Bloom filters, and the
+ * initial capacity of the off-heap maps, which grow as needed.
+ *
+ * Usage: add storage Neo4jBulkLoad path/to/new/database [expectedVertices=1000000] [expectedEdges=1000000]
+ */
+public class Neo4jBulkLoad extends AbstractStorage
+{
+    private static final Logger logger = Logger.getLogger(Neo4jBulkLoad.class.getName());
+    // store file that only exists once a database has been created
+    private static final String NEOSTORE_FILE = "neostore";
+
+    private String neo4jDatabaseDirectoryPath;
+    private BatchInserter inserter;
+    private BatchInserterIndexProvider indexProvider;
+    private BatchInserterIndex vertexIndex;
+    private BatchInserterIndex edgeIndex;
+    // node and relationship ids by digest
+    private OffHeapDigestMap nodeIds;
+    private OffHeapDigestMap relationshipIds;
+    private BloomFilter<String> nodeBloomFilter;
+    private BloomFilter<String> edgeBloomFilter;
+
+    @Override
+    public boolean initialize(String arguments)
+    {
+        String[] tokens = arguments == null ? new String[0] : arguments.trim().split("\\s+");
+        neo4jDatabaseDirectoryPath = tokens.length == 0 ? null : tokens[0];
+        if(neo4jDatabaseDirectoryPath == null || neo4jDatabaseDirectoryPath.isEmpty())
+        {
+            logger.log(Level.SEVERE, "Path of the database must be given");
+            return false;
+        }
+        Map<String, String> options = CommonFunctions.parseKeyValPairs(
+                String.join(" ", Arrays.asList(tokens).subList(1, tokens.length)));
+        Integer expectedVertices = parseExpectedCount(options, "expectedVertices");
+        Integer expectedEdges = parseExpectedCount(options, "expectedEdges");
+        if(expectedVertices == null || expectedEdges == null)
+        {
+            return false;
+        }
+        // duplicates could not be detected against the vertices already stored
+        if(new File(neo4jDatabaseDirectoryPath, NEOSTORE_FILE).exists())
+        {
+            logger.log(Level.SEVERE, "Bulk loading is only supported into a new database. "
+                    + "Use the Neo4j storage for existing database: " + neo4jDatabaseDirectoryPath);
+            return false;
+        }
+        try
+        {
+            Map<String, String> configuration = new HashMap<>();
+            File configurationFile = new File(NEO_CONFIG_FILE);
+            if(configurationFile.exists())
+            {
+                configuration.putAll(MapUtil.load(configurationFile));
+                // the batch inserter refuses to run with store upgrades allowed
+                configuration.remove(GraphDatabaseSettings.allow_store_upgrade.name());
+            }
+            inserter = BatchInserters.inserter(neo4jDatabaseDirectoryPath, configuration);
+            indexProvider = new LuceneBatchInserterIndexProvider(inserter);
+            vertexIndex = indexProvider.nodeIndex(VERTEX_INDEX, LuceneIndexImplementation.EXACT_CONFIG);
+            edgeIndex = indexProvider.relationshipIndex(EDGE_INDEX, LuceneIndexImplementation.EXACT_CONFIG);
+            nodeIds = new OffHeapDigestMap(expectedVertices);
+            relationshipIds = new OffHeapDigestMap(expectedEdges);
+            nodeBloomFilter = new BloomFilter<>(falsePositiveProbability, expectedVertices);
+            edgeBloomFilter = new BloomFilter<>(falsePositiveProbability, expectedEdges);
+
+            return true;
+        }
+        catch(Exception exception)
+        {
+            logger.log(Level.SEVERE, "Unable to create the batch inserter", exception);
+            if(inserter != null)
+            {
+                inserter.shutdown();
+            }
+            return false;
+        }
+    }
+
+    /**
+     * @return the value of the option, the default if it is absent, OR NULL if it is invalid
+     */
+    private static Integer parseExpectedCount(Map<String, String> options, String option)
+    {
+        String argument = options.get(option);
+        if(argument == null)
+        {
+            return expectedNumberOfElements;
+        }
+        Integer count = CommonFunctions.parseInt(argument, null);
+        if(count == null || count < 1)
+        {
+            logger.log(Level.SEVERE, "Invalid value for '" + option + "': " + argument);
+            return null;
+        }
+        return count;
+    }
+
+    @Override
+    public boolean shutdown()
+    {
+        try
+        {
+            logger.log(Level.INFO, "Building indexes of " + nodeIds.size() + " vertices and "
+                    + relationshipIds.size() + " edges");
+            vertexIndex.flush();
+            edgeIndex.flush();
+            indexProvider.shutdown();
+            inserter.shutdown();
+            saveBloomFilter(neo4jDatabaseDirectoryPath, NODE_BLOOMFILTER, nodeBloomFilter);
+            saveBloomFilter(neo4jDatabaseDirectoryPath, EDGE_BLOOMFILTER, edgeBloomFilter);
+            logger.log(Level.INFO, "Bulk load completed");
+            return true;
+        }
+        catch(Exception exception)
+        {
+            logger.log(Level.SEVERE, "Unable to complete bulk load", exception);
+            return false;
+        }
+        finally
+        {
+            nodeIds.close();
+            relationshipIds.close();
+        }
+    }
+
+    @Override
+    public boolean putVertex(AbstractVertex incomingVertex)
+    {
+        return insertVertex(incomingVertex) >= 0;
+    }
+
+    /**
+     * @return id of the new node, or -1 minus the id of the existing node
+     */
+    private long insertVertex(AbstractVertex incomingVertex)
+    {
+        byte[] digest = incomingVertex.bigHashCodeBytes();
+        long existingId = nodeIds.get(digest);
+        if(existingId != OffHeapDigestMap.NOT_FOUND)
+        {
+            return -1 - existingId;
+        }
+        String bigHashCode = incomingVertex.bigHashCode();
+        Map<String, Object> properties = prepareProperties(incomingVertex.getAnnotations(), bigHashCode);
+        long nodeId = inserter.createNode(properties, NodeTypes.VERTEX);
+        inserter.setNodeProperty(nodeId, ID_STRING, nodeId);
+        properties.put(ID_STRING, Long.toString(nodeId));
+        vertexIndex.add(nodeId, properties);
+        nodeIds.putIfAbsent(digest, nodeId);
+        nodeBloomFilter.add(bigHashCode);
+
+        return nodeId;
+    }
+
+    @Override
+    public boolean putEdge(AbstractEdge incomingEdge)
+    {
+        byte[] digest = incomingEdge.bigHashCodeBytes();
+        if(relationshipIds.get(digest) != OffHeapDigestMap.NOT_FOUND)
+        {
+            return true;
+        }
+        long childNodeId = nodeId(insertVertex(incomingEdge.getChildVertex()));
+        long parentNodeId = nodeId(insertVertex(incomingEdge.getParentVertex()));
+
+        String bigHashCode = incomingEdge.bigHashCode();
+        Map<String, Object> properties = prepareProperties(incomingEdge.getAnnotations(), bigHashCode);
+        long relationshipId = inserter.createRelationship(childNodeId, parentNodeId, RelationshipTypes.EDGE, properties);
+        inserter.setRelationshipProperty(relationshipId, ID_STRING, relationshipId);
+        properties.put(ID_STRING, Long.toString(relationshipId));
+        edgeIndex.add(relationshipId, properties);
+        relationshipIds.putIfAbsent(digest, relationshipId);
+        edgeBloomFilter.add(bigHashCode);
+
+        return true;
+    }
+
+    private static long nodeId(long insertedId)
+    {
+        return insertedId >= 0 ? insertedId : -1 - insertedId;
+    }
+
+    private static Map<String, Object> prepareProperties(Map<String, String> annotations, String bigHashCode)
+    {
+        Map<String, Object> properties = new HashMap<>(annotations.size() + 2);
+        for(Map.Entry<String, String> annotation : annotations.entrySet())
+        {
+            if(!annotation.getKey().equalsIgnoreCase(ID_STRING))
+            {
+                properties.put(annotation.getKey(), annotation.getValue());
+            }
+        }
+        properties.put(HASHCODE_LABEL, bigHashCode);
+
+        return properties;
+    }
+
+    @Override
+    public AbstractEdge getEdge(String childVertexHash, String parentVertexHash)
+    {
+        return null;
+    }
+
+    @Override
+    public AbstractVertex getVertex(String vertexHash)
+    {
+        return null;
+    }
+
+    @Override
+    public Graph getChildren(String parentHash)
+    {
+        return null;
+    }
+
+    @Override
+    public Graph getParents(String childVertexHash)
+    {
+        return null;
+    }
+
+    @Override
+    public Object executeQuery(String query)
+    {
+        logger.log(Level.WARNING, "Queries are not supported during bulk load");
+        return null;
+    }
+}
@@ -27,17 +27,30 @@ import spade.core.Edge;
 import spade.core.Graph;
 import spade.core.Vertex;
 import spade.query.scaffold.Scaffold;
+import spade.storage.sql.CopyStagingTable;
+import spade.storage.sql.CsvFileStagingTable;
+import spade.storage.sql.StagingTable;
+import spade.utility.CommonFunctions;
 
+import java.io.File;
 import java.sql.Connection;
 import java.sql.DriverManager;
+import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.ResultSetMetaData;
 import java.sql.SQLException;
 import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -45,11 +58,21 @@ import java.util.logging.Logger;
 /**
  * Basic SQL storage implementation.
  *
+ * Vertices and edges are inserted with one prepared statement per table and set
+ * of annotation keys, with the values bound as parameters. Inserts are batched and
+ * committed once the batch holds the configured number of rows or its first row is
+ * older than the configured time, and before every query.
+ *
+ * In copy mode, the batched rows are instead copied into staging tables, with COPY
+ * FROM STDIN in PostgreSQL and CSVREAD in H2, and then merged into the vertex and
+ * edge tables skipping the hashes already present.
+ *
  * @author Dawood Tariq, Hasanat Kazmi and Raza Ahmad
  */
 public class SQL extends AbstractStorage
 {
     private Connection dbConnection;
+    private String databaseDriver;
     private HashSet<String> vertexAnnotations;
     private HashSet<String> edgeAnnotations;
     private static final boolean ENABLE_SANITIZATION = true;
@@ -57,7 +80,79 @@ public class SQL extends AbstractStorage
     private static final String EDGE_TABLE = "edge";
     private static String DUPLICATE_COLUMN_ERROR_CODE;
     private static final Logger logger = Logger.getLogger(SQL.class.getName());
+    private static final int DEFAULT_BATCH_SIZE = 1000;
+    private static final long DEFAULT_COMMIT_MILLIS = 1000;
+    private static final int MAX_CACHED_STATEMENTS = 1024;
     private int CURSOR_FETCH_SIZE = 0;
+    private int batchSize = DEFAULT_BATCH_SIZE;
+    private long commitMillis = DEFAULT_COMMIT_MILLIS;
+    // Prepared inserts by the annotation keys of the elements
+    private final Map<Set<String>, InsertStatement> vertexInserts = new HashMap<>();
+    private final Map<Set<String>, InsertStatement> edgeInserts = new HashMap<>();
+    // Inserts with rows in their batch, in the order of their first row
+    private final Set<InsertStatement> pendingInserts = new LinkedHashSet<>();
+    // Hashes of the pending rows, to keep duplicates from failing the batch
+    private final Set<String> pendingHashes = new HashSet<>();
+    private int pendingRows = 0;
+    private long firstPendingMillis;
+    private ScheduledExecutorService commitTimer;
+    // Hashes of the inserted elements
+    private final Cache cache = new Cache();
+    private File cacheFile;
+    // True if the Bloom filter of the cache holds every hash in the tables
+    private boolean cacheIsComplete = false;
+    // Staging tables of copy mode, otherwise null
+    private StagingTable vertexStaging;
+    private StagingTable edgeStaging;
+
+    /**
+     * A prepared insert for one table and one set of annotation keys. The values
+     * of the rows in its batch are kept to retry them one at a time if the batch
+     * fails.
+     */
+    private static class InsertStatement
+    {
+        private final PreparedStatement statement;
+        private final String columns;
+        private final String[] annotationKeys;
+        private final StagingTable staging;
+        private final List<String[]> rows = new ArrayList<>();
+
+        private InsertStatement(PreparedStatement statement, String columns, String[] annotationKeys,
+                                StagingTable staging)
+        {
+            this.statement = statement;
+            this.columns = columns;
+            this.annotationKeys = annotationKeys;
+            this.staging = staging;
+        }
+    }
+
+    private static boolean isEmpty(Statement statement, String table) throws SQLException
+    {
+        try(ResultSet result = statement.executeQuery("SELECT 1 FROM " + table + " LIMIT 1"))
+        {
+            return !result.next();
+        }
+    }
+
+    /**
+     * @return true if the element with the given hash may be in the tables. Hashes
+     * are looked up in the Bloom filter of the cache only if it holds every hash in
+     * the tables.
+     */
+    private boolean mayBeStored(String hash)
+    {
+        return !cacheIsComplete || cache.mayBePresent(hash);
+    }
+
+    /**
+     * @return class name of the JDBC driver of the connection, e.g. org.postgresql.Driver
+     */
+    public String getDatabaseDriver()
+    {
+        return databaseDriver;
+    }
 
     public int getCursorFetchSize()
     {
@@ -76,6 +171,15 @@ public class SQL extends AbstractStorage
      * @param arguments A string of 4 space-separated tokens used for making a successful
      *                  connection to the database, of the following format:
      *                  'driver_name database_URL username password'
+     *                  optionally followed by 'batchSize=N' (default 1000), the rows
+     *                  after which inserts are committed, and 'commitMillis=N'
+     *                  (default 1000), the time after which they are committed.
+     *                  With 'copy=true', batches are loaded through staging tables,
+     *                  for PostgreSQL and H2 only. With 'cacheFile=path', the cache of
+     *                  inserted elements is loaded from the file and saved to it on
+     *                  shutdown; it must only be used with the same database. Queries
+     *                  skip hashes missing from the cache only if it was loaded or
+     *                  the tables were empty.
      *
      *                  Example argument strings are as follows:
      *                  *H2*
@@ -101,12 +205,37 @@ public class SQL extends AbstractStorage
         try
         {
             String[] tokens = arguments.split("\\s+");
-            String databaseDriver = tokens[0];
+            databaseDriver = tokens[0];
             // for postgres, it is jdbc:postgres://localhost/database_name
             // for h2, it is jdbc:h2:/tmp/spade.sql
             String databaseURL = tokens[1];
             String databaseUsername = tokens[2];
             String databasePassword = tokens[3];
+            boolean copy = false;
+            if(tokens.length > 4)
+            {
+                Map<String, String> options = CommonFunctions.parseKeyValPairs(
+                        String.join(" ", Arrays.asList(tokens).subList(4, tokens.length)));
+                if(options.containsKey("batchSize"))
+                {
+                    batchSize = CommonFunctions.parseInt(options.get("batchSize"), -1);
+                }
+                if(options.containsKey("commitMillis"))
+                {
+                    commitMillis = CommonFunctions.parseLong(options.get("commitMillis"), -1L);
+                }
+                if(batchSize < 1 || commitMillis < 1)
+                {
+                    logger.log(Level.SEVERE, "'batchSize' and 'commitMillis' must be positive integers");
+                    return false;
+                }
+                copy = "true".equalsIgnoreCase(options.get("copy"));
+                if(options.containsKey("cacheFile"))
+                {
+                    cacheFile = new File(options.get("cacheFile"));
+                    cacheIsComplete = cache.load(cacheFile);
+                }
+            }
 
             Class.forName(databaseDriver).newInstance();
             dbConnection = DriverManager.getConnection(databaseURL, databaseUsername, databasePassword);
@@ -155,6 +284,15 @@ public class SQL extends AbstractStorage
                     + "parentVertexHash UUID NOT NULL "
                     + ")";
             dbStatement.execute(createEdgeTable);
+            // Index the end points of edges for lineage queries
+            if(!databaseDriver.equals("org.mysql.Driver"))
+            {
+                String indexMethod = databaseDriver.equals("org.postgresql.Driver") ? " USING hash" : "";
+                dbStatement.execute("CREATE INDEX IF NOT EXISTS edge_child_index ON " + EDGE_TABLE
+                        + indexMethod + " (" + CHILD_VERTEX_KEY + ")");
+                dbStatement.execute("CREATE INDEX IF NOT EXISTS edge_parent_index ON " + EDGE_TABLE
+                        + indexMethod + " (" + PARENT_VERTEX_KEY + ")");
+            }
             query = "SELECT * FROM " + EDGE_TABLE + " WHERE false;";
             dbStatement.execute(query);
             result = dbStatement.executeQuery(query);
@@ -164,13 +302,42 @@ public class SQL extends AbstractStorage
             {
                 edgeAnnotations.add(metadata.getColumnLabel(i));
             }
+            // The cache only knows the hashes inserted since it was created or loaded
+            if(!cacheIsComplete)
+            {
+                cacheIsComplete = isEmpty(dbStatement, VERTEX_TABLE) && isEmpty(dbStatement, EDGE_TABLE);
+            }
             dbStatement.close();
+            if(copy)
+            {
+                switch(databaseDriver)
+                {
+                    case "org.postgresql.Driver":
+                        vertexStaging = new CopyStagingTable(dbConnection, VERTEX_TABLE, PRIMARY_KEY);
+                        edgeStaging = new CopyStagingTable(dbConnection, EDGE_TABLE, PRIMARY_KEY);
+                        break;
+                    case "org.h2.Driver":
+                        vertexStaging = new CsvFileStagingTable(dbConnection, VERTEX_TABLE, PRIMARY_KEY);
+                        edgeStaging = new CsvFileStagingTable(dbConnection, EDGE_TABLE, PRIMARY_KEY);
+                        break;
+                    default:
+                        logger.log(Level.SEVERE, "Copy mode is not supported for " + databaseDriver);
+                        dbConnection.close();
+                        return false;
+                }
+            }
             if(USE_SCAFFOLD)
             {
                 Scaffold scaffold = new Scaffold();
                 scaffold.initialize("/Users/raza/dev/scaffold/");
                 AbstractStorage.setScaffold(scaffold);
             }
+            commitTimer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "sql-commit");
+                thread.setDaemon(true);
+                return thread;
+            });
+            commitTimer.scheduleWithFixedDelay(this::flushIfDue, commitMillis, commitMillis, TimeUnit.MILLISECONDS);
 
             return true;
 
@@ -193,10 +360,21 @@ public class SQL extends AbstractStorage
     {
         try
         {
+            commitTimer.shutdownNow();
+            boolean success = flush();
+            closeInsertStatements();
             dbConnection.commit();
             dbConnection.close();
-            scaffold.shutdown();
-            return true;
+            logger.log(Level.INFO, cache.getStats());
+            if(cacheFile != null)
+            {
+                cache.save(cacheFile);
+            }
+            if(USE_SCAFFOLD)
+            {
+                scaffold.shutdown();
+            }
+            return success;
         }
         catch (Exception ex)
         {
@@ -238,16 +416,19 @@ public class SQL extends AbstractStorage
      */
     private boolean addColumn(String table_name, String column_name)
     {
-        // If this column has already been added before for this table, then return
-        if ((table_name.equalsIgnoreCase(VERTEX_TABLE)) && vertexAnnotations.contains(column_name.toLowerCase()))
+        // If this column has already been added before for this table, then return.
+        // Column names are quoted, and so case-sensitive.
+        if ((table_name.equalsIgnoreCase(VERTEX_TABLE)) && vertexAnnotations.contains(column_name))
         {
             return true;
         }
-        else if ((table_name.equalsIgnoreCase(EDGE_TABLE)) && edgeAnnotations.contains(column_name.toLowerCase()))
+        else if ((table_name.equalsIgnoreCase(EDGE_TABLE)) && edgeAnnotations.contains(column_name))
         {
             return true;
         }
 
+        // A failed statement rolls back the transaction, so commit the pending rows first
+        flush();
         try
         {
             Statement columnStatement = dbConnection.createStatement();
@@ -268,6 +449,7 @@ public class SQL extends AbstractStorage
             {
                 edgeAnnotations.add(column_name);
             }
+            invalidateStaging(table_name);
 
             return true;
         }
@@ -285,14 +467,16 @@ public class SQL extends AbstractStorage
             {
                 if (table_name.equalsIgnoreCase(VERTEX_TABLE))
                 {
-                    vertexAnnotations.add(column_name.toLowerCase());
+                    vertexAnnotations.add(column_name);
                 }
                 else if (table_name.equalsIgnoreCase(EDGE_TABLE))
                 {
-                    edgeAnnotations.add(column_name.toLowerCase());
+                    edgeAnnotations.add(column_name);
                 }
+                invalidateStaging(table_name);
                 return true;
             }
+            logger.log(Level.SEVERE, "Unable to add column " + column_name + " to table " + table_name, ex);
         }
         catch (Exception ex)
         {
@@ -302,6 +486,18 @@ public class SQL extends AbstractStorage
         return false;
     }
 
+    /**
+     * Recreates the staging table of the given table before the next copy, as its
+     * columns have changed.
+     */
+    private void invalidateStaging(String table_name)
+    {
+        StagingTable staging = table_name.equalsIgnoreCase(VERTEX_TABLE) ? vertexStaging : edgeStaging;
+        if(staging != null)
+        {
+            staging.invalidate();
+        }
+    }
 
     /**
      * This function queries the underlying storage and retrieves the edge
@@ -315,13 +511,13 @@ public class SQL extends AbstractStorage
     @Override
     public AbstractEdge getEdge(String childVertexHash, String parentVertexHash)
     {
-        if(!Cache.isPresent(childVertexHash) || !Cache.isPresent(parentVertexHash))
+        if(!mayBeStored(childVertexHash) || !mayBeStored(parentVertexHash))
             return null;
 
         AbstractEdge edge = null;
         try
         {
-            dbConnection.commit();
+            flush();
             AbstractVertex childVertex = getVertex(childVertexHash);
             AbstractVertex parentVertex = getVertex(parentVertexHash);
 
@@ -377,7 +573,7 @@ public class SQL extends AbstractStorage
     @Override
     public AbstractVertex getVertex(String vertexHash)
     {
-        if(!Cache.isPresent(vertexHash))
+        if(!mayBeStored(vertexHash))
             return null;
 
         String query = "SELECT * FROM " +
@@ -408,10 +604,10 @@ public class SQL extends AbstractStorage
     @Override
     public Graph getChildren(String parentHash)
     {
-        if(!Cache.isPresent(parentHash))
+        if(!mayBeStored(parentHash))
             return null;
 
-        Graph children = null;
+        Graph children = new Graph();
         String query = "SELECT * FROM " +
                 VERTEX_TABLE +
                 " WHERE " +
@@ -442,7 +638,7 @@ public class SQL extends AbstractStorage
         Set<AbstractVertex> vertexSet = new HashSet<>();
         try
         {
-            dbConnection.commit();
+            flush();
             Statement vertexStatement = dbConnection.createStatement();
             ResultSet result = vertexStatement.executeQuery(query);
             ResultSetMetaData metadata = result.getMetaData();
@@ -488,10 +684,10 @@ public class SQL extends AbstractStorage
     @Override
     public Graph getParents(String childVertexHash)
     {
-        if(!Cache.isPresent(childVertexHash))
+        if(!mayBeStored(childVertexHash))
             return null;
 
-        Graph parents = null;
+        Graph parents = new Graph();
         String query = "SELECT * FROM " +
                 VERTEX_TABLE +
                 " WHERE " +
@@ -511,93 +707,48 @@ public class SQL extends AbstractStorage
 
     /**
      * This function inserts the given edge into the underlying storage(s) and
-     * updates the cache(s) accordingly.
+     * updates the cache(s) accordingly. The edge is committed with the rest of
+     * its batch.
      *
      * @param incomingEdge edge to insert into the storage
      * @return returns true if the insertion is successful. Insertion is considered
      * not successful if the edge is already present in the storage.
      */
     @Override
-    public boolean putEdge(AbstractEdge incomingEdge)
+    public synchronized boolean putEdge(AbstractEdge incomingEdge)
     {
         String edgeHash = incomingEdge.bigHashCode();
-        if(Cache.isPresent(edgeHash))
+        if(cache.isPresent(edgeHash) || pendingHashes.contains(edgeHash))
             return true;
 
-        String childVertexHash = incomingEdge.getChildVertex().bigHashCode();
-        String parentVertexHash = incomingEdge.getParentVertex().bigHashCode();
-
-        // Use StringBuilder to build the SQL insert statement
-        StringBuilder insertStringBuilder = new StringBuilder(200);
-        insertStringBuilder.append("INSERT INTO ");
-        insertStringBuilder.append(EDGE_TABLE);
-        insertStringBuilder.append(" (");
-        insertStringBuilder.append(PRIMARY_KEY);
-        insertStringBuilder.append(", ");
-        if(!incomingEdge.getAnnotations().containsKey(CHILD_VERTEX_KEY))
-        {
-            insertStringBuilder.append(CHILD_VERTEX_KEY);
-            insertStringBuilder.append(", ");
-        }
-        if(!incomingEdge.getAnnotations().containsKey(PARENT_VERTEX_KEY))
-        {
-            insertStringBuilder.append(PARENT_VERTEX_KEY);
-            insertStringBuilder.append(", ");
-        }
-        for (String annotationKey : incomingEdge.getAnnotations().keySet())
-        {
-            // Sanitize column name to remove special characters
-            String newAnnotationKey = sanitizeColumn(annotationKey);
-
-            // As the annotation keys are being iterated, add them as new
-            // columns to the table_name if they do not already exist
-            addColumn(EDGE_TABLE, newAnnotationKey);
-
-            insertStringBuilder.append("\"");
-            insertStringBuilder.append(newAnnotationKey);
-            insertStringBuilder.append("\"");
-            insertStringBuilder.append(", ");
-        }
-
-        // Eliminate the last 2 characters from the string (", ") and begin adding values
-        String insertString = insertStringBuilder.substring(0, insertStringBuilder.length() - 2);
-        insertStringBuilder = new StringBuilder(insertString + ") VALUES ('");
-        // Add the hash code, and source and destination vertex Ids
-        insertStringBuilder.append(edgeHash);
-        insertStringBuilder.append("', ");
-        if(!incomingEdge.getAnnotations().containsKey(CHILD_VERTEX_KEY))
-        {
-            insertStringBuilder.append("'");
-            insertStringBuilder.append(childVertexHash);
-            insertStringBuilder.append("', ");
-        }
-        if(!incomingEdge.getAnnotations().containsKey(PARENT_VERTEX_KEY))
-        {
-            insertStringBuilder.append("'");
-            insertStringBuilder.append(parentVertexHash);
-            insertStringBuilder.append("', ");
-        }
-
-        // Add the annotation values
-        for (String annotationKey : incomingEdge.getAnnotations().keySet())
-        {
-            String value = (ENABLE_SANITIZATION) ? incomingEdge.getAnnotation(annotationKey).replace("'", "\"") : incomingEdge.getAnnotation(annotationKey);
-
-            insertStringBuilder.append("'");
-            insertStringBuilder.append(value);
-            insertStringBuilder.append("', ");
-        }
-        insertString = insertStringBuilder.substring(0, insertStringBuilder.length() - 2) + ")";
-
         try
         {
-            Statement s = dbConnection.createStatement();
-            s.execute(insertString);
+            Map<String, String> annotations = incomingEdge.getAnnotations();
+            InsertStatement insert = getInsertStatement(EDGE_TABLE, annotations.keySet());
+            boolean addChild = !annotations.containsKey(CHILD_VERTEX_KEY);
+            boolean addParent = !annotations.containsKey(PARENT_VERTEX_KEY);
+            String[] row = new String[1 + (addChild ? 1 : 0) + (addParent ? 1 : 0) + insert.annotationKeys.length];
+            int column = 0;
+            row[column++] = edgeHash;
+            if(addChild)
+            {
+                row[column++] = incomingEdge.getChildVertex().bigHashCode();
+            }
+            if(addParent)
+            {
+                row[column++] = incomingEdge.getParentVertex().bigHashCode();
+            }
+            for(String annotationKey : insert.annotationKeys)
+            {
+                row[column++] = incomingEdge.getAnnotation(annotationKey);
+            }
+            pendingHashes.add(edgeHash);
+            addRow(insert, row);
+            cache.addItem(incomingEdge);
             if(USE_SCAFFOLD)
             {
                 scaffold.insertEntry(incomingEdge);
             }
-            s.close();
         }
         catch (Exception e)
         {
@@ -609,78 +760,272 @@ public class SQL extends AbstractStorage
 
     /**
      * This function inserts the given vertex into the underlying storage(s) and
-     * updates the cache(s) accordingly.
+     * updates the cache(s) accordingly. The vertex is committed with the rest of
+     * its batch.
      *
      * @param incomingVertex vertex to insert into the storage
      * @return returns true if the insertion is successful. Insertion is considered
      * not successful if the vertex is already present in the storage.
      */
     @Override
-    public boolean putVertex(AbstractVertex incomingVertex)
+    public synchronized boolean putVertex(AbstractVertex incomingVertex)
     {
         String vertexHash = incomingVertex.bigHashCode();
-        if(Cache.isPresent(vertexHash))
+        if(cache.isPresent(vertexHash) || pendingHashes.contains(vertexHash))
             return true;
 
-        // Use StringBuilder to build the SQL insert statement
-        StringBuilder insertStringBuilder = new StringBuilder( 100);
-        insertStringBuilder.append("INSERT INTO ");
-        insertStringBuilder.append(VERTEX_TABLE);
-        insertStringBuilder.append(" (");
-        insertStringBuilder.append(PRIMARY_KEY);
-        insertStringBuilder.append(", ");
-        for (String annotationKey : incomingVertex.getAnnotations().keySet())
+        try
         {
-            // Sanitize column name to remove special characters
-            String newAnnotationKey = sanitizeColumn(annotationKey);
+            InsertStatement insert = getInsertStatement(VERTEX_TABLE, incomingVertex.getAnnotations().keySet());
+            String[] row = new String[1 + insert.annotationKeys.length];
+            row[0] = vertexHash;
+            for(int i = 0; i < insert.annotationKeys.length; i++)
+            {
+                row[i + 1] = incomingVertex.getAnnotation(insert.annotationKeys[i]);
+            }
+            pendingHashes.add(vertexHash);
+            addRow(insert, row);
+        }
+        catch (Exception e)
+        {
+            logger.log(Level.SEVERE, null, e);
+            return false;
+        }
 
-            // As the annotation keys are being iterated, add them as new
-            // columns to the table if they do not already exist
-            addColumn(VERTEX_TABLE, newAnnotationKey);
+        // cache the vertex successfully inserted in the storage
+        cache.addItem(incomingVertex);
+        return true;
+    }
 
-            insertStringBuilder.append("\"");
-            insertStringBuilder.append(newAnnotationKey);
-            insertStringBuilder.append("\"");
-            insertStringBuilder.append(", ");
+    /**
+     * Returns the prepared insert for elements with the given annotation keys,
+     * preparing it and adding any missing annotation columns to the table the
+     * first time the keys are seen.
+     *
+     * @param table table to insert into
+     * @param annotationKeys annotation keys of the element
+     * @return the prepared insert
+     */
+    private InsertStatement getInsertStatement(String table, Set<String> annotationKeys) throws SQLException
+    {
+        Map<Set<String>, InsertStatement> inserts = table.equals(VERTEX_TABLE) ? vertexInserts : edgeInserts;
+        InsertStatement insert = inserts.get(annotationKeys);
+        if(insert != null)
+        {
+            return insert;
+        }
+        if(vertexInserts.size() + edgeInserts.size() >= MAX_CACHED_STATEMENTS)
+        {
+            flush();
+            closeInsertStatements();
         }
 
-        // Eliminate the last 2 characters from the string (", ") and begin adding values
-        String insertString = insertStringBuilder.substring(0, insertStringBuilder.length() - 2);
-        insertStringBuilder = new StringBuilder(insertString + ") VALUES (");
-
-        // Add the hash code primary key
-        insertStringBuilder.append("'");
-        insertStringBuilder.append(vertexHash);
-        insertStringBuilder.append("', ");
+        String[] keys = annotationKeys.toArray(new String[annotationKeys.size()]);
+        StringBuilder columns = new StringBuilder(200);
+        StringBuilder values = new StringBuilder(100);
+        // The hash columns are UUIDs, which PostgreSQL does not convert from string parameters
+        columns.append(PRIMARY_KEY);
+        values.append("CAST(? AS UUID)");
+        if(table.equals(EDGE_TABLE))
+        {
+            if(!annotationKeys.contains(CHILD_VERTEX_KEY))
+            {
+                columns.append(", ").append(CHILD_VERTEX_KEY);
+                values.append(", CAST(? AS UUID)");
+            }
+            if(!annotationKeys.contains(PARENT_VERTEX_KEY))
+            {
+                columns.append(", ").append(PARENT_VERTEX_KEY);
+                values.append(", CAST(? AS UUID)");
+            }
+        }
+        for(String annotationKey : keys)
+        {
+            // Sanitize column name to remove special characters
+            String newAnnotationKey = sanitizeColumn(annotationKey);
+            addColumn(table, newAnnotationKey);
+            columns.append(", \"").append(newAnnotationKey).append("\"");
+            values.append(", ?");
+        }
+        // Rows already in the table are skipped, so that a hash missing from the cache
+        // does not fail the whole batch
+        String insertString;
+        switch(databaseDriver)
+        {
+            case "org.postgresql.Driver":
+                insertString = "INSERT INTO " + table + " (" + columns + ") VALUES (" + values + ")"
+                        + " ON CONFLICT (" + PRIMARY_KEY + ") DO NOTHING";
+                break;
+            case "org.h2.Driver":
+                insertString = "MERGE INTO " + table + " (" + columns + ") KEY(" + PRIMARY_KEY + ")"
+                        + " VALUES (" + values + ")";
+                break;
+            default:
+                insertString = "INSERT INTO " + table + " (" + columns + ") VALUES (" + values + ")";
+        }
+        insert = new InsertStatement(dbConnection.prepareStatement(insertString), columns.toString(), keys,
+                table.equals(VERTEX_TABLE) ? vertexStaging : edgeStaging);
+        inserts.put(new HashSet<>(annotationKeys), insert);
+        return insert;
+    }
 
-        // Add the annotation values
-        for (String annotationKey : incomingVertex.getAnnotations().keySet())
+    /**
+     * Adds a row to the batch of the given insert, and commits the pending rows if
+     * there are as many as the batch size.
+     */
+    private void addRow(InsertStatement insert, String[] row) throws SQLException
+    {
+        // In copy mode the statement is only used to retry the rows of a failed batch
+        if(insert.staging == null)
+        {
+            for(int i = 0; i < row.length; i++)
+            {
+                insert.statement.setString(i + 1, row[i]);
+            }
+            insert.statement.addBatch();
+        }
+        insert.rows.add(row);
+        pendingInserts.add(insert);
+        if(pendingRows++ == 0)
         {
-            String value = (ENABLE_SANITIZATION) ? incomingVertex.getAnnotation(annotationKey).replace("'", "\"") :
-                    incomingVertex.getAnnotation(annotationKey);
+            firstPendingMillis = System.currentTimeMillis();
+        }
+        if(pendingRows >= batchSize)
+        {
+            flush();
+        }
+    }
 
-            insertStringBuilder.append("'");
-            insertStringBuilder.append(value);
-            insertStringBuilder.append("', ");
+    private synchronized void flushIfDue()
+    {
+        if(pendingRows > 0 && System.currentTimeMillis() - firstPendingMillis >= commitMillis)
+        {
+            flush();
         }
-        insertString = insertStringBuilder.substring(0, insertStringBuilder.length() - 2) + ")";
+    }
 
+    /**
+     * This function executes the pending inserts and commits them. Rows already in
+     * the tables are skipped instead of failing the batch. If the batch fails for
+     * another reason, it is rolled back and its rows are inserted one at a time, so
+     * that only the failing rows are lost.
+     *
+     * @return returns true if all pending rows were inserted.
+     */
+    public synchronized boolean flush()
+    {
+        boolean success = true;
         try
         {
+            for(InsertStatement insert : pendingInserts)
+            {
+                if(insert.staging == null)
+                {
+                    insert.statement.executeBatch();
+                }
+                else
+                {
+                    insert.staging.copy(insert.columns, insert.rows);
+                }
+            }
+            if(vertexStaging != null)
+            {
+                vertexStaging.merge();
+                edgeStaging.merge();
+            }
             dbConnection.commit();
-            Statement s = dbConnection.createStatement();
-            s.execute(insertString);
-            s.close();
         }
-        catch (Exception e)
+        catch(SQLException ex)
         {
-            logger.log(Level.SEVERE, null, e);
-            return false;
+            logger.log(Level.WARNING, "Batch insert failed. Inserting elements one at a time", ex);
+            if(vertexStaging != null)
+            {
+                vertexStaging.invalidate();
+                edgeStaging.invalidate();
+            }
+            success = insertOneAtATime();
         }
+        finally
+        {
+            for(InsertStatement insert : pendingInserts)
+            {
+                insert.rows.clear();
+            }
+            pendingInserts.clear();
+            pendingHashes.clear();
+            pendingRows = 0;
+        }
+        return success;
+    }
 
-        // cache the vertex successfully inserted in the storage
-        Cache.addItem(incomingVertex);
-        return true;
+    private boolean insertOneAtATime()
+    {
+        boolean success = true;
+        try
+        {
+            dbConnection.rollback();
+        }
+        catch(SQLException e)
+        {
+            logger.log(Level.SEVERE, "Error in rolling back batch insert!", e);
+        }
+        for(InsertStatement insert : pendingInserts)
+        {
+            try
+            {
+                insert.statement.clearBatch();
+            }
+            catch(SQLException e)
+            {
+                logger.log(Level.WARNING, null, e);
+            }
+            for(String[] row : insert.rows)
+            {
+                try
+                {
+                    for(int i = 0; i < row.length; i++)
+                    {
+                        insert.statement.setString(i + 1, row[i]);
+                    }
+                    insert.statement.executeUpdate();
+                    dbConnection.commit();
+                }
+                catch(SQLException ex)
+                {
+                    logger.log(Level.SEVERE, null, ex);
+                    success = false;
+                    cache.removeItem(row[0]);
+                    try
+                    {
+                        dbConnection.rollback();
+                    }
+                    catch(SQLException e)
+                    {
+                        logger.log(Level.SEVERE, "Error in rolling back insert!", e);
+                    }
+                }
+            }
+        }
+        return success;
+    }
+
+    private void closeInsertStatements()
+    {
+        for(Map<Set<String>, InsertStatement> inserts : Arrays.asList(vertexInserts, edgeInserts))
+        {
+            for(InsertStatement insert : inserts.values())
+            {
+                try
+                {
+                    insert.statement.close();
+                }
+                catch(SQLException e)
+                {
+                    logger.log(Level.WARNING, null, e);
+                }
+            }
+            inserts.clear();
+        }
     }
 
     @Override
@@ -689,7 +1034,7 @@ public class SQL extends AbstractStorage
         ResultSet result = null;
         try
         {
-            dbConnection.commit();
+            flush();
             Statement queryStatement = dbConnection.createStatement();
             if(CURSOR_FETCH_SIZE > 0)
                 queryStatement.setFetchSize(CURSOR_FETCH_SIZE);
@@ -703,6 +1048,39 @@ public class SQL extends AbstractStorage
         return result;
     }
 
+    /**
+     * Reads the result of a query.
+     */
+    public interface ResultReader<T>
+    {
+        T read(ResultSet result) throws SQLException;
+    }
+
+    /**
+     * Executes a query and reads its result while holding the lock of the storage,
+     * so that no insert commits on the connection and closes the cursor of the
+     * result before it has been read.
+     *
+     * @param query query to execute
+     * @param fetchSize number of rows fetched at a time, or 0 for the default
+     * @param reader reads the result
+     * @return the value returned by the reader
+     * @throws SQLException if the query or the reader failed
+     */
+    public synchronized <T> T readQuery(String query, int fetchSize, ResultReader<T> reader) throws SQLException
+    {
+        flush();
+        try(Statement queryStatement = dbConnection.createStatement())
+        {
+            if(fetchSize > 0)
+                queryStatement.setFetchSize(fetchSize);
+            try(ResultSet result = queryStatement.executeQuery(query))
+            {
+                return reader.read(result);
+            }
+        }
+    }
+
     public boolean vertexAnnotationIsPresent(String annotation)
     {
         if(vertexAnnotations.contains(annotation))
@@ -0,0 +1,490 @@
+/*
+ --------------------------------------------------------------------------------
+ SPADE - Support for Provenance Auditing in Distributed Environments.
+ Copyright (C) 2016 SRI International
+
+ This program is free software: you can redistribute it and/or
+ modify it under the terms of the GNU General Public License as
+ published by the Free Software Foundation, either version 3 of the
+ License, or (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program. If not, see <http://www.gnu.org/licenses/>.
+ --------------------------------------------------------------------------------
+ */
+package spade.storage.archive;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * A closed segment of a columnar archive, written by {@link SegmentWriter}. The
+ * file is memory-mapped read-only. Rows are found by hash with a binary search of
+ * the index, and edges by end point with a scan of the uncompressed end point
+ * columns. Only the blocks of the annotation columns that are read are
+ * decompressed, and the last block of every column is cached. The dictionary is
+ * decompressed on first use and kept as UTF-8 bytes, decoding strings on demand,
+ * until {@link #releaseCaches()} is called.
+ *
+ * Layout: magic, version, dictionary, vertex table, edge table, footer, offset of
+ * the footer, magic.
+ */
+public class Segment
+{
+    static final byte[] MAGIC = "SPADESEG".getBytes(StandardCharsets.US_ASCII);
+    static final int VERSION = 1;
+    static final int HASH_BYTES = 16;
+    static final int BLOCK_ROWS = 4096;
+    // annotation with the time of an element
+    static final String TIME_ANNOTATION = "time";
+    private static final int INDEX_ENTRY_BYTES = HASH_BYTES + 4;
+
+    private final File file;
+    private final MappedByteBuffer buffer;
+    private final double minTime;
+    private final double maxTime;
+    private final int dictionaryOffset;
+    private final int dictionaryLength;
+    private final int dictionaryUncompressedLength;
+    // dictionary id of the time key, or -1
+    private final int timeKeyId;
+    private byte[] dictionary;
+    // offset in the dictionary of the length of each string
+    private int[] stringOffsets;
+    private final Table vertices;
+    private final Table edges;
+    private final Inflater inflater = new Inflater();
+
+    private static class Column
+    {
+        private final int keyId;
+        private final long[] blockOffsets;
+        private final int[] blockLengths;
+        private int cachedBlock = -1;
+        private int[] cachedValues;
+
+        private Column(int keyId, int blockCount)
+        {
+            this.keyId = keyId;
+            this.blockOffsets = new long[blockCount];
+            this.blockLengths = new int[blockCount];
+        }
+    }
+
+    private static class Table
+    {
+        private int rows;
+        private Column[] columns;
+        private int hashesOffset;
+        private int indexOffset;
+        private int childHashesOffset;
+        private int parentHashesOffset;
+    }
+
+    /**
+     * @param file segment file
+     * @throws IOException if the file cannot be mapped or is not a complete segment
+     */
+    public Segment(File file) throws IOException
+    {
+        this.file = file;
+        try(RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+            FileChannel channel = randomAccessFile.getChannel())
+        {
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+        int trailerOffset = buffer.capacity() - 8 - MAGIC.length;
+        if(trailerOffset < MAGIC.length + 4 || !hasMagic(0) || !hasMagic(trailerOffset + 8)
+                || buffer.getInt(MAGIC.length) != VERSION)
+        {
+            throw new IOException("Not a complete segment of version " + VERSION + ": " + file);
+        }
+
+        ByteBuffer footer = buffer.duplicate();
+        footer.position((int) buffer.getLong(trailerOffset));
+        minTime = footer.getDouble();
+        maxTime = footer.getDouble();
+        dictionaryOffset = (int) footer.getLong();
+        dictionaryLength = footer.getInt();
+        dictionaryUncompressedLength = footer.getInt();
+        vertices = readTable(footer, false);
+        edges = readTable(footer, true);
+        timeKeyId = findString(TIME_ANNOTATION);
+        releaseCaches();
+    }
+
+    private synchronized void loadDictionary() throws IOException
+    {
+        if(dictionary != null)
+        {
+            return;
+        }
+        byte[] bytes = inflate(dictionaryOffset, dictionaryLength, dictionaryUncompressedLength);
+        ByteBuffer entries = ByteBuffer.wrap(bytes);
+        int[] offsets = new int[entries.getInt()];
+        for(int id = 0; id < offsets.length; id++)
+        {
+            offsets[id] = entries.position();
+            entries.position(entries.position() + 4 + entries.getInt());
+        }
+        dictionary = bytes;
+        stringOffsets = offsets;
+    }
+
+    private synchronized String getString(int id) throws IOException
+    {
+        loadDictionary();
+        int offset = stringOffsets[id];
+        int length = ByteBuffer.wrap(dictionary).getInt(offset);
+        return new String(dictionary, offset + 4, length, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * @return dictionary id of the string, or -1
+     */
+    private synchronized int findString(String string) throws IOException
+    {
+        loadDictionary();
+        byte[] bytes = string.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer entries = ByteBuffer.wrap(dictionary);
+        for(int id = 0; id < stringOffsets.length; id++)
+        {
+            int offset = stringOffsets[id];
+            int length = entries.getInt(offset);
+            if(length == bytes.length && Arrays.equals(Arrays.copyOfRange(dictionary, offset + 4, offset + 4 + length), bytes))
+            {
+                return id;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Drops the decompressed dictionary and the cached blocks of the columns. They
+     * are decompressed again when needed.
+     */
+    public synchronized void releaseCaches()
+    {
+        dictionary = null;
+        stringOffsets = null;
+        for(Table table : new Table[]{vertices, edges})
+        {
+            for(Column column : table.columns)
+            {
+                column.cachedBlock = -1;
+                column.cachedValues = null;
+            }
+        }
+    }
+
+    private boolean hasMagic(int offset)
+    {
+        for(int i = 0; i < MAGIC.length; i++)
+        {
+            if(buffer.get(offset + i) != MAGIC[i])
+            {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static Table readTable(ByteBuffer footer, boolean isEdgeTable)
+    {
+        Table table = new Table();
+        table.rows = footer.getInt();
+        table.columns = new Column[footer.getInt()];
+        for(int i = 0; i < table.columns.length; i++)
+        {
+            Column column = new Column(footer.getInt(), footer.getInt());
+            for(int block = 0; block < column.blockOffsets.length; block++)
+            {
+                column.blockOffsets[block] = footer.getLong();
+                column.blockLengths[block] = footer.getInt();
+            }
+            table.columns[i] = column;
+        }
+        table.hashesOffset = (int) footer.getLong();
+        table.indexOffset = (int) footer.getLong();
+        if(isEdgeTable)
+        {
+            table.childHashesOffset = (int) footer.getLong();
+            table.parentHashesOffset = (int) footer.getLong();
+        }
+        return table;
+    }
+
+    public File getFile()
+    {
+        return file;
+    }
+
+    /**
+     * @return smallest time of the elements, or positive infinity if none had a time
+     */
+    public double getMinTime()
+    {
+        return minTime;
+    }
+
+    /**
+     * @return largest time of the elements, or negative infinity if none had a time
+     */
+    public double getMaxTime()
+    {
+        return maxTime;
+    }
+
+    /**
+     * @return true if elements with a time in the given range may be in the segment
+     */
+    public boolean overlaps(double startTime, double endTime)
+    {
+        return minTime <= endTime && maxTime >= startTime;
+    }
+
+    public int getVertexCount()
+    {
+        return vertices.rows;
+    }
+
+    public int getEdgeCount()
+    {
+        return edges.rows;
+    }
+
+    /**
+     * @return row of the vertex, or -1
+     */
+    public int findVertex(byte[] hash)
+    {
+        return find(vertices, hash);
+    }
+
+    /**
+     * @return row of the edge, or -1
+     */
+    public int findEdge(byte[] hash)
+    {
+        return find(edges, hash);
+    }
+
+    private int find(Table table, byte[] hash)
+    {
+        ByteBuffer key = ByteBuffer.wrap(hash);
+        int low = 0;
+        int high = table.rows - 1;
+        while(low <= high)
+        {
+            int middle = (low + high) >>> 1;
+            int entry = table.indexOffset + middle * INDEX_ENTRY_BYTES;
+            int result = compareHashes(buffer, entry, key, 0);
+            if(result < 0)
+            {
+                low = middle + 1;
+            }
+            else if(result > 0)
+            {
+                high = middle - 1;
+            }
+            else
+            {
+                return buffer.getInt(entry + HASH_BYTES);
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @return rows of the edges with the given child vertex
+     */
+    public List<Integer> findEdgesWithChild(byte[] childHash)
+    {
+        return scan(edges.childHashesOffset, childHash);
+    }
+
+    /**
+     * @return rows of the edges with the given parent vertex
+     */
+    public List<Integer> findEdgesWithParent(byte[] parentHash)
+    {
+        return scan(edges.parentHashesOffset, parentHash);
+    }
+
+    private List<Integer> scan(int columnOffset, byte[] hash)
+    {
+        ByteBuffer key = ByteBuffer.wrap(hash);
+        long high = key.getLong(0);
+        long low = key.getLong(8);
+        List<Integer> rows = new ArrayList<>();
+        for(int row = 0; row < edges.rows; row++)
+        {
+            int offset = columnOffset + row * HASH_BYTES;
+            if(buffer.getLong(offset + 8) == low && buffer.getLong(offset) == high)
+            {
+                rows.add(row);
+            }
+        }
+        return rows;
+    }
+
+    public byte[] getEdgeChildHash(int row)
+    {
+        return getHash(edges.childHashesOffset, row);
+    }
+
+    public byte[] getEdgeParentHash(int row)
+    {
+        return getHash(edges.parentHashesOffset, row);
+    }
+
+    private byte[] getHash(int columnOffset, int row)
+    {
+        byte[] hash = new byte[HASH_BYTES];
+        ByteBuffer column = buffer.duplicate();
+        column.position(columnOffset + row * HASH_BYTES);
+        column.get(hash);
+        return hash;
+    }
+
+    public Map<String, String> getVertexAnnotations(int row) throws IOException
+    {
+        return getAnnotations(vertices, row);
+    }
+
+    public Map<String, String> getEdgeAnnotations(int row) throws IOException
+    {
+        return getAnnotations(edges, row);
+    }
+
+    /**
+     * @return value of the annotation of the edge, or null
+     */
+    public String getEdgeAnnotation(int row, String key) throws IOException
+    {
+        int keyId = TIME_ANNOTATION.equals(key) ? timeKeyId : findString(key);
+        if(keyId >= 0)
+        {
+            for(Column column : edges.columns)
+            {
+                if(column.keyId == keyId)
+                {
+                    int value = getValue(column, row);
+                    return value == 0 ? null : getString(value - 1);
+                }
+            }
+        }
+        return null;
+    }
+
+    private Map<String, String> getAnnotations(Table table, int row) throws IOException
+    {
+        Map<String, String> annotations = new HashMap<>();
+        for(Column column : table.columns)
+        {
+            int value = getValue(column, row);
+            if(value != 0)
+            {
+                annotations.put(getString(column.keyId), getString(value - 1));
+            }
+        }
+        return annotations;
+    }
+
+    private synchronized int getValue(Column column, int row) throws IOException
+    {
+        int block = row / BLOCK_ROWS;
+        if(column.cachedBlock != block)
+        {
+            int offset = (int) column.blockOffsets[block];
+            int rowsInBlock = BLOCK_ROWS;
+            byte[] bytes = inflate(offset, column.blockLengths[block], rowsInBlock * 5);
+            int[] values = new int[rowsInBlock];
+            int position = 0;
+            for(int i = 0; i < rowsInBlock && position < bytes.length; i++)
+            {
+                int value = 0;
+                int shift = 0;
+                byte b;
+                do
+                {
+                    b = bytes[position++];
+                    value |= (b & 0x7F) << shift;
+                    shift += 7;
+                }
+                while((b & 0x80) != 0);
+                values[i] = value;
+            }
+            column.cachedValues = values;
+            column.cachedBlock = block;
+        }
+        return column.cachedValues[row % BLOCK_ROWS];
+    }
+
+    private synchronized byte[] inflate(int offset, int length, int maxLength) throws IOException
+    {
+        byte[] compressed = new byte[length];
+        ByteBuffer source = buffer.duplicate();
+        source.position(offset);
+        source.get(compressed);
+        inflater.reset();
+        inflater.setInput(compressed);
+        byte[] bytes = new byte[maxLength];
+        int total = 0;
+        try
+        {
+            while(!inflater.finished() && total < bytes.length)
+            {
+                int inflated = inflater.inflate(bytes, total, bytes.length - total);
+                if(inflated == 0 && (inflater.needsInput() || inflater.needsDictionary()))
+                {
+                    break;
+                }
+                total += inflated;
+            }
+        }
+        catch(DataFormatException exception)
+        {
+            throw new IOException("Corrupt block in segment " + file, exception);
+        }
+        return total == bytes.length ? bytes : Arrays.copyOf(bytes, total);
+    }
+
+    /**
+     * Releases the inflater. The mapping is released once the segment is garbage collected.
+     */
+    public void close()
+    {
+        inflater.end();
+    }
+
+    /**
+     * Compares two 16-byte hashes as unsigned numbers
+     */
+    static int compareHashes(ByteBuffer buffer1, int offset1, ByteBuffer buffer2, int offset2)
+    {
+        int result = Long.compareUnsigned(buffer1.getLong(offset1), buffer2.getLong(offset2));
+        if(result == 0)
+        {
+            result = Long.compareUnsigned(buffer1.getLong(offset1 + 8), buffer2.getLong(offset2 + 8));
+        }
+        return result;
+    }
+}
@@ -0,0 +1,316 @@
+/*
+ --------------------------------------------------------------------------------
+ SPADE - Support for Provenance Auditing in Distributed Environments.
+ Copyright (C) 2016 SRI International
+
+ This program is free software: you can redistribute it and/or
+ modify it under the terms of the GNU General Public License as
+ published by the Free Software Foundation, either version 3 of the
+ License, or (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program. If not, see <http://www.gnu.org/licenses/>.
+ --------------------------------------------------------------------------------
+ */
+package spade.storage.archive;
+
+import spade.core.AbstractEdge;
+import spade.core.AbstractVertex;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.Deflater;
+
+/**
+ * Buffers vertices and edges in memory and writes them out as one immutable
+ * segment, in the format read by {@link Segment}.
+ *
+ * Every annotation key is a column of ids into the dictionary of the segment,
+ * which holds each distinct key and value once. Columns are stored in blocks of
+ * rows, each compressed on its own. Hashes of the elements and the end points of
+ * the edges are stored uncompressed, followed by an index of the rows sorted by
+ * hash. The footer holds the offsets of all of these and the smallest and largest
+ * time of the elements.
+ */
+public class SegmentWriter
+{
+    private final Map<String, Integer> dictionary = new HashMap<>();
+    private final List<String> strings = new ArrayList<>();
+    private final Table vertices = new Table(false);
+    private final Table edges = new Table(true);
+    private double minTime = Double.POSITIVE_INFINITY;
+    private double maxTime = Double.NEGATIVE_INFINITY;
+
+    /**
+     * Column of dictionary ids plus one, zero if the row does not have the annotation
+     */
+    private static class Column
+    {
+        private int[] values = new int[Segment.BLOCK_ROWS];
+
+        private void set(int row, int value)
+        {
+            if(row >= values.length)
+            {
+                values = Arrays.copyOf(values, Math.max(row + 1, 2 * values.length));
+            }
+            values[row] = value;
+        }
+    }
+
+    private static class Table
+    {
+        private final boolean isEdgeTable;
+        private int rows = 0;
+        // column of each annotation key by dictionary id of the key
+        private final Map<Integer, Column> columns = new LinkedHashMap<>();
+        private final ByteArrayOutputStream hashes = new ByteArrayOutputStream();
+        private final ByteArrayOutputStream childHashes = new ByteArrayOutputStream();
+        private final ByteArrayOutputStream parentHashes = new ByteArrayOutputStream();
+
+        private Table(boolean isEdgeTable)
+        {
+            this.isEdgeTable = isEdgeTable;
+        }
+    }
+
+    public void addVertex(AbstractVertex vertex)
+    {
+        addRow(vertices, vertex.getAnnotations(), vertex.bigHashCodeBytes());
+    }
+
+    public void addEdge(AbstractEdge edge)
+    {
+        edges.childHashes.write(edge.getChildVertex().bigHashCodeBytes(), 0, Segment.HASH_BYTES);
+        edges.parentHashes.write(edge.getParentVertex().bigHashCodeBytes(), 0, Segment.HASH_BYTES);
+        addRow(edges, edge.getAnnotations(), edge.bigHashCodeBytes());
+    }
+
+    private void addRow(Table table, Map<String, String> annotations, byte[] hash)
+    {
+        int row = table.rows++;
+        table.hashes.write(hash, 0, Segment.HASH_BYTES);
+        for(Map.Entry<String, String> annotation : annotations.entrySet())
+        {
+            if(annotation.getKey() == null || annotation.getValue() == null)
+            {
+                continue;
+            }
+            int keyId = stringId(annotation.getKey());
+            Column column = table.columns.get(keyId);
+            if(column == null)
+            {
+                column = new Column();
+                table.columns.put(keyId, column);
+            }
+            column.set(row, stringId(annotation.getValue()) + 1);
+        }
+        String time = annotations.get(Segment.TIME_ANNOTATION);
+        if(time != null)
+        {
+            try
+            {
+                double value = Double.parseDouble(time);
+                minTime = Math.min(minTime, value);
+                maxTime = Math.max(maxTime, value);
+            }
+            catch(NumberFormatException exception)
+            {
+                // not included in the time range of the segment
+            }
+        }
+    }
+
+    private int stringId(String string)
+    {
+        Integer id = dictionary.get(string);
+        if(id == null)
+        {
+            id = strings.size();
+            dictionary.put(string, id);
+            strings.add(string);
+        }
+        return id;
+    }
+
+    /**
+     * @return number of vertices and edges buffered
+     */
+    public int size()
+    {
+        return vertices.rows + edges.rows;
+    }
+
+    /**
+     * @return smallest time of the elements buffered, or positive infinity if none had a time
+     */
+    public double getMinTime()
+    {
+        return minTime;
+    }
+
+    /**
+     * Writes the segment to a temporary file first and then renames it, so that a
+     * segment file is either complete or absent.
+     *
+     * @param file file of the segment
+     * @throws IOException if the segment is too large or cannot be written
+     */
+    public void write(File file) throws IOException
+    {
+        File temporaryFile = new File(file.getPath() + ".tmp");
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        try(DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temporaryFile), 1 << 16)))
+        {
+            out.write(Segment.MAGIC);
+            out.writeInt(Segment.VERSION);
+
+            ByteArrayOutputStream dictionaryBytes = new ByteArrayOutputStream();
+            DataOutputStream dictionaryOut = new DataOutputStream(dictionaryBytes);
+            dictionaryOut.writeInt(strings.size());
+            for(String string : strings)
+            {
+                byte[] bytes = string.getBytes(StandardCharsets.UTF_8);
+                dictionaryOut.writeInt(bytes.length);
+                dictionaryOut.write(bytes);
+            }
+            dictionaryOut.flush();
+            long dictionaryOffset = out.size();
+            byte[] compressedDictionary = compress(deflater, dictionaryBytes.toByteArray());
+            out.write(compressedDictionary);
+
+            ByteArrayOutputStream footer = new ByteArrayOutputStream();
+            DataOutputStream footerOut = new DataOutputStream(footer);
+            footerOut.writeDouble(minTime);
+            footerOut.writeDouble(maxTime);
+            footerOut.writeLong(dictionaryOffset);
+            footerOut.writeInt(compressedDictionary.length);
+            footerOut.writeInt(dictionaryBytes.size());
+            writeTable(out, footerOut, deflater, vertices);
+            writeTable(out, footerOut, deflater, edges);
+            footerOut.flush();
+
+            long footerOffset = out.size();
+            out.write(footer.toByteArray());
+            out.writeLong(footerOffset);
+            out.write(Segment.MAGIC);
+            // DataOutputStream counts up to Integer.MAX_VALUE
+            if(out.size() < 0 || out.size() == Integer.MAX_VALUE)
+            {
+                throw new IOException("Segment larger than 2 GB. Use fewer elements per segment");
+            }
+        }
+        catch(IOException exception)
+        {
+            temporaryFile.delete();
+            throw exception;
+        }
+        finally
+        {
+            deflater.end();
+        }
+        Files.move(temporaryFile.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private static void writeTable(DataOutputStream out, DataOutputStream footerOut, Deflater deflater, Table table)
+            throws IOException
+    {
+        int blockCount = (table.rows + Segment.BLOCK_ROWS - 1) / Segment.BLOCK_ROWS;
+        footerOut.writeInt(table.rows);
+        footerOut.writeInt(table.columns.size());
+        ByteArrayOutputStream blockBytes = new ByteArrayOutputStream();
+        DataOutputStream blockOut = new DataOutputStream(blockBytes);
+        for(Map.Entry<Integer, Column> column : table.columns.entrySet())
+        {
+            int[] values = column.getValue().values;
+            footerOut.writeInt(column.getKey());
+            footerOut.writeInt(blockCount);
+            for(int block = 0; block < blockCount; block++)
+            {
+                blockBytes.reset();
+                int end = Math.min(table.rows, (block + 1) * Segment.BLOCK_ROWS);
+                for(int row = block * Segment.BLOCK_ROWS; row < end; row++)
+                {
+                    writeVarInt(blockOut, row < values.length ? values[row] : 0);
+                }
+                blockOut.flush();
+                byte[] compressedBlock = compress(deflater, blockBytes.toByteArray());
+                footerOut.writeLong(out.size());
+                footerOut.writeInt(compressedBlock.length);
+                out.write(compressedBlock);
+            }
+        }
+
+        byte[] hashes = table.hashes.toByteArray();
+        footerOut.writeLong(out.size());
+        out.write(hashes);
+
+        // rows sorted by hash, to find a row by binary search
+        ByteBuffer hashBuffer = ByteBuffer.wrap(hashes);
+        Integer[] sortedRows = new Integer[table.rows];
+        for(int row = 0; row < table.rows; row++)
+        {
+            sortedRows[row] = row;
+        }
+        Arrays.sort(sortedRows, (row1, row2) -> Segment.compareHashes(hashBuffer, row1 * Segment.HASH_BYTES,
+                hashBuffer, row2 * Segment.HASH_BYTES));
+        footerOut.writeLong(out.size());
+        for(Integer row : sortedRows)
+        {
+            out.write(hashes, row * Segment.HASH_BYTES, Segment.HASH_BYTES);
+            out.writeInt(row);
+        }
+
+        if(table.isEdgeTable)
+        {
+            footerOut.writeLong(out.size());
+            table.childHashes.writeTo(out);
+            footerOut.writeLong(out.size());
+            table.parentHashes.writeTo(out);
+        }
+    }
+
+    private static byte[] compress(Deflater deflater, byte[] bytes)
+    {
+        deflater.reset();
+        deflater.setInput(bytes);
+        deflater.finish();
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream(Math.max(64, bytes.length / 4));
+        byte[] buffer = new byte[8192];
+        while(!deflater.finished())
+        {
+            int length = deflater.deflate(buffer);
+            compressed.write(buffer, 0, length);
+        }
+        return compressed.toByteArray();
+    }
+
+    private static void writeVarInt(DataOutputStream out, int value) throws IOException
+    {
+        while((value & ~0x7F) != 0)
+        {
+            out.writeByte((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.writeByte(value);
+    }
+}
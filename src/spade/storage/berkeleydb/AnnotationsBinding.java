@@ -0,0 +1,61 @@
+/*
+ --------------------------------------------------------------------------------
+ SPADE - Support for Provenance Auditing in Distributed Environments.
+ Copyright (C) 2016 SRI International
+
+ This program is free software: you can redistribute it and/or
+ modify it under the terms of the GNU General Public License as
+ published by the Free Software Foundation, either version 3 of the
+ License, or (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program. If not, see <http://www.gnu.org/licenses/>.
+ --------------------------------------------------------------------------------
+ */
+package spade.storage.berkeleydb;
+
+import com.sleepycat.bind.tuple.TupleBinding;
+import com.sleepycat.bind.tuple.TupleInput;
+import com.sleepycat.bind.tuple.TupleOutput;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Binding of an annotation map to a compact tuple: the number of annotations as a
+ * packed int, followed by each key and value as a null-terminated UTF-8 string.
+ *
+ * Unlike a SerialBinding, it needs no class catalog and holds no state, so a single
+ * instance can be shared by all the operations of a storage.
+ */
+public class AnnotationsBinding extends TupleBinding<Map<String, String>>
+{
+    @Override
+    public Map<String, String> entryToObject(TupleInput input)
+    {
+        int size = input.readPackedInt();
+        Map<String, String> annotations = new HashMap<>(size * 4 / 3 + 1);
+        for(int i = 0; i < size; i++)
+        {
+            String key = input.readString();
+            annotations.put(key, input.readString());
+        }
+        return annotations;
+    }
+
+    @Override
+    public void objectToEntry(Map<String, String> annotations, TupleOutput output)
+    {
+        output.writePackedInt(annotations.size());
+        for(Map.Entry<String, String> annotation : annotations.entrySet())
+        {
+            output.writeString(annotation.getKey());
+            output.writeString(annotation.getValue());
+        }
+    }
+}
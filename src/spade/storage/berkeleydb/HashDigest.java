@@ -0,0 +1,59 @@
+/*
+ --------------------------------------------------------------------------------
+ SPADE - Support for Provenance Auditing in Distributed Environments.
+ Copyright (C) 2016 SRI International
+
+ This program is free software: you can redistribute it and/or
+ modify it under the terms of the GNU General Public License as
+ published by the Free Software Foundation, either version 3 of the
+ License, or (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program. If not, see <http://www.gnu.org/licenses/>.
+ --------------------------------------------------------------------------------
+ */
+package spade.storage.berkeleydb;
+
+import org.apache.commons.codec.DecoderException;
+import org.apache.commons.codec.binary.Hex;
+
+/**
+ * Conversion of element hashes to the raw 16-byte digests used as keys and
+ * values in BerkeleyDB, instead of their 32-character hex strings.
+ */
+public final class HashDigest
+{
+    public static final int HASH_BYTES = 16;
+
+    private HashDigest()
+    {
+    }
+
+    /**
+     * @param hash hex string of a digest, as returned by bigHashCode(). Dashes are
+     *             ignored so that hashes read from UUID columns are accepted too.
+     * @return the raw digest
+     * @throws IllegalArgumentException if the hash is not the hex string of a 16-byte digest
+     */
+    public static byte[] fromHex(String hash)
+    {
+        char[] digits = hash.indexOf('-') < 0 ? hash.toCharArray() : hash.replace("-", "").toCharArray();
+        if(digits.length != HASH_BYTES * 2)
+        {
+            throw new IllegalArgumentException("Not a " + HASH_BYTES + "-byte hash: " + hash);
+        }
+        try
+        {
+            return Hex.decodeHex(digits);
+        }
+        catch(DecoderException ex)
+        {
+            throw new IllegalArgumentException("Not a " + HASH_BYTES + "-byte hash: " + hash, ex);
+        }
+    }
+}
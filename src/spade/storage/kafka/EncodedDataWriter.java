@@ -0,0 +1,35 @@
+/*
+ --------------------------------------------------------------------------------
+ SPADE - Support for Provenance Auditing in Distributed Environments.
+ Copyright (C) 2016 SRI International
+
+ This program is free software: you can redistribute it and/or
+ modify it under the terms of the GNU General Public License as
+ published by the Free Software Foundation, either version 3 of the
+ License, or (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program. If not, see <http://www.gnu.org/licenses/>.
+ --------------------------------------------------------------------------------
+ */
+package spade.storage.kafka;
+
+import org.apache.avro.Schema;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A data writer that can also write records already serialized in the Avro binary
+ * encoding with its schema, so that records can be serialized on other threads.
+ */
+public interface EncodedDataWriter extends DataWriter {
+
+	public abstract Schema getSchema();
+	public abstract void writeEncodedRecord(ByteBuffer encodedRecord) throws Exception;
+
+}
@@ -28,19 +28,21 @@ import org.apache.avro.specific.SpecificDatumWriter;
 
 import java.io.File;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
-public class FileWriter implements DataWriter{
+public class FileWriter implements EncodedDataWriter{
 		
 	private final int TRANSACTION_LIMIT = 1000;
     private int transaction_count;	
 			
 	private DataFileWriter<Object> fileWriter;
+	private Schema schema;
 	
 	public FileWriter(String schemaFile, String outputFile) throws IOException{
 		Parser parser = new Schema.Parser();
-		Schema schema = parser.parse(new File(schemaFile));
+		schema = parser.parse(new File(schemaFile));
         DatumWriter<Object> datumWriter = new SpecificDatumWriter<Object>(schema);
 		fileWriter = new DataFileWriter<>(datumWriter);
 		fileWriter.create(schema, new File(outputFile));
@@ -51,6 +53,15 @@ public class FileWriter implements DataWriter{
 		checkTransactions();
 	}
 			
+	public Schema getSchema(){
+		return schema;
+	}
+
+	public void writeEncodedRecord(ByteBuffer encodedRecord) throws Exception{
+		fileWriter.appendEncoded(encodedRecord);
+		checkTransactions();
+	}
+			
 	public void close() throws Exception{
 		fileWriter.close();
 	}
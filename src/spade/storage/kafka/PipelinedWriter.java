@@ -0,0 +1,253 @@
+/*
+ --------------------------------------------------------------------------------
+ SPADE - Support for Provenance Auditing in Distributed Environments.
+ Copyright (C) 2016 SRI International
+
+ This program is free software: you can redistribute it and/or
+ modify it under the terms of the GNU General Public License as
+ published by the Free Software Foundation, either version 3 of the
+ License, or (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program. If not, see <http://www.gnu.org/licenses/>.
+ --------------------------------------------------------------------------------
+ */
+package spade.storage.kafka;
+
+import org.apache.avro.generic.GenericContainer;
+import org.apache.avro.io.BinaryEncoder;
+import org.apache.avro.io.DatumWriter;
+import org.apache.avro.io.EncoderFactory;
+import org.apache.avro.specific.SpecificDatumWriter;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Writes records to another data writer in the background.
+ *
+ * Records are grouped into batches of at most the given number of records, or
+ * of the records received within the linger time. If the writer accepts encoded
+ * records then batches are serialized on a pool of threads, each with its own
+ * reusable Avro encoder. A single thread writes the batches to the writer in the
+ * order they were received. At most the given number of batches are in flight;
+ * writeRecord blocks when that many are waiting to be written.
+ *
+ * A failure to write is thrown by the next call to writeRecord or close. Records
+ * received after the failure are dropped.
+ */
+public class PipelinedWriter implements DataWriter{
+
+	private Logger logger = Logger.getLogger(PipelinedWriter.class.getName());
+
+	private static final Future<List<Object>> END_OF_STREAM = CompletableFuture.completedFuture(null);
+
+	private final DataWriter dataWriter;
+	private final EncodedDataWriter encodedDataWriter;
+	private final int batchRecords;
+	private final long lingerMillis;
+
+	private final ExecutorService serializers;
+	private final ScheduledExecutorService lingerTimer;
+	private final Thread writerThread;
+	/**
+	 * Batches in the order received. Each is a list of records or of encoded records.
+	 */
+	private final BlockingQueue<Future<List<Object>>> batches;
+
+	private List<Object> currentBatch;
+	private long currentBatchStartMillis;
+	private volatile Exception failure;
+	private boolean closed = false;
+
+	/**
+	 * Encoders of the serializer threads, reused from one record to the next
+	 */
+	private final ThreadLocal<RecordEncoder> recordEncoders = new ThreadLocal<RecordEncoder>(){
+		@Override
+		protected RecordEncoder initialValue(){
+			return new RecordEncoder();
+		}
+	};
+
+	private class RecordEncoder{
+		private final DatumWriter<Object> datumWriter = new SpecificDatumWriter<Object>(encodedDataWriter.getSchema());
+		private final ByteArrayOutputStream outputStream = new ByteArrayOutputStream(1024);
+		private BinaryEncoder encoder;
+
+		private ByteBuffer encode(Object record) throws Exception{
+			outputStream.reset();
+			encoder = EncoderFactory.get().binaryEncoder(outputStream, encoder);
+			datumWriter.write(record, encoder);
+			encoder.flush();
+			return ByteBuffer.wrap(outputStream.toByteArray());
+		}
+	}
+
+	/**
+	 * @param dataWriter writer to write the records to
+	 * @param serializerThreads threads to serialize batches on. Used only if the writer accepts encoded records.
+	 * @param batchRecords maximum records in a batch
+	 * @param lingerMillis maximum time a record waits for its batch to fill up
+	 * @param maxInFlightBatches maximum batches received but not written yet
+	 */
+	public PipelinedWriter(DataWriter dataWriter, int serializerThreads, int batchRecords, long lingerMillis, int maxInFlightBatches){
+		if(serializerThreads < 1 || batchRecords < 1 || lingerMillis < 1 || maxInFlightBatches < 1){
+			throw new IllegalArgumentException("Serializer threads, batch records, linger time and in-flight batches must be positive");
+		}
+		this.dataWriter = dataWriter;
+		this.encodedDataWriter = dataWriter instanceof EncodedDataWriter ? (EncodedDataWriter)dataWriter : null;
+		this.batchRecords = batchRecords;
+		this.lingerMillis = lingerMillis;
+		this.batches = new ArrayBlockingQueue<Future<List<Object>>>(maxInFlightBatches);
+		this.currentBatch = new ArrayList<Object>(batchRecords);
+
+		serializers = encodedDataWriter == null ? null : Executors.newFixedThreadPool(serializerThreads, runnable -> {
+			Thread thread = new Thread(runnable, "pipelined-writer-serializer");
+			thread.setDaemon(true);
+			return thread;
+		});
+		lingerTimer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+			Thread thread = new Thread(runnable, "pipelined-writer-linger");
+			thread.setDaemon(true);
+			return thread;
+		});
+		lingerTimer.scheduleWithFixedDelay(this::flushLingeringBatch, lingerMillis, lingerMillis, TimeUnit.MILLISECONDS);
+		writerThread = new Thread(this::writeBatches, "pipelined-writer");
+		writerThread.setDaemon(true);
+		writerThread.start();
+	}
+
+	@Override
+	public synchronized void writeRecord(GenericContainer genericContainer) throws Exception{
+		throwFailure();
+		if(closed){
+			throw new IllegalStateException("Writer closed");
+		}
+		if(currentBatch.isEmpty()){
+			currentBatchStartMillis = System.currentTimeMillis();
+		}
+		currentBatch.add(genericContainer);
+		if(currentBatch.size() >= batchRecords){
+			submitCurrentBatch();
+		}
+	}
+
+	private synchronized void flushLingeringBatch(){
+		try{
+			if(!closed && !currentBatch.isEmpty()
+					&& System.currentTimeMillis() - currentBatchStartMillis >= lingerMillis){
+				submitCurrentBatch();
+			}
+		}catch(InterruptedException e){
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Hands the current batch to the serializers. Blocks while the maximum batches are in flight.
+	 */
+	private void submitCurrentBatch() throws InterruptedException{
+		final List<Object> batch = currentBatch;
+		currentBatch = new ArrayList<Object>(batchRecords);
+		Future<List<Object>> future;
+		if(serializers == null){
+			future = CompletableFuture.completedFuture(batch);
+		}else{
+			future = serializers.submit(() -> {
+				RecordEncoder recordEncoder = recordEncoders.get();
+				List<Object> encodedBatch = new ArrayList<Object>(batch.size());
+				for(Object record : batch){
+					encodedBatch.add(recordEncoder.encode(record));
+				}
+				return encodedBatch;
+			});
+		}
+		batches.put(future);
+	}
+
+	/**
+	 * Runs on the writer thread until the end of stream
+	 */
+	private void writeBatches(){
+		while(true){
+			Future<List<Object>> future;
+			try{
+				future = batches.take();
+			}catch(InterruptedException e){
+				return;
+			}
+			if(future == END_OF_STREAM){
+				return;
+			}
+			if(failure != null){
+				continue; // drop the batch, the failure has been reported
+			}
+			try{
+				for(Object record : future.get()){
+					if(encodedDataWriter != null){
+						encodedDataWriter.writeEncodedRecord((ByteBuffer)record);
+					}else{
+						dataWriter.writeRecord((GenericContainer)record);
+					}
+				}
+			}catch(ExecutionException e){
+				failure = e.getCause() instanceof Exception ? (Exception)e.getCause() : e;
+			}catch(Exception e){
+				failure = e;
+			}
+			if(failure != null){
+				logger.log(Level.SEVERE, "Failed to write batch. Dropping remaining records", failure);
+			}
+		}
+	}
+
+	private void throwFailure() throws Exception{
+		Exception exception = failure;
+		if(exception != null){
+			throw new Exception("Pipelined write failed", exception);
+		}
+	}
+
+	/**
+	 * Writes the records received so far, then closes the writer
+	 */
+	@Override
+	public void close() throws Exception{
+		synchronized(this){
+			if(closed){
+				return;
+			}
+			closed = true;
+			lingerTimer.shutdownNow();
+			if(!currentBatch.isEmpty()){
+				submitCurrentBatch();
+			}
+			batches.put(END_OF_STREAM);
+		}
+		writerThread.join();
+		if(serializers != null){
+			serializers.shutdown();
+		}
+		dataWriter.close();
+		throwFailure();
+	}
+}
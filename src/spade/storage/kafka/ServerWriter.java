@@ -126,5 +126,8 @@ public class ServerWriter implements DataWriter{
 			printStats();
 		}
 		serverWriter.close();
+		if(failedRecordCount > 0){
+			throw new Exception("Failed to send " + failedRecordCount + " records");
+		}
 	}
 }
\ No newline at end of file
@@ -0,0 +1,95 @@
+/*
+ --------------------------------------------------------------------------------
+ SPADE - Support for Provenance Auditing in Distributed Environments.
+ Copyright (C) 2016 SRI International
+
+ This program is free software: you can redistribute it and/or
+ modify it under the terms of the GNU General Public License as
+ published by the Free Software Foundation, either version 3 of the
+ License, or (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program. If not, see <http://www.gnu.org/licenses/>.
+ --------------------------------------------------------------------------------
+ */
+package spade.storage.sql;
+
+import org.postgresql.PGConnection;
+import org.postgresql.copy.CopyIn;
+
+import java.nio.charset.StandardCharsets;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.List;
+
+/**
+ * Staging table of a PostgreSQL database, loaded with COPY FROM STDIN. The
+ * staging table is a temporary table of the session, so it is not written to the
+ * write-ahead log.
+ */
+public class CopyStagingTable extends StagingTable
+{
+    // characters of CSV sent to the server at a time
+    private static final int CHUNK_CHARACTERS = 1 << 16;
+
+    public CopyStagingTable(Connection connection, String table, String hashColumn)
+    {
+        super(connection, table, hashColumn);
+    }
+
+    @Override
+    protected void createStagingTable(Statement statement) throws SQLException
+    {
+        statement.execute("CREATE TEMPORARY TABLE " + stagingTable + " (LIKE " + table + ")");
+    }
+
+    @Override
+    protected void copyRows(String columns, List<String[]> rows) throws SQLException
+    {
+        CopyIn copyIn = connection.unwrap(PGConnection.class).getCopyAPI()
+                .copyIn("COPY " + stagingTable + " (" + columns + ") FROM STDIN WITH (FORMAT csv)");
+        try
+        {
+            StringBuilder chunk = new StringBuilder(CHUNK_CHARACTERS + 1024);
+            for(String[] row : rows)
+            {
+                appendCsvRow(chunk, row);
+                if(chunk.length() >= CHUNK_CHARACTERS)
+                {
+                    write(copyIn, chunk);
+                }
+            }
+            write(copyIn, chunk);
+            copyIn.endCopy();
+        }
+        finally
+        {
+            if(copyIn.isActive())
+            {
+                copyIn.cancelCopy();
+            }
+        }
+    }
+
+    private static void write(CopyIn copyIn, StringBuilder chunk) throws SQLException
+    {
+        if(chunk.length() > 0)
+        {
+            byte[] bytes = chunk.toString().getBytes(StandardCharsets.UTF_8);
+            copyIn.writeToCopy(bytes, 0, bytes.length);
+            chunk.setLength(0);
+        }
+    }
+
+    @Override
+    protected void clearStagingTable(Statement statement) throws SQLException
+    {
+        statement.execute("TRUNCATE " + stagingTable);
+    }
+}
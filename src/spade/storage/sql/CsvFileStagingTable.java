@@ -0,0 +1,100 @@
+/*
+ --------------------------------------------------------------------------------
+ SPADE - Support for Provenance Auditing in Distributed Environments.
+ Copyright (C) 2016 SRI International
+
+ This program is free software: you can redistribute it and/or
+ modify it under the terms of the GNU General Public License as
+ published by the Free Software Foundation, either version 3 of the
+ License, or (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program. If not, see <http://www.gnu.org/licenses/>.
+ --------------------------------------------------------------------------------
+ */
+package spade.storage.sql;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.List;
+
+/**
+ * Staging table of an embedded H2 database, loaded from a temporary CSV file with
+ * CSVREAD. A stand-in for {@link CopyStagingTable} to use the same staging and
+ * merging without a PostgreSQL server.
+ */
+public class CsvFileStagingTable extends StagingTable
+{
+    public CsvFileStagingTable(Connection connection, String table, String hashColumn)
+    {
+        super(connection, table, hashColumn);
+    }
+
+    @Override
+    protected void createStagingTable(Statement statement) throws SQLException
+    {
+        statement.execute("CREATE LOCAL TEMPORARY TABLE " + stagingTable + " AS SELECT * FROM " + table + " WHERE FALSE");
+    }
+
+    @Override
+    protected void copyRows(String columns, List<String[]> rows) throws SQLException
+    {
+        File file = null;
+        try
+        {
+            file = File.createTempFile(stagingTable, ".csv");
+            StringBuilder builder = new StringBuilder(1024);
+            try(Writer writer = new OutputStreamWriter(new FileOutputStream(file), StandardCharsets.UTF_8))
+            {
+                for(String[] row : rows)
+                {
+                    appendCsvRow(builder, row);
+                    writer.append(builder);
+                    builder.setLength(0);
+                }
+            }
+            // CSVREAD needs a name for every column when the file has no header
+            int columnCount = rows.isEmpty() ? 0 : rows.get(0).length;
+            StringBuilder names = new StringBuilder();
+            for(int i = 1; i <= columnCount; i++)
+            {
+                names.append(i > 1 ? "," : "").append('C').append(i);
+            }
+            try(Statement statement = connection.createStatement())
+            {
+                statement.executeUpdate("INSERT INTO " + stagingTable + " (" + columns + ") SELECT * FROM CSVREAD('"
+                        + file.getAbsolutePath().replace("'", "''") + "', '" + names + "', 'charset=UTF-8')");
+            }
+        }
+        catch(IOException exception)
+        {
+            throw new SQLException("Unable to write rows to copy", exception);
+        }
+        finally
+        {
+            if(file != null && !file.delete())
+            {
+                file.deleteOnExit();
+            }
+        }
+    }
+
+    @Override
+    protected void clearStagingTable(Statement statement) throws SQLException
+    {
+        // TRUNCATE would commit the transaction in H2
+        statement.execute("DELETE FROM " + stagingTable);
+    }
+}
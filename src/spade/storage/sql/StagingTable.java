@@ -0,0 +1,157 @@
+/*
+ --------------------------------------------------------------------------------
+ SPADE - Support for Provenance Auditing in Distributed Environments.
+ Copyright (C) 2016 SRI International
+
+ This program is free software: you can redistribute it and/or
+ modify it under the terms of the GNU General Public License as
+ published by the Free Software Foundation, either version 3 of the
+ License, or (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program. If not, see <http://www.gnu.org/licenses/>.
+ --------------------------------------------------------------------------------
+ */
+package spade.storage.sql;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.List;
+
+/**
+ * A staging table for loading rows into a table in bulk. Rows are copied into the
+ * staging table, then merged into the table with a single statement that skips
+ * the rows whose hash is already in the table. The staging table has the columns
+ * of the table, and is recreated before the next copy when they change.
+ */
+public abstract class StagingTable
+{
+    protected final Connection connection;
+    protected final String table;
+    protected final String stagingTable;
+    private final String hashColumn;
+    private boolean stale = true;
+    private boolean empty = true;
+
+    /**
+     * @param connection connection to the database
+     * @param table table to load the rows into
+     * @param hashColumn primary key column of the table
+     */
+    protected StagingTable(Connection connection, String table, String hashColumn)
+    {
+        this.connection = connection;
+        this.table = table;
+        this.stagingTable = table + "_staging";
+        this.hashColumn = hashColumn;
+    }
+
+    /**
+     * Creates the staging table with the columns of the table
+     */
+    protected abstract void createStagingTable(Statement statement) throws SQLException;
+
+    /**
+     * Copies the rows into the staging table
+     *
+     * @param columns comma-separated columns of the values, as in an insert statement
+     * @param rows values of the rows in the order of the columns, null for missing values
+     */
+    protected abstract void copyRows(String columns, List<String[]> rows) throws SQLException;
+
+    /**
+     * Deletes the rows of the staging table without committing
+     */
+    protected abstract void clearStagingTable(Statement statement) throws SQLException;
+
+    /**
+     * Recreates the staging table before the next copy. Called when the columns of
+     * the table change or a copy or merge fails.
+     */
+    public void invalidate()
+    {
+        stale = true;
+        empty = true;
+    }
+
+    /**
+     * Copies rows into the staging table, recreating it first if needed
+     *
+     * @param columns comma-separated columns of the values, as in an insert statement
+     * @param rows values of the rows in the order of the columns, null for missing values
+     */
+    public void copy(String columns, List<String[]> rows) throws SQLException
+    {
+        if(stale)
+        {
+            try(Statement statement = connection.createStatement())
+            {
+                statement.execute("DROP TABLE IF EXISTS " + stagingTable);
+                createStagingTable(statement);
+            }
+            stale = false;
+        }
+        copyRows(columns, rows);
+        empty = false;
+    }
+
+    /**
+     * Inserts the copied rows that are not in the table yet and empties the
+     * staging table. Does not commit.
+     *
+     * @return number of rows inserted into the table
+     */
+    public int merge() throws SQLException
+    {
+        if(empty)
+        {
+            return 0;
+        }
+        try(Statement statement = connection.createStatement())
+        {
+            int inserted = statement.executeUpdate("INSERT INTO " + table
+                    + " SELECT * FROM " + stagingTable + " s WHERE NOT EXISTS (SELECT 1 FROM "
+                    + table + " t WHERE t." + hashColumn + " = s." + hashColumn + ")");
+            clearStagingTable(statement);
+            empty = true;
+            return inserted;
+        }
+    }
+
+    /**
+     * Appends a row in CSV format, quoting every value so that only missing
+     * values are read as NULL.
+     */
+    protected static void appendCsvRow(StringBuilder builder, String[] row)
+    {
+        for(int i = 0; i < row.length; i++)
+        {
+            if(i > 0)
+            {
+                builder.append(',');
+            }
+            String value = row[i];
+            if(value != null)
+            {
+                builder.append('"');
+                for(int j = 0; j < value.length(); j++)
+                {
+                    char c = value.charAt(j);
+                    if(c == '"')
+                    {
+                        builder.append('"');
+                    }
+                    builder.append(c);
+                }
+                builder.append('"');
+            }
+        }
+        builder.append('\n');
+    }
+}
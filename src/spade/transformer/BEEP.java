@@ -134,9 +134,6 @@ public class BEEP extends AbstractTransformer {
 		for(AbstractTransformer transformer : transformers){
 			if(graph != null){
 				graph = transformer.putGraph(graph, digQueryParams);
-				if(graph != null){
-					graph.commitIndex();
-				}
 			}else{
 				break;
 			}
@@ -49,7 +49,6 @@ public class ProvTC2OPM extends Prov2OPM{
 
 	public Graph putGraph(Graph graph, QueryParameters digQueryParams){
 		graph = super.putGraph(graph, digQueryParams);
-		graph.commitIndex();
 		
 		Graph resultGraph = new Graph();
 		
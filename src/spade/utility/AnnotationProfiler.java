@@ -0,0 +1,121 @@
+package spade.utility;
+
+import spade.core.AbstractEdge;
+import spade.core.AbstractVertex;
+import spade.core.Edge;
+import spade.core.Vertex;
+import spade.reporter.audit.OPMConstants;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeMap;
+
+/**
+ * Measures the heap held by vertices and edges resembling the output of the Audit
+ * reporter, once with the default annotation maps and once with TreeMaps.
+ *
+ * Usage: java spade.utility.AnnotationProfiler [number of processes]
+ */
+public class AnnotationProfiler
+{
+    private static final int ARTIFACTS_PER_PROCESS = 4;
+
+    // Elements with the annotation maps used before AnnotationMap
+    private static class TreeMapVertex extends AbstractVertex
+    {
+        private static final long serialVersionUID = -1744247519792275036L;
+
+        private TreeMapVertex()
+        {
+            annotations = new TreeMap<>();
+        }
+    }
+
+    private static class TreeMapEdge extends AbstractEdge
+    {
+        private static final long serialVersionUID = -3879728775804530025L;
+
+        private TreeMapEdge(AbstractVertex childVertex, AbstractVertex parentVertex)
+        {
+            annotations = new TreeMap<>();
+            setChildVertex(childVertex);
+            setParentVertex(parentVertex);
+        }
+    }
+
+    private static List<Object> createElements(int processCount, boolean treeMaps)
+    {
+        List<Object> elements = new ArrayList<>();
+        for(int p = 0; p < processCount; p++)
+        {
+            String pid = String.valueOf(1000 + p);
+            AbstractVertex process = treeMaps ? new TreeMapVertex() : new Vertex();
+            process.addAnnotation(OPMConstants.TYPE, OPMConstants.PROCESS);
+            process.addAnnotation(OPMConstants.SOURCE, OPMConstants.SOURCE_AUDIT_SYSCALL);
+            process.addAnnotation(OPMConstants.PROCESS_PID, pid);
+            process.addAnnotation(OPMConstants.PROCESS_PPID, String.valueOf(999 + p));
+            process.addAnnotation(OPMConstants.PROCESS_NAME, "bash");
+            process.addAnnotation(OPMConstants.PROCESS_CWD, "/home/user");
+            process.addAnnotation(OPMConstants.PROCESS_COMMAND_LINE, "/bin/bash -c ls");
+            process.addAnnotation(OPMConstants.PROCESS_START_TIME, String.valueOf(1500000000L + p));
+            process.addAnnotation(OPMConstants.AGENT_UID, "1000");
+            elements.add(process);
+            for(int a = 0; a < ARTIFACTS_PER_PROCESS; a++)
+            {
+                AbstractVertex artifact = treeMaps ? new TreeMapVertex() : new Vertex();
+                artifact.addAnnotation(OPMConstants.TYPE, OPMConstants.ARTIFACT);
+                artifact.addAnnotation(OPMConstants.SOURCE, OPMConstants.SOURCE_AUDIT_SYSCALL);
+                artifact.addAnnotation(OPMConstants.ARTIFACT_SUBTYPE, OPMConstants.SUBTYPE_FILE);
+                artifact.addAnnotation(OPMConstants.ARTIFACT_PATH, "/tmp/file-" + p + "-" + a);
+                artifact.addAnnotation(OPMConstants.ARTIFACT_VERSION, String.valueOf(a));
+                artifact.addAnnotation(OPMConstants.ARTIFACT_EPOCH, "0");
+                elements.add(artifact);
+
+                AbstractEdge edge = treeMaps ? new TreeMapEdge(process, artifact) : new Edge(process, artifact);
+                edge.addAnnotation(OPMConstants.TYPE, OPMConstants.USED);
+                edge.addAnnotation(OPMConstants.SOURCE, OPMConstants.SOURCE_AUDIT_SYSCALL);
+                edge.addAnnotation("operation", "read");
+                edge.addAnnotation("event id", String.valueOf(p * ARTIFACTS_PER_PROCESS + a));
+                edge.addAnnotation("time", (1500000000L + p) + "." + a);
+                elements.add(edge);
+            }
+        }
+        return elements;
+    }
+
+    private static long usedHeap()
+    {
+        Runtime runtime = Runtime.getRuntime();
+        for(int i = 0; i < 4; i++)
+        {
+            System.gc();
+            try
+            {
+                Thread.sleep(100);
+            }
+            catch(InterruptedException ex)
+            {
+                Thread.currentThread().interrupt();
+            }
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    private static long measure(int processCount, boolean treeMaps)
+    {
+        long before = usedHeap();
+        List<Object> elements = createElements(processCount, treeMaps);
+        long after = usedHeap();
+        System.out.println((treeMaps ? "TreeMap" : "AnnotationMap") + ": " + elements.size() + " elements, "
+                + (after - before) / elements.size() + " bytes per element");
+        // Keep the elements reachable until measured
+        return elements.size();
+    }
+
+    public static void main(String[] args)
+    {
+        int processCount = args.length > 0 ? Integer.parseInt(args[0]) : 100000;
+        measure(processCount, true);
+        measure(processCount, false);
+    }
+}
@@ -0,0 +1,93 @@
+package spade.utility;
+
+import spade.reporter.audit.AuditEventReader;
+
+import java.io.ByteArrayInputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Map;
+
+/**
+ * Measures the throughput and allocation of AuditEventReader on a captured audit
+ * log. The log is read into memory once and parsed repeatedly, so that only the
+ * parsing is measured and not the disk.
+ *
+ * Usage: java spade.utility.AuditEventReaderProfiler audit.log [warmup iterations] [iterations]
+ */
+public class AuditEventReaderProfiler
+{
+    public static void main(String[] args) throws Exception
+    {
+        if(args.length < 1)
+        {
+            System.err.println("Usage: AuditEventReaderProfiler audit.log [warmup iterations] [iterations]");
+            return;
+        }
+        byte[] log = Files.readAllBytes(Paths.get(args[0]));
+        int warmupIterations = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+        int iterations = args.length > 2 ? Integer.parseInt(args[2]) : 10;
+        long records = 0;
+        for(byte b : log)
+        {
+            if(b == '\n')
+                records++;
+        }
+
+        for(int i = 0; i < warmupIterations; i++)
+        {
+            readEvents(log);
+        }
+
+        ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+        long allocatedBefore = allocatedBytes(threadBean);
+        long start = System.nanoTime();
+        long events = 0;
+        for(int i = 0; i < iterations; i++)
+        {
+            events += readEvents(log);
+        }
+        long elapsed = System.nanoTime() - start;
+        long allocated = allocatedBytes(threadBean) - allocatedBefore;
+
+        double seconds = elapsed / 1e9;
+        System.out.println("Read " + events / iterations + " events from " + records + " records in "
+                + elapsed / 1000000 / iterations + " ms per iteration");
+        System.out.println((long) (records * iterations / seconds) + " records/sec, "
+                + (long) (events / seconds) + " events/sec");
+        if(allocated >= 0)
+        {
+            System.out.println(allocated / (records * iterations) + " bytes allocated per record");
+        }
+    }
+
+    private static long readEvents(byte[] log) throws Exception
+    {
+        AuditEventReader reader = new AuditEventReader(AuditEventReaderProfiler.class.getName(),
+                new ByteArrayInputStream(log), false);
+        long events = 0;
+        Map<String, String> eventData;
+        while((eventData = reader.readEventData()) != null)
+        {
+            if(!eventData.isEmpty())
+                events++;
+        }
+        reader.close();
+        return events;
+    }
+
+    // Returns -1 if the JVM does not measure allocation
+    private static long allocatedBytes(ThreadMXBean threadBean)
+    {
+        if(threadBean instanceof com.sun.management.ThreadMXBean)
+        {
+            com.sun.management.ThreadMXBean allocationBean = (com.sun.management.ThreadMXBean) threadBean;
+            if(allocationBean.isThreadAllocatedMemorySupported() && allocationBean.isThreadAllocatedMemoryEnabled())
+            {
+                return allocationBean.getThreadAllocatedBytes(Thread.currentThread().getId());
+            }
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,88 @@
+package spade.utility;
+
+import spade.core.AbstractEdge;
+import spade.core.AbstractVertex;
+import spade.core.Buffer;
+import spade.reporter.Audit;
+
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Measures the time to play back an audit log through the Audit reporter, from
+ * reading the records to the vertices and edges put into the buffer. Run it from
+ * the SPADE directory.
+ *
+ * Usage: java spade.utility.AuditPlaybackProfiler audit.log [Audit arguments]
+ */
+public class AuditPlaybackProfiler
+{
+    private static final String DEFAULT_AUDIT_ARGUMENTS = "arch=64 units=false fileIO=true netIO=true";
+
+    public static void main(String[] args) throws Exception
+    {
+        if(args.length < 1)
+        {
+            System.err.println("Usage: AuditPlaybackProfiler audit.log [Audit arguments]");
+            return;
+        }
+        StringBuilder auditArguments = new StringBuilder();
+        for(int i = 1; i < args.length; i++)
+        {
+            auditArguments.append(' ').append(args[i]);
+        }
+        if(auditArguments.length() == 0)
+        {
+            auditArguments.append(' ').append(DEFAULT_AUDIT_ARGUMENTS);
+        }
+
+        Buffer buffer = new Buffer();
+        Audit reporter = new Audit();
+        reporter.setBuffer(buffer);
+        long[] counts = new long[2];
+        Thread consumer = new Thread(() -> {
+            while(true)
+            {
+                Object element = buffer.getBufferElement();
+                if(element instanceof AbstractVertex)
+                {
+                    counts[0]++;
+                }
+                else if(element instanceof AbstractEdge)
+                {
+                    counts[1]++;
+                }
+                else if(Thread.currentThread().isInterrupted())
+                {
+                    return;
+                }
+                else
+                {
+                    LockSupport.parkNanos(1000000L);
+                }
+            }
+        }, "playback-consumer");
+        buffer.setConsumer(consumer);
+        consumer.start();
+
+        long start = System.nanoTime();
+        if(!reporter.launch("inputLog=" + args[0] + auditArguments))
+        {
+            System.err.println("Failed to launch the Audit reporter");
+            System.exit(1);
+        }
+        while(reporter.isEventReaderThreadRunning() || !buffer.isEmpty())
+        {
+            Thread.sleep(10);
+        }
+        long elapsed = System.nanoTime() - start;
+        consumer.interrupt();
+        consumer.join();
+        reporter.shutdown();
+
+        double seconds = elapsed / 1e9;
+        System.out.println("Played back " + counts[0] + " vertices and " + counts[1] + " edges in "
+                + elapsed / 1000000 + " ms");
+        System.out.println((long) ((counts[0] + counts[1]) / seconds) + " elements/sec");
+        System.exit(0);
+    }
+}
@@ -0,0 +1,136 @@
+package spade.utility;
+
+import spade.core.AbstractEdge;
+import spade.core.AbstractVertex;
+import spade.core.Edge;
+import spade.core.Vertex;
+import spade.storage.CompressedStorage;
+
+import java.io.File;
+import java.util.Random;
+
+/**
+ * Measures the put rate, the size of the stored annotations and the annotation
+ * decode rate of CompressedStorage on vertices and edges shaped like Audit
+ * reporter output. The elements are generated from a fixed seed, so that runs on
+ * different revisions of the storage can be compared.
+ *
+ * Usage: java spade.utility.CompressedStorageProfiler directory [vertices]
+ */
+public class CompressedStorageProfiler
+{
+    private static final long SEED = 1;
+
+    public static void main(String[] args) throws Exception
+    {
+        if(args.length < 1)
+        {
+            System.err.println("Usage: CompressedStorageProfiler directory [vertices]");
+            return;
+        }
+        File directory = new File(args[0]);
+        int vertexCount = args.length > 1 ? Integer.parseInt(args[1]) : 100000;
+        for(String subdirectory : new String[]{"scaffold", "annotations"})
+        {
+            File databaseDirectory = new File(directory, subdirectory);
+            databaseDirectory.mkdirs();
+            for(File file : databaseDirectory.listFiles())
+            {
+                file.delete();
+            }
+        }
+
+        Random random = new Random(SEED);
+        AbstractVertex[] vertices = new AbstractVertex[vertexCount];
+        AbstractEdge[] edges = new AbstractEdge[vertexCount];
+        for(int i = 0; i < vertexCount; i++)
+        {
+            vertices[i] = createVertex(random, i);
+            if(i > 0)
+            {
+                edges[i] = createEdge(random, i, vertices[i], vertices[random.nextInt(i)]);
+            }
+        }
+
+        CompressedStorage storage = new CompressedStorage();
+        if(!storage.initialize(directory.getPath()))
+        {
+            System.err.println("Failed to initialize CompressedStorage in " + directory);
+            return;
+        }
+        long start = System.nanoTime();
+        for(int i = 0; i < vertexCount; i++)
+        {
+            storage.putVertex(vertices[i]);
+            if(i > 0)
+            {
+                storage.putEdge(edges[i]);
+            }
+        }
+        long putNanos = System.nanoTime() - start;
+        int elements = 2 * vertexCount - 1;
+
+        start = System.nanoTime();
+        for(int i = 0; i < vertexCount; i++)
+        {
+            CompressedStorage.decodingVertex(i);
+        }
+        long decodeNanos = System.nanoTime() - start;
+        storage.shutdown();
+
+        long annotationBytes = 0;
+        for(File file : new File(directory, "annotations").listFiles())
+        {
+            annotationBytes += file.length();
+        }
+        System.out.println("Put " + elements + " elements: " + elements * 1000000000L / Math.max(1, putNanos)
+                + " puts/s including scaffold updates");
+        System.out.println("Annotations database: " + annotationBytes + " bytes, "
+                + annotationBytes / elements + " bytes per element");
+        System.out.println("Decoded " + vertexCount + " vertices: "
+                + vertexCount * 1000000000L / Math.max(1, decodeNanos) + " decodes/s");
+    }
+
+    private static AbstractVertex createVertex(Random random, int i)
+    {
+        AbstractVertex vertex = new Vertex();
+        if(i % 2 == 0)
+        {
+            vertex.addAnnotation("type", "Process");
+            vertex.addAnnotation("pid", Integer.toString(1000 + random.nextInt(5000)));
+            vertex.addAnnotation("ppid", Integer.toString(1000 + random.nextInt(5000)));
+            for(String id : new String[]{"uid", "euid", "suid", "fsuid", "gid", "egid", "sgid", "fsgid"})
+            {
+                vertex.addAnnotation(id, "1000");
+            }
+            vertex.addAnnotation("name", "bash");
+            vertex.addAnnotation("cwd", "/home/user");
+            vertex.addAnnotation("command line", "/bin/bash -c ls");
+            vertex.addAnnotation("start time", "1490000000." + random.nextInt(999));
+            vertex.addAnnotation("source", "syscall");
+        }
+        else
+        {
+            vertex.addAnnotation("type", "Artifact");
+            vertex.addAnnotation("subtype", "file");
+            vertex.addAnnotation("path", "/usr/lib/x86_64-linux-gnu/lib" + random.nextInt(300) + ".so");
+            vertex.addAnnotation("version", Integer.toString(random.nextInt(5)));
+            vertex.addAnnotation("epoch", "0");
+            vertex.addAnnotation("permissions", "0644");
+            vertex.addAnnotation("source", "syscall");
+        }
+        return vertex;
+    }
+
+    private static AbstractEdge createEdge(Random random, int i, AbstractVertex child, AbstractVertex parent)
+    {
+        AbstractEdge edge = new Edge(child, parent);
+        edge.addAnnotation("type", i % 2 == 0 ? "WasTriggeredBy" : "Used");
+        edge.addAnnotation("operation", i % 2 == 0 ? "fork" : "read");
+        edge.addAnnotation("time", "1490000" + random.nextInt(999) + "." + random.nextInt(999));
+        edge.addAnnotation("event id", Integer.toString(i));
+        edge.addAnnotation("source", "syscall");
+        edge.addAnnotation("size", Integer.toString(random.nextInt(4096)));
+        return edge;
+    }
+}
@@ -20,6 +20,7 @@
  */
 package spade.utility;
 
+import org.apache.commons.codec.digest.DigestUtils;
 import spade.core.BloomFilter;
 
 import java.io.Serializable;
@@ -35,6 +36,7 @@ import java.util.logging.Logger;
  *
  * This class uses a bloomfilter to keep a track of elements that have been added. This avoids
  * the expensive calls to disk to get an element if the element wasn't found in memory.
+ * Like the bloomfilter, the default key hash is computed from the toString() of the key.
  * 
  * @params <K> Any object type
  * @params <V> Object type must implement the Serializable interface 
@@ -48,10 +50,10 @@ public class ExternalMemoryMap<K, V extends Serializable>{
 	//bloomfilter to check if the element exists in memory and/or external storage
 	private BloomFilter<K> bloomFilter;
 	
-	//default hasher using the hashCode function.
+	//default hasher using the MD5 digest of toString() since 32-bit hashCode values collide
 	private Hasher<K> keyHasher = new Hasher<K>(){
 		public String getHash(K k){
-			return String.valueOf(k.hashCode());
+			return DigestUtils.md5Hex(String.valueOf(k));
 		}
 	};
 	
@@ -124,7 +126,7 @@ public class ExternalMemoryMap<K, V extends Serializable>{
 	}
 	
 	/**
-	 * Replaces the default Object.hashCode() function with the provided one. If null this function does nothing.
+	 * Replaces the default hash function of the keys with the provided one. If null this function does nothing.
 	 * 
 	 * @param hasher Class to use to get a custom hash of the key
 	 */
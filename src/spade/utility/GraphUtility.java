@@ -181,7 +181,6 @@ public class GraphUtility {
         for (AbstractEdge e : graph.edgeSet()) {
             filter.putEdge(e);
         }
-        result.commitIndex();
         finalFilter.storages.remove(graph);
         graphObjects.put(target, result);
         outputStream.println(String.format("Result saved in graph %s", target));
@@ -0,0 +1,149 @@
+package spade.utility;
+
+import spade.core.AbstractEdge;
+import spade.core.AbstractQuery;
+import spade.core.AbstractVertex;
+import spade.core.Edge;
+import spade.core.Graph;
+import spade.core.Settings;
+import spade.core.Vertex;
+import spade.query.common.GetLineage;
+import spade.storage.SQL;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Compares the lineage computed inside a SQL database with a recursive query
+ * against the breadth-first search driven by GetLineage, on a random graph.
+ *
+ * Usage: java spade.utility.LineageProfiler 'driver URL username password'
+ *            [vertices] [edges] [max depth] [number of lineage queries]
+ *
+ * The graph is only generated if the database has no edges yet.
+ */
+public class LineageProfiler
+{
+    private static final int BATCH_SIZE = 10000;
+    private static final long SEED = 42;
+
+    private static AbstractVertex createVertex(long index)
+    {
+        AbstractVertex vertex = new Vertex();
+        vertex.addAnnotation("type", "Process");
+        vertex.addAnnotation("count", Long.toString(index));
+        return vertex;
+    }
+
+    private static void createGraph(SQL storage, long vertexCount, long edgeCount)
+    {
+        long start = System.nanoTime();
+        List<AbstractVertex> vertices = new ArrayList<>(BATCH_SIZE);
+        List<AbstractEdge> edges = new ArrayList<>(BATCH_SIZE);
+        for(long i = 0; i < vertexCount; i++)
+        {
+            vertices.add(createVertex(i));
+            if(vertices.size() == BATCH_SIZE)
+            {
+                storage.putBatch(vertices, edges);
+                vertices.clear();
+            }
+        }
+        Random random = new Random(SEED);
+        for(long i = 0; i < edgeCount; i++)
+        {
+            // edges point from newer to older vertices as in provenance graphs
+            long child = 1 + (long) (random.nextDouble() * (vertexCount - 1));
+            long parent = (long) (random.nextDouble() * child);
+            AbstractEdge edge = new Edge(createVertex(child), createVertex(parent));
+            edge.addAnnotation("type", "WasTriggeredBy");
+            edge.addAnnotation("count", Long.toString(i));
+            edges.add(edge);
+            if(edges.size() == BATCH_SIZE)
+            {
+                storage.putBatch(vertices, edges);
+                edges.clear();
+            }
+        }
+        storage.putBatch(vertices, edges);
+        System.out.println("Created " + vertexCount + " vertices and " + edgeCount + " edges in "
+                + (System.nanoTime() - start) / 1000000 + " ms");
+    }
+
+    public static void main(String[] args)
+    {
+        if(args.length < 1)
+        {
+            System.err.println("Usage: LineageProfiler 'driver URL username password' [vertices] [edges] [max depth] [queries]");
+            return;
+        }
+        long vertexCount = args.length > 1 ? Long.parseLong(args[1]) : 1000000;
+        long edgeCount = args.length > 2 ? Long.parseLong(args[2]) : 10000000;
+        int maxDepth = args.length > 3 ? Integer.parseInt(args[3]) : 5;
+        int queryCount = args.length > 4 ? Integer.parseInt(args[4]) : 10;
+
+        SQL storage = new SQL();
+        if(!storage.initialize(args[0]))
+        {
+            return;
+        }
+        AbstractQuery.setCurrentStorage(storage);
+        if(!hasEdges(storage))
+        {
+            createGraph(storage, vertexCount, edgeCount);
+        }
+
+        GetLineage getLineage = new GetLineage();
+        Random random = new Random(SEED);
+        String[] directions = {Settings.getProperty("direction_ancestors"), Settings.getProperty("direction_descendants")};
+        for(String direction : directions)
+        {
+            long recursiveTime = 0;
+            long breadthFirstTime = 0;
+            long recursiveElements = 0;
+            long breadthFirstElements = 0;
+            for(int i = 0; i < queryCount; i++)
+            {
+                Map<String, List<String>> parameters = new HashMap<>();
+                long root = (long) (random.nextDouble() * vertexCount);
+                parameters.put("count", Arrays.asList("=", Long.toString(root), null));
+                parameters.put("direction", Collections.singletonList(direction));
+                parameters.put("maxDepth", Collections.singletonList(Integer.toString(maxDepth)));
+
+                long start = System.nanoTime();
+                Graph lineage = getLineage.execute(parameters, null);
+                recursiveTime += System.nanoTime() - start;
+                if(lineage != null)
+                    recursiveElements += lineage.vertexSet().size() + lineage.edgeSet().size();
+
+                start = System.nanoTime();
+                lineage = getLineage.executeBreadthFirst(parameters, null);
+                breadthFirstTime += System.nanoTime() - start;
+                if(lineage != null)
+                    breadthFirstElements += lineage.vertexSet().size() + lineage.edgeSet().size();
+            }
+            System.out.println(direction + ": recursive query " + recursiveTime / 1000000 + " ms ("
+                    + recursiveElements + " elements), breadth-first search " + breadthFirstTime / 1000000
+                    + " ms (" + breadthFirstElements + " elements) for " + queryCount + " queries of depth "
+                    + maxDepth);
+        }
+        storage.shutdown();
+    }
+
+    private static boolean hasEdges(SQL storage)
+    {
+        try
+        {
+            return storage.executeQuery("SELECT 1 FROM edge LIMIT 1;").next();
+        }
+        catch(Exception ex)
+        {
+            return false;
+        }
+    }
+}
@@ -0,0 +1,296 @@
+/*
+ --------------------------------------------------------------------------------
+ SPADE - Support for Provenance Auditing in Distributed Environments.
+ Copyright (C) 2016 SRI International
+
+ This program is free software: you can redistribute it and/or
+ modify it under the terms of the GNU General Public License as
+ published by the Free Software Foundation, either version 3 of the
+ License, or (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program. If not, see <http://www.gnu.org/licenses/>.
+ --------------------------------------------------------------------------------
+ */
+package spade.utility;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.RandomAccessFile;
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.commons.codec.digest.DigestUtils;
+
+/**
+ * This class implements the ExternalStore interface and is used in ExternalMemoryMap class
+ *
+ * Values are encoded with a Codec and appended to a memory-mapped file, so that they
+ * are neither on the Java heap nor behind a database call. The offset of every value
+ * is kept in an off-heap table indexed by the MD5 digest of the key. Space of replaced
+ * and removed values is reclaimed by rewriting the file once more than half of it is
+ * unused. The file is deleted when the store is closed.
+ *
+ * @param <V> Object to save in the store
+ */
+
+public class MemoryMappedStore<V extends Serializable> implements ExternalStore<V> {
+
+	/**
+	 * Compact binary encoding of the values of the store
+	 *
+	 * @param <V> Object type to encode
+	 */
+	public interface Codec<V>{
+		public void write(V value, DataOutput out) throws IOException;
+		public V read(DataInput in) throws IOException;
+	}
+
+	// Records never span two mapped segments
+	private static final int SEGMENT_BYTES = 64 * 1024 * 1024;
+	private static final int RECORD_HEADER_BYTES = 4;
+	private static final long INITIAL_INDEX_SIZE = 1024;
+
+	private final File directory;
+	private final String storeName;
+	private final Codec<V> codec;
+
+	private OffHeapDigestMap index;
+	private File file;
+	private RandomAccessFile randomAccessFile;
+	private FileChannel channel;
+	private List<MappedByteBuffer> segments = new ArrayList<MappedByteBuffer>();
+	private int generation = 0;
+	// Offset where the next record is appended
+	private long writeOffset = 0;
+	// Bytes of records still referenced by the index
+	private long liveBytes = 0;
+	private final ByteArrayOutputStream encodeBuffer = new ByteArrayOutputStream();
+
+	/**
+	 * Store with values encoded by Java serialization
+	 *
+	 * @param directoryPath Existing directory to keep the file in
+	 * @param storeName Name of the file
+	 * @throws IOException if the file cannot be created
+	 */
+	public MemoryMappedStore(String directoryPath, String storeName) throws IOException {
+		this(directoryPath, storeName, new SerializationCodec<V>());
+	}
+
+	/**
+	 * @param directoryPath Existing directory to keep the file in
+	 * @param storeName Name of the file
+	 * @param codec Encoding of the values
+	 * @throws IOException if the file cannot be created
+	 */
+	public MemoryMappedStore(String directoryPath, String storeName, Codec<V> codec) throws IOException {
+		this.directory = new File(directoryPath);
+		this.storeName = storeName;
+		this.codec = codec;
+		index = new OffHeapDigestMap(INITIAL_INDEX_SIZE);
+		openFile();
+	}
+
+	@Override
+	public boolean init() throws Exception {
+		return true;
+	}
+
+	@Override
+	public boolean shutdown() throws Exception {
+		close();
+		return true;
+	}
+
+	@Override
+	public V get(String key) throws Exception {
+		long offset = index.get(digest(key));
+		if(offset == OffHeapDigestMap.NOT_FOUND){
+			return null;
+		}
+		return codec.read(new DataInputStream(new ByteArrayInputStream(readRecord(offset))));
+	}
+
+	@Override
+	public void put(String key, V value) throws Exception {
+		encodeBuffer.reset();
+		DataOutputStream dataOutputStream = new DataOutputStream(encodeBuffer);
+		codec.write(value, dataOutputStream);
+		dataOutputStream.flush();
+		byte[] valueBytes = encodeBuffer.toByteArray();
+
+		long offset = appendRecord(valueBytes);
+		long previousOffset = index.put(digest(key), offset);
+		liveBytes += RECORD_HEADER_BYTES + valueBytes.length;
+		if(previousOffset != OffHeapDigestMap.NOT_FOUND){
+			liveBytes -= recordBytes(previousOffset);
+		}
+		if(writeOffset > SEGMENT_BYTES && liveBytes < writeOffset / 2){
+			compact();
+		}
+	}
+
+	@Override
+	public void remove(String key) throws Exception {
+		long offset = index.remove(digest(key));
+		if(offset != OffHeapDigestMap.NOT_FOUND){
+			liveBytes -= recordBytes(offset);
+		}
+	}
+
+	@Override
+	public void clear() throws Exception {
+		index.clear();
+		writeOffset = 0;
+		liveBytes = 0;
+	}
+
+	@Override
+	public void close() throws Exception{
+		if(index != null){
+			index.close();
+			index = null;
+			closeFile();
+		}
+	}
+
+	private byte[] digest(String key){
+		return DigestUtils.md5(key.getBytes(StandardCharsets.UTF_8));
+	}
+
+	private void openFile() throws IOException{
+		file = new File(directory, storeName + "." + generation);
+		randomAccessFile = new RandomAccessFile(file, "rw");
+		randomAccessFile.setLength(0);
+		channel = randomAccessFile.getChannel();
+		segments = new ArrayList<MappedByteBuffer>();
+		writeOffset = 0;
+		liveBytes = 0;
+	}
+
+	private void closeFile() throws IOException{
+		// The mappings stay valid until garbage collected but the file can be deleted
+		segments = new ArrayList<MappedByteBuffer>();
+		channel.close();
+		randomAccessFile.close();
+		if(!file.delete()){
+			file.deleteOnExit();
+		}
+	}
+
+	private ByteBuffer segment(long offset) throws IOException{
+		int segmentIndex = (int)(offset / SEGMENT_BYTES);
+		while(segments.size() <= segmentIndex){
+			segments.add(channel.map(FileChannel.MapMode.READ_WRITE, (long)segments.size() * SEGMENT_BYTES, SEGMENT_BYTES));
+		}
+		return segments.get(segmentIndex);
+	}
+
+	private long appendRecord(byte[] valueBytes) throws IOException{
+		int recordBytes = RECORD_HEADER_BYTES + valueBytes.length;
+		if(recordBytes > SEGMENT_BYTES){
+			throw new IOException("Value too large for store: " + valueBytes.length + " bytes");
+		}
+		long remaining = SEGMENT_BYTES - (writeOffset % SEGMENT_BYTES);
+		if(recordBytes > remaining){
+			writeOffset += remaining;
+		}
+		long offset = writeOffset;
+		ByteBuffer segment = segment(offset).duplicate();
+		segment.position((int)(offset % SEGMENT_BYTES));
+		segment.putInt(valueBytes.length);
+		segment.put(valueBytes);
+		writeOffset += recordBytes;
+		return offset;
+	}
+
+	private byte[] readRecord(long offset) throws IOException{
+		return readRecord(segment(offset), offset);
+	}
+
+	private static byte[] readRecord(ByteBuffer segment, long offset){
+		ByteBuffer record = segment.duplicate();
+		record.position((int)(offset % SEGMENT_BYTES));
+		byte[] valueBytes = new byte[record.getInt()];
+		record.get(valueBytes);
+		return valueBytes;
+	}
+
+	private int recordBytes(long offset) throws IOException{
+		return RECORD_HEADER_BYTES + segment(offset).getInt((int)(offset % SEGMENT_BYTES));
+	}
+
+	/**
+	 * Copies the records still referenced by the index into a new file
+	 */
+	private void compact() throws IOException{
+		File oldFile = file;
+		RandomAccessFile oldRandomAccessFile = randomAccessFile;
+		FileChannel oldChannel = channel;
+		List<MappedByteBuffer> oldSegments = segments;
+		generation++;
+		openFile();
+		index.replaceValues(oldOffset -> {
+			byte[] valueBytes = readRecord(oldSegments.get((int)(oldOffset / SEGMENT_BYTES)), oldOffset);
+			try{
+				long newOffset = appendRecord(valueBytes);
+				liveBytes += RECORD_HEADER_BYTES + valueBytes.length;
+				return newOffset;
+			}catch(IOException e){
+				throw new RuntimeException("Failed to compact store", e);
+			}
+		});
+		oldChannel.close();
+		oldRandomAccessFile.close();
+		if(!oldFile.delete()){
+			oldFile.deleteOnExit();
+		}
+	}
+
+	/**
+	 * Codec using Java serialization for values without a compact encoding
+	 */
+	private static class SerializationCodec<V> implements Codec<V>{
+		@Override
+		public void write(V value, DataOutput out) throws IOException{
+			ByteArrayOutputStream byteOutputStream = new ByteArrayOutputStream();
+			ObjectOutputStream objectOutputStream = new ObjectOutputStream(byteOutputStream);
+			objectOutputStream.writeObject(value);
+			objectOutputStream.flush();
+			byte[] valueBytes = byteOutputStream.toByteArray();
+			out.writeInt(valueBytes.length);
+			out.write(valueBytes);
+		}
+
+		@Override
+		@SuppressWarnings("unchecked")
+		public V read(DataInput in) throws IOException{
+			byte[] valueBytes = new byte[in.readInt()];
+			in.readFully(valueBytes);
+			try{
+				return (V)new ObjectInputStream(new ByteArrayInputStream(valueBytes)).readObject();
+			}catch(ClassNotFoundException e){
+				throw new IOException(e);
+			}
+		}
+	}
+}
@@ -0,0 +1,294 @@
+/*
+ --------------------------------------------------------------------------------
+ SPADE - Support for Provenance Auditing in Distributed Environments.
+ Copyright (C) 2016 SRI International
+
+ This program is free software: you can redistribute it and/or
+ modify it under the terms of the GNU General Public License as
+ published by the Free Software Foundation, either version 3 of the
+ License, or (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program. If not, see <http://www.gnu.org/licenses/>.
+ --------------------------------------------------------------------------------
+ */
+package spade.utility;
+
+import java.nio.ByteBuffer;
+import java.util.function.LongUnaryOperator;
+
+/**
+ * A map from 128-bit digests (as returned by bigHashCodeBytes()) to non-negative
+ * longs, kept outside of the Java heap in direct buffers. It is an open addressing
+ * hash table with linear probing. Every slot holds the two halves of the digest
+ * and the value plus one, so that a zero value marks an empty slot. Removal shifts
+ * the following entries back instead of leaving tombstones.
+ *
+ * Since digests are uniformly distributed, their lower half is used as the hash.
+ */
+public class OffHeapDigestMap
+{
+    public static final long NOT_FOUND = -1;
+
+    private static final int DIGEST_BYTES = 16;
+    private static final int SLOT_BYTES = 24;
+    // 1M slots (24 MB) per direct buffer keeps every buffer below the 2 GB limit
+    private static final int MAX_SEGMENT_SHIFT = 20;
+    private static final double MAX_LOAD_FACTOR = 0.6;
+
+    private ByteBuffer[] segments;
+    private int segmentShift;
+    private long capacity;
+    private long size;
+
+    /**
+     * @param expectedSize number of entries the map can hold before it is resized
+     */
+    public OffHeapDigestMap(long expectedSize)
+    {
+        long slots = Long.highestOneBit(Math.max(16, (long) (expectedSize / MAX_LOAD_FACTOR)));
+        if(slots < expectedSize / MAX_LOAD_FACTOR)
+        {
+            slots <<= 1;
+        }
+        allocate(slots);
+    }
+
+    private void allocate(long slots)
+    {
+        capacity = slots;
+        segmentShift = Math.min(MAX_SEGMENT_SHIFT, Long.numberOfTrailingZeros(slots));
+        int segmentSlots = 1 << segmentShift;
+        segments = new ByteBuffer[(int) (slots >>> segmentShift)];
+        for(int i = 0; i < segments.length; i++)
+        {
+            segments[i] = ByteBuffer.allocateDirect(segmentSlots * SLOT_BYTES);
+        }
+        size = 0;
+    }
+
+    public long size()
+    {
+        return size;
+    }
+
+    /**
+     * @return the value of the digest, or NOT_FOUND
+     */
+    public long get(byte[] digest)
+    {
+        ByteBuffer key = wrap(digest);
+        long slot = find(key.getLong(0), key.getLong(8));
+        return segment(slot).getLong(offset(slot) + 16) - 1;
+    }
+
+    /**
+     * Adds the digest unless it is already present.
+     *
+     * @param value non-negative value of the digest
+     * @return the existing value of the digest, or NOT_FOUND if it was added
+     */
+    public long putIfAbsent(byte[] digest, long value)
+    {
+        if(value < 0)
+        {
+            throw new IllegalArgumentException("Negative value: " + value);
+        }
+        ByteBuffer key = wrap(digest);
+        long high = key.getLong(0);
+        long low = key.getLong(8);
+        long slot = find(high, low);
+        ByteBuffer segment = segment(slot);
+        int offset = offset(slot);
+        long existing = segment.getLong(offset + 16);
+        if(existing != 0)
+        {
+            return existing - 1;
+        }
+        segment.putLong(offset, high);
+        segment.putLong(offset + 8, low);
+        segment.putLong(offset + 16, value + 1);
+        size++;
+        if(size > capacity * MAX_LOAD_FACTOR)
+        {
+            resize();
+        }
+        return NOT_FOUND;
+    }
+
+    /**
+     * Adds the digest or replaces its value.
+     *
+     * @param value non-negative value of the digest
+     * @return the previous value of the digest, or NOT_FOUND if it was added
+     */
+    public long put(byte[] digest, long value)
+    {
+        if(value < 0)
+        {
+            throw new IllegalArgumentException("Negative value: " + value);
+        }
+        ByteBuffer key = wrap(digest);
+        long slot = find(key.getLong(0), key.getLong(8));
+        ByteBuffer segment = segment(slot);
+        int offset = offset(slot);
+        long existing = segment.getLong(offset + 16);
+        if(existing == 0)
+        {
+            return putIfAbsent(digest, value);
+        }
+        segment.putLong(offset + 16, value + 1);
+        return existing - 1;
+    }
+
+    /**
+     * @return the value of the removed digest, or NOT_FOUND
+     */
+    public long remove(byte[] digest)
+    {
+        ByteBuffer key = wrap(digest);
+        long hole = find(key.getLong(0), key.getLong(8));
+        long existing = segment(hole).getLong(offset(hole) + 16);
+        if(existing == 0)
+        {
+            return NOT_FOUND;
+        }
+        long mask = capacity - 1;
+        long next = (hole + 1) & mask;
+        while(true)
+        {
+            ByteBuffer segment = segment(next);
+            int offset = offset(next);
+            if(segment.getLong(offset + 16) == 0)
+            {
+                break;
+            }
+            // the entry can fill the hole unless its home slot lies between the hole and itself
+            long home = segment.getLong(offset + 8) & mask;
+            if(((next - home) & mask) >= ((next - hole) & mask))
+            {
+                ByteBuffer holeSegment = segment(hole);
+                int holeOffset = offset(hole);
+                holeSegment.putLong(holeOffset, segment.getLong(offset));
+                holeSegment.putLong(holeOffset + 8, segment.getLong(offset + 8));
+                holeSegment.putLong(holeOffset + 16, segment.getLong(offset + 16));
+                hole = next;
+            }
+            next = (next + 1) & mask;
+        }
+        segment(hole).putLong(offset(hole) + 16, 0);
+        size--;
+        return existing - 1;
+    }
+
+    /**
+     * Replaces every value with the result of the function, which must not be negative.
+     */
+    public void replaceValues(LongUnaryOperator function)
+    {
+        for(ByteBuffer segment : segments)
+        {
+            for(int offset = 0; offset < segment.capacity(); offset += SLOT_BYTES)
+            {
+                long value = segment.getLong(offset + 16);
+                if(value != 0)
+                {
+                    segment.putLong(offset + 16, function.applyAsLong(value - 1) + 1);
+                }
+            }
+        }
+    }
+
+    /**
+     * Removes all digests, keeping the allocated memory.
+     */
+    public void clear()
+    {
+        for(ByteBuffer segment : segments)
+        {
+            for(int offset = 0; offset < segment.capacity(); offset += SLOT_BYTES)
+            {
+                segment.putLong(offset + 16, 0);
+            }
+        }
+        size = 0;
+    }
+
+    /**
+     * Drops the buffers. The memory is returned once they are garbage collected.
+     */
+    public void close()
+    {
+        segments = new ByteBuffer[0];
+        capacity = 0;
+        size = 0;
+    }
+
+    private static ByteBuffer wrap(byte[] digest)
+    {
+        if(digest == null || digest.length != DIGEST_BYTES)
+        {
+            throw new IllegalArgumentException("Expected a digest of " + DIGEST_BYTES + " bytes");
+        }
+        return ByteBuffer.wrap(digest);
+    }
+
+    // Returns the slot holding the digest, or the empty slot where it belongs
+    private long find(long high, long low)
+    {
+        long mask = capacity - 1;
+        long slot = low & mask;
+        while(true)
+        {
+            ByteBuffer segment = segment(slot);
+            int offset = offset(slot);
+            if(segment.getLong(offset + 16) == 0
+                    || (segment.getLong(offset + 8) == low && segment.getLong(offset) == high))
+            {
+                return slot;
+            }
+            slot = (slot + 1) & mask;
+        }
+    }
+
+    private ByteBuffer segment(long slot)
+    {
+        return segments[(int) (slot >>> segmentShift)];
+    }
+
+    private int offset(long slot)
+    {
+        return (int) (slot & ((1 << segmentShift) - 1)) * SLOT_BYTES;
+    }
+
+    private void resize()
+    {
+        ByteBuffer[] oldSegments = segments;
+        long oldSize = size;
+        allocate(capacity << 1);
+        for(ByteBuffer oldSegment : oldSegments)
+        {
+            for(int offset = 0; offset < oldSegment.capacity(); offset += SLOT_BYTES)
+            {
+                long value = oldSegment.getLong(offset + 16);
+                if(value != 0)
+                {
+                    long high = oldSegment.getLong(offset);
+                    long low = oldSegment.getLong(offset + 8);
+                    long slot = find(high, low);
+                    ByteBuffer segment = segment(slot);
+                    int newOffset = offset(slot);
+                    segment.putLong(newOffset, high);
+                    segment.putLong(newOffset + 8, low);
+                    segment.putLong(newOffset + 16, value);
+                }
+            }
+        }
+        size = oldSize;
+    }
+}
@@ -0,0 +1,116 @@
+package spade.utility;
+
+import spade.core.AbstractEdge;
+import spade.core.AbstractVertex;
+import spade.core.Edge;
+import spade.core.Vertex;
+import spade.storage.SQL;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Measures the sustained insert rate of the SQL storage on a stream of vertices
+ * and edges shaped like Audit reporter output. Run it once with the default
+ * arguments and once with 'copy=true' to compare the batched insert and copy
+ * modes. Half way through the stream artifacts get a new annotation key, so that
+ * the columns of the vertex table change while loading.
+ *
+ * Usage: java spade.utility.SQLIngestProfiler 'driver URL username password [storage options]'
+ *            [vertices] [percent of vertices sent again]
+ */
+public class SQLIngestProfiler
+{
+    private static final long SEED = 42;
+    private static final int REPORTS = 10;
+
+    public static void main(String[] args)
+    {
+        if(args.length < 1)
+        {
+            System.err.println("Usage: SQLIngestProfiler 'driver URL username password [storage options]' [vertices] [percent sent again]");
+            return;
+        }
+        int vertexCount = args.length > 1 ? Integer.parseInt(args[1]) : 1000000;
+        int repeatPercent = args.length > 2 ? Integer.parseInt(args[2]) : 0;
+
+        SQL storage = new SQL();
+        if(!storage.initialize(args[0]))
+        {
+            return;
+        }
+        // Distinct from the rows of earlier runs on the same database
+        String run = Long.toString(System.currentTimeMillis());
+        Random random = new Random(SEED);
+        List<AbstractVertex> sent = new ArrayList<>();
+        AbstractVertex process = null;
+        long rows = 0;
+        long reportRows = 0;
+        long start = System.nanoTime();
+        long reportStart = start;
+        for(int i = 0; i < vertexCount; i++)
+        {
+            AbstractVertex vertex;
+            if(!sent.isEmpty() && random.nextInt(100) < repeatPercent)
+            {
+                vertex = sent.get(random.nextInt(sent.size()));
+            }
+            else
+            {
+                vertex = new Vertex();
+                if(i % 4 == 0)
+                {
+                    vertex.addAnnotation("type", "Process");
+                    vertex.addAnnotation("pid", Integer.toString(i));
+                    vertex.addAnnotation("ppid", Integer.toString(i / 2));
+                    vertex.addAnnotation("name", "process-" + run);
+                    vertex.addAnnotation("commandline", "/bin/sh -c 'echo " + i + "'");
+                    vertex.addAnnotation("uid", "1000");
+                }
+                else
+                {
+                    vertex.addAnnotation("type", "Artifact");
+                    vertex.addAnnotation("subtype", "file");
+                    vertex.addAnnotation("path", "/tmp/" + run + "/" + i);
+                    if(i >= vertexCount / 2)
+                    {
+                        vertex.addAnnotation("version", Integer.toString(i % 7));
+                    }
+                }
+                if(sent.size() < 100000)
+                {
+                    sent.add(vertex);
+                }
+            }
+            storage.putVertex(vertex);
+            rows++;
+            if(vertex.getAnnotation("type").equals("Process"))
+            {
+                process = vertex;
+            }
+            else if(process != null)
+            {
+                AbstractEdge edge = new Edge(process, vertex);
+                edge.addAnnotation("type", "Used");
+                edge.addAnnotation("operation", i % 2 == 0 ? "read" : "mmap");
+                edge.addAnnotation("time", Double.toString(1.5e9 + i / 1000.0));
+                edge.addAnnotation("event id", Integer.toString(i));
+                storage.putEdge(edge);
+                rows++;
+            }
+            if((i + 1) % Math.max(1, vertexCount / REPORTS) == 0)
+            {
+                long now = System.nanoTime();
+                System.out.println(rows + " rows: " + (rows - reportRows) * 1000000000L / Math.max(1, now - reportStart)
+                        + " rows/s");
+                reportRows = rows;
+                reportStart = now;
+            }
+        }
+        storage.shutdown();
+        long elapsed = System.nanoTime() - start;
+        System.out.println("Inserted " + rows + " rows in " + elapsed / 1000000 + " ms: "
+                + rows * 1000000000L / Math.max(1, elapsed) + " rows/s including the final commit");
+    }
+}
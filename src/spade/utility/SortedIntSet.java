@@ -0,0 +1,261 @@
+/*
+ --------------------------------------------------------------------------------
+ SPADE - Support for Provenance Auditing in Distributed Environments.
+ Copyright (C) 2016 SRI International
+
+ This program is free software: you can redistribute it and/or
+ modify it under the terms of the GNU General Public License as
+ published by the Free Software Foundation, either version 3 of the
+ License, or (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program. If not, see <http://www.gnu.org/licenses/>.
+ --------------------------------------------------------------------------------
+ */
+package spade.utility;
+
+import java.util.Arrays;
+
+/**
+ * Set of ints kept as a sorted array, for adjacency lists of vertex ids.
+ *
+ * Uses 4 bytes per element instead of the 40+ of a TreeSet of Integer. Adding in
+ * ascending order appends; adding elsewhere shifts the larger elements, so sets
+ * built from unordered input should be merged with addAll instead.
+ */
+public class SortedIntSet
+{
+    private static final int[] EMPTY = new int[0];
+
+    private int[] elements;
+    private int size = 0;
+
+    public SortedIntSet()
+    {
+        elements = EMPTY;
+    }
+
+    public SortedIntSet(int capacity)
+    {
+        elements = capacity == 0 ? EMPTY : new int[capacity];
+    }
+
+    public SortedIntSet(SortedIntSet other)
+    {
+        elements = Arrays.copyOf(other.elements, other.size);
+        size = other.size;
+    }
+
+    public int size()
+    {
+        return size;
+    }
+
+    public boolean isEmpty()
+    {
+        return size == 0;
+    }
+
+    /**
+     * @param index position in ascending order
+     * @return the element at the position
+     */
+    public int get(int index)
+    {
+        if(index >= size)
+        {
+            throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size);
+        }
+        return elements[index];
+    }
+
+    public int first()
+    {
+        return get(0);
+    }
+
+    public boolean contains(int value)
+    {
+        return Arrays.binarySearch(elements, 0, size, value) >= 0;
+    }
+
+    /**
+     * @return true if the set did not contain the value
+     */
+    public boolean add(int value)
+    {
+        int index;
+        if(size == 0 || value > elements[size - 1])
+        {
+            index = size;
+        }
+        else
+        {
+            index = Arrays.binarySearch(elements, 0, size, value);
+            if(index >= 0)
+            {
+                return false;
+            }
+            index = -index - 1;
+        }
+        if(size == elements.length)
+        {
+            elements = Arrays.copyOf(elements, Math.max(4, size + (size >> 1)));
+        }
+        System.arraycopy(elements, index, elements, index + 1, size - index);
+        elements[index] = value;
+        size++;
+        return true;
+    }
+
+    /**
+     * Adds all elements of the other set by merging the two arrays
+     */
+    public void addAll(SortedIntSet other)
+    {
+        if(other.size == 0)
+        {
+            return;
+        }
+        if(size == 0 || other.elements[0] > elements[size - 1])
+        {
+            if(size + other.size > elements.length)
+            {
+                elements = Arrays.copyOf(elements, size + other.size);
+            }
+            System.arraycopy(other.elements, 0, elements, size, other.size);
+            size += other.size;
+            return;
+        }
+        int[] merged = new int[size + other.size];
+        int i = 0, j = 0, k = 0;
+        while(i < size && j < other.size)
+        {
+            int a = elements[i], b = other.elements[j];
+            if(a < b)
+            {
+                merged[k++] = a;
+                i++;
+            }
+            else if(a > b)
+            {
+                merged[k++] = b;
+                j++;
+            }
+            else
+            {
+                merged[k++] = a;
+                i++;
+                j++;
+            }
+        }
+        while(i < size)
+        {
+            merged[k++] = elements[i++];
+        }
+        while(j < other.size)
+        {
+            merged[k++] = other.elements[j++];
+        }
+        elements = merged;
+        size = k;
+    }
+
+    /**
+     * Removes all elements of the other set
+     */
+    public void removeAll(SortedIntSet other)
+    {
+        int i = 0, j = 0, k = 0;
+        while(i < size)
+        {
+            int a = elements[i];
+            while(j < other.size && other.elements[j] < a)
+            {
+                j++;
+            }
+            if(j == other.size || other.elements[j] != a)
+            {
+                elements[k++] = a;
+            }
+            i++;
+        }
+        size = k;
+    }
+
+    /**
+     * Releases the unused capacity
+     */
+    public void trimToSize()
+    {
+        if(elements.length > size)
+        {
+            elements = size == 0 ? EMPTY : Arrays.copyOf(elements, size);
+        }
+    }
+
+    public int[] toArray()
+    {
+        return Arrays.copyOf(elements, size);
+    }
+
+    @Override
+    public boolean equals(Object object)
+    {
+        if(this == object)
+        {
+            return true;
+        }
+        if(!(object instanceof SortedIntSet))
+        {
+            return false;
+        }
+        SortedIntSet other = (SortedIntSet) object;
+        if(size != other.size)
+        {
+            return false;
+        }
+        for(int i = 0; i < size; i++)
+        {
+            if(elements[i] != other.elements[i])
+            {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public int hashCode()
+    {
+        int hash = 1;
+        for(int i = 0; i < size; i++)
+        {
+            hash = 31 * hash + elements[i];
+        }
+        return hash;
+    }
+
+    /**
+     * @return the elements in the same format as a java.util.Set, e.g. [1, 2, 3]
+     */
+    @Override
+    public String toString()
+    {
+        StringBuilder string = new StringBuilder("[");
+        for(int i = 0; i < size; i++)
+        {
+            if(i > 0)
+            {
+                string.append(", ");
+            }
+            string.append(elements[i]);
+        }
+        return string.append(']').toString();
+    }
+}
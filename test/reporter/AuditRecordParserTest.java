@@ -0,0 +1,307 @@
+/*
+ --------------------------------------------------------------------------------
+ SPADE - Support for Provenance Auditing in Distributed Environments.
+ Copyright (C) 2017 SRI International
+
+ This program is free software: you can redistribute it and/or
+ modify it under the terms of the GNU General Public License as
+ published by the Free Software Foundation, either version 3 of the
+ License, or (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program. If not, see <http://www.gnu.org/licenses/>.
+ --------------------------------------------------------------------------------
+ */
+
+package reporter;
+
+import org.junit.Test;
+import spade.reporter.audit.AuditEventReader;
+import spade.utility.CommonFunctions;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * This class checks that the event maps returned by spade.reporter.audit.AuditEventReader,
+ * which parses the records with AuditRecordParser, match the event maps of the regex based
+ * parsing it replaced, for the audit logs in test/linux.
+ */
+public class AuditRecordParserTest {
+    private static final File LOGS_DIRECTORY = new File("test/linux/audit_cdm/checksum/input");
+
+    @Test
+    public void eventMapsMatchRegexParser() throws Exception {
+        File[] logs = LOGS_DIRECTORY.listFiles((directory, name) -> name.endsWith(".log"));
+        assertTrue("no audit logs in " + LOGS_DIRECTORY, logs != null && logs.length > 0);
+        Arrays.sort(logs);
+
+        for (File log : logs) {
+            List<Map<String, String>> expected = RegexEventReader.readEvents(log);
+            AuditEventReader reader = new AuditEventReader(log.getName(), new FileInputStream(log), false);
+            try {
+                for (int i = 0; i < expected.size(); i++) {
+                    assertEquals(log.getName() + ": event " + i, expected.get(i), reader.readEventData());
+                }
+                assertNull(log.getName() + ": more events than expected", reader.readEventData());
+            } finally {
+                reader.close();
+            }
+        }
+    }
+
+    /**
+     * Grouping of records into events and regex parsing of the records, as done by
+     * AuditEventReader before AuditRecordParser. Records of an event are parsed in the
+     * order of the log instead of the order of a HashSet, so that keys found in several
+     * records of an event get the value of the last one, as in AuditRecordParser.
+     */
+    private static class RegexEventReader {
+        // Group 1: pid
+        // Group 2: thread start time
+        // Group 3: unitid
+        // Group 4: iteration
+        // Group 5: time
+        // Group 6: count
+        private static final Pattern pattern_unit =
+                Pattern.compile("\\(pid=(\\d+) thread_time=(\\d+\\.\\d+) unitid=(\\d+) iteration=(\\d+) time=(\\d+\\.\\d+) count=(\\d+)\\)");
+
+        // Group 1: key
+        // Group 2: value
+        private static final Pattern pattern_key_value = Pattern.compile("(\\w+)=\"*((?<=\")[^\"]+(?=\")|([^\\s]+))\"*");
+
+        // Group 1: node
+        // Group 2: type
+        // Group 3: time
+        // Group 4: recordid
+        private static final Pattern pattern_message_start = Pattern.compile("(?:node=(\\S+) )?type=(.+) msg=audit\\(([0-9\\.]+)\\:([0-9]+)\\):\\s*");
+
+        // Group 1: cwd
+        private static final Pattern pattern_cwd = Pattern.compile("cwd=(\".+\"|[a-zA-Z0-9]+)");
+
+        private static final String TYPE = AuditEventReader.RECORD_TYPE_KEY + "=";
+
+        static List<Map<String, String>> readEvents(File log) throws IOException {
+            List<Map<String, String>> events = new ArrayList<>();
+            List<String> currentEventRecords = new ArrayList<>();
+            Long currentEventId = -1L;
+            try (BufferedReader stream = new BufferedReader(new FileReader(log))) {
+                String line;
+                while ((line = stream.readLine()) != null) {
+                    Long eventId = getEventId(line);
+                    if (eventId == null || getEventTime(line) == null) {
+                        continue;
+                    }
+                    if (line.contains(TYPE + AuditEventReader.RECORD_TYPE_PROCTITLE)
+                            || line.contains(TYPE + AuditEventReader.RECORD_TYPE_UNKNOWN_PREFIX)
+                            || line.contains(TYPE + AuditEventReader.RECORD_TYPE_EOE)) {
+                        continue;
+                    }
+                    boolean isUBSIRecord = line.contains(TYPE + AuditEventReader.RECORD_TYPE_UBSI_EXIT)
+                            || line.contains(TYPE + AuditEventReader.RECORD_TYPE_UBSI_DEP)
+                            || line.contains(TYPE + AuditEventReader.RECORD_TYPE_UBSI_ENTRY);
+                    if (isUBSIRecord) {
+                        if (!currentEventRecords.isEmpty()) {
+                            events.add(getEventMap(currentEventRecords));
+                            currentEventRecords.clear();
+                        }
+                        events.add(getEventMap(Arrays.asList(line)));
+                        currentEventId = -1L;
+                    } else if (currentEventId.equals(-1L) || currentEventId.equals(eventId)) {
+                        currentEventId = eventId;
+                        currentEventRecords.add(line);
+                    } else {
+                        events.add(getEventMap(currentEventRecords));
+                        currentEventRecords.clear();
+                        currentEventRecords.add(line);
+                        currentEventId = eventId;
+                    }
+                }
+            }
+            if (!currentEventRecords.isEmpty()) {
+                events.add(getEventMap(currentEventRecords));
+            }
+            return events;
+        }
+
+        private static Long getEventId(String line) {
+            try {
+                return Long.parseLong(line.substring(line.indexOf(':') + 1, line.indexOf(')')));
+            } catch (Exception e) {
+                return null;
+            }
+        }
+
+        private static String getEventTime(String line) {
+            try {
+                String timeStr = line.substring(line.indexOf('(') + 1, line.indexOf(':'));
+                Double.parseDouble(timeStr);
+                return timeStr;
+            } catch (Exception e) {
+                return null;
+            }
+        }
+
+        private static Map<String, String> getEventMap(List<String> records) {
+            Map<String, String> eventMap = new HashMap<>();
+            for (String record : records) {
+                eventMap.putAll(parseEventLine(record));
+            }
+            return eventMap;
+        }
+
+        private static List<Map<String, String>> parseUnitsKeyValues(String line) {
+            List<Map<String, String>> unitsKeyValues = new ArrayList<>();
+            Matcher matcher = pattern_unit.matcher(line);
+            while (matcher.find()) {
+                Map<String, String> unitKeyValues = new HashMap<>();
+                unitKeyValues.put(AuditEventReader.UNIT_PID, matcher.group(1));
+                unitKeyValues.put(AuditEventReader.UNIT_THREAD_START_TIME, matcher.group(2));
+                unitKeyValues.put(AuditEventReader.UNIT_UNITID, matcher.group(3));
+                unitKeyValues.put(AuditEventReader.UNIT_ITERATION, matcher.group(4));
+                unitKeyValues.put(AuditEventReader.UNIT_TIME, matcher.group(5));
+                unitKeyValues.put(AuditEventReader.UNIT_COUNT, matcher.group(6));
+                unitsKeyValues.add(unitKeyValues);
+            }
+            return unitsKeyValues;
+        }
+
+        private static Map<String, String> parseEventLine(String line) {
+            Map<String, String> auditRecordKeyValues = new HashMap<>();
+
+            if (line.contains(TYPE + AuditEventReader.RECORD_TYPE_DAEMON_START)) {
+                auditRecordKeyValues.put(AuditEventReader.RECORD_TYPE_KEY, AuditEventReader.RECORD_TYPE_DAEMON_START);
+                return auditRecordKeyValues;
+            }
+
+            boolean isUBSIEvent = false;
+            if (line.contains(TYPE + AuditEventReader.RECORD_TYPE_UBSI_ENTRY)) {
+                List<Map<String, String>> unitsKeyValues = parseUnitsKeyValues(line);
+                if (unitsKeyValues.size() == 1) {
+                    auditRecordKeyValues.putAll(unitsKeyValues.get(0));
+                }
+                auditRecordKeyValues.put(AuditEventReader.RECORD_TYPE_KEY, AuditEventReader.RECORD_TYPE_UBSI_ENTRY);
+                isUBSIEvent = true;
+            } else if (line.contains(TYPE + AuditEventReader.RECORD_TYPE_UBSI_EXIT)) {
+                auditRecordKeyValues.put(AuditEventReader.RECORD_TYPE_KEY, AuditEventReader.RECORD_TYPE_UBSI_EXIT);
+                isUBSIEvent = true;
+            } else if (line.contains(TYPE + AuditEventReader.RECORD_TYPE_UBSI_DEP)) {
+                List<Map<String, String>> unitsKeyValues = parseUnitsKeyValues(line);
+                if (unitsKeyValues.size() > 0) {
+                    // Last one is the acting unit
+                    Map<String, String> actingUnitKeyValues = unitsKeyValues.remove(unitsKeyValues.size() - 1);
+                    auditRecordKeyValues.putAll(actingUnitKeyValues);
+                    for (int a = 0; a < unitsKeyValues.size(); a++) {
+                        for (Map.Entry<String, String> entry : unitsKeyValues.get(a).entrySet()) {
+                            auditRecordKeyValues.put(entry.getKey() + a, entry.getValue());
+                        }
+                    }
+                    auditRecordKeyValues.put(AuditEventReader.UNIT_DEPS_COUNT, String.valueOf(unitsKeyValues.size()));
+                }
+                auditRecordKeyValues.put(AuditEventReader.RECORD_TYPE_KEY, AuditEventReader.RECORD_TYPE_UBSI_DEP);
+                isUBSIEvent = true;
+            }
+
+            if (isUBSIEvent) {
+                auditRecordKeyValues.put(AuditEventReader.TIME, getEventTime(line));
+                auditRecordKeyValues.put(AuditEventReader.EVENT_ID, String.valueOf(getEventId(line)));
+                auditRecordKeyValues.putAll(CommonFunctions.parseKeyValPairs(line.substring(line.indexOf(" ppid="))));
+                return auditRecordKeyValues;
+            }
+
+            Matcher event_start_matcher = pattern_message_start.matcher(line);
+            if (!event_start_matcher.find()) {
+                return auditRecordKeyValues;
+            }
+            String type = event_start_matcher.group(2);
+            String time = event_start_matcher.group(3);
+            String messageData = line.substring(event_start_matcher.end());
+
+            auditRecordKeyValues.put(AuditEventReader.EVENT_ID, event_start_matcher.group(4));
+            auditRecordKeyValues.put(AuditEventReader.RECORD_TYPE_KEY, type);
+
+            if (type.equals(AuditEventReader.RECORD_TYPE_USER)) {
+                int indexOfData = messageData.indexOf(AuditEventReader.KMODULE_DATA_KEY);
+                if (indexOfData != -1) {
+                    String data = messageData.substring(indexOfData + AuditEventReader.KMODULE_DATA_KEY.length() + 1);
+                    data = data.substring(1, data.length() - 1); // remove quotes
+                    Map<String, String> eventData = CommonFunctions.parseKeyValPairs(data);
+                    eventData.put(AuditEventReader.RECORD_TYPE_KEY, AuditEventReader.KMODULE_RECORD_TYPE);
+                    eventData.put(AuditEventReader.COMM, CommonFunctions.decodeHex(eventData.get(AuditEventReader.COMM)));
+                    eventData.put(AuditEventReader.TIME, time);
+                    auditRecordKeyValues.putAll(eventData);
+                }
+            } else if (type.equals(AuditEventReader.RECORD_TYPE_SYSCALL)) {
+                Map<String, String> eventData = CommonFunctions.parseKeyValPairs(messageData);
+                String comm = AuditEventReader.COMM + "=";
+                if (messageData.contains(comm) && !messageData.contains(comm + "\"")
+                        && !"(null)".equals(eventData.get(AuditEventReader.COMM))) { // comm has a hex encoded value
+                    eventData.put(AuditEventReader.COMM, CommonFunctions.decodeHex(eventData.get(AuditEventReader.COMM)));
+                }
+                eventData.put(AuditEventReader.TIME, time);
+                auditRecordKeyValues.putAll(eventData);
+            } else if (type.equals(AuditEventReader.RECORD_TYPE_CWD)) {
+                Matcher cwd_matcher = pattern_cwd.matcher(messageData);
+                if (cwd_matcher.find()) {
+                    String cwd = cwd_matcher.group(1).trim();
+                    if (cwd.startsWith("\"") && cwd.endsWith("\"")) { // is a string path
+                        cwd = cwd.substring(1, cwd.length() - 1);
+                    } else { // is in hex format
+                        cwd = CommonFunctions.decodeHex(cwd);
+                    }
+                    auditRecordKeyValues.put(AuditEventReader.CWD, cwd);
+                }
+            } else if (type.equals(AuditEventReader.RECORD_TYPE_PATH)) {
+                Map<String, String> pathKeyValues = CommonFunctions.parseKeyValPairs(messageData);
+                String itemNumber = pathKeyValues.get("item");
+                String name = pathKeyValues.get("name").trim();
+                String mode = pathKeyValues.get("mode");
+                if (messageData.contains(" name=") && !messageData.contains(" name=\"")
+                        && !messageData.contains(" name=(null)")) { // is a hex path
+                    name = CommonFunctions.decodeHex(name);
+                }
+                auditRecordKeyValues.put(AuditEventReader.PATH_PREFIX + itemNumber, name);
+                auditRecordKeyValues.put(AuditEventReader.NAMETYPE_PREFIX + itemNumber, pathKeyValues.get("nametype"));
+                auditRecordKeyValues.put(AuditEventReader.MODE_PREFIX + itemNumber, mode == null ? "0" : mode);
+            } else if (type.equals(AuditEventReader.RECORD_TYPE_EXECVE)) {
+                putKeyValues(auditRecordKeyValues, AuditEventReader.EXECVE_PREFIX, messageData);
+            } else if (type.equals(AuditEventReader.RECORD_TYPE_SOCKETCALL)) {
+                putKeyValues(auditRecordKeyValues, "socketcall_", messageData);
+            } else if (type.equals(AuditEventReader.RECORD_TYPE_NETFILTER_PKT)) {
+                auditRecordKeyValues.put(AuditEventReader.TIME, time);
+                putKeyValues(auditRecordKeyValues, "", messageData);
+            } else if (type.equals(AuditEventReader.RECORD_TYPE_FD_PAIR)
+                    || type.equals(AuditEventReader.RECORD_TYPE_SOCKADDR)
+                    || type.equals(AuditEventReader.RECORD_TYPE_MMAP)) {
+                putKeyValues(auditRecordKeyValues, "", messageData);
+            }
+            return auditRecordKeyValues;
+        }
+
+        private static void putKeyValues(Map<String, String> auditRecordKeyValues, String keyPrefix, String messageData) {
+            Matcher key_value_matcher = pattern_key_value.matcher(messageData);
+            while (key_value_matcher.find()) {
+                auditRecordKeyValues.put(keyPrefix + key_value_matcher.group(1), key_value_matcher.group(2));
+            }
+        }
+    }
+}
@@ -0,0 +1,233 @@
+/*
+ --------------------------------------------------------------------------------
+ SPADE - Support for Provenance Auditing in Distributed Environments.
+ Copyright (C) 2017 SRI International
+
+ This program is free software: you can redistribute it and/or
+ modify it under the terms of the GNU General Public License as
+ published by the Free Software Foundation, either version 3 of the
+ License, or (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program. If not, see <http://www.gnu.org/licenses/>.
+ --------------------------------------------------------------------------------
+ */
+
+package storage;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import spade.reporter.audit.ArtifactProperties;
+import spade.utility.MemoryMappedStore;
+import spade.utility.OffHeapDigestMap;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * This class checks spade.utility.MemoryMappedStore and spade.utility.OffHeapDigestMap
+ * against a HashMap with random operations, including compaction, clear and reuse.
+ */
+public class MemoryMappedStoreTest {
+    private static final long SEED = 1;
+    private static final int OPERATIONS = 20000;
+
+    // Large enough that OPERATIONS puts write several 64 MB segments and force compaction
+    private static final int PADDING_BYTES = 16 * 1024;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    /**
+     * Values followed by unused bytes, so that the store file grows quickly.
+     */
+    private static final MemoryMappedStore.Codec<String> PADDED_CODEC = new MemoryMappedStore.Codec<String>() {
+        @Override
+        public void write(String value, DataOutput out) throws IOException {
+            out.writeUTF(value);
+            out.write(new byte[PADDING_BYTES]);
+        }
+
+        @Override
+        public String read(DataInput in) throws IOException {
+            String value = in.readUTF();
+            in.skipBytes(PADDING_BYTES);
+            return value;
+        }
+    };
+
+    @Test
+    public void digestMapMatchesHashMap() {
+        Random random = new Random(SEED);
+        // Start small so that the map is resized several times
+        OffHeapDigestMap map = new OffHeapDigestMap(16);
+        List<byte[]> digests = collidingDigests(random, 4096);
+
+        Map<Integer, Long> model = new HashMap<>();
+        runDigestOperations(random, map, digests, model);
+
+        map.clear();
+        assertEquals(0, map.size());
+        for (byte[] digest : digests) {
+            assertEquals(OffHeapDigestMap.NOT_FOUND, map.get(digest));
+        }
+
+        model.clear();
+        runDigestOperations(random, map, digests, model);
+        map.close();
+    }
+
+    @Test
+    public void storeMatchesHashMap() throws Exception {
+        Random random = new Random(SEED);
+        MemoryMappedStore<String> store = new MemoryMappedStore<>(folder.getRoot().getAbsolutePath(), "store", PADDED_CODEC);
+        List<String> keys = new ArrayList<>();
+        for (int i = 0; i < 256; i++) {
+            keys.add("key:" + i);
+        }
+
+        Map<String, String> model = new HashMap<>();
+        runStoreOperations(random, store, keys, model);
+        assertTrue("store was never compacted", storeGeneration() > 0);
+
+        store.clear();
+        for (String key : keys) {
+            assertNull(store.get(key));
+        }
+
+        // Values written after clear() overwrite the old records in place
+        model.clear();
+        runStoreOperations(random, store, keys, model);
+
+        store.close();
+        assertEquals(0, folder.getRoot().listFiles().length);
+    }
+
+    @Test
+    public void artifactPropertiesRoundTrip() throws Exception {
+        Random random = new Random(SEED);
+        MemoryMappedStore<ArtifactProperties> store = new MemoryMappedStore<>(folder.getRoot().getAbsolutePath(), "artifacts", ArtifactProperties.CODEC);
+        Map<String, ArtifactProperties> model = new HashMap<>();
+        for (int i = 0; i < OPERATIONS; i++) {
+            String key = "/tmp/file" + random.nextInt(512);
+            ArtifactProperties properties = new ArtifactProperties();
+            if (random.nextBoolean()) {
+                properties.initializePermissions();
+                properties.setCurrentPermissions(String.format("0%o", random.nextInt(01000)));
+            }
+            for (int version = random.nextInt(4); version > 0; version--) {
+                properties.getVersion(true);
+            }
+            if (random.nextBoolean()) {
+                properties.getEpoch();
+            }
+            store.put(key, properties);
+            model.put(key, properties);
+            assertEquals(properties, store.get(key));
+        }
+        for (Map.Entry<String, ArtifactProperties> entry : model.entrySet()) {
+            assertEquals(entry.getValue(), store.get(entry.getKey()));
+        }
+        store.close();
+    }
+
+    private void runDigestOperations(Random random, OffHeapDigestMap map, List<byte[]> digests, Map<Integer, Long> model) {
+        for (int i = 0; i < OPERATIONS; i++) {
+            int key = random.nextInt(digests.size());
+            byte[] digest = digests.get(key);
+            long value = random.nextInt(Integer.MAX_VALUE);
+            Long expected = model.get(key);
+            long expectedValue = expected == null ? OffHeapDigestMap.NOT_FOUND : expected;
+            switch (random.nextInt(4)) {
+                case 0:
+                    assertEquals(expectedValue, map.put(digest, value));
+                    model.put(key, value);
+                    break;
+                case 1:
+                    assertEquals(expectedValue, map.putIfAbsent(digest, value));
+                    if (expected == null) {
+                        model.put(key, value);
+                    }
+                    break;
+                case 2:
+                    assertEquals(expectedValue, map.remove(digest));
+                    model.remove(key);
+                    break;
+                default:
+                    assertEquals(expectedValue, map.get(digest));
+                    break;
+            }
+            assertEquals(model.size(), map.size());
+        }
+        for (int key = 0; key < digests.size(); key++) {
+            Long expected = model.get(key);
+            assertEquals(expected == null ? OffHeapDigestMap.NOT_FOUND : expected, map.get(digests.get(key)));
+        }
+    }
+
+    private void runStoreOperations(Random random, MemoryMappedStore<String> store, List<String> keys, Map<String, String> model) throws Exception {
+        for (int i = 0; i < OPERATIONS; i++) {
+            String key = keys.get(random.nextInt(keys.size()));
+            switch (random.nextInt(8)) {
+                case 0:
+                    store.remove(key);
+                    model.remove(key);
+                    break;
+                case 1:
+                    assertEquals(model.get(key), store.get(key));
+                    break;
+                default:
+                    String value = key + "=" + random.nextLong();
+                    store.put(key, value);
+                    model.put(key, value);
+                    break;
+            }
+        }
+        for (String key : keys) {
+            assertEquals(model.get(key), store.get(key));
+        }
+    }
+
+    /**
+     * Digests whose lower halves (the hash) fall into few buckets, so that entries share
+     * long probe sequences and removal has to shift them back.
+     */
+    private static List<byte[]> collidingDigests(Random random, int count) {
+        List<byte[]> digests = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            ByteBuffer digest = ByteBuffer.allocate(16);
+            digest.putLong(random.nextLong());
+            digest.putLong(random.nextInt(count / 8));
+            digests.add(digest.array());
+        }
+        return digests;
+    }
+
+    /**
+     * @return the generation of the store file, which is incremented by every compaction
+     */
+    private int storeGeneration() {
+        File[] files = folder.getRoot().listFiles();
+        assertEquals(1, files.length);
+        String name = files[0].getName();
+        return Integer.parseInt(name.substring(name.lastIndexOf('.') + 1));
+    }
+}